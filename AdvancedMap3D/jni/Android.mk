@@ -138,6 +138,7 @@ LOCAL_SRC_FILES := \
 	proj-4.8.0//src/geod_inv.c \
 	proj-4.8.0//src/geod_set.c \
 	proj-4.8.0//src/jniproj.c \
+	projbulk/projbulk.c \
 	proj-4.8.0//src/mk_cheby.c \
 	proj-4.8.0//src/multistresstest.c \
 	proj-4.8.0//src/nad_cvt.c \
@@ -673,3 +674,11 @@ LOCAL_SRC_FILES := gdal/jni/osr_wrap.cpp
 LOCAL_STATIC_LIBRARIES := gdal
 include $(BUILD_SHARED_LIBRARY)
 
+include $(CLEAR_VARS)
+LOCAL_MODULE := ogrbatch
+LOCAL_SRC_FILES := ogrbatch/ogrbatch.c
+LOCAL_LDLIBS := -lm
+LOCAL_LDLIBS += -llog 
+LOCAL_STATIC_LIBRARIES := gdal
+include $(BUILD_SHARED_LIBRARY)
+
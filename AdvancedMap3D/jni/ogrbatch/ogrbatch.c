@@ -0,0 +1,312 @@
+/*
+ * Batch feature reader for OGR layers.
+ *
+ * OGR Java (SWIG) bindings need several JNI crossings per feature (GetNextFeature, GetGeometryRef,
+ * ExportToWkb, GetFieldAsString for each field, delete). This reader returns up to N features
+ * per call, serialized into a single byte array, see OGRBatchReader.java for the format.
+ *
+ * Author: jaak
+ */
+
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <jni.h>
+
+#include "cpl_error.h"
+#include "ogr_api.h"
+#include "ogr_srs_api.h"
+
+/* Map projection, must match EPSG3857 projection of the SDK */
+#define MAP_PROJ4 "+proj=merc +a=6378137 +b=6378137 +lat_ts=0.0 +lon_0=0.0 +x_0=0.0 +y_0=0 +k=1.0 +units=m +nadgrids=@null +wktext +no_defs"
+
+typedef struct {
+    OGRDataSourceH ds;
+    OGRLayerH layer;
+    OGRCoordinateTransformationH toMap;
+    OGRCoordinateTransformationH toData;
+} BatchReader;
+
+typedef struct {
+    unsigned char *data;
+    size_t size;
+    size_t capacity;
+} Buffer;
+
+static int bufferReserve(Buffer *buf, size_t extra)
+{
+    if (buf->size + extra > buf->capacity) {
+        size_t capacity = buf->capacity * 2;
+        unsigned char *data;
+        if (capacity < buf->size + extra) {
+            capacity = buf->size + extra;
+        }
+        data = (unsigned char *) realloc(buf->data, capacity);
+        if (!data) {
+            return 0;
+        }
+        buf->data = data;
+        buf->capacity = capacity;
+    }
+    return 1;
+}
+
+/* Integers are written in big-endian order, as read by java.io.DataInputStream */
+static int bufferWriteInt(Buffer *buf, jint value)
+{
+    if (!bufferReserve(buf, 4)) {
+        return 0;
+    }
+    buf->data[buf->size++] = (unsigned char) (value >> 24);
+    buf->data[buf->size++] = (unsigned char) (value >> 16);
+    buf->data[buf->size++] = (unsigned char) (value >> 8);
+    buf->data[buf->size++] = (unsigned char) value;
+    return 1;
+}
+
+static int bufferWriteLong(Buffer *buf, jlong value)
+{
+    return bufferWriteInt(buf, (jint) (value >> 32)) && bufferWriteInt(buf, (jint) value);
+}
+
+static int bufferWriteString(Buffer *buf, const char *str)
+{
+    size_t len = str ? strlen(str) : 0;
+    if (!bufferWriteInt(buf, (jint) len) || !bufferReserve(buf, len)) {
+        return 0;
+    }
+    memcpy(buf->data + buf->size, str, len);
+    buf->size += len;
+    return 1;
+}
+
+static int bufferWriteFeature(Buffer *buf, OGRFeatureH feature, OGRGeometryH geom, int fieldCount)
+{
+    int i;
+    int wkbSize = OGR_G_WkbSize(geom);
+
+    if (!bufferWriteLong(buf, (jlong) OGR_F_GetFID(feature)) || !bufferWriteInt(buf, fieldCount)) {
+        return 0;
+    }
+    for (i = 0; i < fieldCount; i++) {
+        if (!bufferWriteString(buf, OGR_F_IsFieldSet(feature, i) ? OGR_F_GetFieldAsString(feature, i) : NULL)) {
+            return 0;
+        }
+    }
+    if (!bufferWriteInt(buf, wkbSize) || !bufferReserve(buf, wkbSize)) {
+        return 0;
+    }
+    OGR_G_ExportToWkb(geom, wkbNDR, buf->data + buf->size);
+    buf->size += wkbSize;
+    return 1;
+}
+
+static void throwIOException(JNIEnv *env, const char *message)
+{
+    jclass clazz = (*env)->FindClass(env, "java/io/IOException");
+    if (clazz) {
+        (*env)->ThrowNew(env, clazz, message);
+    }
+}
+
+/* Transform envelope corners with given transformation, envelope is not changed if transformation fails */
+static void transformEnvelope(OGRCoordinateTransformationH transformation, double *minX, double *minY, double *maxX, double *maxY)
+{
+    double x[4] = { *minX, *maxX, *maxX, *minX };
+    double y[4] = { *minY, *minY, *maxY, *maxY };
+    int i;
+    if (OCTTransform(transformation, 4, x, y, NULL)) {
+        *minX = *maxX = x[0];
+        *minY = *maxY = y[0];
+        for (i = 1; i < 4; i++) {
+            *minX = x[i] < *minX ? x[i] : *minX;
+            *maxX = x[i] > *maxX ? x[i] : *maxX;
+            *minY = y[i] < *minY ? y[i] : *minY;
+            *maxY = y[i] > *maxY ? y[i] : *maxY;
+        }
+    }
+}
+
+static void closeReader(BatchReader *reader)
+{
+    if (reader->toMap) {
+        OCTDestroyCoordinateTransformation(reader->toMap);
+    }
+    if (reader->toData) {
+        OCTDestroyCoordinateTransformation(reader->toData);
+    }
+    if (reader->ds) {
+        OGR_DS_Destroy(reader->ds);
+    }
+    free(reader);
+}
+
+JNIEXPORT jlong JNICALL Java_com_nutiteq_advancedmap_datasources_OGRBatchReader_nativeOpen
+  (JNIEnv *env, jclass clazz, jstring jpath, jstring jlayerName)
+{
+    const char *path;
+    OGRSpatialReferenceH dataSrs;
+    OGRSpatialReferenceH mapSrs;
+    BatchReader *reader = (BatchReader *) calloc(1, sizeof(BatchReader));
+    if (!reader) {
+        return 0;
+    }
+
+    OGRRegisterAll();
+    path = (*env)->GetStringUTFChars(env, jpath, NULL);
+    reader->ds = OGROpen(path, FALSE, NULL);
+    (*env)->ReleaseStringUTFChars(env, jpath, path);
+    if (!reader->ds) {
+        closeReader(reader);
+        return 0;
+    }
+
+    if (jlayerName) {
+        const char *layerName = (*env)->GetStringUTFChars(env, jlayerName, NULL);
+        reader->layer = OGR_DS_GetLayerByName(reader->ds, layerName);
+        (*env)->ReleaseStringUTFChars(env, jlayerName, layerName);
+    } else {
+        reader->layer = OGR_DS_GetLayer(reader->ds, 0);
+    }
+    if (!reader->layer) {
+        closeReader(reader);
+        return 0;
+    }
+
+    dataSrs = OGR_L_GetSpatialRef(reader->layer);
+    if (dataSrs) {
+        mapSrs = OSRNewSpatialReference(NULL);
+        OSRImportFromProj4(mapSrs, MAP_PROJ4);
+        if (!OSRIsSame(dataSrs, mapSrs)) {
+            reader->toMap = OCTNewCoordinateTransformation(dataSrs, mapSrs);
+            reader->toData = OCTNewCoordinateTransformation(mapSrs, dataSrs);
+        }
+        OSRDestroySpatialReference(mapSrs);
+    }
+    return (jlong) (intptr_t) reader;
+}
+
+JNIEXPORT jobjectArray JNICALL Java_com_nutiteq_advancedmap_datasources_OGRBatchReader_nativeGetFieldNames
+  (JNIEnv *env, jclass clazz, jlong handle)
+{
+    BatchReader *reader = (BatchReader *) (intptr_t) handle;
+    OGRFeatureDefnH defn = OGR_L_GetLayerDefn(reader->layer);
+    int fieldCount = OGR_FD_GetFieldCount(defn);
+    int i;
+    jobjectArray names = (*env)->NewObjectArray(env, fieldCount, (*env)->FindClass(env, "java/lang/String"), NULL);
+    if (!names) {
+        /* OutOfMemoryError is pending */
+        return NULL;
+    }
+    for (i = 0; i < fieldCount; i++) {
+        jstring name = (*env)->NewStringUTF(env, OGR_Fld_GetNameRef(OGR_FD_GetFieldDefn(defn, i)));
+        (*env)->SetObjectArrayElement(env, names, i, name);
+        (*env)->DeleteLocalRef(env, name);
+    }
+    return names;
+}
+
+JNIEXPORT void JNICALL Java_com_nutiteq_advancedmap_datasources_OGRBatchReader_nativeSetSpatialFilter
+  (JNIEnv *env, jclass clazz, jlong handle, jdouble minX, jdouble minY, jdouble maxX, jdouble maxY)
+{
+    BatchReader *reader = (BatchReader *) (intptr_t) handle;
+    if (reader->toData) {
+        transformEnvelope(reader->toData, &minX, &minY, &maxX, &maxY);
+    }
+    OGR_L_SetSpatialFilterRect(reader->layer, minX, minY, maxX, maxY);
+    OGR_L_ResetReading(reader->layer);
+}
+
+JNIEXPORT jdoubleArray JNICALL Java_com_nutiteq_advancedmap_datasources_OGRBatchReader_nativeGetExtent
+  (JNIEnv *env, jclass clazz, jlong handle)
+{
+    BatchReader *reader = (BatchReader *) (intptr_t) handle;
+    OGREnvelope bounds;
+    jdouble extent[4];
+    jdoubleArray result;
+
+    if (OGR_L_GetExtent(reader->layer, &bounds, TRUE) != OGRERR_NONE) {
+        throwIOException(env, CPLGetLastErrorMsg());
+        return NULL;
+    }
+    if (reader->toMap) {
+        transformEnvelope(reader->toMap, &bounds.MinX, &bounds.MinY, &bounds.MaxX, &bounds.MaxY);
+    }
+    extent[0] = bounds.MinX;
+    extent[1] = bounds.MinY;
+    extent[2] = bounds.MaxX;
+    extent[3] = bounds.MaxY;
+    result = (*env)->NewDoubleArray(env, 4);
+    if (result) {
+        (*env)->SetDoubleArrayRegion(env, result, 0, 4, extent);
+    }
+    return result;
+}
+
+/*
+ * Returns batch with up to maxFeatures features. Batch with zero features is returned only when
+ * all features of the current spatial filter are read, read errors throw IOException.
+ */
+JNIEXPORT jbyteArray JNICALL Java_com_nutiteq_advancedmap_datasources_OGRBatchReader_nativeReadBatch
+  (JNIEnv *env, jclass clazz, jlong handle, jint maxFeatures)
+{
+    BatchReader *reader = (BatchReader *) (intptr_t) handle;
+    int fieldCount = OGR_FD_GetFieldCount(OGR_L_GetLayerDefn(reader->layer));
+    int count = 0;
+    int ok = 1;
+    Buffer buf;
+    jbyteArray result;
+
+    buf.capacity = 64 * 1024;
+    buf.size = 0;
+    buf.data = (unsigned char *) malloc(buf.capacity);
+    if (!buf.data) {
+        throwIOException(env, "out of memory");
+        return NULL;
+    }
+    bufferWriteInt(&buf, 0); /* feature count, updated at the end */
+
+    CPLErrorReset();
+    while (ok && count < maxFeatures) {
+        OGRGeometryH geom;
+        OGRFeatureH feature = OGR_L_GetNextFeature(reader->layer);
+        if (!feature) {
+            /* NULL is returned both at the end of the layer and on read errors */
+            if (CPLGetLastErrorType() >= CE_Failure) {
+                free(buf.data);
+                throwIOException(env, CPLGetLastErrorMsg());
+                return NULL;
+            }
+            break;
+        }
+        geom = OGR_F_GetGeometryRef(feature);
+        if (geom && (!reader->toMap || OGR_G_Transform(geom, reader->toMap) == OGRERR_NONE)) {
+            ok = bufferWriteFeature(&buf, feature, geom, fieldCount);
+            count++;
+        }
+        OGR_F_Destroy(feature);
+    }
+
+    if (!ok) {
+        free(buf.data);
+        throwIOException(env, "out of memory");
+        return NULL;
+    }
+    buf.data[0] = (unsigned char) (count >> 24);
+    buf.data[1] = (unsigned char) (count >> 16);
+    buf.data[2] = (unsigned char) (count >> 8);
+    buf.data[3] = (unsigned char) count;
+
+    result = (*env)->NewByteArray(env, (jsize) buf.size);
+    if (result) {
+        (*env)->SetByteArrayRegion(env, result, 0, (jsize) buf.size, (const jbyte *) buf.data);
+    }
+    free(buf.data);
+    return result;
+}
+
+JNIEXPORT void JNICALL Java_com_nutiteq_advancedmap_datasources_OGRBatchReader_nativeClose
+  (JNIEnv *env, jclass clazz, jlong handle)
+{
+    closeReader((BatchReader *) (intptr_t) handle);
+}
@@ -0,0 +1,158 @@
+/*
+ * Bulk coordinate transformations for Proj.4, over direct NIO buffers.
+ *
+ * Unlike org.proj4.PJ.transform (Java heap arrays), coordinates in a direct DoubleBuffer are
+ * transformed in-place without copying, using GetDirectBufferAddress. Each handle has its own
+ * projCtx, so handles can be used from different threads (but each handle from one thread
+ * at a time, see ProjPool.java). If pj_transform fails, input coordinates are restored, as it
+ * may leave the buffer partly transformed and partly converted to radians.
+ *
+ * Compiled into the proj module, see Android.mk.
+ *
+ * Author: jaak
+ */
+
+#include <errno.h>
+#include <math.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <jni.h>
+
+#include "proj_api.h"
+
+#ifndef M_PI
+#define M_PI 3.14159265358979323846
+#endif
+
+#define PROJBULK_MAX_DIMENSION 100
+
+typedef struct {
+    projCtx ctx;
+    projPJ pj;
+} ProjHandle;
+
+static void convertAngles(ProjHandle *handle, double *data, jint numPts, jint dimension, double factor)
+{
+    double *stop = data + (size_t) dimension * numPts;
+    if (!pj_is_latlong(handle->pj)) {
+        return;
+    }
+    while (data != stop) {
+        data[0] *= factor;
+        data[1] *= factor;
+        data += dimension;
+    }
+}
+
+static jint transform(ProjHandle *src, ProjHandle *dst, double *data, jint numPts, jint dimension)
+{
+    int err;
+    size_t size = (size_t) dimension * numPts * sizeof(double);
+    double *input = (double *) malloc(size > 0 ? size : 1);
+    if (!input) {
+        return ENOMEM;
+    }
+    memcpy(input, data, size);
+    convertAngles(src, data, numPts, dimension, M_PI / 180);
+    err = pj_transform(src->pj, dst->pj, numPts, dimension, data, data + 1, dimension >= 3 ? data + 2 : NULL);
+    if (err) {
+        memcpy(data, input, size);
+    } else {
+        convertAngles(dst, data, numPts, dimension, 180 / M_PI);
+    }
+    free(input);
+    return err;
+}
+
+static int checkArguments(JNIEnv *env, jlong src, jlong dst, jint dimension, jint offset, jint numPts, jlong capacity)
+{
+    const char *error = NULL;
+    const char *exception = "java/lang/IllegalArgumentException";
+    if (!src || !dst) {
+        error = "Projection handle is not initialized.";
+    } else if (dimension < 2 || dimension > PROJBULK_MAX_DIMENSION) {
+        error = "Illegal dimension. Must be in the [2-100] range.";
+    } else if (offset < 0 || numPts < 0 || offset + (jlong) dimension * numPts > capacity) {
+        error = "Illegal offset or illegal number of points.";
+        exception = "java/lang/IndexOutOfBoundsException";
+    }
+    if (error) {
+        jclass c = (*env)->FindClass(env, exception);
+        if (c) (*env)->ThrowNew(env, c, error);
+        return 0;
+    }
+    return 1;
+}
+
+JNIEXPORT jlong JNICALL Java_com_nutiteq_advancedmap_proj_NativeProj_nativeInit
+  (JNIEnv *env, jclass clazz, jstring jdefinition)
+{
+    const char *definition;
+    ProjHandle *handle = (ProjHandle *) calloc(1, sizeof(ProjHandle));
+    if (!handle) {
+        return 0;
+    }
+    handle->ctx = pj_ctx_alloc();
+    definition = (*env)->GetStringUTFChars(env, jdefinition, NULL);
+    if (definition) {
+        handle->pj = pj_init_plus_ctx(handle->ctx, definition);
+        (*env)->ReleaseStringUTFChars(env, jdefinition, definition);
+    }
+    if (!handle->pj) {
+        pj_ctx_free(handle->ctx);
+        free(handle);
+        return 0;
+    }
+    return (jlong) (intptr_t) handle;
+}
+
+JNIEXPORT void JNICALL Java_com_nutiteq_advancedmap_proj_NativeProj_nativeFree
+  (JNIEnv *env, jclass clazz, jlong jhandle)
+{
+    ProjHandle *handle = (ProjHandle *) (intptr_t) jhandle;
+    if (handle) {
+        pj_free(handle->pj);
+        pj_ctx_free(handle->ctx);
+        free(handle);
+    }
+}
+
+JNIEXPORT jint JNICALL Java_com_nutiteq_advancedmap_proj_NativeProj_nativeTransformDirect
+  (JNIEnv *env, jclass clazz, jlong src, jlong dst, jobject buffer, jint offset, jint numPts, jint dimension)
+{
+    double *data = (double *) (*env)->GetDirectBufferAddress(env, buffer);
+    if (!data) {
+        jclass c = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+        if (c) (*env)->ThrowNew(env, c, "Buffer must be a direct DoubleBuffer.");
+        return -1;
+    }
+    if (!checkArguments(env, src, dst, dimension, offset, numPts, (*env)->GetDirectBufferCapacity(env, buffer))) {
+        return -1;
+    }
+    return transform((ProjHandle *) (intptr_t) src, (ProjHandle *) (intptr_t) dst, data + offset, numPts, dimension);
+}
+
+JNIEXPORT jint JNICALL Java_com_nutiteq_advancedmap_proj_NativeProj_nativeTransformArray
+  (JNIEnv *env, jclass clazz, jlong src, jlong dst, jdoubleArray array, jint offset, jint numPts, jint dimension)
+{
+    double *data;
+    jint err;
+    if (!checkArguments(env, src, dst, dimension, offset, numPts, (*env)->GetArrayLength(env, array))) {
+        return -1;
+    }
+    /* copies in and out, same as the old org.proj4.Projections bindings; kept for comparison */
+    data = (*env)->GetDoubleArrayElements(env, array, NULL);
+    if (!data) {
+        return -1;
+    }
+    err = transform((ProjHandle *) (intptr_t) src, (ProjHandle *) (intptr_t) dst, data + offset, numPts, dimension);
+    (*env)->ReleaseDoubleArrayElements(env, array, data, 0);
+    return err;
+}
+
+JNIEXPORT jstring JNICALL Java_com_nutiteq_advancedmap_proj_NativeProj_nativeErrorString
+  (JNIEnv *env, jclass clazz, jint err)
+{
+    return (*env)->NewStringUTF(env, pj_strerrno(err));
+}
@@ -0,0 +1,49 @@
+package com.nutiteq.advancedmap.nml;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import android.opengl.ETC1;
+import android.opengl.ETC1Util;
+
+import com.google.protobuf.ByteString;
+
+/**
+ *
+ * Instrumentation test, as ETC1 encoding and loading are native: ETC1 mip levels written by
+ * DaeConverter must load with ETC1Util.createTexture, the same way the SDK uploads them.
+ *
+ * @author jaak
+ *
+ */
+public class DaeConverterTest extends TestCase {
+
+    public void testETC1LevelsLoad() throws IOException {
+        int size = 8;
+        while (size >= 1) {
+            ByteString level = DaeConverter.encodeETC1(createRGB(size, size), size, size);
+            ETC1Util.ETC1Texture texture = ETC1Util.createTexture(level.newInput());
+            assertEquals(size, texture.getWidth());
+            assertEquals(size, texture.getHeight());
+            assertEquals(ETC1.getEncodedDataSize(size, size), texture.getData().capacity());
+            assertEquals(ETC1.ETC_PKM_HEADER_SIZE + ETC1.getEncodedDataSize(size, size), level.size());
+            size /= 2;
+        }
+    }
+
+    public void testNonSquareLevelLoads() throws IOException {
+        ByteString level = DaeConverter.encodeETC1(createRGB(16, 2), 16, 2);
+        ETC1Util.ETC1Texture texture = ETC1Util.createTexture(level.newInput());
+        assertEquals(16, texture.getWidth());
+        assertEquals(2, texture.getHeight());
+    }
+
+    private static byte[] createRGB(int width, int height) {
+        byte[] rgb = new byte[width * height * 3];
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] = (byte) (i * 7);
+        }
+        return rgb;
+    }
+
+}
@@ -0,0 +1,30 @@
+package com.nutiteq.advancedmap;
+
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+
+import com.nutiteq.advancedmap.cache.ResourceBitmapCache;
+
+/**
+ *
+ * Application of samples, releases process-wide caches on memory pressure.
+ *
+ * @author jaak
+ *
+ */
+public class AdvancedMapApplication extends Application {
+
+    @Override
+    public void onTrimMemory(int level) {
+        // called from API level 14
+        super.onTrimMemory(level);
+        ResourceBitmapCache.trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        ResourceBitmapCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+}
@@ -1,13 +1,24 @@
 package com.nutiteq.advancedmap.activity;
 
+import java.io.File;
+import java.io.IOException;
+
 import android.app.Activity;
 import android.graphics.Color;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
+import android.widget.Toast;
 import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.geocode.OfflineGeocoder;
+import com.nutiteq.advancedmap.geocode.SuggestionIndex;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.Options;
@@ -18,7 +29,6 @@ import com.nutiteq.rasterdatasources.HTTPRasterDataSource;
 import com.nutiteq.rasterdatasources.RasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
 import com.nutiteq.style.MarkerStyle;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 import com.nutiteq.vectorlayers.MarkerLayer;
 
 /**
@@ -31,13 +41,18 @@ import com.nutiteq.vectorlayers.MarkerLayer;
  * 
  * 2. mapquest.SearchQueryResults.java - ListView which initiates real search, and shows results as ListView
  * 
- * 3. mapquest.SearchRecentSuggestionsProvider.java - stores last search terms to memory
+ * 3. mapquest.SearchSuggestionProvider.java - as-you-type suggestions from recent search terms, local POIs
+ *      and offline geocoder, see geocode.SuggestionIndex.java. Recent search terms can be cleared from menu.
  * 
  * 4. AddressSearchActivity.java opens Android default search UI. Search result comes from resuming 
  *      from search results activity, this is shown on map, and map is re-centered to found result.
  * 
  * 5. Resources: values/strings.xml, layout/search_query_results.xml and layout/searchrow.xml define ListView.
  *      xml/searchable.xml - needed for Android searchable interface
+ * 
+ * 6. geocode.OfflineGeocoder.java - offline search, used instead of MapQuest if OSM extract 
+ *      is in mapxt/geocode.osm on SD card. Index is built from it in background, and built again
+ *      when extract is updated or index format has changed.
  *
  * Used layer(s):
  *  RasterLayer with TMS tile source for base map
@@ -47,6 +62,11 @@ import com.nutiteq.vectorlayers.MarkerLayer;
  */
 public class AddressSearchActivity extends Activity {
 
+    // map focus given to search activity, for ranking of results
+    public static final String APP_DATA_LON = "lon";
+    public static final String APP_DATA_LAT = "lat";
+
+
     private static Marker searchResult;
     private MapView mapView;
     private MarkerLayer searchMarkerLayer;
@@ -54,6 +74,7 @@ public class AddressSearchActivity extends Activity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
         setContentView(R.layout.main);
 
@@ -105,15 +126,11 @@ public class AddressSearchActivity extends Activity {
         // set sky bitmap - optional, default - white
         mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
         mapView.getOptions().setSkyOffset(4.86f);
-        mapView.getOptions().setSkyBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.sky_small));
+        profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
         // Map background, visible if no map tiles loaded - optional, default - white
         mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.background_plane));
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
         mapView.getOptions().setClearColor(Color.WHITE);
 
         // configure texture caching - optional, suggested
@@ -146,6 +163,12 @@ public class AddressSearchActivity extends Activity {
 //      searchResult.setVisible(false);
         mapView.getLayers().addLayer(searchMarkerLayer);
 
+        // offline geocoder, if OSM extract is available
+        File osmFile = OfflineGeocoder.getOsmExtractFile();
+        if (osmFile.exists()) {
+            new LoadGeocoderTask(osmFile, OfflineGeocoder.getIndexFile(this)).execute();
+        }
+
         // open search right away
         // search class is defined in AndroidManifest.xml as android.intent.action.SEARCH
         onSearchRequested();
@@ -182,6 +205,35 @@ public class AddressSearchActivity extends Activity {
         }
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(final Menu menu) {
+        MenuInflater inflater = getMenuInflater();
+        inflater.inflate(R.menu.addresssearch, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onMenuItemSelected(final int featureId, final MenuItem item) {
+        switch (item.getItemId()) {
+        case R.id.menu_clearhistory:
+            SuggestionIndex.getInstance(this).clearHistory();
+            Toast.makeText(this, "Search history cleared", Toast.LENGTH_SHORT).show();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean onSearchRequested() {
+        MapPos focus = mapView.getLayers().getBaseProjection().toWgs84(mapView.getFocusPoint().x, mapView.getFocusPoint().y);
+        Bundle appData = new Bundle();
+        appData.putDouble(APP_DATA_LON, focus.x);
+        appData.putDouble(APP_DATA_LAT, focus.y);
+        SuggestionIndex.getInstance(this).setLocation(focus.x, focus.y);
+        startSearch(null, false, appData, false);
+        return true;
+    }
+
     public static void setSearchResult(Marker marker) {
         Log.debug("Search result selected: " + marker.getMapPos());
         searchResult = marker;
@@ -191,5 +243,35 @@ public class AddressSearchActivity extends Activity {
         return mapView;
     }
 
+    /**
+     * Builds geocoder index if OSM extract is newer than index or index has old version, and loads index.
+     */
+    public class LoadGeocoderTask extends AsyncTask<Void, Void, OfflineGeocoder> {
+        private final File osmFile;
+        private final File indexFile;
+
+        public LoadGeocoderTask(File osmFile, File indexFile) {
+            this.osmFile = osmFile;
+            this.indexFile = indexFile;
+        }
+
+        protected OfflineGeocoder doInBackground(Void... v) {
+            try {
+                return OfflineGeocoder.getInstance(osmFile, indexFile);
+            } catch (IOException e) {
+                Log.error("AddressSearchActivity: Failed to load offline geocoder! " + e.getMessage());
+                return null;
+            }
+        }
+
+        protected void onPostExecute(OfflineGeocoder geocoder) {
+            if (geocoder != null) {
+                Log.debug("AddressSearchActivity: offline geocoder ready, " + geocoder.getEntryCount() + " entries");
+                // local POIs for suggestions
+                SuggestionIndex.getInstance(AddressSearchActivity.this).updatePois(geocoder);
+            }
+        }
+    }
+
 }
 
@@ -1,14 +1,18 @@
 package com.nutiteq.advancedmap.activity;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.Rect;
 import android.graphics.Typeface;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.DisplayMetrics;
 import android.view.Menu;
@@ -16,11 +20,19 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.Window;
+import android.widget.Toast;
 import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.cache.ResourceBitmapCache;
+import com.nutiteq.advancedmap.datasources.BatchedPolygon3DDataSource;
+import com.nutiteq.advancedmap.geocode.GeocodeBenchmark;
+import com.nutiteq.advancedmap.geocode.OfflineGeocoder;
 import com.nutiteq.advancedmap.maplisteners.MapEventListener;
+import com.nutiteq.advancedmap.proj.TransformBenchmark;
+import com.nutiteq.advancedmap.roofs.RoofMeshCache;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
@@ -53,7 +65,6 @@ import com.nutiteq.style.PolygonStyle;
 import com.nutiteq.style.StyleSet;
 import com.nutiteq.ui.DefaultLabel;
 import com.nutiteq.ui.Label;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 import com.nutiteq.vectorlayers.GeometryLayer;
 import com.nutiteq.vectorlayers.MarkerLayer;
 import com.nutiteq.vectorlayers.NMLModelLayer;
@@ -79,6 +90,8 @@ public class AdvancedMapActivity extends Activity {
 
     private MapView mapView;
     private Projection proj;
+    private Polygon3DLayer osm3dLayer;
+    private BatchedPolygon3DDataSource osmBuildingDataSource;
 
 
     // force to load proj library (needed for spatialite)
@@ -93,6 +106,7 @@ public class AdvancedMapActivity extends Activity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
         // spinner in status bar, for progress indication
         requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
@@ -105,6 +119,7 @@ public class AdvancedMapActivity extends Activity {
 
         // 1. Get the MapView from the Layout xml - mandatory
         this.mapView = (MapView) findViewById(R.id.mapView);
+        profiler.mark("layout");
         this.proj = new EPSG3857();
 
         // Optional, but very useful: restore map state during device rotation,
@@ -181,15 +196,11 @@ public class AdvancedMapActivity extends Activity {
         // set sky bitmap - optional, default - white
         mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
         mapView.getOptions().setSkyOffset(4.86f);
-        mapView.getOptions().setSkyBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.sky_small));
+        profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
         // Map background, visible if no map tiles loaded - optional, default - white
         mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.background_plane));
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
         mapView.getOptions().setClearColor(Color.WHITE);
 
         // configure texture caching - optional, suggested
@@ -216,6 +227,7 @@ public class AdvancedMapActivity extends Activity {
             }
         });
 
+        profiler.mark("options");
     }
 
     @Override
@@ -242,6 +254,14 @@ public class AdvancedMapActivity extends Activity {
         mapView.stopMapping();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (osmBuildingDataSource != null) {
+            osmBuildingDataSource.close();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(final Menu menu) {
         MenuInflater inflater = getMenuInflater();
@@ -334,6 +354,14 @@ public class AdvancedMapActivity extends Activity {
             addTileBorderLayer(256);
             break;
 
+        case R.id.menu_transformbenchmark:
+            new TransformBenchmarkTask().execute();
+            break;
+
+        case R.id.menu_geocodebenchmark:
+            new GeocodeBenchmarkTask().execute();
+            break;
+
             // Locations
         case R.id.menu_coburg:
             // Coburg, germany
@@ -412,6 +440,60 @@ public class AdvancedMapActivity extends Activity {
         mapView.getLayers().addLayer(hillsLayer);
     }
 
+    /**
+     * Runs coordinate transformation benchmark in background and shows results
+     */
+    private class TransformBenchmarkTask extends AsyncTask<Void, Void, String> {
+
+        @Override
+        protected void onPreExecute() {
+            Toast.makeText(AdvancedMapActivity.this, "Running transform benchmark...", Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            return new TransformBenchmark().run(TransformBenchmark.DEFAULT_POINT_COUNT);
+        }
+
+        @Override
+        protected void onPostExecute(String result) {
+            new AlertDialog.Builder(AdvancedMapActivity.this).setTitle("Transform benchmark").setMessage(result)
+                .setPositiveButton("OK", null).show();
+        }
+    }
+
+    /**
+     * Runs offline geocoder benchmark in background and shows results
+     */
+    private class GeocodeBenchmarkTask extends AsyncTask<Void, Void, String> {
+
+        @Override
+        protected void onPreExecute() {
+            Toast.makeText(AdvancedMapActivity.this, "Running geocoder benchmark...", Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            File indexFile = OfflineGeocoder.getIndexFile(AdvancedMapActivity.this);
+            if (!OfflineGeocoder.isCurrentIndex(indexFile)) {
+                return "No current geocoder index, it is built by address search from OSM extract";
+            }
+            try {
+                OfflineGeocoder geocoder = OfflineGeocoder.getInstance(indexFile);
+                return new GeocodeBenchmark(geocoder).run(GeocodeBenchmark.DEFAULT_NAME_COUNT);
+            } catch (IOException e) {
+                Log.error("AdvancedMapActivity: Failed to load geocoder index! " + e.getMessage());
+                return "error: " + e.getMessage();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String result) {
+            new AlertDialog.Builder(AdvancedMapActivity.this).setTitle("Geocoder benchmark").setMessage(result)
+                .setPositiveButton("OK", null).show();
+        }
+    }
+
     private void addTileBorderLayer(int size) {
         RasterDataSource dataSource = new TileDebugRasterDataSource(this.proj, 0, 22, size);
         RasterLayer tileDebugLayer = new RasterLayer(dataSource, 17);
@@ -429,7 +511,7 @@ public class AdvancedMapActivity extends Activity {
     // ** Add simple marker to map.
     private void addMarkerLayer(MapPos markerLocation) {
         // define marker style (image, size, color)
-        Bitmap pointMarker = UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.olmarker);
+        Bitmap pointMarker = ResourceBitmapCache.decodeResource(getResources(), R.drawable.olmarker);
         MarkerStyle markerStyle = MarkerStyle.builder()
                 .setBitmap(pointMarker)
                 .setSize(0.5f)
@@ -466,7 +548,7 @@ public class AdvancedMapActivity extends Activity {
 
         final StyleSet<PolygonStyle> polygonStyleSet = new StyleSet<PolygonStyle>(null);
         
-        Bitmap patern = UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.ic_patern_pink);
+        Bitmap patern = ResourceBitmapCache.decodeResource(getResources(), R.drawable.ic_patern_pink);
 //        PolygonStyle.builder().setPattern(patern, 20f).setLineStyle(lineStyle).build();
         
         PolygonStyle polygonStyle = PolygonStyle.builder().setColor(0xFFFF6600 & 0x80FFFFFF).setLineStyle(lineStyle).setPattern(patern, 0.2f).build();
@@ -519,8 +601,21 @@ public class AdvancedMapActivity extends Activity {
         StyleSet<Polygon3DStyle> polygon3DStyleSet = new StyleSet<Polygon3DStyle>(null);
         polygon3DStyleSet.setZoomStyle(15, polygon3DStyle);
 
-        OSMPolygon3DDataSource dataSource = new OSMPolygon3DDataSource(new EPSG3857(), DEFAULT_BUILDING_HEIGHT, new FlatRoof(),  Color.WHITE, Color.GRAY, 1500, polygon3DStyleSet);
-        Polygon3DLayer osm3dLayer = new Polygon3DLayer(dataSource);
+        // buildings are loaded and merged per zoom 15 tile, so the object limit applies per tile
+        OSMPolygon3DDataSource buildingDataSource = new OSMPolygon3DDataSource(new EPSG3857(), DEFAULT_BUILDING_HEIGHT, new FlatRoof(),  Color.WHITE, Color.GRAY, 5000, polygon3DStyleSet);
+        if (osm3dLayer != null) {
+            mapView.getLayers().removeLayer(osm3dLayer);
+            osmBuildingDataSource.close();
+        }
+        // roofs from OSM tags are generated once per building and kept in mesh cache
+        RoofMeshCache meshCache = null;
+        try {
+            meshCache = new RoofMeshCache(new File(getDir("osm3dmeshes", MODE_PRIVATE), "meshes.bin"), 50 * 1024 * 1024);
+        } catch (IOException e) {
+            Log.error("AdvancedMapActivity: Failed to open building mesh cache! " + e.getMessage());
+        }
+        osmBuildingDataSource = new BatchedPolygon3DDataSource(buildingDataSource, 15, polygon3DStyleSet, getDir("osm3dcache", MODE_PRIVATE), 64, meshCache);
+        osm3dLayer = new Polygon3DLayer(osmBuildingDataSource);
         mapView.getLayers().addLayer(osm3dLayer);
     }
 
@@ -1,22 +1,29 @@
 package com.nutiteq.advancedmap.activity;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 import android.app.Activity;
-import android.content.Context;
 import android.graphics.Color;
 import android.location.Location;
-import android.location.LocationListener;
-import android.location.LocationManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.View;
 import android.view.Window;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.location.GpxLocationReplay;
+import com.nutiteq.advancedmap.location.LocationPipeline;
+import com.nutiteq.advancedmap.maplisteners.MyLocationCircle;
 import com.nutiteq.advancedmap.maplisteners.MyLocationMapEventListener;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.Options;
@@ -30,17 +37,18 @@ import com.nutiteq.rasterlayers.RasterLayer;
 import com.nutiteq.renderprojections.RenderProjection;
 import com.nutiteq.style.PolygonStyle;
 import com.nutiteq.style.StyleSet;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 
 /**
  * Shows animated location on map, and fixed drivetime region around user location
  * 
  * Animated location uses Android location API to get coordinates, and accuracy. 
+ * Fixes of all providers are fused by LocationPipeline, which also limits how often map focus
+ * and drive time region are updated. GPX track can be replayed instead, see EXTRA_GPX_FILE.
  * Animation is painted in MyLocationMapEventListener.onDrawFrameBefore3D() method using OpenGL.
  * 
  * Additional classes:
  *  maplisteners.MyLocationMapEventListener - called for map updates
- *   MyLocationMapEventListener.MyLocationCircle - knows user location and can do OpenGL drawing for specific frame
+ *  maplisteners.MyLocationCircle - knows user location and can do OpenGL drawing for specific frame
  *  
  * Used layer(s):
  *  RasterLayer with TMS tile source for base map
@@ -54,9 +62,22 @@ import com.nutiteq.utils.UnscaledBitmapLoader;
  */
 public class AnimatedLocationActivity extends Activity {
 
+    // optional GPX file to replay instead of real location, and replay speed
+    public static final String EXTRA_GPX_FILE = "gpx_file";
+    public static final String EXTRA_GPX_SPEED = "gpx_speed";
+
+    // location consumer limits: map focus and drive time region
+    private static final long FOCUS_INTERVAL = 1000;
+    private static final float FOCUS_DISTANCE = 5;
+    private static final long DRIVE_TIME_INTERVAL = 30000;
+    private static final float DRIVE_TIME_DISTANCE = 200;
+    private static final long DRIVE_TIME_DEBOUNCE = 3000;
+
     private MapView mapView;
     private DriveTimeRegionLayer driveTimeLayer;
-    private LocationListener locationListener;
+    private LocationPipeline locationPipeline;
+    private GpxLocationReplay gpxReplay;
+    private LoadGpxTask loadGpxTask;
 
     int[] timeValues = new int[] { 1, 5, 10, 15, 30, 60, 90, 120, 240, 480 };
 
@@ -67,6 +88,7 @@ public class AnimatedLocationActivity extends Activity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
 
         // spinner in status bar, for progress indication
@@ -87,8 +109,9 @@ public class AnimatedLocationActivity extends Activity {
             // just restore configuration, skip other initializations
             mapView.setComponents(retainObject);
 
-            // add map event listener
-            MyLocationMapEventListener mapListener = new MyLocationMapEventListener(this, mapView);
+            // recreate listener, keep last location of circle
+            MyLocationMapEventListener oldListener = (MyLocationMapEventListener) mapView.getOptions().getMapListener();
+            MyLocationMapEventListener mapListener = new MyLocationMapEventListener(this, mapView, oldListener.getLocationCircle());
             mapView.getOptions().setMapListener(mapListener);
             return;
         } else {
@@ -130,15 +153,11 @@ public class AnimatedLocationActivity extends Activity {
         // set sky bitmap - optional, default - white
         mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
         mapView.getOptions().setSkyOffset(4.86f);
-        mapView.getOptions().setSkyBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.sky_small));
+        profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
         // Map background, visible if no map tiles loaded - optional, default - white
         mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.background_plane));
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
         mapView.getOptions().setClearColor(Color.WHITE);
 
         // configure texture caching - optional, suggested
@@ -239,57 +258,133 @@ public class AnimatedLocationActivity extends Activity {
         super.onDestroy();
     }
 
-    protected void initGps(final MyLocationMapEventListener.MyLocationCircle locationCircle) {
+    protected void initGps(final MyLocationCircle locationCircle) {
         final Projection proj = mapView.getLayers().getBaseLayer().getProjection();
         final RenderProjection renderProj = mapView.getLayers().getBaseLayer().getRenderProjection();
 
-        // create location listener
-        locationListener = new LocationListener() {
+        // fused location from all providers, each consumer gets updates with own rate limits
+        locationPipeline = new LocationPipeline(this);
+
+        // location circle: every fused location
+        locationPipeline.addConsumer(new LocationPipeline.LocationConsumer() {
             @Override
-            public void onLocationChanged(Location location) {
-                Log.debug("GPS onLocationChanged "+location);
+            public void onLocation(Location location) {
                 if (locationCircle != null) {
                     locationCircle.setLocation(proj, renderProj, location);
                     locationCircle.setVisible(true);
-                    mapView.setFocusPoint(mapView.getLayers().getBaseLayer().getProjection().fromWgs84(location.getLongitude(), location.getLatitude()));
-                    driveTimeLayer.setMapPos(new MapPos(location.getLongitude(), location.getLatitude()));
+                    // map is rendered on demand, start pulse animation
+                    mapView.requestRender();
                 }
             }
+        }, 0, 0, 0);
 
+        // map focus: at most once per second, when moved 5 m
+        locationPipeline.addConsumer(new LocationPipeline.LocationConsumer() {
             @Override
-            public void onStatusChanged(String provider, int status, Bundle extras) {
-                Log.debug("GPS onStatusChanged "+provider+" to "+status);
+            public void onLocation(Location location) {
+                mapView.setFocusPoint(proj.fromWgs84(location.getLongitude(), location.getLatitude()));
             }
+        }, FOCUS_INTERVAL, FOCUS_DISTANCE, 0);
 
+        // drive time region is calculated on server: when moved 200 m, and location has settled
+        locationPipeline.addConsumer(new LocationPipeline.LocationConsumer() {
             @Override
-            public void onProviderEnabled(String provider) {
-                Log.debug("GPS onProviderEnabled");
+            public void onLocation(Location location) {
+                Log.debug("drive time region for "+location);
+                if (driveTimeLayer != null) {
+                    driveTimeLayer.setMapPos(new MapPos(location.getLongitude(), location.getLatitude()));
+                }
             }
+        }, DRIVE_TIME_INTERVAL, DRIVE_TIME_DISTANCE, DRIVE_TIME_DEBOUNCE);
 
-            @Override
-            public void onProviderDisabled(String provider) {
-                Log.debug("GPS onProviderDisabled");
-            }
-        };
+        // optional replay of GPX track instead of real location, e.g. for testing
+        String gpxPath = getIntent().getStringExtra(EXTRA_GPX_FILE);
+        if (gpxPath != null) {
+            loadGpxTask = new LoadGpxTask(gpxPath);
+            loadGpxTask.execute();
+            return;
+        }
+        locationPipeline.start(true);
+    }
 
-        LocationManager locationManager = (LocationManager) this.getSystemService(Context.LOCATION_SERVICE);
+    /**
+     * Reads GPX track and logs its replay in background, then starts replay. Real location is used if reading fails.
+     */
+    private class LoadGpxTask extends AsyncTask<Void, Void, GpxLocationReplay> {
+        private final String gpxPath;
+        private String error;
 
-        // dynamic: just fire all providers with same parameters
-        for(String provider : locationManager.getProviders(true)){
-            Log.debug("adding location provider "+provider);
-            locationManager.requestLocationUpdates(provider, 10000, 500, locationListener);    
+        LoadGpxTask(String gpxPath) {
+            this.gpxPath = gpxPath;
         }
 
-        // fixed providers - may not work on some devices
-//      locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 10000, 500, locationListener);
-//      locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 1000, 500, locationListener);
+        protected GpxLocationReplay doInBackground(Void... v) {
+            try {
+                GpxLocationReplay replay;
+                InputStream in = new FileInputStream(gpxPath);
+                try {
+                    replay = new GpxLocationReplay(in);
+                } finally {
+                    in.close();
+                }
+                logReplayDeliveries(replay);
+                return replay;
+            } catch (IOException e) {
+                Log.error("AnimatedLocationActivity: Failed to read GPX " + gpxPath + "! " + e.getMessage());
+                error = e.getLocalizedMessage();
+                return null;
+            }
+        }
 
+        protected void onPostExecute(GpxLocationReplay replay) {
+            loadGpxTask = null;
+            if (replay == null) {
+                Toast.makeText(AnimatedLocationActivity.this, "ERROR " + error, Toast.LENGTH_LONG).show();
+                locationPipeline.start(true);
+                return;
+            }
+            gpxReplay = replay;
+            float speed = getIntent().getFloatExtra(EXTRA_GPX_SPEED, 1.0f);
+            locationPipeline.setTimeScale(speed);
+            locationPipeline.start(false);
+            gpxReplay.start(locationPipeline, speed);
+        }
+    }
+
+    // replay whole track in virtual time with the same limits, results are repeatable
+    private void logReplayDeliveries(GpxLocationReplay replay) {
+        LocationPipeline.LocationConsumer focus = new LocationPipeline.LocationConsumer() {
+            @Override
+            public void onLocation(Location location) {
+            }
+        };
+        LocationPipeline.LocationConsumer driveTime = new LocationPipeline.LocationConsumer() {
+            @Override
+            public void onLocation(Location location) {
+            }
+        };
+        GpxLocationReplay.VirtualScheduler scheduler = new GpxLocationReplay.VirtualScheduler();
+        LocationPipeline pipeline = new LocationPipeline(this, scheduler);
+        pipeline.addConsumer(focus, FOCUS_INTERVAL, FOCUS_DISTANCE, 0);
+        pipeline.addConsumer(driveTime, DRIVE_TIME_INTERVAL, DRIVE_TIME_DISTANCE, DRIVE_TIME_DEBOUNCE);
+        pipeline.start(false);
+        replay.replayAll(pipeline, scheduler);
+        pipeline.stop();
+        Log.info("AnimatedLocationActivity: replay of " + pipeline.getFixCount() + " fixes gives " + pipeline.getDeliveryCount(focus)
+                + " focus updates and " + pipeline.getDeliveryCount(driveTime) + " drive time requests");
     }
 
     protected void deinitGps() {
         // remove listeners from location manager - otherwise we will leak memory
-        LocationManager locationManager = (LocationManager) this.getSystemService(Context.LOCATION_SERVICE);
-        locationManager.removeUpdates(locationListener);    
+        if (loadGpxTask != null) {
+            loadGpxTask.cancel(false);
+            loadGpxTask = null;
+        }
+        if (gpxReplay != null) {
+            gpxReplay.stop();
+        }
+        locationPipeline.stop();
+        Log.debug("AnimatedLocationActivity: " + locationPipeline.getFixCount() + " location fixes");
     }
 
     public MapView getMapView() {
@@ -8,13 +8,13 @@ import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.Options;
 import com.nutiteq.projections.EPSG3857;
 import com.nutiteq.rasterdatasources.HTTPRasterDataSource;
 import com.nutiteq.rasterdatasources.RasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 
 /**
  * Basic map, same as HelloMap
@@ -34,6 +34,7 @@ public class BasicMapActivity extends Activity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
         setContentView(R.layout.main);
 
@@ -82,15 +83,11 @@ public class BasicMapActivity extends Activity {
         // set sky bitmap - optional, default - white
         mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
         mapView.getOptions().setSkyOffset(4.86f);
-        mapView.getOptions().setSkyBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.sky_small));
+        profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
         // Map background, visible if no map tiles loaded - optional, default - white
         mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.background_plane));
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
         mapView.getOptions().setClearColor(Color.WHITE);
 
         // configure texture caching - optional, suggested
@@ -11,6 +11,8 @@ import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.cache.ResourceBitmapCache;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.Options;
@@ -26,7 +28,6 @@ import com.nutiteq.style.PolygonStyle;
 import com.nutiteq.style.StyleSet;
 import com.nutiteq.ui.DefaultLabel;
 import com.nutiteq.ui.Label;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 import com.nutiteq.vectorlayers.GeometryLayer;
 
 /**
@@ -51,6 +52,7 @@ public class CartoDbVectorMapActivity extends Activity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
         setContentView(R.layout.main);
 
@@ -104,15 +106,11 @@ public class CartoDbVectorMapActivity extends Activity {
         // set sky bitmap - optional, default - white
         mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
         mapView.getOptions().setSkyOffset(4.86f);
-        mapView.getOptions().setSkyBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.sky_small));
+        profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
         // Map background, visible if no map tiles loaded - optional, default - white
         mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.background_plane));
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
         mapView.getOptions().setClearColor(Color.WHITE);
 
         // configure texture caching - optional, suggested
@@ -166,7 +164,7 @@ public class CartoDbVectorMapActivity extends Activity {
         int color = Color.BLUE;
         int minZoom = 5;
 
-        final Bitmap pointMarker = UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.point);
+        final Bitmap pointMarker = ResourceBitmapCache.decodeResource(getResources(), R.drawable.point);
         final StyleSet<PointStyle> pointStyleSet = new StyleSet<PointStyle>();
         PointStyle pointStyle = PointStyle.builder().setBitmap(pointMarker).setSize(0.05f).setColor(color).setPickingSize(0.2f).build();
         pointStyleSet.setZoomStyle(minZoom, pointStyle);
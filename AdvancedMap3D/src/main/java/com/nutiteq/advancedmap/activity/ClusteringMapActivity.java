@@ -13,6 +13,8 @@ import android.os.Bundle;
 
 import com.nutiteq.advancedmap.R;
 import com.nutiteq.MapView;
+import com.nutiteq.advancedmap.cache.ResourceBitmapCache;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.components.Color;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
@@ -30,7 +32,6 @@ import com.nutiteq.style.MarkerStyle;
 import com.nutiteq.ui.DefaultLabel;
 import com.nutiteq.ui.Label;
 import com.nutiteq.ui.MapListener;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 import com.nutiteq.vectordatasources.QuadTreeVectorDataSource;
 import com.nutiteq.vectorlayers.MarkerLayer;
 
@@ -46,6 +47,7 @@ public class ClusteringMapActivity extends Activity {
   @Override
   public void onCreate(Bundle savedInstanceState) {
       super.onCreate(savedInstanceState);
+      StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
       setContentView(R.layout.main);
 
@@ -93,15 +95,11 @@ public class ClusteringMapActivity extends Activity {
       // set sky bitmap - optional, default - white
       mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
       mapView.getOptions().setSkyOffset(4.86f);
-      mapView.getOptions().setSkyBitmap(
-              UnscaledBitmapLoader.decodeResource(getResources(),
-                      R.drawable.sky_small));
+      profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
       // Map background, visible if no map tiles loaded - optional, default - white
       mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-      mapView.getOptions().setBackgroundPlaneBitmap(
-              UnscaledBitmapLoader.decodeResource(getResources(),
-                      R.drawable.background_plane));
+      profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
       mapView.getOptions().setClearColor(Color.WHITE);
 
       // configure texture caching - optional, suggested
@@ -133,9 +131,9 @@ public class ClusteringMapActivity extends Activity {
     QuadTreeVectorDataSource<Marker> markerSource = new QuadTreeVectorDataSource<Marker>(proj);
     
     MarkerStyle[] markerStyles = new MarkerStyle[] {
-        MarkerStyle.builder().setBitmap(UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.marker_red)).setSize(0.5f).build(),
-        MarkerStyle.builder().setBitmap(UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.marker_green)).setSize(0.5f).build(),
-        MarkerStyle.builder().setBitmap(UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.marker_blue)).setSize(0.5f).build(),
+        MarkerStyle.builder().setBitmap(ResourceBitmapCache.decodeResource(getResources(), R.drawable.marker_red)).setSize(0.5f).build(),
+        MarkerStyle.builder().setBitmap(ResourceBitmapCache.decodeResource(getResources(), R.drawable.marker_green)).setSize(0.5f).build(),
+        MarkerStyle.builder().setBitmap(ResourceBitmapCache.decodeResource(getResources(), R.drawable.marker_blue)).setSize(0.5f).build(),
     };
 
     for (int i = 0; i < 200; i++) {
@@ -164,7 +162,7 @@ public class ClusteringMapActivity extends Activity {
         // Create marker style, based on cluster size. Cache created styles.
         MarkerStyle clusterStyle = clusterStyles.get(elements.size());
         if (clusterStyle == null) {
-          Bitmap markerBitmap = Bitmap.createBitmap(UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.marker_black));
+          Bitmap markerBitmap = ResourceBitmapCache.decodeResource(getResources(), R.drawable.marker_black);
           Bitmap canvasBitmap = markerBitmap.copy(Bitmap.Config.ARGB_8888, true);
           Canvas canvas = new Canvas(canvasBitmap); 
           Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -1,5 +1,6 @@
 package com.nutiteq.advancedmap.activity;
 
+import java.io.IOException;
 import java.io.InputStream;
 
 import android.app.Activity;
@@ -7,7 +8,6 @@ import android.content.Context;
 import android.graphics.Color;
 import android.hardware.SensorManager;
 import android.location.Location;
-import android.location.LocationManager;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.Toast;
@@ -15,6 +15,11 @@ import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.location.LocationPipeline;
+import com.nutiteq.advancedmap.location.OrientationPipeline;
+import com.nutiteq.advancedmap.maplisteners.NMLCacheProxyMapListener;
+import com.nutiteq.advancedmap.nml.NMLCacheProxy;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.Options;
@@ -28,29 +33,34 @@ import com.nutiteq.rasterdatasources.RasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
 import com.nutiteq.style.ModelStyle;
 import com.nutiteq.style.StyleSet;
-import com.nutiteq.utils.OrientationManager;
-import com.nutiteq.utils.OrientationManager.OnChangedListener;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 import com.nutiteq.vectorlayers.NMLModelLayer;
 import com.nutiteq.vectorlayers.NMLModelOnlineLayer;
 
 /**
  * Map Rotated and moved based on sensors: Compass and GPS. 
- * Shows user location as 3D model, as accurately as GPS allows
+ * Shows user location as 3D model, as accurately as GPS allows.
+ * 
+ * Compass is filtered in OrientationPipeline, map is redrawn only when heading really changes,
+ * and then rotated smoothly with display rate.
  */
-public class CompassMapActivity extends Activity implements OnChangedListener {
+public class CompassMapActivity extends Activity implements OrientationPipeline.OnHeadingChangedListener,
+        LocationPipeline.LocationConsumer {
 
     // start pos is shown until GPS fix is received
     private static final MapPos START_MAPPOS = new MapPos(-87.61866f, 41.88282f);
+    private static final Vector3D MARKER_ROTATION_AXIS = new Vector3D(0, 0, 1);
     private MapView mapView;
-    private OrientationManager mOrientationManager;
+    private OrientationPipeline orientationPipeline;
+    private LocationPipeline locationPipeline;
     NMLModel locationMarkerModel;
     private StyleSet<ModelStyle> modelStyleSet;
     private NMLModelOnlineLayer modelLayer;
+    private NMLCacheProxy cacheProxy;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
         setContentView(R.layout.main);
 
@@ -84,6 +94,14 @@ public class CompassMapActivity extends Activity implements OnChangedListener {
         modelStyleSet = new StyleSet<ModelStyle>(null);
         modelStyleSet.setZoomStyle(14, modelStyle);
 
+        // local proxy for 3D model server: shared compressed cache for all datasets, request scheduling
+        try {
+            cacheProxy = NMLCacheProxy.getInstance(getDir("nmlcache", MODE_PRIVATE));
+            mapView.getOptions().setMapListener(new NMLCacheProxyMapListener(cacheProxy));
+        } catch (IOException e) {
+            Log.error("CompassMapActivity: Failed to start 3D model cache proxy! " + e.getMessage());
+        }
+
         online3DLayer("http://aws-lb.nutiteq.ee/nml/nmlserver3.php?data=chicago");
         
         // Location: Estonia
@@ -108,15 +126,11 @@ public class CompassMapActivity extends Activity implements OnChangedListener {
         // set sky bitmap - optional, default - white
         mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
         mapView.getOptions().setSkyOffset(4.86f);
-        mapView.getOptions().setSkyBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.sky_small));
+        profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
         // Map background, visible if no map tiles loaded - optional, default - white
         mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.background_plane));
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
         mapView.getOptions().setClearColor(Color.WHITE);
 
         // configure texture caching - optional, suggested
@@ -167,17 +181,13 @@ public class CompassMapActivity extends Activity implements OnChangedListener {
             e.printStackTrace();
         }
 
-        // use OrientationManager
-
+        // compass and location, started in onStart()
         SensorManager sensorManager =
                 (SensorManager) getSystemService(Context.SENSOR_SERVICE);
-        LocationManager locationManager =
-                (LocationManager) getSystemService(Context.LOCATION_SERVICE);
-
-        mOrientationManager = new OrientationManager(sensorManager, locationManager);
+        orientationPipeline = new OrientationPipeline(sensorManager, this);
 
-        mOrientationManager.addOnChangedListener(this);
-        mOrientationManager.start();
+        locationPipeline = new LocationPipeline(this);
+        locationPipeline.addConsumer(this, 1000, 2, 0);
 
         Toast.makeText(this, "Please wait for GPS fix...",Toast.LENGTH_LONG).show();
 
@@ -186,15 +196,32 @@ public class CompassMapActivity extends Activity implements OnChangedListener {
     @Override
     protected void onStart() {
         mapView.startMapping();
+        if (orientationPipeline != null) {
+            orientationPipeline.start();
+            locationPipeline.start(true);
+        }
         super.onStart();
     }
 
     @Override
     protected void onStop() {
         super.onStop();
+        if (orientationPipeline != null) {
+            orientationPipeline.stop();
+            locationPipeline.stop();
+        }
         mapView.stopMapping();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (cacheProxy != null) {
+            NMLCacheProxy.releaseInstance();
+            cacheProxy = null;
+        }
+        super.onDestroy();
+    }
+
     public MapView getMapView() {
         return mapView;
     }
@@ -205,12 +232,17 @@ public class CompassMapActivity extends Activity implements OnChangedListener {
         if(modelLayer != null)
             mapView.getLayers().removeLayer(modelLayer);
 
+        String baseUrl = dataset;
+        if (cacheProxy != null) {
+            baseUrl = cacheProxy.registerDataset(dataset.substring(dataset.lastIndexOf("=") + 1), dataset);
+        }
         modelLayer = new NMLModelOnlineLayer(new EPSG3857(),
-                dataset, modelStyleSet);
+                baseUrl, modelStyleSet);
 
         modelLayer.setMemoryLimit(40*1024*1024);
 
-        modelLayer.setPersistentCacheSize(60*1024*1024);
+        // proxy has the main cache, layer's own cache can be small
+        modelLayer.setPersistentCacheSize((cacheProxy != null ? 8 : 60)*1024*1024);
         modelLayer.setPersistentCachePath(this.getDatabasePath("nmlcache_"+dataset.substring(dataset.lastIndexOf("="))).getPath());
 
         modelLayer.setLODResolutionFactor(0.3f);
@@ -219,30 +251,19 @@ public class CompassMapActivity extends Activity implements OnChangedListener {
 
 
     @Override
-    public void onOrientationChanged(OrientationManager orientationManager) {
-
-        float azimut = orientationManager.getHeading(); // orientation contains: azimut, pitch and roll
-        mapView.setMapRotation(360-azimut);
-        locationMarkerModel.setRotation(new Vector3D(0, 0, 1), azimut-90);
+    public void onHeadingChanged(float heading) {
+        mapView.setMapRotation(360 - heading);
+        locationMarkerModel.setRotation(MARKER_ROTATION_AXIS, heading - 90);
     }
 
     @Override
-    public void onLocationChanged(OrientationManager orientationManager) {
-        Location location = orientationManager.getLocation();
+    public void onLocation(Location location) {
         Log.debug("new location: "+location);
+        orientationPipeline.setLocation(location);
         MapPos mapPos = mapView.getLayers().getBaseProjection().fromWgs84(location.getLongitude(), location.getLatitude());
         mapView.setFocusPoint(mapPos);
 
         locationMarkerModel.setMapPos(mapPos);
-
-    }
-
-    @Override
-    public void onAccuracyChanged(OrientationManager orientationManager) {
-        Log.warning("interference!");
     }
 
-
-
 }
-
@@ -8,6 +8,7 @@ import android.widget.RadioGroup.OnCheckedChangeListener;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.cachestores.PersistentCacheStore;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.Options;
@@ -21,7 +22,6 @@ import com.nutiteq.rasterdatasources.ImageFilterRasterDataSource;
 import com.nutiteq.rasterdatasources.ImageFilterRasterDataSource.ImageFilter;
 import com.nutiteq.rasterdatasources.RasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 
 /**
  * This is an example how to compose multiple raster data sources into one:
@@ -41,6 +41,7 @@ public class ComposedRasterDataSourceActivity extends Activity {
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
+    StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
     setContentView(R.layout.imagefilter);
 
@@ -92,9 +93,7 @@ public class ComposedRasterDataSourceActivity extends Activity {
 
     // Map background, visible if no map tiles loaded - optional, default - white
     mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-    mapView.getOptions().setBackgroundPlaneBitmap(
-            UnscaledBitmapLoader.decodeResource(getResources(),
-                    R.drawable.background_plane));
+    profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
     mapView.getOptions().setClearColor(Color.WHITE);
 
     // configure texture caching - optional, suggested
@@ -11,6 +11,7 @@ import android.content.DialogInterface;
 import android.graphics.Bitmap;
 
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.cache.ResourceBitmapCache;
 import com.nutiteq.components.Color;
 import com.nutiteq.editable.datasources.EditableCartoDbDataSource;
 import com.nutiteq.editable.layers.EditableGeometryLayer;
@@ -29,7 +30,6 @@ import com.nutiteq.style.PolygonStyle;
 import com.nutiteq.style.StyleSet;
 import com.nutiteq.ui.DefaultLabel;
 import com.nutiteq.ui.Label;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 
 /**
  * 
@@ -140,7 +140,7 @@ public class EditableCartoDbMapActivity extends EditableMapActivityBase {
 
     private void createStyleSets() {
 		pointStyleSet = new StyleSet<PointStyle>();
-		Bitmap pointMarker = UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.point);
+		Bitmap pointMarker = ResourceBitmapCache.decodeResource(getResources(), R.drawable.point);
 		PointStyle pointStyle = PointStyle.builder()
 		         .setBitmap(pointMarker).setSize(0.05f).setColor(Color.GREEN).setPickingSize(0.2f)
 		         .build();
@@ -29,6 +29,7 @@ import android.widget.Toast;
 import android.widget.ZoomControls;
 
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.components.Color;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
@@ -46,7 +47,6 @@ import com.nutiteq.rasterdatasources.RasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
 import com.nutiteq.ui.Label;
 import com.nutiteq.utils.LongHashMap;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 
 /**
  * 
@@ -97,6 +97,7 @@ public abstract class EditableMapActivityBase extends Activity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
         setContentView(R.layout.editable);
 
         // enable logging for troubleshooting - optional
@@ -136,15 +137,11 @@ public abstract class EditableMapActivityBase extends Activity {
         // set sky bitmap - optional, default - white
         mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
         mapView.getOptions().setSkyOffset(4.86f);
-        mapView.getOptions().setSkyBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.sky_small));
+        profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
         // Map background, visible if no map tiles loaded - optional, default - white
         mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.background_plane));
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
         mapView.getOptions().setClearColor(Color.WHITE);
 
         // configure texture caching - optional, suggested 
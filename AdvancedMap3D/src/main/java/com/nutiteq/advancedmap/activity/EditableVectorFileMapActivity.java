@@ -18,12 +18,13 @@ import android.os.Bundle;
 import android.util.DisplayMetrics;
 import android.widget.Toast;
 
+import com.nutiteq.advancedmap.datasources.EditableIndexedSpatialiteDataSource;
+import com.nutiteq.advancedmap.datasources.GeometryPyramid;
 import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Color;
 import com.nutiteq.components.Envelope;
 import com.nutiteq.db.SpatialLiteDbHelper;
 import com.nutiteq.editable.datasources.EditableOGRVectorDataSource;
-import com.nutiteq.editable.datasources.EditableSpatialiteDataSource;
 import com.nutiteq.editable.layers.EditableGeometryLayer;
 import com.nutiteq.filepicker.FilePickerActivity;
 import com.nutiteq.geometry.Geometry;
@@ -74,6 +75,7 @@ public class EditableVectorFileMapActivity extends EditableMapActivityBase imple
 
     // Spatialite-specific data
     private SpatialLiteDbHelper spatialLite;
+    private String spatialLitePath;
     private Map<String, SpatialLiteDbHelper.DbLayer> dbMetaData;
     private String[] tableList;
 
@@ -117,6 +119,19 @@ public class EditableVectorFileMapActivity extends EditableMapActivityBase imple
         return layers;
     }
 
+    @Override
+    protected void onDestroy() {
+        // layers are retained over configuration changes, close planner connections only when leaving
+        if (isFinishing()) {
+            for (EditableGeometryLayer layer : getEditableLayers()) {
+                if (layer.getDataSource() instanceof EditableIndexedSpatialiteDataSource) {
+                    ((EditableIndexedSpatialiteDataSource) layer.getDataSource()).close();
+                }
+            }
+        }
+        super.onDestroy();
+    }
+
     @Override
     protected void createEditableElement() {
         AlertDialog.Builder typeBuilder = new AlertDialog.Builder(this);
@@ -212,6 +227,7 @@ public class EditableVectorFileMapActivity extends EditableMapActivityBase imple
     private void showSpatialiteTableList(String dbPath) {
         try {
             spatialLite = new SpatialLiteDbHelper(dbPath);
+            spatialLitePath = dbPath;
         } catch (IOException e) {
             Log.error(e.getLocalizedMessage());
             Toast.makeText(this, "ERROR "+e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
@@ -225,6 +241,9 @@ public class EditableVectorFileMapActivity extends EditableMapActivityBase imple
             SpatialLiteDbHelper.DbLayer layer = dbMetaData.get(layerKey);
             Log.debug("layer: " + layer.table + " " + layer.type + " geom:"
                     + layer.geomColumn+ " SRID: "+layer.srid);
+            if (GeometryPyramid.isLevelTable(layer.table, dbMetaData.values())) {
+                continue;
+            }
             tables.add(layerKey);
         }
 
@@ -311,30 +330,37 @@ public class EditableVectorFileMapActivity extends EditableMapActivityBase imple
         String tableName = tableKey[0];
         String geomColumn = tableKey[1];
 
-        // create editable data source and layer
-        EditableSpatialiteDataSource dataSource = new EditableSpatialiteDataSource(new EPSG3857(), spatialLite, tableName, geomColumn, new String[]{"name"}, null) {
+        // create editable data source and layer, viewport queries use R*Tree index and prepared statements
+        EditableIndexedSpatialiteDataSource dataSource;
+        try {
+            dataSource = new EditableIndexedSpatialiteDataSource(new EPSG3857(), spatialLite, spatialLitePath, tableName, geomColumn, new String[]{"name"}, null) {
 
-            @Override
-            protected Label createLabel(Map<String, String> userData) {
-                return EditableVectorFileMapActivity.this.createLabel(userData);
-            }
+                @Override
+                public Label createLabel(Map<String, String> userData) {
+                    return EditableVectorFileMapActivity.this.createLabel(userData);
+                }
 
-            @Override
-            protected StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom) {
-                return pointStyleSet;
-            }
+                @Override
+                public StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom) {
+                    return pointStyleSet;
+                }
 
-            @Override
-            protected StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom) {
-                return lineStyleSet;
-            }
+                @Override
+                public StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom) {
+                    return lineStyleSet;
+                }
 
-            @Override
-            protected StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom) {
-                return polygonStyleSet;
-            }
+                @Override
+                public StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom) {
+                    return polygonStyleSet;
+                }
 
-        };
+            };
+        } catch (IOException e) {
+            Log.error(e.getLocalizedMessage());
+            Toast.makeText(this, "ERROR "+e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+            return;
+        }
         dataSource.setMaxElements(MAX_ELEMENTS);
         EditableGeometryLayer dbEditableLayer = new EditableGeometryLayer(dataSource);
         mapView.getLayers().addLayer(dbEditableLayer);
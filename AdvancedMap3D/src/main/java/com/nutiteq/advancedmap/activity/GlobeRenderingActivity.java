@@ -16,6 +16,8 @@ import android.widget.ToggleButton;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.cache.ResourceBitmapCache;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.components.Color;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
@@ -35,7 +37,6 @@ import com.nutiteq.style.StyleSet;
 import com.nutiteq.style.TextStyle;
 import com.nutiteq.ui.DefaultLabel;
 import com.nutiteq.ui.Label;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 import com.nutiteq.vectorlayers.GeometryLayer;
 import com.nutiteq.vectorlayers.MarkerLayer;
 import com.nutiteq.vectorlayers.TextLayer;
@@ -61,6 +62,7 @@ public class GlobeRenderingActivity extends Activity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
         setContentView(R.layout.globe);
         
@@ -120,9 +122,7 @@ public class GlobeRenderingActivity extends Activity {
 
         // Map background, visible if no map tiles loaded - optional, default - white
         mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.background_plane));
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
 
         // configure texture caching - optional, suggested
         mapView.getOptions().setTextureMemoryCacheSize(20 * 1024 * 1024);
@@ -326,7 +326,7 @@ public class GlobeRenderingActivity extends Activity {
     }
 
     private void addMarkerLayer() {
-        Bitmap pointMarker = UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.olmarker);
+        Bitmap pointMarker = ResourceBitmapCache.decodeResource(getResources(), R.drawable.olmarker);
         MarkerStyle markerStyle = MarkerStyle.builder()
                 .setBitmap(pointMarker)
                 .setSize(0.5f)
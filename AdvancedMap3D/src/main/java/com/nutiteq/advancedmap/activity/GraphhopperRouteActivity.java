@@ -2,11 +2,10 @@ package com.nutiteq.advancedmap.activity;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.mapsforge.map.reader.MapDatabase;
-import org.mapsforge.map.reader.header.FileOpenResult;
 import org.mapsforge.map.reader.header.MapFileInfo;
 import org.mapsforge.map.rendertheme.InternalRenderTheme;
 import org.mapsforge.map.rendertheme.XmlRenderTheme;
@@ -31,18 +30,28 @@ import com.graphhopper.util.PointList;
 import com.graphhopper.util.StopWatch;
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.cache.ResourceBitmapCache;
+import com.nutiteq.advancedmap.datasources.ParallelMapsforgeRasterDataSource;
+import com.nutiteq.advancedmap.geocode.ReverseGeocoder;
 import com.nutiteq.advancedmap.maplisteners.RouteMapEventListener;
+import com.nutiteq.advancedmap.mapquest.MapQuestSearchQuery;
+import com.nutiteq.advancedmap.proj.ProjException;
+import com.nutiteq.advancedmap.proj.TransformRegistry;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
+import com.nutiteq.advancedmap.state.MapStateSnapshot;
+import com.nutiteq.cachestores.PersistentCacheStore;
 import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.Options;
 import com.nutiteq.filepicker.FilePickerActivity;
-import com.nutiteq.geometry.Geometry;
 import com.nutiteq.geometry.Line;
 import com.nutiteq.geometry.Marker;
 import com.nutiteq.log.Log;
 import com.nutiteq.projections.EPSG3857;
+import com.nutiteq.projections.EPSG4326;
 import com.nutiteq.projections.Projection;
+import com.nutiteq.rasterdatasources.CacheRasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
 import com.nutiteq.services.routing.Route;
 import com.nutiteq.services.routing.RouteActivity;
@@ -50,10 +59,8 @@ import com.nutiteq.style.LineStyle;
 import com.nutiteq.style.MarkerStyle;
 import com.nutiteq.style.StyleSet;
 import com.nutiteq.ui.DefaultLabel;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 import com.nutiteq.vectorlayers.GeometryLayer;
 import com.nutiteq.vectorlayers.MarkerLayer;
-import com.nutiteq.datasources.raster.MapsforgeRasterDataSource;
 /**
  * 
  * 
@@ -68,7 +75,12 @@ import com.nutiteq.datasources.raster.MapsforgeRasterDataSource;
  */
 public class GraphhopperRouteActivity extends Activity implements FilePickerActivity, RouteActivity{
 
+    // route end points as "fromLat,fromLon,toLat,toLon" in map state
+    private static final String ROUTE_STATE_KEY = "route";
+
     private MapView mapView;
+    private ParallelMapsforgeRasterDataSource mapsforgeDataSource;
+    private CacheRasterDataSource cacheDataSource;
     private GraphHopper gh;
     protected boolean errorLoading;
     protected boolean graphLoaded;
@@ -80,10 +92,12 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
     private MarkerStyle instructionLeft;
     private MarkerStyle instructionRight;
     private MarkerLayer instructionLayer;
+    private MapStateSnapshot mapState;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
         setContentView(R.layout.main);
 
@@ -93,6 +107,10 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
         // 1. Get the MapView from the Layout xml - mandatory
         mapView = (MapView) findViewById(R.id.mapView);
 
+        // camera and route saved in onSaveInstanceState(), also after process has been killed
+        MapStateSnapshot savedState = MapStateSnapshot.restore(savedInstanceState);
+        mapState = savedState != null ? savedState : new MapStateSnapshot();
+
         // Optional, but very useful: restore map state during device rotation,
         // it is saved in onRetainNonConfigurationInstance() below
         Components retainObject = (Components) getLastNonConfigurationInstance();
@@ -118,22 +136,30 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
 
         //  use mapsforge as offline base map
         XmlRenderTheme renderTheme = InternalRenderTheme.OSMARENDER;
-        MapDatabase mapDatabase = new MapDatabase();
-        mapDatabase.closeFile();
         File mapFile = new File("/" + mapFilePath);
-        FileOpenResult fileOpenResult = mapDatabase.openFile(mapFile);
-        if (fileOpenResult.isSuccess()) {
+        try {
+            // renders with several threads, see setRasterTaskPoolSize below
+            mapsforgeDataSource = new ParallelMapsforgeRasterDataSource(new EPSG3857(), 0, 20, mapFile, renderTheme, this.getApplication());
             Log.debug("MapsforgeRasterDataSource: MapDatabase opened ok: " + mapFilePath);
+        } catch (IOException e) {
+            Log.error("GraphhopperRouteActivity: " + e.getMessage());
+            Toast.makeText(this, "ERROR " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+            return;
         }
 
-        MapsforgeRasterDataSource dataSource =  new MapsforgeRasterDataSource(new EPSG3857(), 0, 20, mapFile, mapDatabase, renderTheme, this.getApplication());
-        RasterLayer mapLayer = new RasterLayer(dataSource, mapFile.hashCode());
-
+        // persistent tile cache, name changes if map file or theme changes
+        mapsforgeDataSource.deleteOldCaches(getDatabasePath(mapsforgeDataSource.getCacheName()).getParentFile());
+        cacheDataSource = new CacheRasterDataSource(mapsforgeDataSource,
+                new PersistentCacheStore(getDatabasePath(mapsforgeDataSource.getCacheName()).getPath(), 100 * 1024 * 1024));
+        cacheDataSource.open();
+        RasterLayer mapLayer = new RasterLayer(cacheDataSource, mapFile.hashCode());
         mapView.getLayers().setBaseLayer(mapLayer);
 
+        boolean cameraRestored = savedState != null && savedState.applyCamera(mapView);
+
         // set initial map view camera from database
-        MapFileInfo mapFileInfo = dataSource.getMapDatabase().getMapFileInfo();
-        if(mapFileInfo != null){
+        MapFileInfo mapFileInfo = mapsforgeDataSource.getMapFileInfo();
+        if(!cameraRestored && mapFileInfo != null){
             if(mapFileInfo.startPosition != null && mapFileInfo.startZoomLevel != null){
                 // start position is defined
                 MapPos mapCenter = new MapPos(mapFileInfo.startPosition.longitude, mapFileInfo.startPosition.latitude,mapFileInfo.startZoomLevel);
@@ -156,7 +182,7 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
         mapView.getLayers().addLayer(routeLayer);
 
         // create markers for start & end, and a layer for them
-        Bitmap olMarker = UnscaledBitmapLoader.decodeResource(getResources(),
+        Bitmap olMarker = ResourceBitmapCache.decodeResource(getResources(),
                 R.drawable.olmarker);
         StyleSet<MarkerStyle> startMarkerStyleSet = new StyleSet<MarkerStyle>(
                 MarkerStyle.builder().setBitmap(olMarker).setColor(Color.GREEN)
@@ -181,25 +207,27 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
 
 
         instructionUp = MarkerStyle.builder()
-                .setBitmap(UnscaledBitmapLoader.decodeResource(getResources(),
+                .setBitmap(ResourceBitmapCache.decodeResource(getResources(),
                 R.drawable.direction_up))
                 .build();
 
         instructionLeft = MarkerStyle.builder()
-                .setBitmap(UnscaledBitmapLoader.decodeResource(getResources(),
+                .setBitmap(ResourceBitmapCache.decodeResource(getResources(),
                 R.drawable.direction_upthenleft))
                 .build();
 
         instructionRight = MarkerStyle.builder()
-                .setBitmap(UnscaledBitmapLoader.decodeResource(getResources(),
+                .setBitmap(ResourceBitmapCache.decodeResource(getResources(),
                 R.drawable.direction_upthenright))
                 .build();
 
         
-        // rotation - 0 = north-up
-        mapView.setMapRotation(0f);
-        // tilt means perspective view. Default is 90 degrees for "normal" 2D map view, minimum allowed is 30 degrees.
-        mapView.setTilt(90.0f);
+        if (!cameraRestored) {
+            // rotation - 0 = north-up
+            mapView.setMapRotation(0f);
+            // tilt means perspective view. Default is 90 degrees for "normal" 2D map view, minimum allowed is 30 degrees.
+            mapView.setTilt(90.0f);
+        }
 
         // Activate some mapview options to make it smoother - optional
         mapView.getOptions().setPreloading(true);
@@ -212,25 +240,21 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
         // set sky bitmap - optional, default - white
         mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
         mapView.getOptions().setSkyOffset(4.86f);
-        mapView.getOptions().setSkyBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.sky_small));
+        profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
         // Map background, visible if no map tiles loaded - optional, default - white
         mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.background_plane));
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
         mapView.getOptions().setClearColor(Color.WHITE);
 
         // configure texture caching - optional, suggested
         mapView.getOptions().setTextureMemoryCacheSize(20 * 1024 * 1024);
         mapView.getOptions().setCompressedMemoryCacheSize(8 * 1024 * 1024);
 
-        // define online map persistent caching - optional, suggested. Default - no caching
-        mapView.getOptions().setPersistentCachePath(this.getDatabasePath("mapcache").getPath());
-        // set persistent raster cache limit to 100MB
-        mapView.getOptions().setPersistentCacheSize(100 * 1024 * 1024);
+        // tiles are cached persistently by CacheRasterDataSource, so MapView persistent cache is not used
+
+        // one Mapsforge renderer per fetch thread
+        mapView.getOptions().setRasterTaskPoolSize(Math.min(4, Runtime.getRuntime().availableProcessors()));
 
         // 4. zoom buttons using Android widgets - optional
         // get the zoomcontrols that was defined in main.xml
@@ -254,12 +278,30 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
         super.onStart();
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        mapState.save(mapView, outState);
+    }
+
     @Override
     protected void onStop() {
         super.onStop();
         mapView.stopMapping();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (cacheDataSource != null) {
+            cacheDataSource.close();
+        }
+        if (mapsforgeDataSource != null) {
+            Log.info("GraphhopperRouteActivity: " + mapsforgeDataSource.getStats());
+            mapsforgeDataSource.close();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void showRoute(final double fromLat, final double fromLon,
             final double toLat, final double toLon) {
@@ -273,6 +315,7 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
 
         Projection proj = mapView.getLayers().getBaseLayer().getProjection();
         stopMarker.setMapPos(proj.fromWgs84(toLon, toLat));
+        mapState.putValue(ROUTE_STATE_KEY, fromLat + "," + fromLon + "," + toLat + "," + toLon);
 
 
         new AsyncTask<Void, Void, GHResponse>() {
@@ -305,6 +348,9 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
                 // add instruction markers
                 instructionLayer.clear();
                 InstructionList instructions = res.getInstructions();
+                final List<Marker> instructionMarkers = new ArrayList<Marker>(instructions.size());
+                double[] lons = new double[instructions.size()];
+                double[] lats = new double[instructions.size()];
                 for(Instruction instruction : instructions){
                     Log.debug("name: "+instruction.getName()
                             + " time: "+instruction.getTime()
@@ -313,14 +359,31 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
                             + " message: "+instruction.getAnnotation().getMessage()
                             + " importance:"+instruction.getAnnotation().getImportance()
                             );
-                    instructionLayer.add(createRoutePoint(
+                    Marker marker = createRoutePoint(
                             instruction.getPoints().getLongitude(0), 
                             instruction.getPoints().getLatitude(0),
                             instruction.getName(),
                             instruction.getTime(),
                             Helper.round(instruction.getDistance(), 3),
-                            instruction.getSign()));
+                            instruction.getSign());
+                    lons[instructionMarkers.size()] = instruction.getPoints().getLongitude(0);
+                    lats[instructionMarkers.size()] = instruction.getPoints().getLatitude(0);
+                    instructionMarkers.add(marker);
+                    instructionLayer.add(marker);
                 }
+
+                // addresses of all instruction points with one batch, shown as label descriptions
+                ReverseGeocoder.getInstance(GraphhopperRouteActivity.this, MapQuestSearchQuery.MAPQUEST_KEY).resolveBatch(lons, lats, new ReverseGeocoder.BatchListener() {
+                    @Override
+                    public void onResults(ReverseGeocoder.Result[] results) {
+                        for (int i = 0; i < results.length; i++) {
+                            if (results[i] != null) {
+                                Marker marker = instructionMarkers.get(i);
+                                marker.setLabel(new DefaultLabel(((DefaultLabel) marker.getLabel()).getTitle(), results[i].getTitle()));
+                            }
+                        }
+                    }
+                });
                 
                 shortestPathRunning = false;
             }
@@ -376,8 +439,23 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
         List<MapPos> geoPoints = new ArrayList<MapPos>(points+2);
         PointList tmp = response.getPoints();
         geoPoints.add(start);
+
+        // transform all route points with one bulk call
+        double[] coords = new double[points * 2];
         for (int i = 0; i < points; i++) {
-            geoPoints.add(proj.fromWgs84(tmp.getLongitude(i), tmp.getLatitude(i)));
+            coords[i * 2] = tmp.getLongitude(i);
+            coords[i * 2 + 1] = tmp.getLatitude(i);
+        }
+        try {
+            TransformRegistry.getInstance().getPipeline(new EPSG4326(), proj).transform(coords, 0, points, 2);
+            for (int i = 0; i < points; i++) {
+                geoPoints.add(new MapPos(coords[i * 2], coords[i * 2 + 1]));
+            }
+        } catch (ProjException e) {
+            // projection without registered Proj.4 definition
+            for (int i = 0; i < points; i++) {
+                geoPoints.add(proj.fromWgs84(tmp.getLongitude(i), tmp.getLatitude(i)));
+            }
         }
         geoPoints.add(end);
 
@@ -409,15 +487,44 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
             }
 
             protected void onPostExecute(Path o) {
-                if(graphLoaded)
+                if(graphLoaded) {
                     Toast.makeText(getApplicationContext(), "graph loaded, click on map to set route start and end", Toast.LENGTH_SHORT).show();
-                else
+                    restoreRoute();
+                } else
                     Toast.makeText(getApplicationContext(), "graph loading problem", Toast.LENGTH_SHORT).show();
             }
         }.execute();
     }
 
 
+    // calculates route saved in map state again, after graph has been loaded
+    private void restoreRoute() {
+        String route = mapState.getValue(ROUTE_STATE_KEY);
+        if (route == null) {
+            return;
+        }
+        double fromLat, fromLon, toLat, toLon;
+        try {
+            String[] coords = route.split(",");
+            fromLat = Double.parseDouble(coords[0]);
+            fromLon = Double.parseDouble(coords[1]);
+            toLat = Double.parseDouble(coords[2]);
+            toLon = Double.parseDouble(coords[3]);
+        } catch (NumberFormatException e) {
+            Log.error("GraphhopperRouteActivity: Failed to restore route " + route + "! " + e.getMessage());
+            mapState.putValue(ROUTE_STATE_KEY, null);
+            return;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            Log.error("GraphhopperRouteActivity: Failed to restore route " + route + "! " + e.getMessage());
+            mapState.putValue(ROUTE_STATE_KEY, null);
+            return;
+        }
+        Projection proj = mapView.getLayers().getBaseLayer().getProjection();
+        setStartMarker(proj.fromWgs84(fromLon, fromLat));
+        setStopMarker(proj.fromWgs84(toLon, toLat));
+        showRoute(fromLat, fromLon, toLat, toLon);
+    }
+
     public MapView getMapView() {
         return mapView;
     }
@@ -450,6 +557,7 @@ public class GraphhopperRouteActivity extends Activity implements FilePickerActi
 
     @Override
     public void setStartMarker(MapPos startPos) {
+        mapState.putValue(ROUTE_STATE_KEY, null);
         routeLayer.clear();
         stopMarker.setVisible(false);
         startMarker.setMapPos(startPos);
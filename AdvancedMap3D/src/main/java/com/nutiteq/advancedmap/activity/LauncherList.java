@@ -3,11 +3,13 @@ package com.nutiteq.advancedmap.activity;
 import android.app.ListActivity;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.filepicker.FilePicker;
 import com.nutiteq.filepicker.FilePickerActivity;
 
@@ -85,8 +87,9 @@ public class LauncherList extends ListActivity{
 
                 FilePicker.setFileSelectMessage(activityInstance
                         .getFileSelectMessage());
+                // each activity has one filter, so its class identifies filter settings
                 FilePicker.setFileDisplayFilter(activityInstance
-                        .getFileFilter());
+                        .getFileFilter(), activityToRun.getName());
 
                 Bundle b = new Bundle();
                 b.putString("class", ((Class<?>) samples[position][0]).getName());
@@ -101,6 +104,8 @@ public class LauncherList extends ListActivity{
         } else {
             Intent myIntent = new Intent(LauncherList.this,
                     (Class<?>) samples[position][0]);
+            // startup time is measured from here
+            myIntent.putExtra(StartupProfiler.EXTRA_LAUNCH_TIME, SystemClock.elapsedRealtime());
             this.startActivity(myIntent);
         }
     }
@@ -122,6 +127,7 @@ public class LauncherList extends ListActivity{
     
                 Bundle b = new Bundle();
                 b.putString("selectedFile", fileName);
+                b.putLong(StartupProfiler.EXTRA_LAUNCH_TIME, SystemClock.elapsedRealtime());
                 myIntent.putExtras(b);
                 this.startActivity(myIntent);
             
@@ -6,23 +6,24 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 
 import android.app.Activity;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.Bundle;
-import android.os.Handler;
-import android.util.DisplayMetrics;
 import android.view.View;
-import android.webkit.WebView;
-import android.webkit.WebViewClient;
 import android.widget.RelativeLayout;
 import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.cache.ResourceBitmapCache;
+import com.nutiteq.advancedmap.label.HtmlLabelRenderer;
 import com.nutiteq.advancedmap.maplisteners.UtfGridLayerEventListener;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
+import com.nutiteq.advancedmap.state.MapStateSnapshot;
 import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
@@ -40,10 +41,7 @@ import com.nutiteq.rasterdatasources.ImageFilterRasterDataSource;
 import com.nutiteq.rasterdatasources.RasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
 import com.nutiteq.style.MarkerStyle;
-import com.nutiteq.ui.Label;
-import com.nutiteq.ui.ViewLabel;
 import com.nutiteq.utils.UiUtils;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 import com.nutiteq.vectorlayers.MarkerLayer;
 
 /**
@@ -63,11 +61,18 @@ import com.nutiteq.vectorlayers.MarkerLayer;
  */
 public class MBTilesMapActivity extends Activity implements FilePickerActivity{
 
+    // legend HTML is saved with map state only if it is short, long legend is read from database again
+    private static final int MAX_SAVED_LEGEND_LENGTH = 4096;
+    private static final String LEGEND_IN_DATABASE = "database";
+
     private MapView mapView;
+    private HtmlLabelRenderer labelRenderer;
+    private MapStateSnapshot mapState;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
         setContentView(R.layout.main);
 
@@ -77,6 +82,14 @@ public class MBTilesMapActivity extends Activity implements FilePickerActivity{
 
         // 1. Get the MapView from the Layout xml - mandatory
         mapView = (MapView) findViewById(R.id.mapView);
+        profiler.mark("layout");
+
+        // renders HTML of tooltips, creates its WebViews when UI is idle
+        labelRenderer = new HtmlLabelRenderer(this, 150, 120);
+
+        // layers and camera saved in onSaveInstanceState(), also after process has been killed
+        MapStateSnapshot savedState = MapStateSnapshot.restore(savedInstanceState);
+        mapState = savedState != null ? savedState : new MapStateSnapshot();
 
         // Optional, but very useful: restore map state during device rotation,
         // it is saved in onRetainNonConfigurationInstance() below
@@ -86,7 +99,7 @@ public class MBTilesMapActivity extends Activity implements FilePickerActivity{
             mapView.setComponents(retainObject);
             // recreate listener
             UtfGridLayerEventListener oldListener = (UtfGridLayerEventListener ) mapView.getOptions().getMapListener();
-            UtfGridLayerEventListener mapListener = new UtfGridLayerEventListener(this, mapView, oldListener.getLayer(), oldListener.getClickMarker());
+            UtfGridLayerEventListener mapListener = new UtfGridLayerEventListener(this, mapView, oldListener.getLayer(), oldListener.getClickMarker(), labelRenderer);
             mapView.getOptions().setMapListener(mapListener);
             return;
         } else {
@@ -103,57 +116,100 @@ public class MBTilesMapActivity extends Activity implements FilePickerActivity{
         // 3. Define map layer for basemap - mandatory
         // MBTiles supports only EPSG3857 projection
 
+        // read filename from Extras
+        Bundle b = getIntent().getExtras();
+        final String file = b.getString("selectedFile");
+        final MapStateSnapshot.Layer savedLayer = savedState != null ? savedState.findLayer(MapStateSnapshot.TYPE_MBTILES, file) : null;
+        // opening database and reading metadata is done after first frame is shown
+        profiler.runAfterFirstFrame("mbtilesLayers", new Runnable() {
+            @Override
+            public void run() {
+                addMBTilesLayers(file, savedLayer);
+            }
+        });
+
+        if (savedLayer == null || !mapState.applyCamera(mapView)) {
+            // set initial map view camera - optional. "World view" is default
+            // rotation - 0 = north-up
+            mapView.setMapRotation(0f);
+            // tilt means perspective view. Default is 90 degrees for "normal" 2D map view, minimum allowed is 30 degrees.
+            mapView.setTilt(90.0f);
+        }
+
+        // Activate some mapview options to make it smoother - optional
+        mapView.getOptions().setPreloading(false);
+        mapView.getOptions().setSeamlessHorizontalPan(true);
+        mapView.getOptions().setTileFading(false);
+        mapView.getOptions().setKineticPanning(true);
+        mapView.getOptions().setDoubleClickZoomIn(true);
+        mapView.getOptions().setDualClickZoomOut(true);
+
+        // set sky bitmap - optional, default - white
+        mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
+        mapView.getOptions().setSkyOffset(4.86f);
+        profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
+
+        // Map background, visible if no map tiles loaded - optional, default - white
+        mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
+        mapView.getOptions().setClearColor(Color.WHITE);
+
+        // configure texture caching - optional, suggested
+        mapView.getOptions().setTextureMemoryCacheSize(20 * 1024 * 1024);
+        mapView.getOptions().setCompressedMemoryCacheSize(8 * 1024 * 1024);
+
+        // 4. zoom buttons using Android widgets - optional
+        // get the zoomcontrols that was defined in main.xml
+        ZoomControls zoomControls = (ZoomControls) findViewById(R.id.zoomcontrols);
+        // set zoomcontrols listeners to enable zooming
+        zoomControls.setOnZoomInClickListener(new View.OnClickListener() {
+            public void onClick(final View v) {
+                mapView.zoomIn();
+            }
+        });
+        zoomControls.setOnZoomOutClickListener(new View.OnClickListener() {
+            public void onClick(final View v) {
+                mapView.zoomOut();
+            }
+        });
+
+        profiler.mark("options");
+    }
+
+    // adds MBTiles layer and click marker layer, sets map view from metadata. Metadata is taken
+    // from saved layer descriptor if state is restored, camera is then restored from snapshot
+    private void addMBTilesLayers(String file, MapStateSnapshot.Layer savedLayer) {
         try {
-            // read filename from Extras
-            Bundle b = getIntent().getExtras();
-            String file = b.getString("selectedFile");
 
             MBTilesRasterDataSource dataSource = new MBTilesRasterDataSource(new EPSG3857(), 0, 19, file, false, this);
             
-            Cursor tables = dataSource.getDatabase().getTables();
-            
-            ArrayList<String> tableList = new ArrayList<String>();
-            tables.moveToFirst();
-            while (tables.isAfterLast() == false) {
-                tableList.add(tables.getString(0));
-                tables.moveToNext();
+            boolean hasGrids;
+            if (savedLayer != null) {
+                hasGrids = Boolean.parseBoolean(savedLayer.getProperty("grids"));
+            } else {
+                Cursor tables = dataSource.getDatabase().getTables();
+                
+                ArrayList<String> tableList = new ArrayList<String>();
+                tables.moveToFirst();
+                while (tables.isAfterLast() == false) {
+                    tableList.add(tables.getString(0));
+                    tables.moveToNext();
+                }
+                tables.close();
+                hasGrids = tableList.contains("grids");
             }
-            tables.close();
             
-            if(tableList.contains("grids")){
+            if(hasGrids){
                 UTFGridRasterLayer dbLayer = new UTFGridRasterLayer(dataSource, dataSource, file.hashCode());
                 mapView.getLayers().addLayer(dbLayer);
                 
                 // add a layer and marker for click labels
                 // define small invisible Marker, as Label requires some Marker 
-                Bitmap pointMarker = UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.point);
+                Bitmap pointMarker = ResourceBitmapCache.decodeResource(getResources(), R.drawable.point);
                 MarkerStyle markerStyle = MarkerStyle.builder().setBitmap(pointMarker).setSize(0.01f).setColor(0).build();
 
-                //  define label as WebView to show HTML
-                WebView labelView = new WebView(this); 
-
-                // force to recalculate size
-                labelView.setWebViewClient(new WebViewClient() {
-
-                    @Override
-                    public void onPageFinished(final WebView view, final String url) {
-                        super.onPageFinished(view, url);
-                        view.invalidate();
-                    }
-                });
-
-
-                // It is important to set size, exception will come otherwise
-                // we adjust it to the DPI density
-
-                DisplayMetrics metrics = new DisplayMetrics();
-                getWindowManager().getDefaultDisplay().getMetrics(metrics);
-                float density = metrics.density;
-
-                labelView.layout(0, 0, (int) (150 * density), (int) (120 * density));
-                Label label = new ViewLabel("", labelView, new Handler());
-
-                Marker clickMarker = new Marker(new MapPos(0,0), label, markerStyle, null);
+                // label content is HTML, set by listener on clicks
+                Marker clickMarker = new Marker(new MapPos(0,0), labelRenderer.createEmptyLabel(), markerStyle, null);
 
                 MarkerLayer clickMarkerLayer = new MarkerLayer(new EPSG3857());
                 clickMarkerLayer.add(clickMarker);
@@ -165,12 +221,35 @@ public class MBTilesMapActivity extends Activity implements FilePickerActivity{
                 mapView.getLayers().setBaseLayer(new RasterLayer(dataSource, 123));
             }
 
+            if (savedLayer != null) {
+                String legend = savedLayer.getProperty("legend");
+                if(LEGEND_IN_DATABASE.equals(savedLayer.getProperty("legendSource"))){
+                    legend = dataSource.getDatabase().getMetadata().get("legend");
+                }
+                if(legend != null && !legend.equals("")){
+                    UiUtils.addWebView((RelativeLayout) findViewById(R.id.mainView), this, legend, 320, 300);
+                }
+                return;
+            }
+
             HashMap<String, String> dbMetaData = dataSource.getDatabase().getMetadata();
             String legend = dbMetaData.get("legend");
             if(legend != null && !legend.equals("")){
                 UiUtils.addWebView((RelativeLayout) findViewById(R.id.mainView), this, legend, 320, 300);
             }
 
+            // remember metadata, so database is not queried again when state is restored
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put("grids", Boolean.toString(hasGrids));
+            if(legend != null && !legend.equals("")){
+                if(legend.length() <= MAX_SAVED_LEGEND_LENGTH){
+                    properties.put("legend", legend);
+                }else{
+                    properties.put("legendSource", LEGEND_IN_DATABASE);
+                }
+            }
+            mapState.addLayer(new MapStateSnapshot.Layer(MapStateSnapshot.TYPE_MBTILES, file, null, properties));
+
             String center = dbMetaData.get("center");
             String bounds = dbMetaData.get("bounds");
             if(center != null){
@@ -209,54 +288,12 @@ public class MBTilesMapActivity extends Activity implements FilePickerActivity{
             Log.error(e.getLocalizedMessage());
             e.printStackTrace();
         }
+    }
 
-        // set initial map view camera - optional. "World view" is default
-        // rotation - 0 = north-up
-        mapView.setMapRotation(0f);
-        // tilt means perspective view. Default is 90 degrees for "normal" 2D map view, minimum allowed is 30 degrees.
-        mapView.setTilt(90.0f);
-
-        // Activate some mapview options to make it smoother - optional
-        mapView.getOptions().setPreloading(false);
-        mapView.getOptions().setSeamlessHorizontalPan(true);
-        mapView.getOptions().setTileFading(false);
-        mapView.getOptions().setKineticPanning(true);
-        mapView.getOptions().setDoubleClickZoomIn(true);
-        mapView.getOptions().setDualClickZoomOut(true);
-
-        // set sky bitmap - optional, default - white
-        mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setSkyOffset(4.86f);
-        mapView.getOptions().setSkyBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.sky_small));
-
-        // Map background, visible if no map tiles loaded - optional, default - white
-        mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.background_plane));
-        mapView.getOptions().setClearColor(Color.WHITE);
-
-        // configure texture caching - optional, suggested
-        mapView.getOptions().setTextureMemoryCacheSize(20 * 1024 * 1024);
-        mapView.getOptions().setCompressedMemoryCacheSize(8 * 1024 * 1024);
-
-        // 4. zoom buttons using Android widgets - optional
-        // get the zoomcontrols that was defined in main.xml
-        ZoomControls zoomControls = (ZoomControls) findViewById(R.id.zoomcontrols);
-        // set zoomcontrols listeners to enable zooming
-        zoomControls.setOnZoomInClickListener(new View.OnClickListener() {
-            public void onClick(final View v) {
-                mapView.zoomIn();
-            }
-        });
-        zoomControls.setOnZoomOutClickListener(new View.OnClickListener() {
-            public void onClick(final View v) {
-                mapView.zoomOut();
-            }
-        });
-
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        mapState.save(mapView, outState);
     }
 
     @Override
@@ -271,6 +308,12 @@ public class MBTilesMapActivity extends Activity implements FilePickerActivity{
         mapView.stopMapping();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        labelRenderer.release();
+    }
+
     public MapView getMapView() {
         return mapView;
     }
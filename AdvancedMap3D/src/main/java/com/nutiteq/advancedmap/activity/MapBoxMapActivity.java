@@ -8,14 +8,15 @@ import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.Handler;
 import android.view.View;
-import android.webkit.WebView;
 import android.widget.RelativeLayout;
 import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.cache.ResourceBitmapCache;
+import com.nutiteq.advancedmap.label.HtmlLabelRenderer;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.Options;
@@ -26,11 +27,8 @@ import com.nutiteq.layers.raster.deprecated.UtfGridLayerInterface;
 import com.nutiteq.log.Log;
 import com.nutiteq.projections.EPSG3857;
 import com.nutiteq.style.MarkerStyle;
-import com.nutiteq.ui.Label;
-import com.nutiteq.ui.ViewLabel;
 import com.nutiteq.utils.NetUtils;
 import com.nutiteq.utils.UiUtils;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 import com.nutiteq.vectorlayers.MarkerLayer;
 import com.nutiteq.advancedmap.maplisteners.UtfGridLayerEventListener;
 
@@ -106,11 +104,13 @@ public class MapBoxMapActivity extends Activity {
     }
 
     private MapView mapView;
+    private HtmlLabelRenderer labelRenderer;
 
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
         setContentView(R.layout.main);
 
@@ -121,6 +121,9 @@ public class MapBoxMapActivity extends Activity {
         // 1. Get the MapView from the Layout xml - mandatory
         mapView = (MapView) findViewById(R.id.mapView);
 
+        // renders HTML of tooltips, creates its WebViews when UI is idle
+        labelRenderer = new HtmlLabelRenderer(this, 150, 150);
+
         // Optional, but very useful: restore map state during device rotation,
         // it is saved in onRetainNonConfigurationInstance() below
         Components retainObject = (Components) getLastNonConfigurationInstance();
@@ -129,7 +132,7 @@ public class MapBoxMapActivity extends Activity {
             mapView.setComponents(retainObject);
             // recreate listener
             UtfGridLayerEventListener oldListener = (UtfGridLayerEventListener ) mapView.getOptions().getMapListener();
-            UtfGridLayerEventListener mapListener = new UtfGridLayerEventListener(this, mapView, oldListener.getLayer(), oldListener.getClickMarker());
+            UtfGridLayerEventListener mapListener = new UtfGridLayerEventListener(this, mapView, oldListener.getLayer(), oldListener.getClickMarker(), labelRenderer);
             mapView.getOptions().setMapListener(mapListener);
             mapView.getOptions().setMapListener(null);
 
@@ -157,16 +160,11 @@ public class MapBoxMapActivity extends Activity {
 
         // add a layer and marker for click labels
         // define small invisible Marker, as Label requires some Marker 
-        Bitmap pointMarker = UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.point);
+        Bitmap pointMarker = ResourceBitmapCache.decodeResource(getResources(), R.drawable.point);
         MarkerStyle markerStyle = MarkerStyle.builder().setBitmap(pointMarker).setSize(0.01f).setColor(0).build();
 
-        //  define label as WebView to show HTML
-        WebView labelView = new WebView(this); 
-        // It is important to set size, exception will come otherwise
-        labelView.layout(0, 0, 150, 150);
-        Label label = new ViewLabel("", labelView, new Handler());
-
-        Marker clickMarker = new Marker(new MapPos(0,0), label, markerStyle, null);
+        // label content is HTML, set by listener on clicks
+        Marker clickMarker = new Marker(new MapPos(0,0), labelRenderer.createEmptyLabel(), markerStyle, null);
 
         MarkerLayer clickMarkerLayer = new MarkerLayer(new EPSG3857());
         clickMarkerLayer.add(clickMarker);
@@ -199,15 +197,11 @@ public class MapBoxMapActivity extends Activity {
         // set sky bitmap - optional, default - white
         mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
         mapView.getOptions().setSkyOffset(4.86f);
-        mapView.getOptions().setSkyBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.sky_small));
+        profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
         // Map background, visible if no map tiles loaded - optional, default - white
         mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.background_plane));
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
         mapView.getOptions().setClearColor(Color.WHITE);
 
         // configure texture caching - optional, suggested
@@ -249,6 +243,12 @@ public class MapBoxMapActivity extends Activity {
         mapView.stopMapping();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        labelRenderer.release();
+    }
+
     public MapView getMapView() {
         return mapView;
     }
@@ -2,9 +2,8 @@ package com.nutiteq.advancedmap.activity;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
 
-import org.mapsforge.map.reader.MapDatabase;
-import org.mapsforge.map.reader.header.FileOpenResult;
 import org.mapsforge.map.reader.header.MapFileInfo;
 import org.mapsforge.map.rendertheme.InternalRenderTheme;
 import org.mapsforge.map.rendertheme.XmlRenderTheme;
@@ -15,10 +14,14 @@ import android.os.Bundle;
 import android.util.DisplayMetrics;
 import android.view.View;
 import android.view.Window;
+import android.widget.Toast;
 import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.datasources.ParallelMapsforgeRasterDataSource;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
+import com.nutiteq.cachestores.PersistentCacheStore;
 import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
@@ -26,9 +29,8 @@ import com.nutiteq.components.Options;
 import com.nutiteq.filepicker.FilePickerActivity;
 import com.nutiteq.log.Log;
 import com.nutiteq.projections.EPSG3857;
+import com.nutiteq.rasterdatasources.CacheRasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
-import com.nutiteq.utils.UnscaledBitmapLoader;
-import com.nutiteq.datasources.raster.MapsforgeRasterDataSource;
 
 /**
  * 
@@ -46,11 +48,14 @@ import com.nutiteq.datasources.raster.MapsforgeRasterDataSource;
 public class MapsForgeMapActivity extends Activity implements FilePickerActivity {
 
     private MapView mapView;
+    private ParallelMapsforgeRasterDataSource mapsforgeDataSource;
+    private CacheRasterDataSource cacheDataSource;
     private float dpi;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
         // spinner in status bar, for progress indication
         requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
@@ -92,20 +97,27 @@ public class MapsForgeMapActivity extends Activity implements FilePickerActivity
         // XmlRenderTheme renderTheme = new AssetsRenderTheme(this, "",
         // "renderthemes/assets_noname.xml");
 
-        MapDatabase mapDatabase = new MapDatabase();
-        mapDatabase.closeFile();
         File mapFile = new File("/" + mapFilePath);
-        FileOpenResult fileOpenResult = mapDatabase.openFile(mapFile);
-        if (fileOpenResult.isSuccess()) {
+        try {
+            // renders with several threads, see setRasterTaskPoolSize below
+            mapsforgeDataSource = new ParallelMapsforgeRasterDataSource(new EPSG3857(), 0, 20, mapFile, renderTheme, this.getApplication());
             Log.debug("MapsforgeRasterDataSource: MapDatabase opened ok: " + mapFilePath);
+        } catch (IOException e) {
+            Log.error("MapsForgeMapActivity: " + e.getMessage());
+            Toast.makeText(this, "ERROR " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+            return;
         }
 
-        MapsforgeRasterDataSource dataSource = new MapsforgeRasterDataSource(new EPSG3857(), 0, 20, mapFile, mapDatabase, renderTheme, this.getApplication());
-        RasterLayer mapLayer = new RasterLayer(dataSource, 1044);
+        // persistent tile cache, name changes if map file or theme changes
+        mapsforgeDataSource.deleteOldCaches(getDatabasePath(mapsforgeDataSource.getCacheName()).getParentFile());
+        cacheDataSource = new CacheRasterDataSource(mapsforgeDataSource,
+                new PersistentCacheStore(getDatabasePath(mapsforgeDataSource.getCacheName()).getPath(), 100 * 1024 * 1024));
+        cacheDataSource.open();
+        RasterLayer mapLayer = new RasterLayer(cacheDataSource, 1044);
         mapView.getLayers().setBaseLayer(mapLayer);
 
         // set initial map view camera from database
-        MapFileInfo mapFileInfo = dataSource.getMapDatabase().getMapFileInfo();
+        MapFileInfo mapFileInfo = mapsforgeDataSource.getMapFileInfo();
         if (mapFileInfo != null) {
             if (mapFileInfo.startPosition != null && mapFileInfo.startZoomLevel != null) {
                 // start position is defined
@@ -143,25 +155,22 @@ public class MapsForgeMapActivity extends Activity implements FilePickerActivity
         // set sky bitmap - optional, default - white
         mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
         mapView.getOptions().setSkyOffset(4.86f);
-        mapView.getOptions().setSkyBitmap(UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.sky_small));
+        profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
         // Map background, visible if no map tiles loaded - optional, default -
         // white
         mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.background_plane));
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
         mapView.getOptions().setClearColor(Color.WHITE);
 
         // configure texture caching - optional, suggested
         mapView.getOptions().setTextureMemoryCacheSize(40 * 1024 * 1024);
         mapView.getOptions().setCompressedMemoryCacheSize(16 * 1024 * 1024);
 
-        // define online map persistent caching - optional, suggested. Default -
-        // no caching
-        // mapView.getOptions().setPersistentCachePath(this.getDatabasePath("mapcache").getPath());
-        // set persistent raster cache limit to 100MB
-        mapView.getOptions().setPersistentCacheSize(100 * 1024 * 1024);
+        // tiles are cached persistently by CacheRasterDataSource, so MapView persistent cache is not used
 
-        mapView.getOptions().setRasterTaskPoolSize(1);
+        // one Mapsforge renderer per fetch thread
+        mapView.getOptions().setRasterTaskPoolSize(Math.min(4, Runtime.getRuntime().availableProcessors()));
 
         // 4. zoom buttons using Android widgets - optional
         // get the zoomcontrols that was defined in main.xml
@@ -192,6 +201,18 @@ public class MapsForgeMapActivity extends Activity implements FilePickerActivity
         mapView.stopMapping();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (cacheDataSource != null) {
+            cacheDataSource.close();
+        }
+        if (mapsforgeDataSource != null) {
+            Log.info("MapsForgeMapActivity: " + mapsforgeDataSource.getStats());
+            mapsforgeDataSource.close();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public FileFilter getFileFilter() {
         return new FileFilter() {
@@ -7,8 +7,9 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-
-import org.apache.http.entity.ByteArrayEntity;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import android.app.Activity;
 import android.graphics.Color;
@@ -16,10 +17,14 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.View;
 import android.view.Window;
+import android.widget.Toast;
 import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.datasources.StreamingNMLModelDbLayer;
+import com.nutiteq.advancedmap.nml.DaeConverter;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.Envelope;
@@ -36,15 +41,12 @@ import com.nutiteq.rasterdatasources.RasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
 import com.nutiteq.style.ModelStyle;
 import com.nutiteq.style.StyleSet;
-import com.nutiteq.utils.IOUtils;
-import com.nutiteq.utils.NetUtils;
-import com.nutiteq.utils.UnscaledBitmapLoader;
-import com.nutiteq.vectorlayers.NMLModelDbLayer;
 import com.nutiteq.vectorlayers.NMLModelLayer;
 
 /**
  * 
- * Demonstrates NMLModelDbLayer - 3D model layer which loads data fom a .nmldb file
+ * Demonstrates NMLModelDbLayer - 3D model layer which loads data fom a .nmldb file,
+ * here StreamingNMLModelDbLayer which keeps textures under memory budget
  * 
  * After file loading the map is recentered to content coverage area.
  * 
@@ -59,11 +61,13 @@ public class Offline3DMapActivity extends Activity implements FilePickerActivity
     private MapView mapView;
     private EPSG3857 proj;
     private StyleSet<ModelStyle> modelStyleSet;
+    private StreamingNMLModelDbLayer modelLayer;
 
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
         // spinner in status bar, for progress indication
         requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
@@ -116,8 +120,9 @@ public class Offline3DMapActivity extends Activity implements FilePickerActivity
                 addNml(new BufferedInputStream(new FileInputStream(new File(mapFile))));
 
             }else if(mapFile.endsWith("dae") || mapFile.endsWith("zip")){
-                // convert dae to NML using online API
-                new DaeConverterServiceTask(this, mapFile).execute(IOUtils.readFully(new BufferedInputStream(new FileInputStream(new File(mapFile)))));
+                // convert dae to NML on device
+                setProgressBarIndeterminateVisibility(true);
+                new DaeConverterTask(this).execute(new File(mapFile));
 
             }else{
                 // nmlDB, if sqlite or nmldb file extension
@@ -145,15 +150,11 @@ public class Offline3DMapActivity extends Activity implements FilePickerActivity
         // set sky bitmap - optional, default - white
         mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
         mapView.getOptions().setSkyOffset(4.86f);
-        mapView.getOptions().setSkyBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.sky_small));
+        profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
         // Map background, visible if no map tiles loaded - optional, default - white
         mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.background_plane));
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
         mapView.getOptions().setClearColor(Color.WHITE);
 
         // configure texture caching - optional, suggested
@@ -184,8 +185,9 @@ public class Offline3DMapActivity extends Activity implements FilePickerActivity
 
     private void addNmlDb(String mapFile) throws IOException {
 
-        NMLModelDbLayer modelLayer = new NMLModelDbLayer(proj,
-                mapFile, modelStyleSet);
+        // textures are kept under 16MB, coarser texture levels are used if needed
+        modelLayer = new StreamingNMLModelDbLayer(proj,
+                mapFile, modelStyleSet, 16*1024*1024);
         modelLayer.setMemoryLimit(20*1024*1024);
         mapView.getLayers().addLayer(modelLayer);
 
@@ -206,8 +208,15 @@ public class Offline3DMapActivity extends Activity implements FilePickerActivity
      */
     private void addNml(InputStream is)
             throws FileNotFoundException, IOException {
+        addNml(Collections.singletonList(NMLPackage.Model.parseFrom(new BufferedInputStream(is))));
+    }
+
+    /**
+     * Adds models to one layer, placed in a row from west to east so that they do not overlap
+     */
+    private void addNml(List<NMLPackage.Model> nmlModels) {
 
-        // create layer and an model
+        // create layer and models
         MapPos mapPos1 = proj.fromWgs84(20.466027f, 44.810537f);
 
         // set it to fly a bit with Z = 0.1f
@@ -215,23 +224,42 @@ public class Offline3DMapActivity extends Activity implements FilePickerActivity
         NMLModelLayer nmlModelLayer = new NMLModelLayer(proj);
         mapView.getLayers().addLayer(nmlModelLayer);
 
-
-        NMLPackage.Model nmlModel = NMLPackage.Model.parseFrom(new BufferedInputStream(is));
-        // set initial position for the milk truck
-        Log.debug("nmlModel loaded");
-
-        NMLModel model = new NMLModel(mapPos, null, modelStyleSet, nmlModel, null);
-
         // set size, 10 is clear oversize, but this makes it visible
-        model.setScale(new Vector3D(10, 10, 10));
-
-        nmlModelLayer.add(model);
+        float scale = 10;
+        // model sizes are in meters, map units are smaller by cos(latitude)
+        double metersToMapUnits = 1 / Math.cos(Math.toRadians(44.810537));
+        double x = mapPos.x;
+        for (int i = 0; i < nmlModels.size(); i++) {
+            NMLPackage.Model nmlModel = nmlModels.get(i);
+            NMLPackage.Bounds3 bounds = nmlModel.getBounds();
+            double minX = bounds.getMin().getX() * scale * metersToMapUnits;
+            double maxX = bounds.getMax().getX() * scale * metersToMapUnits;
+            if (i > 0) {
+                // left side of model after right side of previous one, with gap of 10% of model size
+                x += -minX + (maxX - minX) * 0.1;
+            }
+            NMLModel model = new NMLModel(new MapPos(x, mapPos.y, mapPos.z), null, modelStyleSet, nmlModel, null);
+            model.setScale(new Vector3D(scale, scale, scale));
+            nmlModelLayer.add(model);
+            x += maxX;
+        }
+        Log.debug(nmlModels.size() + " nmlModels loaded");
 
         mapView.setFocusPoint(mapPos);
         mapView.setTilt(45);
         mapView.setZoom(17.0f);
     }
 
+    @Override
+    protected void onDestroy() {
+        if (modelLayer != null) {
+            Log.debug("models resident " + modelLayer.getResidentModelCount() + ", texture bytes read " + modelLayer.getBytesRead()
+                    + ", texture evictions " + modelLayer.getTextureEvictions());
+            modelLayer.close();
+        }
+        super.onDestroy();
+    }
+
     @Override
     protected void onStart() {
         mapView.startMapping();
@@ -280,42 +308,45 @@ public class Offline3DMapActivity extends Activity implements FilePickerActivity
     }
 
 
-    public class DaeConverterServiceTask extends AsyncTask<byte[], Void, InputStream> {
+    /**
+     * Converts DAE or zipped DAE files to NML models in background, models of zip are converted in parallel
+     */
+    public class DaeConverterTask extends AsyncTask<File, Void, List<NMLPackage.Model>> {
+
+        // half of online conversion service size, as converted models are kept in memory
+        private static final int MAX_TEXTURE_SIZE = 1024;
 
         private Offline3DMapActivity offlineActivity;
-        private String mapFile;
+        private String error;
 
-        public DaeConverterServiceTask(Offline3DMapActivity offlineActivity, String mapFile){
+        public DaeConverterTask(Offline3DMapActivity offlineActivity){
             this.offlineActivity = offlineActivity;
-            // replace .zip -> .dae in end of dae file name, and remove folder
-            this.mapFile = mapFile.substring(mapFile.lastIndexOf("/")+1, mapFile.length()-4);
-        }
-
-        protected InputStream doInBackground(byte[]... dae) {
-
-            String url = "http://aws-lb.nutiteq.com/daeconvert/?key=Aq7M28a93Huik&dae="+mapFile+".dae&max-single-texture-size=2048";
-            Log.debug("connecting "+url);
-            ByteArrayEntity daeEntity;
-            daeEntity = new ByteArrayEntity(dae[0]);
-
-            InputStream nmlStream = NetUtils.postUrlasStream(url, null, false, daeEntity);
-            return nmlStream;
         }
 
-        protected void onPostExecute(InputStream nml) {
+        protected List<NMLPackage.Model> doInBackground(File... files) {
+            DaeConverter converter = new DaeConverter(MAX_TEXTURE_SIZE);
             try {
-                offlineActivity.addNml(nml);
-            } catch (FileNotFoundException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                if (files[0].getName().endsWith("zip")) {
+                    return converter.convertZip(files[0], Runtime.getRuntime().availableProcessors());
+                }
+                List<NMLPackage.Model> models = new ArrayList<NMLPackage.Model>();
+                models.add(converter.convertFile(files[0]));
+                return models;
             } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                Log.error("DaeConverterTask: Failed to convert " + files[0] + "! " + e.getMessage());
+                error = e.getLocalizedMessage();
+                return null;
+            }
+        }
+
+        protected void onPostExecute(List<NMLPackage.Model> models) {
+            offlineActivity.setProgressBarIndeterminateVisibility(false);
+            if (models == null) {
+                Toast.makeText(offlineActivity, "ERROR " + error, Toast.LENGTH_LONG).show();
+                return;
             }
+            offlineActivity.addNml(models);
         }
 
     }
 }
-
-
-
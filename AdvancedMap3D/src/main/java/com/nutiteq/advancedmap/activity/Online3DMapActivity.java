@@ -1,5 +1,7 @@
 package com.nutiteq.advancedmap.activity;
 
+import java.io.IOException;
+
 import android.app.Activity;
 import android.graphics.Color;
 import android.os.Bundle;
@@ -11,6 +13,9 @@ import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.maplisteners.NMLCacheProxyMapListener;
+import com.nutiteq.advancedmap.nml.NMLCacheProxy;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.Options;
@@ -21,7 +26,6 @@ import com.nutiteq.rasterdatasources.RasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
 import com.nutiteq.style.ModelStyle;
 import com.nutiteq.style.StyleSet;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 import com.nutiteq.vectorlayers.NMLModelOnlineLayer;
 
 /**
@@ -40,11 +44,13 @@ public class Online3DMapActivity extends Activity {
     private MapView mapView;
     private StyleSet<ModelStyle> modelStyleSet;
     private NMLModelOnlineLayer modelLayer;
+    private NMLCacheProxy cacheProxy;
 
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
         setContentView(R.layout.main);
 
@@ -97,6 +103,14 @@ public class Online3DMapActivity extends Activity {
         mapView.setZoom(17.0f);
 
         // set initial layer
+        // local proxy for 3D model server: shared compressed cache for all datasets, request scheduling
+        try {
+            cacheProxy = NMLCacheProxy.getInstance(getDir("nmlcache", MODE_PRIVATE));
+            mapView.getOptions().setMapListener(new NMLCacheProxyMapListener(cacheProxy));
+        } catch (IOException e) {
+            Log.error("Online3DMapActivity: Failed to start 3D model cache proxy! " + e.getMessage());
+        }
+
         online3DLayer(DATASET);
 
         // rotation - 0 = north-up
@@ -115,15 +129,11 @@ public class Online3DMapActivity extends Activity {
         // set sky bitmap - optional, default - white
         mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
         mapView.getOptions().setSkyOffset(4.86f);
-        mapView.getOptions().setSkyBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.sky_small));
+        profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
         // Map background, visible if no map tiles loaded - optional, default - white
         mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.background_plane));
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
         mapView.getOptions().setClearColor(Color.WHITE);
 
         // configure texture caching - optional, suggested
@@ -170,6 +180,15 @@ public class Online3DMapActivity extends Activity {
         mapView.stopMapping();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (cacheProxy != null) {
+            NMLCacheProxy.releaseInstance();
+            cacheProxy = null;
+        }
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(final Menu menu) {
         MenuInflater inflater = getMenuInflater();
@@ -208,12 +227,17 @@ public class Online3DMapActivity extends Activity {
         if(modelLayer != null)
             mapView.getLayers().removeLayer(modelLayer);
 
+        String baseUrl = dataset;
+        if (cacheProxy != null) {
+            baseUrl = cacheProxy.registerDataset(dataset.substring(dataset.lastIndexOf("=") + 1), dataset);
+        }
         modelLayer = new NMLModelOnlineLayer(new EPSG3857(),
-                dataset, modelStyleSet);
+                baseUrl, modelStyleSet);
 
         modelLayer.setMemoryLimit(40*1024*1024);
 
-        modelLayer.setPersistentCacheSize(60*1024*1024);
+        // proxy has the main cache, layer's own cache can be small
+        modelLayer.setPersistentCacheSize((cacheProxy != null ? 8 : 60)*1024*1024);
         modelLayer.setPersistentCachePath(this.getDatabasePath("nmlcache_"+dataset.substring(dataset.lastIndexOf("="))).getPath());
 
         modelLayer.setLODResolutionFactor(0.3f);
@@ -3,11 +3,12 @@ package com.nutiteq.advancedmap.activity;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
-import java.util.Map;
-import java.util.Vector;
 
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.graphics.Color;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.View;
 import android.view.Window;
@@ -16,27 +17,33 @@ import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.datasources.GdalRasterDataSource;
+import com.nutiteq.advancedmap.datasources.MosaicIndex;
+import com.nutiteq.advancedmap.datasources.MosaicRasterDataSource;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
+import com.nutiteq.cachestores.PersistentCacheStore;
+import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.Envelope;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.Options;
 import com.nutiteq.filepicker.FilePickerActivity;
-import com.nutiteq.layers.raster.GdalDatasetInfo;
-import com.nutiteq.layers.raster.GdalMapLayer;
 import com.nutiteq.log.Log;
 import com.nutiteq.projections.EPSG3857;
+import com.nutiteq.rasterdatasources.CacheRasterDataSource;
 import com.nutiteq.rasterdatasources.HTTPRasterDataSource;
 import com.nutiteq.rasterdatasources.RasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 
 /**
  * 
- * Demonstrates GdalMapLayer layer, whic uses GDAL native library
+ * Demonstrates GdalRasterDataSource, which uses GDAL native library
  * 
  * Requires GDAL native library with JNI wrappers, and raster data file (e.g. GeoTIFF) in SDCard
  * 
- * GDAL is used to load map tiles, and tiles are stored to persistent cache for faster loading later.
+ * GDAL is used to load map tiles in parallel, and tiles are stored to persistent cache for faster loading later.
+ * Overviews are built in background if the file has none.
+ * If the folder has more files of the same type, user is asked whether to show all of them as mosaic, see MosaicIndex.
  * 
  * See https://github.com/nutiteq/hellomap3d/wiki/Gdal-layer for details
  * 
@@ -46,11 +53,23 @@ import com.nutiteq.utils.UnscaledBitmapLoader;
 public class RasterFileMapActivity extends Activity implements FilePickerActivity {
 
     private MapView mapView;
+    private File selectedFile;
+    // selected file alone, until user chooses to show its folder as mosaic
+    private GdalRasterDataSource gdalDataSource;
+    private CacheRasterDataSource cacheDataSource;
+    private RasterLayer gdalLayer;
+    private MosaicRasterDataSource mosaicDataSource;
+    // mosaic index was empty when shown, so view is fitted after first index update
+    private boolean fitMosaicAfterUpdate;
+    private FindScenesTask findScenesTask;
+    private UpdateMosaicTask updateMosaicTask;
+    private BuildOverviewsTask buildOverviewsTask;
 
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
         // spinner in status bar, for progress indication
         requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
@@ -88,29 +107,12 @@ public class RasterFileMapActivity extends Activity implements FilePickerActivit
         String file = b.getString("selectedFile");
 
         try {
-            GdalMapLayer gdalLayer = new GdalMapLayer(new EPSG3857(), 0, 18, 9, file, mapView, true);
-            gdalLayer.setShowAlways(true);
-            mapView.getLayers().addLayer(gdalLayer);
-            Map<Envelope, GdalDatasetInfo> dataSets = gdalLayer.getDatasets();
-            if(!dataSets.isEmpty()){
-                GdalDatasetInfo firstDataSet = (GdalDatasetInfo) dataSets.values().toArray()[0];
+            selectedFile = new File(file);
+            showFile(file);
 
-                MapPos centerPoint = new MapPos((firstDataSet.envelope.maxX+firstDataSet.envelope.minX)/2,
-                        (firstDataSet.envelope.maxY+firstDataSet.envelope.minY)/2);
-
-
-                Log.debug("found extent "+firstDataSet.envelope+", zoom "+firstDataSet.bestZoom+", centerPoint "+centerPoint);
-
-                mapView.setFocusPoint(centerPoint);
-                mapView.setZoom((float) firstDataSet.bestZoom);
-            }else{
-                Log.debug("no dataset info");
-                Toast.makeText(this, "No dataset info", Toast.LENGTH_LONG).show();
-
-                mapView.setFocusPoint(new MapPos(0,0));
-                mapView.setZoom(1.0f);
-
-            }
+            // if folder has several files of same type, user may show mosaic of all of them instead
+            findScenesTask = new FindScenesTask();
+            findScenesTask.execute();
 
             // rotation - 0 = north-up
             mapView.setMapRotation(0f);
@@ -128,15 +130,11 @@ public class RasterFileMapActivity extends Activity implements FilePickerActivit
             // set sky bitmap - optional, default - white
             mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
             mapView.getOptions().setSkyOffset(4.86f);
-            mapView.getOptions().setSkyBitmap(
-                    UnscaledBitmapLoader.decodeResource(getResources(),
-                            R.drawable.sky_small));
+            profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
             // Map background, visible if no map tiles loaded - optional, default - white
             mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-            mapView.getOptions().setBackgroundPlaneBitmap(
-                    UnscaledBitmapLoader.decodeResource(getResources(),
-                            R.drawable.background_plane));
+            profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
             mapView.getOptions().setClearColor(Color.WHITE);
 
             // configure texture caching - optional, suggested
@@ -164,11 +162,36 @@ public class RasterFileMapActivity extends Activity implements FilePickerActivit
             });
 
         } catch (IOException e) {
+            Log.error("RasterFileMapActivity: " + e.getMessage());
             Toast.makeText(this, "ERROR "+e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
         }
 
     }
 
+    @Override
+    protected void onDestroy() {
+        // tasks keep references to this activity and its data sources
+        if (findScenesTask != null) {
+            findScenesTask.cancel(true);
+        }
+        if (updateMosaicTask != null) {
+            updateMosaicTask.cancel(true);
+        }
+        if (buildOverviewsTask != null) {
+            buildOverviewsTask.cancel(true);
+        }
+        if (cacheDataSource != null) {
+            cacheDataSource.close();
+        }
+        if (gdalDataSource != null) {
+            gdalDataSource.close();
+        }
+        if (mosaicDataSource != null) {
+            mosaicDataSource.close();
+        }
+        super.onDestroy();
+    }
+
     @Override
     protected void onStart() {
         mapView.startMapping();
@@ -185,6 +208,178 @@ public class RasterFileMapActivity extends Activity implements FilePickerActivit
         return mapView;
     }
 
+    private void showFile(String file) throws IOException {
+        gdalDataSource = new GdalRasterDataSource(new EPSG3857(), 0, 18, file);
+
+        // persistent tile cache, name includes file modification time so changed file is re-rendered
+        gdalDataSource.deleteOldCaches(getDatabasePath(gdalDataSource.getCacheName()).getParentFile());
+        cacheDataSource = new CacheRasterDataSource(gdalDataSource,
+                new PersistentCacheStore(getDatabasePath(gdalDataSource.getCacheName()).getPath(), 100 * 1024 * 1024));
+        cacheDataSource.open();
+        gdalLayer = new RasterLayer(cacheDataSource, file.hashCode());
+        gdalLayer.setMemoryCaching(true);
+        mapView.getLayers().addLayer(gdalLayer);
+
+        // large files without overviews are slow to render in small zooms, check does not read the file
+        if (gdalDataSource.needsOverviews()) {
+            buildOverviewsTask = new BuildOverviewsTask(gdalDataSource);
+            buildOverviewsTask.execute();
+        }
+
+        Envelope extent = gdalDataSource.getDataExtent();
+        MapPos centerPoint = new MapPos((extent.maxX + extent.minX) / 2, (extent.maxY + extent.minY) / 2);
+        Log.debug("found extent " + extent + ", zoom " + gdalDataSource.getBestZoom() + ", centerPoint " + centerPoint);
+        mapView.setFocusPoint(centerPoint);
+        mapView.setZoom((float) Math.max(0, Math.min(18, gdalDataSource.getBestZoom())));
+    }
+
+    // folder with several files of same type: show all of them as mosaic, newest on top
+    private void showMosaic() {
+        if (gdalLayer != null) {
+            mapView.getLayers().removeLayer(gdalLayer);
+            gdalLayer = null;
+            if (buildOverviewsTask != null) {
+                buildOverviewsTask.cancel(true);
+                buildOverviewsTask = null;
+            }
+            cacheDataSource.close();
+            cacheDataSource = null;
+            gdalDataSource.close();
+            gdalDataSource = null;
+        }
+
+        File directory = selectedFile.getParentFile();
+        File indexFile = getDatabasePath("mosaic_" + Integer.toHexString(directory.getPath().hashCode()));
+        indexFile.getParentFile().mkdirs();
+        // loads saved index only, folder is scanned by UpdateMosaicTask
+        MosaicIndex index = new MosaicIndex(directory, indexFile, new EPSG3857(), getSceneFilter(selectedFile));
+        mosaicDataSource = new MosaicRasterDataSource(new EPSG3857(), 0, 18, index);
+        RasterLayer mosaicLayer = new RasterLayer(mosaicDataSource, index.getDirectory().hashCode());
+        mosaicLayer.setMemoryCaching(true);
+        mapView.getLayers().addLayer(mosaicLayer);
+        Log.debug("mosaic of " + index.size() + " indexed files");
+
+        // show whole mosaic, not only the selected file
+        Envelope extent = index.getExtent();
+        fitMosaicAfterUpdate = (extent == null);
+        if (extent != null) {
+            showExtent(extent);
+        }
+
+        updateMosaicTask = new UpdateMosaicTask();
+        updateMosaicTask.execute();
+    }
+
+    private void askShowMosaic(int sceneCount) {
+        String extension = selectedFile.getName().substring(selectedFile.getName().lastIndexOf(".") + 1);
+        new AlertDialog.Builder(this).setTitle("Mosaic")
+                .setMessage("Folder has " + sceneCount + " ." + extension + " files. Show all of them as mosaic?")
+                .setPositiveButton("Show mosaic", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        showMosaic();
+                    }
+                })
+                .setNegativeButton("Selected file only", null).show();
+    }
+
+    private void showExtent(Envelope extent) {
+        Log.debug("found extent " + extent);
+        mapView.setBoundingBox(new Bounds(extent.minX, extent.maxY, extent.maxX, extent.minY), false);
+    }
+
+    /**
+     * Builds overviews in background, following tiles are read from overviews.
+     */
+    private class BuildOverviewsTask extends AsyncTask<Void, Void, IOException> {
+        private final GdalRasterDataSource dataSource;
+
+        BuildOverviewsTask(GdalRasterDataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            setProgressBarIndeterminateVisibility(true);
+        }
+
+        @Override
+        protected IOException doInBackground(Void... params) {
+            try {
+                dataSource.buildOverviews();
+                return null;
+            } catch (IOException e) {
+                return e;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(IOException result) {
+            setProgressBarIndeterminateVisibility(false);
+            if (result != null) {
+                Log.error("RasterFileMapActivity: " + result.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Lists folder of the selected file in background, user is asked about mosaic if it has several files.
+     */
+    private class FindScenesTask extends AsyncTask<Void, Void, Integer> {
+        @Override
+        protected Integer doInBackground(Void... params) {
+            return getSceneFiles(selectedFile).length;
+        }
+
+        @Override
+        protected void onPostExecute(Integer sceneCount) {
+            if (sceneCount > 1 && !isFinishing()) {
+                askShowMosaic(sceneCount);
+            }
+        }
+    }
+
+    /**
+     * Updates mosaic index in background. Tiles are refreshed as scenes are indexed.
+     */
+    private class UpdateMosaicTask extends AsyncTask<Void, Void, Integer> {
+        @Override
+        protected void onPreExecute() {
+            setProgressBarIndeterminateVisibility(true);
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            return mosaicDataSource.updateIndex();
+        }
+
+        @Override
+        protected void onPostExecute(Integer result) {
+            setProgressBarIndeterminateVisibility(false);
+            Log.debug("mosaic index updated, " + result + " changes, " + mosaicDataSource.getIndex().size() + " scenes");
+            Envelope extent = mosaicDataSource.getIndex().getExtent();
+            if (fitMosaicAfterUpdate && extent != null) {
+                fitMosaicAfterUpdate = false;
+                showExtent(extent);
+            }
+        }
+    }
+
+    private static FileFilter getSceneFilter(File file) {
+        final String extension = file.getName().substring(file.getName().lastIndexOf(".") + 1).toLowerCase();
+        return new FileFilter() {
+            @Override
+            public boolean accept(File sceneFile) {
+                return sceneFile.isFile() && sceneFile.getName().toLowerCase().endsWith("." + extension);
+            }
+        };
+    }
+
+    private static File[] getSceneFiles(File file) {
+        File[] files = file.getParentFile().listFiles(getSceneFilter(file));
+        return files != null ? files : new File[0];
+    }
+
     @Override
     public String getFileSelectMessage() {
         return "Select a raster file (.tif etc)";
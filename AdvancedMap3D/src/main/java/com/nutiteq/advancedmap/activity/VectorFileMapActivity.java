@@ -5,6 +5,7 @@ import java.io.FileFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import android.app.Activity;
@@ -14,6 +15,7 @@ import android.content.DialogInterface;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.Typeface;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.DisplayMetrics;
 import android.view.View;
@@ -23,14 +25,21 @@ import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.cache.ResourceBitmapCache;
+import com.nutiteq.advancedmap.datasources.AsyncOGRVectorDataSource;
+import com.nutiteq.advancedmap.datasources.GeneralizedVectorDataSource;
+import com.nutiteq.advancedmap.datasources.GeometryPyramid;
+import com.nutiteq.advancedmap.datasources.GeometryPyramidBuilder;
+import com.nutiteq.advancedmap.datasources.IndexedSpatialiteDataSource;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
+import com.nutiteq.advancedmap.state.MapStateSnapshot;
 import com.nutiteq.components.Bounds;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.Envelope;
 import com.nutiteq.components.Options;
-import com.nutiteq.datasources.vector.OGRVectorDataSource;
-import com.nutiteq.datasources.vector.SpatialiteDataSource;
 import com.nutiteq.db.SpatialLiteDbHelper;
 import com.nutiteq.filepicker.FilePickerActivity;
+import com.nutiteq.geometry.Geometry;
 import com.nutiteq.log.Log;
 import com.nutiteq.projections.EPSG3857;
 import com.nutiteq.projections.Projection;
@@ -44,7 +53,7 @@ import com.nutiteq.style.PolygonStyle;
 import com.nutiteq.style.StyleSet;
 import com.nutiteq.ui.DefaultLabel;
 import com.nutiteq.ui.Label;
-import com.nutiteq.utils.UnscaledBitmapLoader;
+import com.nutiteq.vectordatasources.VectorDataSource;
 import com.nutiteq.vectorlayers.GeometryLayer;
 
 /**
@@ -56,6 +65,9 @@ import com.nutiteq.vectorlayers.GeometryLayer;
  * To use the sample an OGR-supported datasource, e.g. Shapefile must be in SDCard
  * 
  * In case of SpatiaLite file, the application shows first list of tables in selected Spatialite database file, then opens file. 
+ * 
+ * Generalized geometry levels for lower zooms are built in background on first open: as extra tables
+ * for Spatialite, as .pyramid.sqlite sidecar file for OGR files.
  *  
  * The sampple requires custom compiled jsqlite (with spatialite) and proj.4 libraries via JNI
  *  
@@ -79,8 +91,18 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
     // Spatialite-specific members
     private String[] tableList = new String[1];
     private SpatialLiteDbHelper spatialLite;
+    private String spatialLitePath;
     private Map<String, SpatialLiteDbHelper.DbLayer> dbMetaData;
 
+    // OGR-specific members
+    private AsyncOGRVectorDataSource ogrDataSource;
+    // Spatialite tables and generalized OGR sidecars, each has its own planner connection
+    private final List<IndexedSpatialiteDataSource> spatialiteDataSources = new ArrayList<IndexedSpatialiteDataSource>();
+    private final List<SpatialLiteDbHelper> sidecarHelpers = new ArrayList<SpatialLiteDbHelper>();
+    private final List<AsyncTask<?, ?, ?>> builderTasks = new ArrayList<AsyncTask<?, ?, ?>>();
+    private GeometryLayer ogrLayer;
+    private MapStateSnapshot mapState;
+
     private StyleSet<PointStyle> pointStyleSet;
     private StyleSet<LineStyle> lineStyleSet;
     private StyleSet<PolygonStyle> polygonStyleSet;
@@ -89,6 +111,7 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
         // spinner in status bar, for progress indication
         requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
@@ -101,6 +124,11 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
 
         // 1. Get the MapView from the Layout xml - mandatory
         mapView = (MapView) findViewById(R.id.mapView);
+        profiler.mark("layout");
+
+        // layers and camera saved in onSaveInstanceState(), also after process has been killed
+        MapStateSnapshot savedState = MapStateSnapshot.restore(savedInstanceState);
+        mapState = savedState != null ? savedState : new MapStateSnapshot();
 
         // Optional, but very useful: restore map state during device rotation,
         // it is saved in onRetainNonConfigurationInstance() below
@@ -121,19 +149,21 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
         // Here we use MapQuest open tiles
         // Almost all online tiled maps use EPSG3857 projection.
         RasterDataSource dataSource = new HTTPRasterDataSource(new EPSG3857(), 0, 18, "http://otile1.mqcdn.com/tiles/1.0.0/osm/{zoom}/{x}/{y}.png");
-        RasterLayer mapLayer = new RasterLayer(dataSource, 0);
+        final RasterLayer mapLayer = new RasterLayer(dataSource, 0);
         mapView.getLayers().setBaseLayer(mapLayer);
 
-        // set initial map view camera - optional. "World view" is default
-        // Location: Estonia
-        mapView.setFocusPoint(mapView.getLayers().getBaseLayer().getProjection().fromWgs84(24.5f, 58.3f));
-
-        // rotation - 0 = north-up
-        mapView.setMapRotation(0f);
-        // zoom - 0 = world, like on most web maps
-        mapView.setZoom(10.0f);
-        // tilt means perspective view. Default is 90 degrees for "normal" 2D map view, minimum allowed is 30 degrees.
-        mapView.setTilt(90.0f);
+        if (savedState == null || !savedState.applyCamera(mapView)) {
+            // set initial map view camera - optional. "World view" is default
+            // Location: Estonia
+            mapView.setFocusPoint(mapView.getLayers().getBaseLayer().getProjection().fromWgs84(24.5f, 58.3f));
+
+            // rotation - 0 = north-up
+            mapView.setMapRotation(0f);
+            // zoom - 0 = world, like on most web maps
+            mapView.setZoom(10.0f);
+            // tilt means perspective view. Default is 90 degrees for "normal" 2D map view, minimum allowed is 30 degrees.
+            mapView.setTilt(90.0f);
+        }
 
 
         // Activate some mapview options to make it smoother - optional
@@ -147,15 +177,11 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
         // set sky bitmap - optional, default - white
         mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
         mapView.getOptions().setSkyOffset(4.86f);
-        mapView.getOptions().setSkyBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.sky_small));
+        profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
         // Map background, visible if no map tiles loaded - optional, default - white
         mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.background_plane));
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
         mapView.getOptions().setClearColor(Color.WHITE);
 
         // configure texture caching - optional, suggested
@@ -184,14 +210,28 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
 
         // read filename from extras
         Bundle b = getIntent().getExtras();
-        String file = b.getString("selectedFile");
+        final String file = b.getString("selectedFile");
+        final MapStateSnapshot.Layer savedSpatialiteLayer = savedState != null ? savedState.findLayer(MapStateSnapshot.TYPE_SPATIALITE, file) : null;
+        final MapStateSnapshot.Layer savedOgrLayer = savedState != null ? savedState.findLayer(MapStateSnapshot.TYPE_OGR, file) : null;
+        profiler.mark("options");
 
-        createStyleSets();
-        if (file.endsWith(".db") || file.endsWith(".sqlite") || file.endsWith(".spatialite")) {
-            showSpatialiteTableList(file);
-        } else {
-            addOgrLayer(mapLayer.getProjection(), file, null, Color.BLUE);
-        }
+        // opening vector file is done after first frame is shown
+        profiler.runAfterFirstFrame("vectorLayer", new Runnable() {
+            @Override
+            public void run() {
+                createStyleSets();
+                if (savedSpatialiteLayer != null) {
+                    // restored state, table was selected before
+                    restoreSpatialiteTable(file, savedSpatialiteLayer.table);
+                } else if (savedOgrLayer != null) {
+                    addOgrLayer(mapLayer.getProjection(), file, savedOgrLayer.table, Color.BLUE, true);
+                } else if (file.endsWith(".db") || file.endsWith(".sqlite") || file.endsWith(".spatialite")) {
+                    showSpatialiteTableList(file);
+                } else {
+                    addOgrLayer(mapLayer.getProjection(), file, null, Color.BLUE);
+                }
+            }
+        });
 
         // 5. Add set of static OGR vector layers to map
         //      addOgrLayer(mapLayer.getProjection(),Environment.getExternalStorageDirectory()+"/mapxt/eesti/buildings.shp","buildings", Color.DKGRAY);
@@ -209,12 +249,42 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
         super.onStart();
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        mapState.save(mapView, outState);
+    }
+
     @Override
     protected void onStop() {
         super.onStop();
         mapView.stopMapping();
     }
 
+    @Override
+    protected void onDestroy() {
+        // results are not needed anymore, OGR sidecar copy stops on interrupt
+        for (AsyncTask<?, ?, ?> task : builderTasks) {
+            task.cancel(true);
+        }
+        builderTasks.clear();
+        if (ogrDataSource != null) {
+            ogrDataSource.close();
+        }
+        for (IndexedSpatialiteDataSource dataSource : spatialiteDataSources) {
+            dataSource.close();
+        }
+        spatialiteDataSources.clear();
+        for (SpatialLiteDbHelper sidecar : sidecarHelpers) {
+            sidecar.close();
+        }
+        sidecarHelpers.clear();
+        if (spatialLite != null) {
+            spatialLite.close();
+        }
+        super.onDestroy();
+    }
+
     private void createStyleSets() {
         // set styles for all 3 object types: point, line and polygon
         int minZoom = 5;
@@ -225,7 +295,7 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
         float dpi = metrics.density;
 
         pointStyleSet = new StyleSet<PointStyle>();
-        Bitmap pointMarker = UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.point);
+        Bitmap pointMarker = ResourceBitmapCache.decodeResource(getResources(), R.drawable.point);
         PointStyle pointStyle = PointStyle.builder().setBitmap(pointMarker).setSize(0.05f).setColor(color).setPickingSize(0.2f).build();
         pointStyleSet.setZoomStyle(minZoom, pointStyle);
 
@@ -246,26 +316,32 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
     }
 
     private void addOgrLayer(Projection proj, String dbPath, String table, int color) {
-        OGRVectorDataSource dataSource;
+        addOgrLayer(proj, dbPath, table, color, false);
+    }
+
+    // restored layer keeps saved camera, new layer is zoomed to and saved to map state
+    private void addOgrLayer(Projection proj, String dbPath, String table, int color, boolean restored) {
+        // features are read in background and shown batch by batch
+        AsyncOGRVectorDataSource dataSource;
         try {
-            dataSource = new OGRVectorDataSource(proj, dbPath, table) {
+            dataSource = new AsyncOGRVectorDataSource(proj, dbPath, table) {
                 @Override
-                protected Label createLabel(Map<String, String> userData) {
+                public Label createLabel(Map<String, String> userData) {
                     return VectorFileMapActivity.this.createLabel(userData);
                 }
 
                 @Override
-                protected StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom) {
+                public StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom) {
                     return pointStyleSet;
                 }
 
                 @Override
-                protected StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom) {
+                public StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom) {
                     return lineStyleSet;
                 }
 
                 @Override
-                protected StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom) {
+                public StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom) {
                     return polygonStyleSet;
                 }
 
@@ -277,12 +353,69 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
         }
 
         dataSource.setMaxElements(MAX_ELEMENTS);
+        ogrDataSource = dataSource;
+
+        // use generalized sidecar for lower zooms if it is up to date, otherwise build it in background
+        VectorDataSource<Geometry> layerDataSource = dataSource;
+        File sidecarFile = new File(GeometryPyramidBuilder.getSidecarPath(dbPath, getFilesDir()));
+        if (sidecarFile.exists() && sidecarFile.lastModified() >= new File(dbPath).lastModified()) {
+            VectorDataSource<Geometry> generalizedDataSource = createGeneralizedOgrDataSource(proj, sidecarFile.getPath());
+            if (generalizedDataSource != null) {
+                layerDataSource = generalizedDataSource;
+            }
+        } else {
+            builderTasks.add(new BuildOgrSidecarTask(proj, dbPath, table, sidecarFile.getPath()).execute());
+        }
 
-        GeometryLayer ogrLayer = new GeometryLayer(dataSource);
+        ogrLayer = new GeometryLayer(layerDataSource);
         mapView.getLayers().addLayer(ogrLayer);
 
-        Envelope extent = ogrLayer.getDataExtent();
-        mapView.setBoundingBox(new Bounds(extent.minX, extent.maxY, extent.maxX, extent.minY), false);
+        if (!restored) {
+            Envelope extent = ogrLayer.getDataExtent();
+            mapView.setBoundingBox(new Bounds(extent.minX, extent.maxY, extent.maxX, extent.minY), false);
+            mapState.addLayer(new MapStateSnapshot.Layer(MapStateSnapshot.TYPE_OGR, dbPath, table, null));
+        }
+    }
+
+    private VectorDataSource<Geometry> createGeneralizedOgrDataSource(Projection proj, String sidecarPath) {
+        IndexedSpatialiteDataSource sidecarDataSource;
+        SpatialLiteDbHelper sidecar = null;
+        try {
+            sidecar = new SpatialLiteDbHelper(sidecarPath);
+            sidecarDataSource = new IndexedSpatialiteDataSource(proj, sidecar, sidecarPath, GeometryPyramidBuilder.SIDECAR_TABLE, "geometry", null, null) {
+                @Override
+                public Label createLabel(Map<String, String> userData) {
+                    return VectorFileMapActivity.this.createLabel(userData);
+                }
+
+                @Override
+                public StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom) {
+                    return pointStyleSet;
+                }
+
+                @Override
+                public StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom) {
+                    return lineStyleSet;
+                }
+
+                @Override
+                public StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom) {
+                    return polygonStyleSet;
+                }
+            };
+        } catch (IOException e) {
+            Log.error("generalized sidecar not used: " + e.getLocalizedMessage());
+            if (sidecar != null) {
+                sidecar.close();
+            }
+            return null;
+        }
+        sidecarDataSource.setMaxElements(MAX_ELEMENTS);
+        sidecarHelpers.add(sidecar);
+        spatialiteDataSources.add(sidecarDataSource);
+
+        int detailZoom = GeometryPyramidBuilder.DEFAULT_LEVEL_ZOOMS[GeometryPyramidBuilder.DEFAULT_LEVEL_ZOOMS.length - 1];
+        return new GeneralizedVectorDataSource(proj, ogrDataSource, sidecarDataSource, detailZoom);
     }
 
     @Override
@@ -317,6 +450,7 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
     private void showSpatialiteTableList(String dbPath) {
         try {
             spatialLite = new SpatialLiteDbHelper(dbPath);
+            spatialLitePath = dbPath;
         } catch (IOException e) {
             Log.error(e.getLocalizedMessage());
             Toast.makeText(this, "ERROR "+e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
@@ -330,6 +464,9 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
             SpatialLiteDbHelper.DbLayer layer = dbMetaData.get(layerKey);
             Log.debug("layer: " + layer.table + " " + layer.type + " geom:"
                     + layer.geomColumn+ " SRID: "+layer.srid);
+            if (GeometryPyramid.isLevelTable(layer.table, dbMetaData.values())) {
+                continue;
+            }
             tables.add(layerKey);
         }
 
@@ -345,31 +482,58 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
 
     }
 
+    // opens saved table without querying table list and showing selection dialog
+    private void restoreSpatialiteTable(String dbPath, String layerKey) {
+        try {
+            spatialLite = new SpatialLiteDbHelper(dbPath);
+            spatialLitePath = dbPath;
+        } catch (IOException e) {
+            Log.error(e.getLocalizedMessage());
+            Toast.makeText(this, "ERROR "+e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+            return;
+        }
+        addSpatiaLiteTable(layerKey, true);
+    }
+
     public void addSpatiaLiteTable(int selectedPosition){
-        String[] tableKey = tableList[selectedPosition].split("\\.");
+        addSpatiaLiteTable(tableList[selectedPosition], false);
+    }
 
-        SpatialiteDataSource dataSource = new SpatialiteDataSource(new EPSG3857(), spatialLite, tableKey[0], tableKey[1], null, null) {
-            @Override
-            protected Label createLabel(Map<String, String> userData) {
-                return VectorFileMapActivity.this.createLabel(userData);
-            }
+    // restored table keeps saved camera, new table is zoomed to and saved to map state
+    private void addSpatiaLiteTable(String layerKey, boolean restored){
+        String[] tableKey = layerKey.split("\\.");
 
-            @Override
-            protected StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom) {
-                return pointStyleSet;
-            }
+        // indexed data source uses R*Tree index (creates it if missing) and prepared statements
+        IndexedSpatialiteDataSource dataSource;
+        try {
+            dataSource = new IndexedSpatialiteDataSource(new EPSG3857(), spatialLite, spatialLitePath, tableKey[0], tableKey[1], null, null) {
+                @Override
+                public Label createLabel(Map<String, String> userData) {
+                    return VectorFileMapActivity.this.createLabel(userData);
+                }
 
-            @Override
-            protected StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom) {
-                return lineStyleSet;
-            }
+                @Override
+                public StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom) {
+                    return pointStyleSet;
+                }
 
-            @Override
-            protected StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom) {
-                return polygonStyleSet;
-            }
-        };
+                @Override
+                public StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom) {
+                    return lineStyleSet;
+                }
+
+                @Override
+                public StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom) {
+                    return polygonStyleSet;
+                }
+            };
+        } catch (IOException e) {
+            Log.error(e.getLocalizedMessage());
+            Toast.makeText(this, "ERROR "+e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+            return;
+        }
         dataSource.setMaxElements(MAX_ELEMENTS);
+        spatialiteDataSources.add(dataSource);
 
         // define pixels and screen width for automatic polygon/line simplification
         DisplayMetrics metrics = new DisplayMetrics();
@@ -380,10 +544,103 @@ public class VectorFileMapActivity extends Activity implements FilePickerActivit
 
         mapView.getLayers().addLayer(spatialiteLayer);
 
-        Envelope extent = spatialiteLayer.getDataExtent();
-        mapView.setBoundingBox(new Bounds(extent.minX, extent.maxY, extent.maxX, extent.minY), false);
+        // build generalized levels for lower zooms in background, if table does not have them yet
+        if (dataSource.getQueryPlanner().getPyramid() == null) {
+            if (dbMetaData == null) {
+                dbMetaData = spatialLite.qrySpatialLayerMetadata();
+            }
+            builderTasks.add(new BuildPyramidTask(dataSource, dbMetaData.get(layerKey)).execute());
+        }
+
+        if (!restored) {
+            Envelope extent = spatialiteLayer.getDataExtent();
+            mapView.setBoundingBox(new Bounds(extent.minX, extent.maxY, extent.maxX, extent.minY), false);
+            mapState.addLayer(new MapStateSnapshot.Layer(MapStateSnapshot.TYPE_SPATIALITE, spatialLitePath, layerKey, null));
+        }
     }
     
+    /**
+     * Builds generalized levels for Spatialite table, and reloads data source when ready
+     */
+    public class BuildPyramidTask extends AsyncTask<Void, Void, Boolean> {
+        private IndexedSpatialiteDataSource dataSource;
+        private SpatialLiteDbHelper.DbLayer dbLayer;
+
+        public BuildPyramidTask(IndexedSpatialiteDataSource dataSource, SpatialLiteDbHelper.DbLayer dbLayer) {
+            this.dataSource = dataSource;
+            this.dbLayer = dbLayer;
+        }
+
+        protected void onPreExecute() {
+            setProgressBarIndeterminateVisibility(true);
+        }
+
+        protected Boolean doInBackground(Void... v) {
+            try {
+                GeometryPyramidBuilder builder = new GeometryPyramidBuilder(spatialLitePath);
+                try {
+                    builder.build(dbLayer, GeometryPyramidBuilder.DEFAULT_LEVEL_ZOOMS, GeometryPyramidBuilder.DEFAULT_TOLERANCE_PIXELS);
+                } finally {
+                    builder.close();
+                }
+                return true;
+            } catch (IOException e) {
+                Log.error(e.getLocalizedMessage());
+                return false;
+            }
+        }
+
+        protected void onPostExecute(Boolean success) {
+            setProgressBarIndeterminateVisibility(false);
+            if (success) {
+                dataSource.reloadPyramid();
+            }
+        }
+    }
+
+    /**
+     * Builds generalized sidecar file for OGR file, and replaces OGR layer when ready
+     */
+    public class BuildOgrSidecarTask extends AsyncTask<Void, Void, String> {
+        private Projection proj;
+        private String dbPath;
+        private String table;
+        private String sidecarPath;
+
+        public BuildOgrSidecarTask(Projection proj, String dbPath, String table, String sidecarPath) {
+            this.proj = proj;
+            this.dbPath = dbPath;
+            this.table = table;
+            this.sidecarPath = sidecarPath;
+        }
+
+        protected void onPreExecute() {
+            setProgressBarIndeterminateVisibility(true);
+        }
+
+        protected String doInBackground(Void... v) {
+            try {
+                return GeometryPyramidBuilder.buildOgrSidecar(dbPath, table, sidecarPath, GeometryPyramidBuilder.DEFAULT_LEVEL_ZOOMS, GeometryPyramidBuilder.DEFAULT_TOLERANCE_PIXELS);
+            } catch (IOException e) {
+                Log.error(e.getLocalizedMessage());
+                return null;
+            }
+        }
+
+        protected void onPostExecute(String sidecarPath) {
+            setProgressBarIndeterminateVisibility(false);
+            if (sidecarPath == null || ogrLayer == null) {
+                return;
+            }
+            VectorDataSource<Geometry> generalizedDataSource = createGeneralizedOgrDataSource(proj, sidecarPath);
+            if (generalizedDataSource != null) {
+                mapView.getLayers().removeLayer(ogrLayer);
+                ogrLayer = new GeometryLayer(generalizedDataSource);
+                mapView.getLayers().addLayer(ogrLayer);
+            }
+        }
+    }
+
     private Label createLabel(Map<String, String> userData) {
         StringBuffer labelTxt = new StringBuffer();
         for(Map.Entry<String, String> entry : userData.entrySet()){
@@ -4,15 +4,15 @@ import android.app.Activity;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.Bundle;
-import android.os.Handler;
-import android.util.DisplayMetrics;
 import android.view.View;
-import android.webkit.WebView;
 import android.widget.ZoomControls;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.cache.ResourceBitmapCache;
+import com.nutiteq.advancedmap.label.HtmlLabelRenderer;
 import com.nutiteq.advancedmap.maplisteners.WMSFeatureClickListener;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.Options;
@@ -25,9 +25,6 @@ import com.nutiteq.rasterdatasources.HTTPRasterDataSource;
 import com.nutiteq.rasterdatasources.RasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
 import com.nutiteq.style.MarkerStyle;
-import com.nutiteq.ui.Label;
-import com.nutiteq.ui.ViewLabel;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 import com.nutiteq.vectorlayers.MarkerLayer;
 
 /**
@@ -38,7 +35,7 @@ import com.nutiteq.vectorlayers.MarkerLayer;
  * 
  * The sample loads one layer from a demo geoserver. In addition to map images it implements
  * GetFeatureInfo request which requests and renders object data if you click on map. Object data is shown
- * as Marker with Label (generated with WebView to support HTML), similar to UTFGridData in MBTiles and 
+ * as Marker with Label (rendered from HTML with HtmlLabelRenderer), similar to UTFGridData in MBTiles and 
  * MapBox layers.
  * 
  * Clicks on map are detected using WmsLayerClickListener (a MapListener).
@@ -49,18 +46,16 @@ import com.nutiteq.vectorlayers.MarkerLayer;
 public class WmsMapActivity extends Activity {
 
     private MapView mapView;
+    private HtmlLabelRenderer labelRenderer;
 
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupProfiler profiler = StartupProfiler.begin(this, savedInstanceState);
 
         setContentView(R.layout.main);
 
-        DisplayMetrics metrics = new DisplayMetrics();
-        getWindowManager().getDefaultDisplay().getMetrics(metrics);
-        float dpi = metrics.density;
-
         // enable logging for troubleshooting - optional
         Log.enableAll();
         Log.setTag("mapbox");
@@ -68,6 +63,9 @@ public class WmsMapActivity extends Activity {
         // 1. Get the MapView from the Layout xml - mandatory
         mapView = (MapView) findViewById(R.id.mapView);
 
+        // renders HTML of feature info, creates its WebViews when UI is idle
+        labelRenderer = new HtmlLabelRenderer(this, 300, 150);
+
         // Optional, but very useful: restore map state during device rotation,
         // it is saved in onRetainNonConfigurationInstance() below
         Components retainObject = (Components) getLastNonConfigurationInstance();
@@ -76,7 +74,7 @@ public class WmsMapActivity extends Activity {
             mapView.setComponents(retainObject);
             // re-create listener
             WMSFeatureClickListener oldListener = (WMSFeatureClickListener) mapView.getOptions().getMapListener();
-            WMSFeatureClickListener mapListener = new WMSFeatureClickListener(this, mapView, oldListener.getDataSource(), oldListener.getClickMarker());
+            WMSFeatureClickListener mapListener = new WMSFeatureClickListener(this, mapView, oldListener.getDataSource(), oldListener.getClickMarker(), labelRenderer);
             mapView.getOptions().setMapListener(mapListener);
             return;
         } else {
@@ -95,18 +93,11 @@ public class WmsMapActivity extends Activity {
 
         // add a layer and marker for click labels
         // define small invisible Marker, as Label requires some Marker 
-        Bitmap pointMarker = UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.point);
+        Bitmap pointMarker = ResourceBitmapCache.decodeResource(getResources(), R.drawable.point);
         MarkerStyle markerStyle = MarkerStyle.builder().setBitmap(pointMarker).setSize(0.01f).setColor(0).build();
 
-        //  define label as WebView to show HTML
-        WebView labelView = new WebView(this); 
-        // It is important to set size, exception will come otherwise
-        
-        labelView.measure((int)(300 * dpi), (int)(150 * dpi));
-        labelView.layout(0, 0, (int)(300 * dpi), (int)(150 * dpi));
-        Label label = new ViewLabel("", labelView, new Handler());
-
-        Marker clickMarker = new Marker(new MapPos(0,0), label, markerStyle, null);
+        // label content is HTML, set by listener on clicks
+        Marker clickMarker = new Marker(new MapPos(0,0), labelRenderer.createEmptyLabel(), markerStyle, null);
 
         MarkerLayer clickMarkerLayer = new MarkerLayer(new EPSG3857());
         clickMarkerLayer.add(clickMarker);
@@ -125,7 +116,7 @@ public class WmsMapActivity extends Activity {
         mapView.getLayers().addLayer(wmsLayer);
 
         // add event listener for clicks on WMS map
-        WMSFeatureClickListener mapListener = new WMSFeatureClickListener(this, mapView, wmsDataSource, clickMarker);
+        WMSFeatureClickListener mapListener = new WMSFeatureClickListener(this, mapView, wmsDataSource, clickMarker, labelRenderer);
         mapView.getOptions().setMapListener(mapListener);
 
 
@@ -153,15 +144,11 @@ public class WmsMapActivity extends Activity {
         // set sky bitmap - optional, default - white
         mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
         mapView.getOptions().setSkyOffset(4.86f);
-        mapView.getOptions().setSkyBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.sky_small));
+        profiler.decodeSkyBitmap(mapView.getOptions(), getResources(), R.drawable.sky_small);
 
         // Map background, visible if no map tiles loaded - optional, default - white
         mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
-        mapView.getOptions().setBackgroundPlaneBitmap(
-                UnscaledBitmapLoader.decodeResource(getResources(),
-                        R.drawable.background_plane));
+        profiler.decodeBackgroundPlaneBitmap(mapView.getOptions(), getResources(), R.drawable.background_plane);
         mapView.getOptions().setClearColor(Color.WHITE);
 
         // configure texture caching - optional, suggested
@@ -202,6 +189,12 @@ public class WmsMapActivity extends Activity {
         mapView.stopMapping();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        labelRenderer.release();
+    }
+
     public MapView getMapView() {
         return mapView;
     }
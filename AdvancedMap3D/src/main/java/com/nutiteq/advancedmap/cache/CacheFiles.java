@@ -0,0 +1,66 @@
+package com.nutiteq.advancedmap.cache;
+
+import java.io.File;
+
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Housekeeping of persistent tile cache files. Data sources name their caches by source file
+ * version (modification time, theme etc), so each change leaves the previous cache database behind.
+ *
+ * @author jaak
+ *
+ */
+public class CacheFiles {
+    // SQLite side files of a database
+    private static final String[] SIDE_FILE_SUFFIXES = new String[] { "-journal", "-wal", "-shm" };
+
+    private CacheFiles() {
+    }
+
+    /**
+     * Delete cache files of older versions: files in given directory with given name prefix,
+     * except current cache and its SQLite side files. Do not call while an old cache is open.
+     *
+     * @param dir cache directory, e.g. Context.getDatabasePath(name).getParentFile()
+     * @param prefix name prefix shared by all versions of the cache
+     * @param currentName name of the cache in use
+     * @return number of deleted files
+     */
+    public static int deleteOldVersions(File dir, String prefix, String currentName) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(prefix) || isCacheFile(name, currentName)) {
+                continue;
+            }
+            if (file.delete()) {
+                count++;
+            } else {
+                Log.warning("CacheFiles: Failed to delete " + file);
+            }
+        }
+        if (count > 0) {
+            Log.info("CacheFiles: deleted " + count + " old cache files of " + prefix);
+        }
+        return count;
+    }
+
+    private static boolean isCacheFile(String name, String cacheName) {
+        if (name.equals(cacheName)) {
+            return true;
+        }
+        for (String suffix : SIDE_FILE_SUFFIXES) {
+            if (name.equals(cacheName + suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
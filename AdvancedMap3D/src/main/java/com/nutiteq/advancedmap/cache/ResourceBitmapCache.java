@@ -0,0 +1,124 @@
+package com.nutiteq.advancedmap.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+
+import com.nutiteq.log.Log;
+import com.nutiteq.utils.UnscaledBitmapLoader;
+
+/**
+ *
+ * Process-wide cache of drawables decoded with UnscaledBitmapLoader, keyed by resource id and
+ * screen density. Sky, background plane and marker bitmaps are decoded once and reused by all
+ * activities and after configuration changes, instead of being decoded again in each onCreate().
+ *
+ * Cache size is limited to a part of heap, least recently used bitmaps are removed first.
+ * Returned bitmaps are shared, so they must not be modified or recycled: make a copy for drawing.
+ * Cached bitmaps are not recycled on removal either, as map styles may still use them.
+ *
+ * @author jaak
+ *
+ */
+public class ResourceBitmapCache {
+    private static final int MAX_CACHE_BYTES = 8 * 1024 * 1024;
+
+    // access ordered for LRU
+    private static final Map<Long, Bitmap> cache = new LinkedHashMap<Long, Bitmap>(16, 0.75f, true);
+    private static final int maxBytes = (int) Math.min(MAX_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 16);
+    private static int cacheBytes;
+
+    private static int hitCount;
+    private static int missCount;
+    private static int evictionCount;
+
+    private ResourceBitmapCache() {
+    }
+
+    /**
+     * Decoded drawable from cache, or decoded with UnscaledBitmapLoader and cached. Can be
+     * called from any thread.
+     */
+    public static Bitmap decodeResource(Resources resources, int resourceId) {
+        Long key = getKey(resources, resourceId);
+        synchronized (cache) {
+            Bitmap bitmap = cache.get(key);
+            if (bitmap != null) {
+                hitCount++;
+                return bitmap;
+            }
+            missCount++;
+        }
+
+        // decode outside of lock, same resource may be decoded twice by parallel calls
+        Bitmap bitmap = UnscaledBitmapLoader.decodeResource(resources, resourceId);
+        if (bitmap == null) {
+            return null;
+        }
+        int bytes = getByteCount(bitmap);
+        if (bytes > maxBytes) {
+            return bitmap;
+        }
+        synchronized (cache) {
+            Bitmap old = cache.put(key, bitmap);
+            if (old != null) {
+                cacheBytes -= getByteCount(old);
+            }
+            cacheBytes += bytes;
+            trimToSize(maxBytes);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Release cached bitmaps on memory pressure, call from onTrimMemory() of application.
+     *
+     * @param level trim level from ComponentCallbacks2
+     */
+    public static void trimMemory(int level) {
+        synchronized (cache) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                trimToSize(0);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                    || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                    || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                trimToSize(maxBytes / 2);
+            }
+            Log.debug("ResourceBitmapCache: trimmed for level " + level + ", " + getStats());
+        }
+    }
+
+    /**
+     * Cache metrics for logging, e.g. "hits 42 misses 7 evictions 0 size 5 bitmaps 1032/8192 kB".
+     */
+    public static String getStats() {
+        synchronized (cache) {
+            return "hits " + hitCount + " misses " + missCount + " evictions " + evictionCount
+                    + " size " + cache.size() + " bitmaps " + cacheBytes / 1024 + "/" + maxBytes / 1024 + " kB";
+        }
+    }
+
+    private static void trimToSize(int bytes) {
+        Iterator<Bitmap> it = cache.values().iterator();
+        while (cacheBytes > bytes && it.hasNext()) {
+            cacheBytes -= getByteCount(it.next());
+            it.remove();
+            evictionCount++;
+        }
+    }
+
+    private static Long getKey(Resources resources, int resourceId) {
+        // drawables are decoded for screen density, which can change with configuration
+        long density = resources.getDisplayMetrics().densityDpi;
+        return (density << 32) | (resourceId & 0xffffffffL);
+    }
+
+    private static int getByteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+}
@@ -0,0 +1,331 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.nutiteq.components.CullState;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.db.OGRFileHelper;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.style.LineStyle;
+import com.nutiteq.style.PointStyle;
+import com.nutiteq.style.PolygonStyle;
+import com.nutiteq.style.StyleSet;
+import com.nutiteq.ui.Label;
+import com.nutiteq.utils.WkbRead;
+import com.nutiteq.vectordatasources.AbstractVectorDataSource;
+
+/**
+ *
+ * OGR data source which reads features in background thread, so viewport changes do not block rendering.
+ *
+ * Each viewport change starts a new read job and cancels the previous one. Features near the screen centre
+ * are read first, with a spatial filter for the centre third of the viewport, then the rest of the viewport
+ * with a second filter which skips FIDs of the centre pass. Results are published after each batch.
+ * Elements of the previous viewport are kept until the new job completes, to avoid flickering.
+ *
+ * Features are read with OGRBatchReader (many features per JNI call) if native library is available,
+ * otherwise with OGRFileHelper. Read errors end the job without marking it complete, so that
+ * partial results are not used for other viewports.
+ *
+ * @author jaak
+ *
+ */
+public abstract class AsyncOGRVectorDataSource extends AbstractVectorDataSource<Geometry> implements StyledGeometryFactory.StyleProvider {
+    private static final int BATCH_SIZE = 256;
+    // centre pass filter covers 1/CENTER_DIVISOR of viewport width and height
+    private static final int CENTER_DIVISOR = 3;
+
+    // used only if batch reader is not available
+    private OGRFileHelper ogrHelper;
+    private final OGRBatchReader batchReader;
+    private final Envelope dataExtent;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final AtomicInteger generation = new AtomicInteger();
+    private int maxElements = Integer.MAX_VALUE;
+
+    private Envelope jobEnvelope;
+    private int jobZoom = -1;
+    private boolean jobComplete;
+    // job stopped at maxElements, so its elements do not cover smaller envelopes either
+    private boolean jobTruncated;
+    private List<Geometry> previousElements = Collections.emptyList();
+    private List<Geometry> visibleElements = Collections.emptyList();
+
+    private long jobStartTime;
+    private long lastFirstBatchTime;
+    private long lastJobTime;
+    private int cancelledJobCount;
+
+    /**
+     * Default constructor.
+     *
+     * @param proj projection for the data source (usually EPSG3857)
+     * @param path path of the OGR-supported file
+     * @param table layer to use, if null then first layer is used
+     * @throws IOException if file can not be opened
+     */
+    public AsyncOGRVectorDataSource(Projection proj, String path, String table) throws IOException {
+        super(proj);
+        OGRBatchReader reader = null;
+        Envelope extent = null;
+        if (OGRBatchReader.isAvailable()) {
+            try {
+                reader = new OGRBatchReader(path, table);
+                extent = reader.getDataExtent();
+            } catch (IOException e) {
+                Log.warning("AsyncOGRVectorDataSource: batch reader not used: " + e.getMessage());
+                if (reader != null) {
+                    reader.close();
+                    reader = null;
+                }
+            }
+        }
+        batchReader = reader;
+        if (batchReader == null) {
+            ogrHelper = new OGRFileHelper(path, table, false);
+            extent = ogrHelper.getDataExtent();
+        }
+        dataExtent = extent;
+    }
+
+    public synchronized void setMaxElements(int maxElements) {
+        this.maxElements = maxElements;
+    }
+
+    @Override
+    public Envelope getDataExtent() {
+        return dataExtent;
+    }
+
+    @Override
+    public Collection<Geometry> loadElements(final CullState cullState) {
+        Envelope envelope = projection.fromInternal(cullState.envelope);
+
+        synchronized (this) {
+            boolean covered = jobEnvelope != null && (jobComplete && !jobTruncated ? jobEnvelope.covers(envelope) : jobEnvelope.equals(envelope));
+            if (!covered || cullState.zoom != jobZoom) {
+                startJob(envelope, cullState.zoom);
+            }
+            return new ArrayList<Geometry>(visibleElements);
+        }
+    }
+
+    /**
+     * Stop reading and release file handles. Data source can not be used afterwards.
+     */
+    public void close() {
+        generation.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (batchReader != null) {
+                    batchReader.close();
+                }
+                // OGRFileHelper has no close(), GDAL data source is closed when helper is collected
+                ogrHelper = null;
+            }
+        });
+        executor.shutdown();
+    }
+
+    /**
+     * @return time from viewport change until the first elements were published, in milliseconds
+     */
+    public synchronized long getLastFirstBatchTime() {
+        return lastFirstBatchTime;
+    }
+
+    /**
+     * @return time of the last completed read job, in milliseconds
+     */
+    public synchronized long getLastJobTime() {
+        return lastJobTime;
+    }
+
+    /**
+     * @return number of read jobs cancelled because of a newer viewport
+     */
+    public synchronized int getCancelledJobCount() {
+        return cancelledJobCount;
+    }
+
+    private void startJob(Envelope envelope, int zoom) {
+        if (jobEnvelope != null && !jobComplete) {
+            cancelledJobCount++;
+        } else {
+            previousElements = visibleElements;
+        }
+        jobEnvelope = envelope;
+        jobZoom = zoom;
+        jobComplete = false;
+        jobTruncated = false;
+        jobStartTime = System.currentTimeMillis();
+        lastFirstBatchTime = 0;
+
+        int gen = generation.incrementAndGet();
+        if (!executor.isShutdown()) {
+            executor.execute(new ReadJob(gen, envelope, zoom, maxElements));
+        }
+    }
+
+    private void publish(int gen, List<Geometry> elements, Set<Long> ids, boolean complete, boolean truncated) {
+        synchronized (this) {
+            if (gen != generation.get()) {
+                return;
+            }
+            List<Geometry> visible = new ArrayList<Geometry>(elements);
+            if (complete) {
+                jobComplete = true;
+                jobTruncated = truncated;
+                lastJobTime = System.currentTimeMillis() - jobStartTime;
+                previousElements = Collections.emptyList();
+            } else {
+                for (Geometry element : previousElements) {
+                    if (!ids.contains(element.getId())) {
+                        visible.add(element);
+                    }
+                }
+            }
+            if (lastFirstBatchTime == 0 && !elements.isEmpty()) {
+                lastFirstBatchTime = System.currentTimeMillis() - jobStartTime;
+            }
+            visibleElements = visible;
+        }
+        notifyElementsChanged();
+    }
+
+    private WkbRead.GeometryFactory createGeometryFactory(final int zoom) {
+        return new StyledGeometryFactory(this, zoom);
+    }
+
+    /**
+     * Centre part of envelope, read before the rest of it.
+     */
+    static Envelope getCenter(Envelope envelope) {
+        double marginX = envelope.getWidth() * (CENTER_DIVISOR - 1) / (2 * CENTER_DIVISOR);
+        double marginY = envelope.getHeight() * (CENTER_DIVISOR - 1) / (2 * CENTER_DIVISOR);
+        return new Envelope(envelope.minX + marginX, envelope.maxX - marginX, envelope.minY + marginY, envelope.maxY - marginY);
+    }
+
+    /**
+     * Reads single viewport, stops as soon as a newer viewport is requested.
+     */
+    private class ReadJob implements Runnable {
+        private final int gen;
+        private final Envelope envelope;
+        private final int zoom;
+        private final int maxElements;
+
+        ReadJob(int gen, Envelope envelope, int zoom, int maxElements) {
+            this.gen = gen;
+            this.envelope = envelope;
+            this.zoom = zoom;
+            this.maxElements = maxElements;
+        }
+
+        private boolean isCancelled() {
+            return gen != generation.get();
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled()) {
+                return;
+            }
+            WkbRead.GeometryFactory geomFactory = createGeometryFactory(zoom);
+            List<Geometry> elements = new ArrayList<Geometry>();
+            // FIDs read so far, previous viewport elements with these FIDs are replaced
+            Set<Long> ids = new HashSet<Long>();
+
+            try {
+                // centre pass, then the whole viewport without features of the centre pass
+                if (!read(getCenter(envelope), geomFactory, elements, ids, Collections.<Long>emptySet())) {
+                    return;
+                }
+                Set<Long> centerIds = new HashSet<Long>(ids);
+                if (elements.size() < maxElements && !read(envelope, geomFactory, elements, ids, centerIds)) {
+                    return;
+                }
+            } catch (IOException e) {
+                Log.error("AsyncOGRVectorDataSource: Failed to read features! " + e.getMessage());
+                publish(gen, elements, ids, false, false);
+                return;
+            } catch (RuntimeException e) {
+                Log.error("AsyncOGRVectorDataSource: Failed to read features! " + e.getMessage());
+                publish(gen, elements, ids, false, false);
+                return;
+            }
+            publish(gen, elements, ids, true, elements.size() >= maxElements);
+        }
+
+        /**
+         * Read features of one spatial filter, publish after each batch.
+         *
+         * @return false if job was cancelled
+         */
+        private boolean read(Envelope filter, WkbRead.GeometryFactory geomFactory, List<Geometry> elements, Set<Long> ids, Set<Long> skipIds) throws IOException {
+            if (batchReader != null) {
+                batchReader.setSpatialFilter(filter);
+                while (elements.size() < maxElements) {
+                    if (isCancelled()) {
+                        return false;
+                    }
+                    List<Geometry> batch = batchReader.readBatch(Math.min(BATCH_SIZE, maxElements - elements.size()), geomFactory);
+                    if (batch == null) {
+                        break;
+                    }
+                    addElements(batch, elements, ids, skipIds);
+                    publish(gen, elements, ids, false, false);
+                }
+            } else {
+                // skipped features are counted by helper, so ask for all of them
+                ogrHelper.setMaxElements(maxElements - elements.size() + skipIds.size());
+                addElements(ogrHelper.loadData(filter, geomFactory), elements, ids, skipIds);
+                if (isCancelled()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void addElements(List<Geometry> batch, List<Geometry> elements, Set<Long> ids, Set<Long> skipIds) {
+            // parts of a multigeometry share the FID, so all elements of the batch are kept
+            for (Geometry element : batch) {
+                if (elements.size() >= maxElements) {
+                    break;
+                }
+                if (skipIds.contains(element.getId())) {
+                    continue;
+                }
+                element.attachToDataSource(AsyncOGRVectorDataSource.this);
+                elements.add(element);
+                ids.add(element.getId());
+            }
+        }
+    }
+
+    @Override
+    public abstract Label createLabel(Map<String, String> userData);
+
+    @Override
+    public abstract StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom);
+
+    @Override
+    public abstract StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom);
+
+    @Override
+    public abstract StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom);
+
+}
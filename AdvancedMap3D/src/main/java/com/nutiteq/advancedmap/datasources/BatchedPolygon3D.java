@@ -0,0 +1,284 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.nutiteq.advancedmap.roofs.RoofMeshCache;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapPos;
+import com.nutiteq.components.Point3D;
+import com.nutiteq.geometry.Polygon3D;
+import com.nutiteq.log.Log;
+import com.nutiteq.renderprojections.RenderProjection;
+import com.nutiteq.style.Polygon3DStyle;
+import com.nutiteq.style.StyleSet;
+
+/**
+ *
+ * All buildings of one tile as single Polygon3D element, so they are drawn from one vertex buffer.
+ *
+ * Buildings are extruded by their own calculateInternalState() (incl. roofs), in parallel,
+ * or taken from RoofMeshCache, then vertices and colors are merged relative to common origin. Merged buffers can be saved
+ * to file and later loaded from there without building data. Tiles where some building failed are not saved.
+ *
+ * @author jaak
+ *
+ */
+public class BatchedPolygon3D extends Polygon3D {
+    private static final int CACHE_VERSION = 2;
+
+    private final Envelope internalEnvelope;
+    private final ExecutorService executor;
+    private final RoofMeshCache meshCache;
+    private final File cacheFile;
+    private List<Polygon3D> buildings;
+    private int buildingCount;
+
+    private String renderProjectionName;
+    private Point3D origin;
+    private float[] vertices;
+    private float[] colors;
+
+    /**
+     * @param tileRing tile corners in layer projection
+     * @param internalEnvelope tile envelope in internal coordinates
+     * @param buildings buildings of tile, not attached to any layer
+     * @param styleSet style set
+     * @param executor executor for building extrusion
+     * @param meshCache cache of single building meshes, can be null
+     * @param cacheFile file where merged buffers are saved, can be null
+     */
+    public BatchedPolygon3D(List<MapPos> tileRing, Envelope internalEnvelope, List<Polygon3D> buildings,
+            StyleSet<Polygon3DStyle> styleSet, ExecutorService executor, RoofMeshCache meshCache, File cacheFile) {
+        super(tileRing, null, 0, null, styleSet, null);
+        this.internalEnvelope = internalEnvelope;
+        this.buildings = buildings;
+        this.buildingCount = buildings.size();
+        this.executor = executor;
+        this.meshCache = meshCache;
+        this.cacheFile = cacheFile;
+    }
+
+    private BatchedPolygon3D(List<MapPos> tileRing, Envelope internalEnvelope, StyleSet<Polygon3DStyle> styleSet) {
+        super(tileRing, null, 0, null, styleSet, null);
+        this.internalEnvelope = internalEnvelope;
+        this.executor = null;
+        this.meshCache = null;
+        this.cacheFile = null;
+    }
+
+    /**
+     * Load merged buffers saved by an earlier instance.
+     *
+     * @return tile element, or null if file is not valid
+     */
+    public static BatchedPolygon3D readCache(File file, List<MapPos> tileRing, Envelope internalEnvelope, StyleSet<Polygon3DStyle> styleSet) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                byte[] data = new byte[(int) file.length()];
+                in.readFully(data);
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                if (buffer.getInt() != CACHE_VERSION) {
+                    return null;
+                }
+                BatchedPolygon3D tile = new BatchedPolygon3D(tileRing, internalEnvelope, styleSet);
+                tile.buildingCount = buffer.getInt();
+                byte[] name = new byte[buffer.getInt()];
+                buffer.get(name);
+                tile.renderProjectionName = new String(name, "UTF-8");
+                tile.origin = new Point3D(buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+                tile.vertices = new float[buffer.getInt()];
+                buffer.asFloatBuffer().get(tile.vertices);
+                buffer.position(buffer.position() + tile.vertices.length * 4);
+                tile.colors = new float[buffer.getInt()];
+                buffer.asFloatBuffer().get(tile.colors);
+                return tile;
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            Log.error("BatchedPolygon3D: Failed to read " + file + "! " + e.getMessage());
+            return null;
+        }
+    }
+
+    public int getBuildingCount() {
+        return buildingCount;
+    }
+
+    public synchronized int getVertexCount() {
+        return vertices != null ? vertices.length / 3 : 0;
+    }
+
+    @Override
+    public void calculateInternalState() {
+        RenderProjection renderProjection = getRenderProjection();
+        if (renderProjection == null) {
+            return;
+        }
+        String name = renderProjection.getClass().getName();
+        Polygon3DInternalState state;
+        synchronized (this) {
+            if (vertices == null || !name.equals(renderProjectionName)) {
+                if (buildings == null) {
+                    Log.error("BatchedPolygon3D: cached tile has different render projection");
+                    vertices = new float[0];
+                    colors = new float[0];
+                    origin = new Point3D();
+                } else if (executor.isShutdown() || !merge()) {
+                    // data source is closed
+                    return;
+                }
+                renderProjectionName = name;
+            }
+            // internal envelope is given by getInternalEnvelope()
+            state = new Polygon3DInternalState(origin, vertices, colors);
+        }
+        setInternalState(state);
+    }
+
+    @Override
+    public Envelope getInternalEnvelope() {
+        return internalEnvelope;
+    }
+
+    @Override
+    public Point3D calculateInternalClickPos(Point3D clickPos) {
+        // single buildings are not clickable
+        return null;
+    }
+
+    // Returns false if executor was shut down before all buildings were submitted.
+    private boolean merge() {
+        // extrude buildings in parallel, using this element's layer for projections
+        final String renderProjectionName = getRenderProjection().getClass().getName();
+        List<Future<Polygon3DInternalState>> futures = new ArrayList<Future<Polygon3DInternalState>>();
+        try {
+            for (final Polygon3D building : buildings) {
+                futures.add(executor.submit(new Callable<Polygon3DInternalState>() {
+                    @Override
+                    public Polygon3DInternalState call() {
+                        long key = 0;
+                        if (meshCache != null) {
+                            key = RoofMeshCache.getKey(building, renderProjectionName);
+                            Polygon3DInternalState state = meshCache.get(key);
+                            if (state != null) {
+                                return state;
+                            }
+                        }
+                        building.attachToLayer(layer);
+                        Polygon3DInternalState state = building.getInternalState();
+                        building.detachFromLayer();
+                        if (meshCache != null && state != null) {
+                            meshCache.put(key, state);
+                        }
+                        return state;
+                    }
+                }));
+            }
+        } catch (RejectedExecutionException e) {
+            cancel(futures);
+            return false;
+        }
+
+        List<Polygon3DInternalState> states = new ArrayList<Polygon3DInternalState>();
+        int vertexCount = 0;
+        // incomplete tile is shown, but not saved to file
+        boolean complete = true;
+        for (Future<Polygon3DInternalState> future : futures) {
+            try {
+                Polygon3DInternalState state = future.get();
+                if (state != null && state.vertices.length > 0) {
+                    states.add(state);
+                    vertexCount += state.vertices.length;
+                }
+            } catch (ExecutionException e) {
+                Log.error("BatchedPolygon3D: Failed to extrude building! " + e.getCause());
+                complete = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel(futures);
+                complete = false;
+                break;
+            }
+        }
+
+        origin = states.isEmpty() ? new Point3D() : states.get(0).origin;
+        vertices = new float[vertexCount];
+        colors = new float[vertexCount / 3 * 4];
+        int vertexPos = 0;
+        int colorPos = 0;
+        for (Polygon3DInternalState state : states) {
+            float dx = (float) (state.origin.x - origin.x);
+            float dy = (float) (state.origin.y - origin.y);
+            float dz = (float) (state.origin.z - origin.z);
+            for (int i = 0; i < state.vertices.length; i += 3) {
+                vertices[vertexPos++] = state.vertices[i] + dx;
+                vertices[vertexPos++] = state.vertices[i + 1] + dy;
+                vertices[vertexPos++] = state.vertices[i + 2] + dz;
+            }
+            System.arraycopy(state.colors, 0, colors, colorPos, state.colors.length);
+            colorPos += state.colors.length;
+        }
+        // building data is not needed any more
+        buildings = null;
+
+        if (cacheFile != null && complete) {
+            writeCache(renderProjectionName);
+        }
+        return true;
+    }
+
+    private static void cancel(List<Future<Polygon3DInternalState>> futures) {
+        for (Future<Polygon3DInternalState> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private void writeCache(String renderProjectionName) {
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try {
+            cacheFile.getParentFile().mkdirs();
+            byte[] name = renderProjectionName.getBytes("UTF-8");
+            ByteBuffer buffer = ByteBuffer.allocate(5 * 4 + name.length + 3 * 8 + 4 * (vertices.length + colors.length));
+            buffer.putInt(CACHE_VERSION);
+            buffer.putInt(buildingCount);
+            buffer.putInt(name.length);
+            buffer.put(name);
+            buffer.putDouble(origin.x).putDouble(origin.y).putDouble(origin.z);
+            buffer.putInt(vertices.length);
+            buffer.asFloatBuffer().put(vertices);
+            buffer.position(buffer.position() + vertices.length * 4);
+            buffer.putInt(colors.length);
+            buffer.asFloatBuffer().put(colors);
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.write(buffer.array());
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(cacheFile)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            Log.error("BatchedPolygon3D: Failed to write " + cacheFile + "! " + e.getMessage());
+            tempFile.delete();
+        }
+    }
+
+}
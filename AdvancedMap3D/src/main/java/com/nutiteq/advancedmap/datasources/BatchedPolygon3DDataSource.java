@@ -0,0 +1,314 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.nutiteq.advancedmap.roofs.RoofFactory;
+import com.nutiteq.advancedmap.roofs.RoofMeshCache;
+import com.nutiteq.components.Bounds;
+import com.nutiteq.components.CullState;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapPos;
+import com.nutiteq.geometry.Polygon3D;
+import com.nutiteq.log.Log;
+import com.nutiteq.style.Polygon3DStyle;
+import com.nutiteq.style.StyleSet;
+import com.nutiteq.vectordatasources.AbstractVectorDataSource;
+import com.nutiteq.vectordatasources.VectorDataSource;
+
+/**
+ *
+ * Loads buildings from another data source (e.g. OSMPolygon3DDataSource) tile by tile,
+ * and returns one BatchedPolygon3D per tile instead of thousands of separate elements.
+ *
+ * Tiles are loaded in parallel, extruded tiles are kept in memory LRU and saved to
+ * cache folder, so revisited areas are not downloaded or extruded again. Cached tiles are
+ * kept per tile zoom and style, files older than CACHE_MAX_AGE are deleted on start.
+ * Tiles which failed to load are not cached. Object limit of the building data source applies per tile.
+ *
+ * Roofs of buildings are set by RoofFactory from OSM tags, and extruded single buildings are
+ * kept in RoofMeshCache, so roofs are generated once per building.
+ *
+ * @author jaak
+ *
+ */
+public class BatchedPolygon3DDataSource extends AbstractVectorDataSource<Polygon3D> {
+    private static final int MAX_TILES = 36;
+    private static final int LOAD_THREADS = 4;
+    private static final long CACHE_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    private final VectorDataSource<Polygon3D> buildingDataSource;
+    private final int tileZoom;
+    private final StyleSet<Polygon3DStyle> styleSet;
+    private final int minZoom;
+    private final File cacheDir;
+    private final File tileCacheDir;
+    private final RoofFactory roofFactory;
+    private final RoofMeshCache meshCache;
+    private final Map<String, BatchedPolygon3D> tileCache;
+    private final ExecutorService loadExecutor = Executors.newFixedThreadPool(LOAD_THREADS);
+    private final ExecutorService extrudeExecutor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+    private int diskCacheHits;
+    private int tilesLoaded;
+
+    /**
+     * Default constructor.
+     *
+     * @param buildingDataSource data source of single buildings
+     * @param tileZoom zoom level of tiles, e.g. 15
+     * @param styleSet style set for tiles
+     * @param cacheDir folder for extruded tiles, can be null
+     * @param memoryCacheSize number of tiles kept in memory
+     * @param meshCache cache of single building meshes, can be null
+     */
+    public BatchedPolygon3DDataSource(VectorDataSource<Polygon3D> buildingDataSource, int tileZoom, StyleSet<Polygon3DStyle> styleSet,
+            File cacheDir, final int memoryCacheSize, RoofMeshCache meshCache) {
+        super(buildingDataSource.getProjection());
+        this.buildingDataSource = buildingDataSource;
+        this.tileZoom = tileZoom;
+        this.styleSet = styleSet;
+        this.minZoom = styleSet.getFirstNonNullZoomStyleZoom();
+        this.cacheDir = cacheDir;
+        // tile colors come from style, so style changes use new folder
+        this.tileCacheDir = cacheDir != null ? new File(cacheDir, tileZoom + "_" + Long.toHexString(RoofMeshCache.getStyleKey(styleSet))) : null;
+        this.roofFactory = new RoofFactory(buildingDataSource.getProjection());
+        this.meshCache = meshCache;
+        this.tileCache = new LinkedHashMap<String, BatchedPolygon3D>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BatchedPolygon3D> eldest) {
+                return size() > memoryCacheSize;
+            }
+        };
+        if (cacheDir != null) {
+            loadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pruneCache();
+                }
+            });
+        }
+    }
+
+    @Override
+    public Envelope getDataExtent() {
+        return buildingDataSource.getDataExtent();
+    }
+
+    @Override
+    public Collection<Polygon3D> loadElements(final CullState cullState) {
+        if (cullState.zoom < minZoom) {
+            return null;
+        }
+
+        Bounds bounds = projection.getBounds();
+        double tileWidth = bounds.getWidth() / (1 << tileZoom);
+        double tileHeight = bounds.getHeight() / (1 << tileZoom);
+        double minX = Math.min(bounds.left, bounds.right);
+        double minY = Math.min(bounds.top, bounds.bottom);
+        int maxTile = (1 << tileZoom) - 1;
+
+        Envelope envelope = projection.fromInternal(cullState.envelope);
+        int x0 = clamp((int) Math.floor((envelope.minX - minX) / tileWidth), maxTile);
+        int x1 = clamp((int) Math.floor((envelope.maxX - minX) / tileWidth), maxTile);
+        int y0 = clamp((int) Math.floor((envelope.minY - minY) / tileHeight), maxTile);
+        int y1 = clamp((int) Math.floor((envelope.maxY - minY) / tileHeight), maxTile);
+
+        // limit tiles in very tilted views, around view center
+        while ((x1 - x0 + 1) * (y1 - y0 + 1) > MAX_TILES) {
+            if (x1 - x0 > y1 - y0) {
+                x0++;
+                x1--;
+            } else {
+                y0++;
+                y1--;
+            }
+        }
+
+        List<Polygon3D> elements = new ArrayList<Polygon3D>();
+        List<Future<BatchedPolygon3D>> futures = new ArrayList<Future<BatchedPolygon3D>>();
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                final String key = x + "_" + y;
+                BatchedPolygon3D tile;
+                synchronized (tileCache) {
+                    tile = tileCache.get(key);
+                }
+                if (tile != null) {
+                    if (tile.getBuildingCount() > 0) {
+                        elements.add(tile);
+                    }
+                    continue;
+                }
+
+                final Envelope tileEnvelope = new Envelope(minX + x * tileWidth, minX + (x + 1) * tileWidth, minY + y * tileHeight, minY + (y + 1) * tileHeight);
+                futures.add(loadExecutor.submit(new Callable<BatchedPolygon3D>() {
+                    @Override
+                    public BatchedPolygon3D call() {
+                        BatchedPolygon3D tile = loadTile(key, tileEnvelope, cullState);
+                        if (tile != null) {
+                            synchronized (tileCache) {
+                                tileCache.put(key, tile);
+                            }
+                        }
+                        return tile;
+                    }
+                }));
+            }
+        }
+
+        for (Future<BatchedPolygon3D> future : futures) {
+            try {
+                BatchedPolygon3D tile = future.get();
+                if (tile != null && tile.getBuildingCount() > 0) {
+                    elements.add(tile);
+                }
+            } catch (ExecutionException e) {
+                Log.error("BatchedPolygon3DDataSource: Failed to load tile! " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return elements;
+    }
+
+    public synchronized int getDiskCacheHits() {
+        return diskCacheHits;
+    }
+
+    public synchronized int getTilesLoaded() {
+        return tilesLoaded;
+    }
+
+    /**
+     * Stop background threads and close mesh cache, data source can not be used afterwards.
+     */
+    public void close() {
+        loadExecutor.shutdownNow();
+        extrudeExecutor.shutdownNow();
+        if (meshCache != null) {
+            meshCache.close();
+        }
+    }
+
+    // Tile from cache or building data source, null if loading failed.
+    private BatchedPolygon3D loadTile(String key, Envelope tileEnvelope, CullState cullState) {
+        List<MapPos> tileRing = new ArrayList<MapPos>();
+        tileRing.add(new MapPos(tileEnvelope.minX, tileEnvelope.minY));
+        tileRing.add(new MapPos(tileEnvelope.maxX, tileEnvelope.minY));
+        tileRing.add(new MapPos(tileEnvelope.maxX, tileEnvelope.maxY));
+        tileRing.add(new MapPos(tileEnvelope.minX, tileEnvelope.maxY));
+        Envelope internalEnvelope = projection.toInternal(tileEnvelope);
+
+        File cacheFile = null;
+        if (tileCacheDir != null) {
+            cacheFile = new File(tileCacheDir, key);
+            if (cacheFile.exists() && System.currentTimeMillis() - cacheFile.lastModified() < CACHE_MAX_AGE) {
+                BatchedPolygon3D tile = cacheFile.length() == 0 ? emptyTile(tileRing, internalEnvelope)
+                        : BatchedPolygon3D.readCache(cacheFile, tileRing, internalEnvelope, styleSet);
+                if (tile != null) {
+                    synchronized (this) {
+                        diskCacheHits++;
+                    }
+                    return tile;
+                }
+            }
+        }
+
+        Collection<Polygon3D> loaded = buildingDataSource.loadElements(new CullState(internalEnvelope, cullState.camera, cullState.renderProjection));
+        if (loaded == null) {
+            // not cached, so tile is requested again with next view update
+            Log.warning("BatchedPolygon3DDataSource: Failed to load tile " + key);
+            return null;
+        }
+        List<Polygon3D> buildings = new ArrayList<Polygon3D>();
+        for (Polygon3D building : loaded) {
+            // buildings crossing tile border are returned for both tiles, keep in one
+            List<MapPos> vertices = building.getVertexList();
+            if (!vertices.isEmpty() && contains(tileEnvelope, vertices.get(0))) {
+                roofFactory.applyRoof(building);
+                buildings.add(building);
+            }
+        }
+        synchronized (this) {
+            tilesLoaded++;
+        }
+        Log.debug("BatchedPolygon3DDataSource: tile " + key + " has " + buildings.size() + " buildings");
+
+        if (buildings.isEmpty()) {
+            if (cacheFile != null) {
+                writeEmptyTile(cacheFile);
+            }
+            return emptyTile(tileRing, internalEnvelope);
+        }
+        return new BatchedPolygon3D(tileRing, internalEnvelope, buildings, styleSet, extrudeExecutor, meshCache, cacheFile);
+    }
+
+    private BatchedPolygon3D emptyTile(List<MapPos> tileRing, Envelope internalEnvelope) {
+        return new BatchedPolygon3D(tileRing, internalEnvelope, new ArrayList<Polygon3D>(), styleSet, extrudeExecutor, null, null);
+    }
+
+    /**
+     * Delete cached tiles older than CACHE_MAX_AGE, and folders of other tile zooms and styles which get empty.
+     */
+    private void pruneCache() {
+        File[] dirs = cacheDir.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (now - file.lastModified() >= CACHE_MAX_AGE && file.delete()) {
+                    count++;
+                }
+            }
+            if (!dir.equals(tileCacheDir)) {
+                // fails if not empty
+                dir.delete();
+            }
+        }
+        if (count > 0) {
+            Log.info("BatchedPolygon3DDataSource: deleted " + count + " old cached tiles");
+        }
+    }
+
+    private static void writeEmptyTile(File cacheFile) {
+        try {
+            cacheFile.getParentFile().mkdirs();
+            cacheFile.delete();
+            if (!cacheFile.createNewFile()) {
+                throw new IOException("can not create file");
+            }
+        } catch (IOException e) {
+            Log.error("BatchedPolygon3DDataSource: Failed to write " + cacheFile + "! " + e.getMessage());
+        }
+    }
+
+    private static boolean contains(Envelope envelope, MapPos mapPos) {
+        return mapPos.x >= envelope.minX && mapPos.x < envelope.maxX && mapPos.y >= envelope.minY && mapPos.y < envelope.maxY;
+    }
+
+    private static int clamp(int tile, int maxTile) {
+        return Math.max(0, Math.min(maxTile, tile));
+    }
+
+}
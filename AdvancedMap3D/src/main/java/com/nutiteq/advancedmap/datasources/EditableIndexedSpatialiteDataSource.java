@@ -0,0 +1,119 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.nutiteq.components.CullState;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.db.SpatialLiteDbHelper;
+import com.nutiteq.editable.datasources.EditableSpatialiteDataSource;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.style.LineStyle;
+import com.nutiteq.style.PointStyle;
+import com.nutiteq.style.PolygonStyle;
+import com.nutiteq.style.StyleSet;
+import com.nutiteq.ui.Label;
+import com.nutiteq.utils.WkbRead;
+
+/**
+ *
+ * Editable variant of IndexedSpatialiteDataSource. Edits go through SpatialLiteDbHelper as before,
+ * Spatialite triggers keep the R*Tree index up to date, so viewport queries can keep using it.
+ * If table has no R*Tree index, elements are loaded with the SDK query of EditableSpatialiteDataSource.
+ * Generalized levels of the table are not used, and they are invalidated on first edit.
+ * Call close() when data source is not used any more, planner keeps its own database connection.
+ *
+ * @author jaak
+ *
+ */
+public abstract class EditableIndexedSpatialiteDataSource extends EditableSpatialiteDataSource implements StyledGeometryFactory.StyleProvider {
+    private final SpatialiteQueryPlanner queryPlanner;
+    private int maxElements = Integer.MAX_VALUE;
+
+    public EditableIndexedSpatialiteDataSource(Projection proj, SpatialLiteDbHelper spatialLite, String dbPath, String tableName, String geomColumnName, String[] userColumns, String filter) throws IOException {
+        super(proj, spatialLite, tableName, geomColumnName, userColumns, filter);
+        if (dbLayer == null) {
+            throw new IOException("EditableIndexedSpatialiteDataSource: Could not find a matching layer " + tableName + "." + geomColumnName);
+        }
+        if (userColumns == null) {
+            userColumns = spatialLite.qryColumns(dbLayer);
+        }
+        queryPlanner = new SpatialiteQueryPlanner(dbPath, dbLayer, userColumns, filter, true);
+        // generalized levels are not updated on edits
+        queryPlanner.setPyramidEnabled(false);
+    }
+
+    @Override
+    public long insertElement(Geometry element) {
+        long id = super.insertElement(element);
+        queryPlanner.invalidatePyramid();
+        return id;
+    }
+
+    @Override
+    public void updateElement(long id, Geometry element) {
+        super.updateElement(id, element);
+        queryPlanner.invalidatePyramid();
+    }
+
+    @Override
+    public void deleteElement(long id) {
+        super.deleteElement(id);
+        queryPlanner.invalidatePyramid();
+    }
+
+    @Override
+    public void setMaxElements(int maxElements) {
+        super.setMaxElements(maxElements);
+        this.maxElements = maxElements;
+    }
+
+    @Override
+    public void setAutoSimplify(float pixels, int screenWidth) {
+        super.setAutoSimplify(pixels, screenWidth);
+        queryPlanner.setAutoSimplify(pixels);
+    }
+
+    public SpatialiteQueryPlanner getQueryPlanner() {
+        return queryPlanner;
+    }
+
+    @Override
+    public Collection<Geometry> loadElements(final CullState cullState) {
+        if (!queryPlanner.isSpatialIndexUsed()) {
+            return super.loadElements(cullState);
+        }
+        Envelope envelope = projection.fromInternal(cullState.envelope);
+
+        WkbRead.GeometryFactory geomFactory = new StyledGeometryFactory(this, cullState.zoom);
+
+        List<Geometry> elements = queryPlanner.query(envelope, cullState.zoom, maxElements, geomFactory);
+        for (Geometry element : elements) {
+            element.attachToDataSource(this);
+        }
+        return elements;
+    }
+
+    /**
+     * Close prepared statements and database connection of the query planner.
+     */
+    public void close() {
+        queryPlanner.close();
+    }
+
+    @Override
+    public abstract Label createLabel(Map<String, String> userData);
+
+    @Override
+    public abstract StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom);
+
+    @Override
+    public abstract StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom);
+
+    @Override
+    public abstract StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom);
+
+}
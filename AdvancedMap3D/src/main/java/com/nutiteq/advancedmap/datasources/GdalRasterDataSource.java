@@ -0,0 +1,541 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.gdal.gdal.Band;
+import org.gdal.gdal.ColorTable;
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.gdal;
+import org.gdal.gdalconst.gdalconstConstants;
+import org.gdal.osr.SpatialReference;
+
+import android.graphics.Bitmap;
+
+import com.nutiteq.advancedmap.cache.CacheFiles;
+import com.nutiteq.advancedmap.proj.BulkTransformer;
+import com.nutiteq.advancedmap.proj.ProjException;
+import com.nutiteq.advancedmap.proj.ReprojectedGridCache;
+import com.nutiteq.advancedmap.proj.TransformPipeline;
+import com.nutiteq.advancedmap.proj.TransformRegistry;
+import com.nutiteq.components.Bounds;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapTile;
+import com.nutiteq.components.TileBitmap;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.rasterdatasources.AbstractRasterDataSource;
+
+/**
+ *
+ * Raster data source for GDAL-supported files (GeoTIFF etc), replacement for GdalMapLayer.
+ *
+ * Tiles are loaded in parallel by layer fetch threads, each thread has its own GDAL dataset handle.
+ * For each tile the best overview level is selected, so only the needed source pixels are read.
+ * Bands are read in their own data type: Byte values are used as is, other types are scaled
+ * to 0..255 with band minimum and maximum. Pixels with band nodata value are transparent.
+ * Files in other projections are warped using a reprojected grid per tile (see ReprojectedGridCache).
+ * Missing overviews can be built with buildOverviews(), preferably in background.
+ *
+ * Wrap with CacheRasterDataSource and PersistentCacheStore for persistent caching,
+ * see getCacheName() for a cache name that changes with file modification time,
+ * and deleteOldCaches() for removing caches of earlier versions.
+ *
+ * @author jaak
+ *
+ */
+public class GdalRasterDataSource extends AbstractRasterDataSource {
+    static final int TILE_SIZE = 256;
+    private static final int GRID_SIZE = 8;
+    private static final int MAX_CACHED_GRIDS = 256;
+    private static final int MAX_READ_SIZE = TILE_SIZE * 2;
+    private static final int MIN_OVERVIEW_SIZE = TILE_SIZE;
+
+    static {
+        gdal.AllRegister();
+    }
+
+    private final String path;
+    private final int rasterWidth;
+    private final int rasterHeight;
+    private final int bandCount;
+    private final double[] geoTransform;
+    private final int[] colorTable;
+    private final int dataType;
+    // per band: nodata value (NaN if not set), and value range scaled to 0..255 for non-Byte data
+    private final double[] noData;
+    private final double[] scaleMin;
+    private final double[] scaleMax;
+    private final Envelope dataExtent;
+    private final double bestZoom;
+    private final ReprojectedGridCache gridCache;
+
+    // each fetch thread has its own dataset handle, GDAL datasets are not thread-safe
+    private final ThreadLocal<DatasetHandle> datasetHandle = new ThreadLocal<DatasetHandle>();
+    private final List<DatasetHandle> openHandles = new ArrayList<DatasetHandle>();
+    private volatile int handleGeneration;
+    // tiles are read under read lock, close() takes write lock so that handles are not deleted during reads
+    private final ReadWriteLock handleLock = new ReentrantReadWriteLock();
+    private boolean closed;
+    private volatile boolean hasOverviews;
+
+    private int renderedTileCount;
+    private long totalRenderTime;
+
+    private static class DatasetHandle {
+        final Dataset dataset;
+        final int generation;
+
+        DatasetHandle(Dataset dataset, int generation) {
+            this.dataset = dataset;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Default constructor.
+     *
+     * @param proj map projection (usually EPSG3857)
+     * @param minZoom minimum zoom
+     * @param maxZoom maximum zoom
+     * @param path path of GDAL-supported raster file
+     * @throws IOException if file can not be opened or its projection is not supported
+     */
+    public GdalRasterDataSource(Projection proj, int minZoom, int maxZoom, String path) throws IOException {
+        super(proj, minZoom, maxZoom);
+        this.path = path;
+
+        Dataset dataset = gdal.Open(path, gdalconstConstants.GA_ReadOnly);
+        if (dataset == null) {
+            throw new IOException("GdalRasterDataSource: Failed to open " + path + "! " + gdal.GetLastErrorMsg());
+        }
+        try {
+            rasterWidth = dataset.GetRasterXSize();
+            rasterHeight = dataset.GetRasterYSize();
+            bandCount = dataset.GetRasterCount();
+            geoTransform = dataset.GetGeoTransform();
+            if (bandCount == 0 || geoTransform == null || geoTransform[2] != 0 || geoTransform[4] != 0) {
+                throw new IOException("GdalRasterDataSource: Unsupported raster (rotated or no bands) " + path);
+            }
+            Band firstBand = dataset.GetRasterBand(1);
+            ColorTable table = firstBand.GetRasterColorTable();
+            colorTable = table != null ? readColorTable(table) : null;
+            dataType = firstBand.GetRasterDataType();
+            hasOverviews = firstBand.GetOverviewCount() > 0;
+
+            int bands = Math.min(bandCount, 4);
+            noData = new double[bands];
+            scaleMin = new double[bands];
+            scaleMax = new double[bands];
+            for (int b = 0; b < bands; b++) {
+                readBandRange(dataset.GetRasterBand(b + 1), b);
+            }
+
+            String srcProj4 = new SpatialReference(dataset.GetProjectionRef()).ExportToProj4();
+            String mapProj4 = TransformRegistry.getInstance().getDefinition(proj);
+            if (mapProj4 == null) {
+                mapProj4 = BulkTransformer.EPSG3857_PROJ4;
+            }
+            TransformPipeline toSource = TransformRegistry.getInstance().getPipeline(mapProj4, srcProj4);
+            TransformPipeline toMap = TransformRegistry.getInstance().getPipeline(srcProj4, mapProj4);
+            gridCache = new ReprojectedGridCache(toSource, MAX_CACHED_GRIDS);
+
+            Envelope srcExtent = new Envelope(geoTransform[0], geoTransform[0] + geoTransform[1] * rasterWidth,
+                    geoTransform[3] + geoTransform[5] * rasterHeight, geoTransform[3]);
+            dataExtent = toMap.transformEnvelope(srcExtent, GRID_SIZE);
+        } catch (ProjException e) {
+            throw new IOException("GdalRasterDataSource: Unsupported projection! " + e.getMessage());
+        } finally {
+            dataset.delete();
+        }
+
+        // zoom where one tile pixel is about one source pixel
+        Bounds bounds = proj.getBounds();
+        double pixelSize = dataExtent.getWidth() / rasterWidth;
+        bestZoom = Math.log(bounds.getWidth() / (TILE_SIZE * pixelSize)) / Math.log(2);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return data extent in map projection
+     */
+    public Envelope getDataExtent() {
+        return dataExtent;
+    }
+
+    /**
+     * @return zoom level which matches source resolution
+     */
+    public double getBestZoom() {
+        return bestZoom;
+    }
+
+    /**
+     * Persistent cache name for the file, includes file modification time, so cache
+     * of a changed file is not reused.
+     */
+    public String getCacheName() {
+        File file = new File(path);
+        return "gdalcache_" + file.getName().replaceAll("[^A-Za-z0-9_]", "_") + "_" + Integer.toHexString(path.hashCode()) + "_" + file.lastModified();
+    }
+
+    /**
+     * Delete persistent caches of earlier versions of the file, see getCacheName().
+     *
+     * @param cacheDir directory of cache databases
+     */
+    public void deleteOldCaches(File cacheDir) {
+        String cacheName = getCacheName();
+        CacheFiles.deleteOldVersions(cacheDir, cacheName.substring(0, cacheName.lastIndexOf('_') + 1), cacheName);
+    }
+
+    /**
+     * @return true if the file is large and has no overviews yet. Does not access the file.
+     */
+    public boolean needsOverviews() {
+        if (Math.max(rasterWidth, rasterHeight) <= MIN_OVERVIEW_SIZE * 2) {
+            return false;
+        }
+        return !hasOverviews;
+    }
+
+    /**
+     * Build overviews (external .ovr file) for the file. Slow for large files, call from background thread.
+     * Open dataset handles are reopened afterwards, so that tiles are read from the overviews.
+     *
+     * @throws IOException if overviews can not be built
+     */
+    public void buildOverviews() throws IOException {
+        List<Integer> factors = new ArrayList<Integer>();
+        for (int factor = 2; Math.max(rasterWidth, rasterHeight) / factor >= MIN_OVERVIEW_SIZE; factor *= 2) {
+            factors.add(factor);
+        }
+        int[] levels = new int[factors.size()];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = factors.get(i);
+        }
+
+        long startTime = System.currentTimeMillis();
+        Dataset dataset = gdal.Open(path, gdalconstConstants.GA_ReadOnly);
+        if (dataset == null) {
+            throw new IOException("GdalRasterDataSource: Failed to open " + path + "! " + gdal.GetLastErrorMsg());
+        }
+        try {
+            if (dataset.BuildOverviews("AVERAGE", levels) != gdalconstConstants.CE_None) {
+                throw new IOException("GdalRasterDataSource: Failed to build overviews! " + gdal.GetLastErrorMsg());
+            }
+        } finally {
+            dataset.delete();
+        }
+        Log.info("GdalRasterDataSource: built " + levels.length + " overviews in " + (System.currentTimeMillis() - startTime) + " ms");
+
+        // handles are reopened by fetch threads on next tile
+        hasOverviews = true;
+        handleGeneration++;
+    }
+
+    @Override
+    public TileBitmap loadTile(MapTile tile) {
+        int[] pixels = renderPixels(tile);
+        if (pixels == null) {
+            return null;
+        }
+        return new TileBitmap(Bitmap.createBitmap(pixels, TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+    }
+
+    /**
+     * Render tile as ARGB pixels, transparent where the file has no data.
+     *
+     * @return TILE_SIZE x TILE_SIZE pixels, or null if tile does not overlap the file
+     */
+    int[] renderPixels(MapTile tile) {
+        long startTime = System.currentTimeMillis();
+        handleLock.readLock().lock();
+        try {
+            return renderTile(getTileEnvelope(projection, tile));
+        } catch (ProjException e) {
+            Log.error("GdalRasterDataSource: Failed to warp tile " + tile + "! " + e.getMessage());
+            return null;
+        } finally {
+            handleLock.readLock().unlock();
+            synchronized (this) {
+                renderedTileCount++;
+                totalRenderTime += System.currentTimeMillis() - startTime;
+            }
+        }
+    }
+
+    public synchronized int getRenderedTileCount() {
+        return renderedTileCount;
+    }
+
+    public synchronized long getAverageRenderTime() {
+        return renderedTileCount > 0 ? totalRenderTime / renderedTileCount : 0;
+    }
+
+    /**
+     * Close all dataset handles. Waits for tiles being read, tiles are not loaded afterwards.
+     */
+    public void close() {
+        handleLock.writeLock().lock();
+        try {
+            synchronized (openHandles) {
+                closed = true;
+                for (DatasetHandle handle : openHandles) {
+                    handle.dataset.delete();
+                }
+                openHandles.clear();
+            }
+            handleGeneration++;
+        } finally {
+            handleLock.writeLock().unlock();
+        }
+    }
+
+    static Envelope getTileEnvelope(Projection projection, MapTile tile) {
+        Bounds bounds = projection.getBounds();
+        double tileWidth = bounds.getWidth() / (1 << tile.zoom);
+        double tileHeight = Math.abs(bounds.top - bounds.bottom) / (1 << tile.zoom);
+        double minX = bounds.left + tile.x * tileWidth;
+        double maxY = bounds.top - tile.y * tileHeight;
+        return new Envelope(minX, minX + tileWidth, maxY - tileHeight, maxY);
+    }
+
+    // Dataset handle of current thread, call with read lock held. Null if data source is closed or file can not be opened.
+    private Dataset getDataset() {
+        DatasetHandle handle = datasetHandle.get();
+        if (handle != null && handle.generation == handleGeneration) {
+            return handle.dataset;
+        }
+        synchronized (openHandles) {
+            if (handle != null && openHandles.remove(handle)) {
+                handle.dataset.delete();
+            }
+            datasetHandle.set(null);
+            if (closed) {
+                return null;
+            }
+            Dataset dataset = gdal.Open(path, gdalconstConstants.GA_ReadOnly);
+            if (dataset == null) {
+                Log.error("GdalRasterDataSource: Failed to open " + path + "! " + gdal.GetLastErrorMsg());
+                return null;
+            }
+            handle = new DatasetHandle(dataset, handleGeneration);
+            openHandles.add(handle);
+        }
+        datasetHandle.set(handle);
+        return handle.dataset;
+    }
+
+    private int[] renderTile(Envelope tileEnvelope) throws ProjException {
+        if (!tileEnvelope.intersects(dataExtent)) {
+            return null;
+        }
+
+        // tile grid in source pixel coordinates
+        double[] grid = gridCache.getGrid(tileEnvelope, GRID_SIZE).clone();
+        double minPx = Double.MAX_VALUE, minPy = Double.MAX_VALUE;
+        double maxPx = -Double.MAX_VALUE, maxPy = -Double.MAX_VALUE;
+        for (int i = 0; i < grid.length; i += 2) {
+            grid[i] = (grid[i] - geoTransform[0]) / geoTransform[1];
+            grid[i + 1] = (grid[i + 1] - geoTransform[3]) / geoTransform[5];
+            minPx = Math.min(minPx, grid[i]);
+            maxPx = Math.max(maxPx, grid[i]);
+            minPy = Math.min(minPy, grid[i + 1]);
+            maxPy = Math.max(maxPy, grid[i + 1]);
+        }
+        int x0 = Math.max(0, (int) Math.floor(minPx));
+        int y0 = Math.max(0, (int) Math.floor(minPy));
+        int x1 = Math.min(rasterWidth, (int) Math.ceil(maxPx));
+        int y1 = Math.min(rasterHeight, (int) Math.ceil(maxPy));
+        if (x1 <= x0 || y1 <= y0) {
+            return null;
+        }
+
+        // select overview: largest one which still has at least one source pixel per tile pixel
+        Dataset dataset = getDataset();
+        if (dataset == null) {
+            return null;
+        }
+        double pixelsPerTilePixel = Math.max(maxPx - minPx, maxPy - minPy) / TILE_SIZE;
+        Band firstBand = dataset.GetRasterBand(1);
+        int overview = -1;
+        double factor = 1;
+        for (int i = 0; i < firstBand.GetOverviewCount(); i++) {
+            double overviewFactor = (double) rasterWidth / firstBand.GetOverview(i).GetXSize();
+            if (overviewFactor <= pixelsPerTilePixel && overviewFactor > factor) {
+                overview = i;
+                factor = overviewFactor;
+            }
+        }
+
+        // read window, downsampled by GDAL if still too large
+        int ox0 = (int) (x0 / factor), oy0 = (int) (y0 / factor);
+        int ow = Math.max(1, (int) Math.ceil(x1 / factor) - ox0);
+        int oh = Math.max(1, (int) Math.ceil(y1 / factor) - oy0);
+        Band sizeBand = overview >= 0 ? firstBand.GetOverview(overview) : firstBand;
+        ow = Math.min(ow, sizeBand.GetXSize() - ox0);
+        oh = Math.min(oh, sizeBand.GetYSize() - oy0);
+        if (ow <= 0 || oh <= 0) {
+            return null;
+        }
+        int bufWidth = Math.min(ow, MAX_READ_SIZE);
+        int bufHeight = Math.min(oh, MAX_READ_SIZE);
+
+        int bands = Math.min(bandCount, 4);
+        byte[][] data = new byte[bands][bufWidth * bufHeight];
+        // nodata mask of first band, null if no pixel is nodata
+        boolean[] noDataMask = null;
+        float[] values = (dataType != gdalconstConstants.GDT_Byte) ? new float[bufWidth * bufHeight] : null;
+        for (int b = 0; b < bands; b++) {
+            Band band = dataset.GetRasterBand(b + 1);
+            if (overview >= 0) {
+                band = band.GetOverview(overview);
+            }
+            int err;
+            if (values != null) {
+                err = band.ReadRaster(ox0, oy0, ow, oh, bufWidth, bufHeight, gdalconstConstants.GDT_Float32, values);
+            } else {
+                err = band.ReadRaster(ox0, oy0, ow, oh, bufWidth, bufHeight, gdalconstConstants.GDT_Byte, data[b]);
+            }
+            if (err != gdalconstConstants.CE_None) {
+                Log.error("GdalRasterDataSource: Failed to read raster! " + gdal.GetLastErrorMsg());
+                return null;
+            }
+            if (b == 0 && !Double.isNaN(noData[0])) {
+                noDataMask = getNoDataMask(data[0], values, noData[0]);
+            }
+            if (values != null) {
+                scaleValues(values, data[b], b);
+            }
+        }
+
+        // scale from full resolution pixels to buffer pixels
+        double scaleX = bufWidth / (ow * factor);
+        double scaleY = bufHeight / (oh * factor);
+        double offsetX = ox0 * factor;
+        double offsetY = oy0 * factor;
+
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        for (int row = 0; row < TILE_SIZE; row++) {
+            // grid rows start from tile minY, bitmap rows from maxY
+            double gy = (TILE_SIZE - row - 0.5) * GRID_SIZE / TILE_SIZE;
+            int j = Math.min((int) gy, GRID_SIZE - 1);
+            double fy = gy - j;
+            for (int col = 0; col < TILE_SIZE; col++) {
+                double gx = (col + 0.5) * GRID_SIZE / TILE_SIZE;
+                int i = Math.min((int) gx, GRID_SIZE - 1);
+                double fx = gx - i;
+
+                int p00 = (j * (GRID_SIZE + 1) + i) * 2;
+                int p10 = p00 + 2;
+                int p01 = p00 + (GRID_SIZE + 1) * 2;
+                int p11 = p01 + 2;
+                double px = (grid[p00] * (1 - fx) + grid[p10] * fx) * (1 - fy) + (grid[p01] * (1 - fx) + grid[p11] * fx) * fy;
+                double py = (grid[p00 + 1] * (1 - fx) + grid[p10 + 1] * fx) * (1 - fy) + (grid[p01 + 1] * (1 - fx) + grid[p11 + 1] * fx) * fy;
+                if (px < 0 || py < 0 || px >= rasterWidth || py >= rasterHeight) {
+                    continue;
+                }
+
+                int bx = (int) ((px - offsetX) * scaleX);
+                int by = (int) ((py - offsetY) * scaleY);
+                if (bx < 0 || by < 0 || bx >= bufWidth || by >= bufHeight) {
+                    continue;
+                }
+                int index = by * bufWidth + bx;
+                if (noDataMask != null && noDataMask[index]) {
+                    continue;
+                }
+                pixels[row * TILE_SIZE + col] = getColor(data, index);
+            }
+        }
+        return pixels;
+    }
+
+    private int getColor(byte[][] data, int index) {
+        switch (data.length) {
+        case 1:
+            int value = data[0][index] & 0xff;
+            if (colorTable != null) {
+                return value < colorTable.length ? colorTable[value] : 0;
+            }
+            return 0xff000000 | (value << 16) | (value << 8) | value;
+        case 2:
+            int gray = data[0][index] & 0xff;
+            return ((data[1][index] & 0xff) << 24) | (gray << 16) | (gray << 8) | gray;
+        case 3:
+            return 0xff000000 | ((data[0][index] & 0xff) << 16) | ((data[1][index] & 0xff) << 8) | (data[2][index] & 0xff);
+        default:
+            return ((data[3][index] & 0xff) << 24) | ((data[0][index] & 0xff) << 16) | ((data[1][index] & 0xff) << 8) | (data[2][index] & 0xff);
+        }
+    }
+
+    private void readBandRange(Band band, int b) {
+        Double[] value = new Double[1];
+        band.GetNoDataValue(value);
+        noData[b] = value[0] != null ? value[0] : Double.NaN;
+        if (dataType == gdalconstConstants.GDT_Byte || colorTable != null) {
+            // values are used as is
+            scaleMin[b] = 0;
+            scaleMax[b] = 255;
+            return;
+        }
+        Double[] min = new Double[1];
+        Double[] max = new Double[1];
+        band.GetMinimum(min);
+        band.GetMaximum(max);
+        if (min[0] != null && max[0] != null) {
+            scaleMin[b] = min[0];
+            scaleMax[b] = max[0];
+        } else {
+            // approximate, from overviews or subsampled data
+            double[] minMax = new double[2];
+            band.ComputeRasterMinMax(minMax, 1);
+            scaleMin[b] = minMax[0];
+            scaleMax[b] = minMax[1];
+        }
+        Log.debug("GdalRasterDataSource: band " + (b + 1) + " range " + scaleMin[b] + ".." + scaleMax[b] + " nodata " + noData[b]);
+    }
+
+    private static boolean[] getNoDataMask(byte[] byteValues, float[] values, double noDataValue) {
+        int size = values != null ? values.length : byteValues.length;
+        boolean[] mask = new boolean[size];
+        boolean found = false;
+        // values were read as floats, so nodata is compared as float too
+        float noDataFloat = (float) noDataValue;
+        for (int i = 0; i < size; i++) {
+            float value = values != null ? values[i] : (byteValues[i] & 0xff);
+            if (value == noDataFloat) {
+                mask[i] = true;
+                found = true;
+            }
+        }
+        return found ? mask : null;
+    }
+
+    private void scaleValues(float[] values, byte[] result, int b) {
+        double min = scaleMin[b];
+        double range = scaleMax[b] - min;
+        double scale = range > 0 ? 255 / range : 0;
+        for (int i = 0; i < values.length; i++) {
+            double value = (values[i] - min) * scale;
+            result[i] = (byte) (value <= 0 ? 0 : (value >= 255 ? 255 : (int) (value + 0.5)));
+        }
+    }
+
+    private static int[] readColorTable(ColorTable table) {
+        int[] colors = new int[table.GetCount()];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = table.GetColorEntry(i);
+        }
+        return colors;
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.util.Collection;
+
+import com.nutiteq.components.CullState;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.geometry.VectorElement;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.vectordatasources.AbstractVectorDataSource;
+import com.nutiteq.vectordatasources.VectorDataSource;
+
+/**
+ *
+ * Data source which switches between generalized and full resolution data by zoom.
+ * Typical use: OGR data source for high zooms, Spatialite sidecar with generalized levels
+ * (see GeometryPyramidBuilder.buildOgrSidecar) for lower zooms.
+ *
+ * @author jaak
+ *
+ */
+public class GeneralizedVectorDataSource extends AbstractVectorDataSource<Geometry> {
+    private final VectorDataSource<Geometry> detailedDataSource;
+    private final VectorDataSource<Geometry> generalizedDataSource;
+    private final int detailZoom;
+
+    /**
+     * Default constructor.
+     *
+     * @param proj projection of both data sources
+     * @param detailedDataSource full resolution data source
+     * @param generalizedDataSource generalized data source
+     * @param detailZoom zoom from which detailed data source is used
+     */
+    public GeneralizedVectorDataSource(Projection proj, VectorDataSource<Geometry> detailedDataSource, VectorDataSource<Geometry> generalizedDataSource, int detailZoom) {
+        super(proj);
+        this.detailedDataSource = detailedDataSource;
+        this.generalizedDataSource = generalizedDataSource;
+        this.detailZoom = detailZoom;
+
+        // forward change notifications, so asynchronous sources can update the layer
+        OnChangeListener listener = new OnChangeListener() {
+            @Override
+            public void onElementChanged(VectorElement element) {
+                GeneralizedVectorDataSource.this.onElementChanged(element);
+            }
+
+            @Override
+            public void onElementsChanged() {
+                notifyElementsChanged();
+            }
+        };
+        detailedDataSource.addOnChangeListener(listener);
+        generalizedDataSource.addOnChangeListener(listener);
+    }
+
+    @Override
+    public Envelope getDataExtent() {
+        return detailedDataSource.getDataExtent();
+    }
+
+    @Override
+    public Collection<Geometry> loadElements(CullState cullState) {
+        if (cullState.zoom >= detailZoom) {
+            return detailedDataSource.loadElements(cullState);
+        }
+        return generalizedDataSource.loadElements(cullState);
+    }
+
+}
@@ -0,0 +1,189 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import jsqlite.Database;
+import jsqlite.Stmt;
+
+import com.nutiteq.db.SpatialLiteDbHelper;
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Generalized geometry levels of a Spatialite table. Each level is a separate table with
+ * simplified geometries (table ROWID = source ROWID) and R*Tree index, valid for a zoom range.
+ * Levels are registered in geometry_pyramid_levels metadata table, see GeometryPyramidBuilder.
+ * Levels are not updated on edits of the source table, edits should invalidate them.
+ *
+ * @author jaak
+ *
+ */
+public class GeometryPyramid {
+    public static final String METADATA_TABLE = "geometry_pyramid_levels";
+    public static final String LEVEL_GEOMETRY_COLUMN = "geometry";
+
+    /**
+     * Single generalization level.
+     */
+    public static class Level {
+        public final int minZoom;
+        public final int maxZoom;
+        public final String table;
+        public final double tolerance;
+
+        public Level(int minZoom, int maxZoom, String table, double tolerance) {
+            this.minZoom = minZoom;
+            this.maxZoom = maxZoom;
+            this.table = table;
+            this.tolerance = tolerance;
+        }
+
+        public String getIndexName() {
+            return getLevelIndexName(table);
+        }
+
+        @Override
+        public String toString() {
+            return "Level [" + minZoom + ".." + maxZoom + ") " + table + " tolerance: " + tolerance;
+        }
+    }
+
+    private final List<Level> levels;
+
+    public GeometryPyramid(List<Level> levels) {
+        this.levels = Collections.unmodifiableList(new ArrayList<Level>(levels));
+    }
+
+    public List<Level> getLevels() {
+        return levels;
+    }
+
+    /**
+     * Find level for given zoom.
+     *
+     * @param zoom map zoom level
+     * @return generalized level, or null if full resolution source table should be used
+     */
+    public Level getLevel(int zoom) {
+        for (Level level : levels) {
+            if (zoom >= level.minZoom && zoom < level.maxZoom) {
+                return level;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return zoom from which full resolution data is used
+     */
+    public int getMaxZoom() {
+        int maxZoom = 0;
+        for (Level level : levels) {
+            maxZoom = Math.max(maxZoom, level.maxZoom);
+        }
+        return maxZoom;
+    }
+
+    /**
+     * Name of the level table, based on source table and level min zoom.
+     */
+    public static String getLevelTableName(String table, String geomColumn, int minZoom) {
+        return table + "_" + geomColumn + "_gen" + minZoom;
+    }
+
+    /**
+     * Name of the R*Tree index table of a level table.
+     */
+    public static String getLevelIndexName(String levelTable) {
+        return "idx_" + levelTable + "_" + LEVEL_GEOMETRY_COLUMN;
+    }
+
+    /**
+     * Check if table is a level table of some other table. Levels of earlier builds were registered
+     * as geometry columns, so they can be listed with source tables by SpatialLiteDbHelper.
+     *
+     * @param table table to check
+     * @param layers all layers of the database, from SpatialLiteDbHelper.qrySpatialLayerMetadata()
+     */
+    public static boolean isLevelTable(String table, Collection<SpatialLiteDbHelper.DbLayer> layers) {
+        for (SpatialLiteDbHelper.DbLayer layer : layers) {
+            String prefix = layer.table + "_" + layer.geomColumn + "_gen";
+            if (table.length() > prefix.length() && table.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove registration of the levels of given table, so that they are not used any more.
+     * Level tables are left to the database, they are replaced when levels are built again.
+     *
+     * @return true if table had levels
+     */
+    public static boolean invalidate(Database db, String table, String geomColumn) {
+        try {
+            if (!tableExists(db, METADATA_TABLE)) {
+                return false;
+            }
+            Stmt stmt = db.prepare("DELETE FROM " + METADATA_TABLE + " WHERE f_table_name = ? AND f_geometry_column = ?");
+            try {
+                stmt.bind(1, table);
+                stmt.bind(2, geomColumn);
+                stmt.step();
+            } finally {
+                stmt.close();
+            }
+            return db.changes() > 0;
+        } catch (jsqlite.Exception e) {
+            Log.error("GeometryPyramid: Failed to invalidate levels! " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Read pyramid of given table from the database.
+     *
+     * @return pyramid, or null if no levels are registered
+     */
+    public static GeometryPyramid load(Database db, String table, String geomColumn) {
+        List<Level> levels = new ArrayList<Level>();
+        try {
+            if (!tableExists(db, METADATA_TABLE)) {
+                return null;
+            }
+            Stmt stmt = db.prepare("SELECT min_zoom, max_zoom, gen_table, tolerance FROM " + METADATA_TABLE
+                    + " WHERE f_table_name = ? AND f_geometry_column = ? ORDER BY min_zoom");
+            try {
+                stmt.bind(1, table);
+                stmt.bind(2, geomColumn);
+                while (stmt.step()) {
+                    levels.add(new Level(stmt.column_int(0), stmt.column_int(1), stmt.column_string(2), stmt.column_double(3)));
+                }
+            } finally {
+                stmt.close();
+            }
+        } catch (jsqlite.Exception e) {
+            Log.error("GeometryPyramid: Failed to query levels! " + e.getMessage());
+            return null;
+        }
+        if (levels.isEmpty()) {
+            return null;
+        }
+        return new GeometryPyramid(levels);
+    }
+
+    static boolean tableExists(Database db, String table) throws jsqlite.Exception {
+        Stmt stmt = db.prepare("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?");
+        try {
+            stmt.bind(1, table);
+            return stmt.step() && stmt.column_int(0) > 0;
+        } finally {
+            stmt.close();
+        }
+    }
+
+}
@@ -0,0 +1,473 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jsqlite.Constants;
+import jsqlite.Database;
+import jsqlite.Stmt;
+
+import org.gdal.ogr.DataSource;
+import org.gdal.ogr.Feature;
+import org.gdal.ogr.FeatureDefn;
+import org.gdal.ogr.Layer;
+import org.gdal.ogr.ogr;
+import org.gdal.osr.CoordinateTransformation;
+import org.gdal.osr.SpatialReference;
+
+import com.nutiteq.advancedmap.proj.BulkTransformer;
+import com.nutiteq.advancedmap.proj.ProjException;
+import com.nutiteq.advancedmap.proj.TransformRegistry;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.db.SpatialLiteDbHelper;
+import com.nutiteq.log.Log;
+import com.nutiteq.utils.GeoUtils;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+/**
+ *
+ * Preprocessing stage which builds generalized geometry levels (GeometryPyramid) for vector data.
+ *
+ * For Spatialite tables the levels are stored as extra tables in the same database. Level tables
+ * have plain geometry blob column and own R*Tree index, they are not registered in geometry_columns,
+ * so they are not listed as map layers.
+ * For OGR files (Shapefiles etc) a Spatialite sidecar file is created next to the source file,
+ * or to app storage if source directory is read-only. It holds attributes and generalized
+ * geometries for zooms below the last level zoom.
+ *
+ * Simplification uses JTS TopologyPreservingSimplifier, so simplified polygons stay valid.
+ * Lines and polygons smaller than level tolerance are left out of the level.
+ *
+ * Building can take minutes for big files, so it should be done in background thread.
+ *
+ * @author jaak
+ *
+ */
+public class GeometryPyramidBuilder {
+    /**
+     * Default level boundaries: levels for zooms [0..8), [8..11), [11..14), full resolution from zoom 14
+     */
+    public static final int[] DEFAULT_LEVEL_ZOOMS = new int[] { 5, 8, 11, 14 };
+    public static final float DEFAULT_TOLERANCE_PIXELS = 1.0f;
+
+    public static final String SIDECAR_SUFFIX = ".pyramid.sqlite";
+    public static final String SIDECAR_TABLE = "features";
+
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    private final Database db;
+
+    /**
+     * Open database for building. Separate connection is used, so map can keep reading the database.
+     *
+     * @param dbPath Spatialite database path, file is created if it does not exist
+     * @throws IOException if database can not be opened
+     */
+    public GeometryPyramidBuilder(String dbPath) throws IOException {
+        db = new Database();
+        try {
+            db.open(dbPath, Constants.SQLITE_OPEN_READWRITE | Constants.SQLITE_OPEN_CREATE);
+            db.busy_timeout(5000);
+        } catch (jsqlite.Exception e) {
+            throw new IOException("GeometryPyramidBuilder: Failed to open database! " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        try {
+            db.close();
+        } catch (jsqlite.Exception e) {
+            Log.error("GeometryPyramidBuilder: Failed to close database! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Build generalized levels for Spatialite table. Existing levels of the table are replaced.
+     *
+     * @param dbLayer source table
+     * @param levelZooms level boundaries, see DEFAULT_LEVEL_ZOOMS. Full resolution is used from last zoom.
+     * @param pixels maximum simplification error in pixels
+     * @return created pyramid
+     * @throws IOException if building fails
+     */
+    public GeometryPyramid build(SpatialLiteDbHelper.DbLayer dbLayer, int[] levelZooms, float pixels) throws IOException {
+        double unitsPerMeter = 1;
+        if (dbLayer.srid != SpatialiteQueryPlanner.SDK_SRID) {
+            unitsPerMeter = getUnitsPerMeter(dbLayer);
+        }
+        return build(dbLayer.table, dbLayer.geomColumn, dbLayer.srid, unitsPerMeter, levelZooms, pixels);
+    }
+
+    /**
+     * Remove generalized levels of given table.
+     */
+    public void drop(String table, String geomColumn) throws IOException {
+        GeometryPyramid pyramid = GeometryPyramid.load(db, table, geomColumn);
+        if (pyramid == null) {
+            return;
+        }
+        try {
+            for (GeometryPyramid.Level level : pyramid.getLevels()) {
+                dropLevelTable(level.table);
+            }
+            Stmt stmt = db.prepare("DELETE FROM " + GeometryPyramid.METADATA_TABLE + " WHERE f_table_name = ? AND f_geometry_column = ?");
+            try {
+                stmt.bind(1, table);
+                stmt.bind(2, geomColumn);
+                stmt.step();
+            } finally {
+                stmt.close();
+            }
+        } catch (jsqlite.Exception e) {
+            throw new IOException("GeometryPyramidBuilder: Failed to drop levels! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sidecar file path for OGR data file. Sidecar next to the data file is used if it is up to date,
+     * or if it can be written there. Otherwise sidecar is in fallback directory, named by data file path.
+     *
+     * @param ogrPath OGR data file path
+     * @param fallbackDir writable directory for sidecars of read-only files, e.g. Context.getFilesDir()
+     */
+    public static String getSidecarPath(String ogrPath, File fallbackDir) {
+        File ogrFile = new File(ogrPath).getAbsoluteFile();
+        File sidecarFile = new File(ogrFile.getPath() + SIDECAR_SUFFIX);
+        if (sidecarFile.exists() && sidecarFile.lastModified() >= ogrFile.lastModified()) {
+            return sidecarFile.getPath();
+        }
+        File dir = ogrFile.getParentFile();
+        if (dir != null && dir.canWrite()) {
+            return sidecarFile.getPath();
+        }
+        String name = ogrFile.getName() + "_" + Integer.toHexString(ogrFile.getPath().hashCode()) + SIDECAR_SUFFIX;
+        return new File(fallbackDir, name).getPath();
+    }
+
+    /**
+     * Build Spatialite sidecar file for OGR data source. Sidecar contains table SIDECAR_TABLE with all
+     * attributes and geometry generalized for the last level, and generalized levels for lower zooms.
+     * Geometries are stored in EPSG:3857.
+     *
+     * @param ogrPath OGR data file path
+     * @param ogrTable OGR layer name, if null then first layer is used
+     * @param sidecarPath path of sidecar file to create, see getSidecarPath()
+     * @param levelZooms level boundaries, see DEFAULT_LEVEL_ZOOMS. OGR source should be used from last zoom.
+     * @param pixels maximum simplification error in pixels
+     * @return path of the created sidecar file
+     * @throws IOException if reading or writing fails
+     */
+    public static String buildOgrSidecar(String ogrPath, String ogrTable, String sidecarPath, int[] levelZooms, float pixels) throws IOException {
+        String tmpPath = sidecarPath + ".tmp";
+        new File(tmpPath).delete();
+
+        ogr.RegisterAll();
+        DataSource ogrDataSource = ogr.Open(ogrPath, false);
+        if (ogrDataSource == null) {
+            throw new IOException("GeometryPyramidBuilder: Failed to open OGR file " + ogrPath);
+        }
+
+        GeometryPyramidBuilder builder = new GeometryPyramidBuilder(tmpPath);
+        try {
+            Layer layer = ogrTable != null ? ogrDataSource.GetLayerByName(ogrTable) : ogrDataSource.GetLayer(0);
+            if (layer == null) {
+                throw new IOException("GeometryPyramidBuilder: OGR layer not found " + ogrTable);
+            }
+            builder.copyOgrLayer(layer, levelZooms, pixels);
+            int[] lowerZooms = new int[levelZooms.length - 1];
+            System.arraycopy(levelZooms, 0, lowerZooms, 0, lowerZooms.length);
+            if (lowerZooms.length > 1) {
+                builder.build(SIDECAR_TABLE, GeometryPyramid.LEVEL_GEOMETRY_COLUMN, SpatialiteQueryPlanner.SDK_SRID, 1, lowerZooms, pixels);
+            }
+        } finally {
+            builder.close();
+            ogrDataSource.delete();
+        }
+
+        // replace old sidecar only when new one is complete
+        File sidecarFile = new File(sidecarPath);
+        sidecarFile.delete();
+        if (!new File(tmpPath).renameTo(sidecarFile)) {
+            throw new IOException("GeometryPyramidBuilder: Failed to write " + sidecarPath);
+        }
+        return sidecarPath;
+    }
+
+    private GeometryPyramid build(String table, String geomColumn, int srid, double unitsPerMeter, int[] levelZooms, float pixels) throws IOException {
+        drop(table, geomColumn);
+
+        List<GeometryPyramid.Level> levels = new ArrayList<GeometryPyramid.Level>();
+        try {
+            db.exec("CREATE TABLE IF NOT EXISTS " + GeometryPyramid.METADATA_TABLE
+                    + " (f_table_name TEXT, f_geometry_column TEXT, min_zoom INTEGER, max_zoom INTEGER, gen_table TEXT, tolerance DOUBLE)", null);
+
+            for (int i = 0; i < levelZooms.length - 1; i++) {
+                // first level is used also for all lower zooms
+                int minZoom = (i == 0) ? 0 : levelZooms[i];
+                int maxZoom = levelZooms[i + 1];
+                double tolerance = getTolerance(maxZoom - 1, pixels) * unitsPerMeter;
+                String levelTable = GeometryPyramid.getLevelTableName(table, geomColumn, levelZooms[i]);
+
+                long startTime = System.currentTimeMillis();
+                int count = buildLevel(table, geomColumn, srid, levelTable, tolerance);
+                Log.info("GeometryPyramidBuilder: " + levelTable + " " + count + " elements, tolerance " + tolerance
+                        + ", time " + (System.currentTimeMillis() - startTime) + " ms");
+
+                Stmt stmt = db.prepare("INSERT INTO " + GeometryPyramid.METADATA_TABLE + " VALUES (?, ?, ?, ?, ?, ?)");
+                try {
+                    stmt.bind(1, table);
+                    stmt.bind(2, geomColumn);
+                    stmt.bind(3, minZoom);
+                    stmt.bind(4, maxZoom);
+                    stmt.bind(5, levelTable);
+                    stmt.bind(6, tolerance);
+                    stmt.step();
+                } finally {
+                    stmt.close();
+                }
+                levels.add(new GeometryPyramid.Level(minZoom, maxZoom, levelTable, tolerance));
+            }
+        } catch (jsqlite.Exception e) {
+            throw new IOException("GeometryPyramidBuilder: Failed to build levels! " + e.getMessage());
+        }
+        return new GeometryPyramid(levels);
+    }
+
+    private int buildLevel(String table, String geomColumn, int srid, String levelTable, double tolerance) throws jsqlite.Exception {
+        dropLevelTable(levelTable);
+        String indexTable = GeometryPyramid.getLevelIndexName(levelTable);
+        db.exec("CREATE TABLE " + quote(levelTable) + " (src_id INTEGER PRIMARY KEY, " + GeometryPyramid.LEVEL_GEOMETRY_COLUMN + " BLOB)", null);
+        db.exec("CREATE VIRTUAL TABLE " + quote(indexTable) + " USING rtree(pkid, xmin, xmax, ymin, ymax)", null);
+
+        WKBReader wkbReader = new WKBReader();
+        WKBWriter wkbWriter = new WKBWriter(2);
+        int count = 0;
+
+        Stmt select = db.prepare("SELECT ROWID, AsBinary(" + quote(geomColumn) + ") FROM " + quote(table));
+        Stmt insert = db.prepare("INSERT INTO " + quote(levelTable) + " (src_id, " + GeometryPyramid.LEVEL_GEOMETRY_COLUMN + ") VALUES (?, GeomFromWKB(?, " + srid + "))");
+        Stmt insertIndex = db.prepare("INSERT INTO " + quote(indexTable) + " (pkid, xmin, xmax, ymin, ymax) VALUES (?, ?, ?, ?, ?)");
+        db.exec("BEGIN", null);
+        try {
+            while (select.step()) {
+                byte[] wkb = select.column_bytes(1);
+                if (wkb == null) {
+                    continue;
+                }
+                Geometry simplified = simplify(wkbReader, wkb, tolerance);
+                if (simplified == null) {
+                    continue;
+                }
+                long id = select.column_long(0);
+                insert.reset();
+                insert.bind(1, id);
+                insert.bind(2, wkbWriter.write(simplified));
+                insert.step();
+
+                com.vividsolutions.jts.geom.Envelope env = simplified.getEnvelopeInternal();
+                insertIndex.reset();
+                insertIndex.bind(1, id);
+                insertIndex.bind(2, env.getMinX());
+                insertIndex.bind(3, env.getMaxX());
+                insertIndex.bind(4, env.getMinY());
+                insertIndex.bind(5, env.getMaxY());
+                insertIndex.step();
+
+                if (++count % INSERT_BATCH_SIZE == 0) {
+                    db.exec("COMMIT", null);
+                    db.exec("BEGIN", null);
+                }
+            }
+            db.exec("COMMIT", null);
+        } finally {
+            select.close();
+            insert.close();
+            insertIndex.close();
+        }
+        return count;
+    }
+
+    private void copyOgrLayer(Layer layer, int[] levelZooms, float pixels) throws IOException {
+        // base table is generalized for the most detailed level, OGR source is used for higher zooms
+        int maxZoom = levelZooms[levelZooms.length - 1];
+        double tolerance = getTolerance(maxZoom - 1, pixels);
+
+        FeatureDefn featureDefn = layer.GetLayerDefn();
+        String[] fieldNames = new String[featureDefn.GetFieldCount()];
+        for (int i = 0; i < fieldNames.length; i++) {
+            fieldNames[i] = featureDefn.GetFieldDefn(i).GetName();
+        }
+
+        // layer SRS is owned by layer, created native objects are released in finally
+        CoordinateTransformation transformation = null;
+        SpatialReference mapSrs = null;
+        SpatialReference layerSrs = layer.GetSpatialRef();
+        if (layerSrs != null) {
+            // same definition as MAP_PROJ4 in ogrbatch.c: spherical mercator without datum shift
+            mapSrs = new SpatialReference();
+            mapSrs.ImportFromProj4(BulkTransformer.EPSG3857_PROJ4);
+            if (layerSrs.IsSame(mapSrs) == 0) {
+                transformation = new CoordinateTransformation(layerSrs, mapSrs);
+            }
+        }
+
+        WKBReader wkbReader = new WKBReader();
+        WKBWriter wkbWriter = new WKBWriter(2);
+        int count = 0;
+        long startTime = System.currentTimeMillis();
+
+        try {
+            execSelect("SELECT InitSpatialMetadata()");
+
+            StringBuilder createSql = new StringBuilder("CREATE TABLE " + SIDECAR_TABLE + " (fid INTEGER PRIMARY KEY");
+            StringBuilder insertSql = new StringBuilder("INSERT INTO " + SIDECAR_TABLE + " VALUES (?");
+            for (String fieldName : fieldNames) {
+                createSql.append(", ").append(quote(fieldName)).append(" TEXT");
+                insertSql.append(", ?");
+            }
+            createSql.append(")");
+            insertSql.append(", GeomFromWKB(?, " + SpatialiteQueryPlanner.SDK_SRID + "))");
+            db.exec(createSql.toString(), null);
+            execSelect("SELECT AddGeometryColumn('" + SIDECAR_TABLE + "', '" + GeometryPyramid.LEVEL_GEOMETRY_COLUMN + "', "
+                    + SpatialiteQueryPlanner.SDK_SRID + ", 'GEOMETRY', 'XY')");
+
+            Stmt insert = db.prepare(insertSql.toString());
+            db.exec("BEGIN", null);
+            try {
+                layer.ResetReading();
+                Feature feature;
+                while ((feature = layer.GetNextFeature()) != null) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        feature.delete();
+                        throw new IOException("GeometryPyramidBuilder: OGR layer copy interrupted");
+                    }
+                    org.gdal.ogr.Geometry ogrGeometry = feature.GetGeometryRef();
+                    if (ogrGeometry != null) {
+                        if (transformation != null) {
+                            ogrGeometry.Transform(transformation);
+                        }
+                        Geometry simplified = simplify(wkbReader, ogrGeometry.ExportToWkb(), tolerance);
+                        if (simplified != null) {
+                            insert.reset();
+                            insert.bind(1, feature.GetFID());
+                            for (int i = 0; i < fieldNames.length; i++) {
+                                insert.bind(i + 2, feature.GetFieldAsString(i));
+                            }
+                            insert.bind(fieldNames.length + 2, wkbWriter.write(simplified));
+                            insert.step();
+
+                            if (++count % INSERT_BATCH_SIZE == 0) {
+                                db.exec("COMMIT", null);
+                                db.exec("BEGIN", null);
+                            }
+                        }
+                    }
+                    feature.delete();
+                }
+                db.exec("COMMIT", null);
+            } finally {
+                insert.close();
+            }
+
+            execSelect("SELECT CreateSpatialIndex('" + SIDECAR_TABLE + "', '" + GeometryPyramid.LEVEL_GEOMETRY_COLUMN + "')");
+        } catch (jsqlite.Exception e) {
+            throw new IOException("GeometryPyramidBuilder: Failed to copy OGR layer! " + e.getMessage());
+        } finally {
+            if (transformation != null) {
+                transformation.delete();
+            }
+            if (mapSrs != null) {
+                mapSrs.delete();
+            }
+        }
+        Log.info("GeometryPyramidBuilder: copied " + count + " OGR features, time " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    // Simplified geometry, or null if it is too small for the tolerance
+    private static Geometry simplify(WKBReader wkbReader, byte[] wkb, double tolerance) {
+        Geometry geom;
+        try {
+            geom = wkbReader.read(wkb);
+        } catch (ParseException e) {
+            Log.error("GeometryPyramidBuilder: Failed to parse WKB " + e.getMessage());
+            return null;
+        }
+        if (geom.getDimension() > 0) {
+            // drop lines and polygons which would be smaller than tolerance
+            com.vividsolutions.jts.geom.Envelope env = geom.getEnvelopeInternal();
+            if (env.getWidth() < tolerance && env.getHeight() < tolerance) {
+                return null;
+            }
+            geom = TopologyPreservingSimplifier.simplify(geom, tolerance);
+            if (geom.isEmpty()) {
+                return null;
+            }
+        }
+        return geom;
+    }
+
+    // Meters (EPSG:3857 units) per pixel at given zoom
+    private static double getTolerance(int zoom, float pixels) {
+        return pixels * SpatialiteQueryPlanner.WORLD_SIZE / SpatialiteQueryPlanner.TILE_SIZE / Math.pow(2, zoom);
+    }
+
+    // Layer units per EPSG:3857 meter, estimated from data extent
+    private double getUnitsPerMeter(SpatialLiteDbHelper.DbLayer dbLayer) throws IOException {
+        String geomColumn = quote(dbLayer.geomColumn);
+        Envelope extent;
+        try {
+            Stmt stmt = db.prepare("SELECT Min(MbrMinX(" + geomColumn + ")), Min(MbrMinY(" + geomColumn + ")), Max(MbrMaxX(" + geomColumn
+                    + ")), Max(MbrMaxY(" + geomColumn + ")) FROM " + quote(dbLayer.table));
+            try {
+                if (!stmt.step()) {
+                    return 1;
+                }
+                extent = new Envelope(stmt.column_double(0), stmt.column_double(2), stmt.column_double(1), stmt.column_double(3));
+            } finally {
+                stmt.close();
+            }
+        } catch (jsqlite.Exception e) {
+            throw new IOException("GeometryPyramidBuilder: Failed to query extent! " + e.getMessage());
+        }
+        Envelope mapExtent;
+        try {
+            mapExtent = TransformRegistry.getInstance().getPipeline(dbLayer.proj4txt, SpatialiteQueryPlanner.getMapProj4()).transformEnvelope(extent, 4);
+        } catch (ProjException e) {
+            mapExtent = GeoUtils.transformBboxJavaProj(extent, dbLayer.proj4txt.replace("longlat", "latlong"), SpatialiteQueryPlanner.SDK_PROJ4TEXT);
+        }
+        if (mapExtent.getWidth() <= 0 || extent.getWidth() <= 0) {
+            return 1;
+        }
+        return extent.getWidth() / mapExtent.getWidth();
+    }
+
+    private void dropLevelTable(String levelTable) throws jsqlite.Exception {
+        if (!GeometryPyramid.tableExists(db, levelTable)) {
+            return;
+        }
+        // levels of earlier builds were registered geometry columns, these calls do nothing for plain level tables
+        execSelect("SELECT DisableSpatialIndex('" + levelTable + "', '" + GeometryPyramid.LEVEL_GEOMETRY_COLUMN + "')");
+        execSelect("SELECT DiscardGeometryColumn('" + levelTable + "', '" + GeometryPyramid.LEVEL_GEOMETRY_COLUMN + "')");
+        db.exec("DROP TABLE IF EXISTS " + quote(GeometryPyramid.getLevelIndexName(levelTable)), null);
+        db.exec("DROP TABLE " + quote(levelTable), null);
+    }
+
+    private void execSelect(String sql) throws jsqlite.Exception {
+        Stmt stmt = db.prepare(sql);
+        try {
+            stmt.step();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private static String quote(String name) {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.nutiteq.components.CullState;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.datasources.vector.SpatialiteDataSource;
+import com.nutiteq.db.SpatialLiteDbHelper;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.style.LineStyle;
+import com.nutiteq.style.PointStyle;
+import com.nutiteq.style.PolygonStyle;
+import com.nutiteq.style.StyleSet;
+import com.nutiteq.ui.Label;
+import com.nutiteq.utils.WkbRead;
+
+/**
+ *
+ * Spatialite data source which loads viewport data through SpatialiteQueryPlanner:
+ * R*Tree index is used (and created if missing), and SQL statements are prepared once per zoom bucket.
+ * Generalized levels built with GeometryPyramidBuilder are used automatically for lower zooms.
+ *
+ * @author jaak
+ *
+ */
+public abstract class IndexedSpatialiteDataSource extends SpatialiteDataSource implements StyledGeometryFactory.StyleProvider {
+    private final SpatialiteQueryPlanner queryPlanner;
+    private int maxElements = Integer.MAX_VALUE;
+
+    /**
+     * Default constructor.
+     *
+     * @param proj projection for the data source (usually EPSG3857)
+     * @param spatialLite Spatialite helper, used for metadata and extent queries
+     * @param dbPath path of the database opened by spatialLite, planner uses its own connection
+     * @param tableName table to use
+     * @param geomColumnName geometry column of the table
+     * @param userColumns columns to be read to user data, if null then all columns are read
+     * @param filter optional SQL filter expression, can be null
+     * @throws IOException if database can not be opened
+     */
+    public IndexedSpatialiteDataSource(Projection proj, SpatialLiteDbHelper spatialLite, String dbPath, String tableName, String geomColumnName, String[] userColumns, String filter) throws IOException {
+        super(proj, spatialLite, tableName, geomColumnName, userColumns, filter);
+        if (dbLayer == null) {
+            throw new IOException("IndexedSpatialiteDataSource: Could not find a matching layer " + tableName + "." + geomColumnName);
+        }
+        if (userColumns == null) {
+            userColumns = spatialLite.qryColumns(dbLayer);
+        }
+        queryPlanner = new SpatialiteQueryPlanner(dbPath, dbLayer, userColumns, filter, true);
+    }
+
+    @Override
+    public void setMaxElements(int maxElements) {
+        super.setMaxElements(maxElements);
+        this.maxElements = maxElements;
+    }
+
+    @Override
+    public void setAutoSimplify(float pixels, int screenWidth) {
+        super.setAutoSimplify(pixels, screenWidth);
+        queryPlanner.setAutoSimplify(pixels);
+    }
+
+    /**
+     * @return query planner, used to read query time metrics
+     */
+    public SpatialiteQueryPlanner getQueryPlanner() {
+        return queryPlanner;
+    }
+
+    @Override
+    public Collection<Geometry> loadElements(final CullState cullState) {
+        Envelope envelope = projection.fromInternal(cullState.envelope);
+
+        WkbRead.GeometryFactory geomFactory = new StyledGeometryFactory(this, cullState.zoom);
+
+        List<Geometry> elements = queryPlanner.query(envelope, cullState.zoom, maxElements, geomFactory);
+        for (Geometry element : elements) {
+            element.attachToDataSource(this);
+        }
+        return elements;
+    }
+
+    /**
+     * Reload generalized levels after GeometryPyramidBuilder has built them, and reload elements.
+     */
+    public void reloadPyramid() {
+        queryPlanner.reloadPyramid();
+        notifyElementsChanged();
+    }
+
+    /**
+     * Close prepared statements and database connection of the query planner.
+     */
+    public void close() {
+        queryPlanner.close();
+    }
+
+    @Override
+    public abstract Label createLabel(Map<String, String> userData);
+
+    @Override
+    public abstract StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom);
+
+    @Override
+    public abstract StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom);
+
+    @Override
+    public abstract StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom);
+
+}
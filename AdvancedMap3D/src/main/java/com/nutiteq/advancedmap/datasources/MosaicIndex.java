@@ -0,0 +1,389 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.gdal;
+import org.gdal.gdalconst.gdalconstConstants;
+import org.gdal.osr.SpatialReference;
+
+import com.nutiteq.advancedmap.proj.BulkTransformer;
+import com.nutiteq.advancedmap.proj.ProjException;
+import com.nutiteq.advancedmap.proj.TransformRegistry;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.Projection;
+import com.vividsolutions.jts.index.quadtree.Quadtree;
+
+/**
+ *
+ * Persisted catalog of raster files (scenes) in a folder, similar to GDAL VRT mosaic.
+ * Footprint of each scene in map projection is stored to index file, so opening a folder
+ * does not need to read file headers, only new and changed files are scanned by update().
+ * Footprints are kept in a quadtree, so tile requests touch only overlapping scenes.
+ *
+ * Scenes are stacked newest first (by file modification time).
+ *
+ * @author jaak
+ *
+ */
+public class MosaicIndex {
+    private static final String HEADER = "mosaicindex 1";
+    private static final int SAVE_INTERVAL = 100;
+    // segments per envelope edge when footprint is transformed to map projection
+    private static final int ENVELOPE_SEGMENTS = 8;
+
+    static {
+        gdal.AllRegister();
+    }
+
+    private static final Comparator<Scene> NEWEST_FIRST = new Comparator<Scene>() {
+        @Override
+        public int compare(Scene scene1, Scene scene2) {
+            if (scene1.lastModified != scene2.lastModified) {
+                return scene1.lastModified > scene2.lastModified ? -1 : 1;
+            }
+            return scene1.path.compareTo(scene2.path);
+        }
+    };
+
+    /**
+     * Indexed raster file. Envelope is null for files which could not be read.
+     */
+    public static class Scene {
+        public final String path;
+        public final long lastModified;
+        public final long length;
+        public final Envelope envelope;
+
+        public Scene(String path, long lastModified, long length, Envelope envelope) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.envelope = envelope;
+        }
+
+        boolean isCurrent(File file) {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+
+    /**
+     * Listener for index update progress, called from the updating thread.
+     */
+    public interface OnUpdateListener {
+        void onScenesIndexed(List<Scene> scenes, int remaining);
+    }
+
+    private final File directory;
+    private final File indexFile;
+    private final Projection projection;
+    private final FileFilter fileFilter;
+
+    private final Map<String, Scene> scenes = new HashMap<String, Scene>();
+    private final Quadtree tree = new Quadtree();
+
+    /**
+     * Default constructor, loads existing index file. Folder itself is not scanned, call update() for this.
+     *
+     * @param directory folder with raster files
+     * @param indexFile index file, can be outside of the folder (e.g. app database path)
+     * @param projection map projection, footprints are stored in it
+     * @param fileFilter filter for raster files in the folder
+     */
+    public MosaicIndex(File directory, File indexFile, Projection projection, FileFilter fileFilter) {
+        this.directory = directory;
+        this.indexFile = indexFile;
+        this.projection = projection;
+        this.fileFilter = fileFilter;
+        if (indexFile.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                Log.error("MosaicIndex: Failed to load index " + indexFile + "! " + e.getMessage());
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public Projection getProjection() {
+        return projection;
+    }
+
+    public synchronized int size() {
+        return scenes.size();
+    }
+
+    /**
+     * Find scenes overlapping the envelope.
+     *
+     * @param envelope envelope in map projection
+     * @return overlapping scenes, newest first
+     */
+    public List<Scene> query(Envelope envelope) {
+        com.vividsolutions.jts.geom.Envelope searchEnv = toJts(envelope);
+        List<Scene> result = new ArrayList<Scene>();
+        synchronized (this) {
+            for (Object item : tree.query(searchEnv)) {
+                Scene scene = (Scene) item;
+                if (scene.envelope.intersects(envelope)) {
+                    result.add(scene);
+                }
+            }
+        }
+        Collections.sort(result, NEWEST_FIRST);
+        return result;
+    }
+
+    /**
+     * @return union of all scene footprints, or null if index is empty
+     */
+    public synchronized Envelope getExtent() {
+        Envelope extent = null;
+        for (Scene scene : scenes.values()) {
+            if (scene.envelope == null) {
+                continue;
+            }
+            if (extent == null) {
+                extent = scene.envelope;
+            } else {
+                extent = new Envelope(Math.min(extent.minX, scene.envelope.minX), Math.max(extent.maxX, scene.envelope.maxX),
+                        Math.min(extent.minY, scene.envelope.minY), Math.max(extent.maxY, scene.envelope.maxY));
+            }
+        }
+        return extent;
+    }
+
+    /**
+     * Synchronize index with the folder: removed files are dropped, new and changed files are scanned
+     * (newest first) and index file is saved. Slow for new folders, call from background thread.
+     * Scanning stops early if the thread is interrupted, scenes scanned so far are saved.
+     *
+     * @param listener progress listener, can be null
+     * @return number of added, changed or removed scenes
+     */
+    public int update(OnUpdateListener listener) {
+        File[] files = directory.listFiles(fileFilter);
+        if (files == null) {
+            Log.error("MosaicIndex: Failed to list " + directory);
+            return 0;
+        }
+
+        Set<String> paths = new HashSet<String>();
+        List<File> changedFiles = new ArrayList<File>();
+        int changeCount = 0;
+        synchronized (this) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    continue;
+                }
+                paths.add(file.getPath());
+                Scene scene = scenes.get(file.getPath());
+                if (scene == null || !scene.isCurrent(file)) {
+                    changedFiles.add(file);
+                }
+            }
+            for (Scene scene : new ArrayList<Scene>(scenes.values())) {
+                if (!paths.contains(scene.path)) {
+                    removeScene(scene);
+                    changeCount++;
+                }
+            }
+        }
+        Log.debug("MosaicIndex: " + directory + " has " + paths.size() + " files, " + changedFiles.size() + " to scan");
+
+        // highest priority scenes are available first
+        Collections.sort(changedFiles, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                long diff = file2.lastModified() - file1.lastModified();
+                return diff > 0 ? 1 : diff < 0 ? -1 : 0;
+            }
+        });
+
+        List<Scene> batch = new ArrayList<Scene>();
+        for (int i = 0; i < changedFiles.size(); i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                Log.debug("MosaicIndex: update interrupted, " + (changedFiles.size() - i) + " files not scanned");
+                if (changeCount > 0) {
+                    saveQuietly();
+                }
+                break;
+            }
+            File file = changedFiles.get(i);
+            Scene scene = new Scene(file.getPath(), file.lastModified(), file.length(), readEnvelope(file));
+            synchronized (this) {
+                Scene oldScene = scenes.get(scene.path);
+                if (oldScene != null) {
+                    removeScene(oldScene);
+                }
+                addScene(scene);
+            }
+            changeCount++;
+            batch.add(scene);
+
+            if (batch.size() == SAVE_INTERVAL || i == changedFiles.size() - 1) {
+                saveQuietly();
+                if (listener != null) {
+                    listener.onScenesIndexed(batch, changedFiles.size() - i - 1);
+                }
+                batch = new ArrayList<Scene>();
+            }
+        }
+        if (changeCount > 0 && changedFiles.isEmpty()) {
+            saveQuietly();
+        }
+        return changeCount;
+    }
+
+    /**
+     * Save index file. Written to temporary file first, so interrupted save does not corrupt the index.
+     *
+     * @throws IOException if file can not be written
+     */
+    public void save() throws IOException {
+        List<Scene> sceneList;
+        synchronized (this) {
+            sceneList = new ArrayList<Scene>(scenes.values());
+        }
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        PrintWriter writer = new PrintWriter(new FileWriter(tempFile));
+        try {
+            writer.println(HEADER);
+            for (Scene scene : sceneList) {
+                writer.print(scene.path);
+                writer.print('\t');
+                writer.print(scene.lastModified);
+                writer.print('\t');
+                writer.print(scene.length);
+                if (scene.envelope != null) {
+                    writer.print('\t');
+                    writer.print(scene.envelope.minX);
+                    writer.print('\t');
+                    writer.print(scene.envelope.maxX);
+                    writer.print('\t');
+                    writer.print(scene.envelope.minY);
+                    writer.print('\t');
+                    writer.print(scene.envelope.maxY);
+                }
+                writer.println();
+            }
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError()) {
+            throw new IOException("MosaicIndex: Failed to write " + tempFile);
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            throw new IOException("MosaicIndex: Failed to rename " + tempFile + " to " + indexFile);
+        }
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException e) {
+            Log.error("MosaicIndex: Failed to save index! " + e.getMessage());
+        }
+    }
+
+    private void load() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(indexFile));
+        try {
+            if (!HEADER.equals(reader.readLine())) {
+                Log.warning("MosaicIndex: Unknown index version, ignoring " + indexFile);
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 3 && fields.length != 7) {
+                    continue;
+                }
+                try {
+                    Envelope envelope = null;
+                    if (fields.length == 7) {
+                        envelope = new Envelope(Double.parseDouble(fields[3]), Double.parseDouble(fields[4]),
+                                Double.parseDouble(fields[5]), Double.parseDouble(fields[6]));
+                    }
+                    addScene(new Scene(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), envelope));
+                } catch (NumberFormatException e) {
+                    Log.warning("MosaicIndex: Invalid index line " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        Log.debug("MosaicIndex: loaded " + scenes.size() + " scenes from " + indexFile);
+    }
+
+    // Footprint from geotransform and projection only, band data and statistics are not read.
+    private Envelope readEnvelope(File file) {
+        Dataset dataset = gdal.Open(file.getPath(), gdalconstConstants.GA_ReadOnly);
+        if (dataset == null) {
+            Log.warning("MosaicIndex: Skipping " + file + ": " + gdal.GetLastErrorMsg());
+            return null;
+        }
+        SpatialReference srs = null;
+        try {
+            double[] geoTransform = dataset.GetGeoTransform();
+            if (dataset.GetRasterCount() == 0 || geoTransform == null || geoTransform[2] != 0 || geoTransform[4] != 0) {
+                Log.warning("MosaicIndex: Skipping " + file + ": unsupported raster (rotated or no bands)");
+                return null;
+            }
+            srs = new SpatialReference(dataset.GetProjectionRef());
+            String srcProj4 = srs.ExportToProj4();
+            String mapProj4 = TransformRegistry.getInstance().getDefinition(projection);
+            if (mapProj4 == null) {
+                mapProj4 = BulkTransformer.EPSG3857_PROJ4;
+            }
+            Envelope srcExtent = new Envelope(geoTransform[0], geoTransform[0] + geoTransform[1] * dataset.GetRasterXSize(),
+                    geoTransform[3] + geoTransform[5] * dataset.GetRasterYSize(), geoTransform[3]);
+            return TransformRegistry.getInstance().getPipeline(srcProj4, mapProj4).transformEnvelope(srcExtent, ENVELOPE_SEGMENTS);
+        } catch (ProjException e) {
+            Log.warning("MosaicIndex: Skipping " + file + ": " + e.getMessage());
+            return null;
+        } finally {
+            if (srs != null) {
+                srs.delete();
+            }
+            dataset.delete();
+        }
+    }
+
+    private void addScene(Scene scene) {
+        scenes.put(scene.path, scene);
+        if (scene.envelope != null) {
+            tree.insert(toJts(scene.envelope), scene);
+        }
+    }
+
+    private void removeScene(Scene scene) {
+        scenes.remove(scene.path);
+        if (scene.envelope != null) {
+            tree.remove(toJts(scene.envelope), scene);
+        }
+    }
+
+    private static com.vividsolutions.jts.geom.Envelope toJts(Envelope envelope) {
+        return new com.vividsolutions.jts.geom.Envelope(envelope.minX, envelope.maxX, envelope.minY, envelope.maxY);
+    }
+
+}
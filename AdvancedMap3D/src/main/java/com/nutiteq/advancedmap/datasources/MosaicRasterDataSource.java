@@ -0,0 +1,253 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+import com.nutiteq.advancedmap.datasources.MosaicIndex.Scene;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapTile;
+import com.nutiteq.components.TileBitmap;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.rasterdatasources.AbstractRasterDataSource;
+
+/**
+ *
+ * Raster data source for a folder of GDAL-supported files, using MosaicIndex.
+ * Only scenes overlapping the tile are opened, newer scenes are drawn on top of older ones
+ * and older scenes are read only where newer ones leave transparent pixels.
+ *
+ * Recently used scenes are kept open, others are closed when limit is reached.
+ * After close() no scenes are opened, tiles requested later are empty.
+ *
+ * @author jaak
+ *
+ */
+public class MosaicRasterDataSource extends AbstractRasterDataSource {
+    private static final int DEFAULT_MAX_OPEN_SCENES = 16;
+
+    private final MosaicIndex index;
+    private final Map<String, OpenScene> openScenes;
+    // guarded by openScenes
+    private boolean closed;
+
+    private static class OpenScene {
+        final GdalRasterDataSource dataSource;
+        int users;
+        boolean evicted;
+
+        OpenScene(GdalRasterDataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+    }
+
+    /**
+     * Default constructor.
+     *
+     * @param proj map projection, same as index projection
+     * @param minZoom minimum zoom
+     * @param maxZoom maximum zoom
+     * @param index scene index
+     */
+    public MosaicRasterDataSource(Projection proj, int minZoom, int maxZoom, MosaicIndex index) {
+        this(proj, minZoom, maxZoom, index, DEFAULT_MAX_OPEN_SCENES);
+    }
+
+    /**
+     * @param maxOpenScenes maximum number of scenes kept open
+     */
+    public MosaicRasterDataSource(Projection proj, int minZoom, int maxZoom, MosaicIndex index, final int maxOpenScenes) {
+        super(proj, minZoom, maxZoom);
+        this.index = index;
+        this.openScenes = new LinkedHashMap<String, OpenScene>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, OpenScene> eldest) {
+                if (size() <= maxOpenScenes) {
+                    return false;
+                }
+                OpenScene scene = eldest.getValue();
+                scene.evicted = true;
+                if (scene.users == 0) {
+                    scene.dataSource.close();
+                }
+                return true;
+            }
+        };
+    }
+
+    public MosaicIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Update index from folder, and refresh tiles as scenes are indexed.
+     * Call from background thread, see MosaicIndex.update().
+     *
+     * @return number of added, changed or removed scenes
+     */
+    public int updateIndex() {
+        int changeCount = index.update(new MosaicIndex.OnUpdateListener() {
+            @Override
+            public void onScenesIndexed(List<Scene> scenes, int remaining) {
+                if (isClosed()) {
+                    return;
+                }
+                Log.debug("MosaicRasterDataSource: indexed " + scenes.size() + " scenes, " + remaining + " remaining");
+                closeScenes(scenes);
+                notifyTilesChanged();
+            }
+        });
+        if (changeCount > 0 && !isClosed()) {
+            notifyTilesChanged();
+        }
+        return changeCount;
+    }
+
+    @Override
+    public TileBitmap loadTile(MapTile tile) {
+        Envelope tileEnvelope = GdalRasterDataSource.getTileEnvelope(projection, tile);
+        List<Scene> scenes = index.query(tileEnvelope);
+        if (scenes.isEmpty()) {
+            return null;
+        }
+
+        int[] result = null;
+        int transparentCount = 0;
+        for (Scene scene : scenes) {
+            OpenScene openScene = acquire(scene);
+            if (openScene == null) {
+                continue;
+            }
+            int[] pixels;
+            try {
+                pixels = openScene.dataSource.renderPixels(tile);
+            } finally {
+                release(openScene);
+            }
+            if (pixels == null) {
+                continue;
+            }
+
+            if (result == null) {
+                result = pixels;
+                for (int i = 0; i < result.length; i++) {
+                    if (result[i] == 0) {
+                        transparentCount++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < result.length; i++) {
+                    if (result[i] == 0 && pixels[i] != 0) {
+                        result[i] = pixels[i];
+                        transparentCount--;
+                    }
+                }
+            }
+            if (transparentCount == 0) {
+                break;
+            }
+        }
+        if (result == null) {
+            return null;
+        }
+        int size = GdalRasterDataSource.TILE_SIZE;
+        return new TileBitmap(Bitmap.createBitmap(result, size, size, Bitmap.Config.ARGB_8888));
+    }
+
+    /**
+     * Close all open scenes.
+     */
+    public void close() {
+        synchronized (openScenes) {
+            closed = true;
+            for (OpenScene scene : openScenes.values()) {
+                scene.evicted = true;
+                if (scene.users == 0) {
+                    scene.dataSource.close();
+                }
+            }
+            openScenes.clear();
+        }
+    }
+
+    private boolean isClosed() {
+        synchronized (openScenes) {
+            return closed;
+        }
+    }
+
+    // Open scene with increased user count, null if scene can not be opened or data source is closed.
+    private OpenScene acquire(Scene scene) {
+        synchronized (openScenes) {
+            if (closed) {
+                return null;
+            }
+            OpenScene openScene = openScenes.get(scene.path);
+            if (openScene != null) {
+                openScene.users++;
+                return openScene;
+            }
+        }
+
+        // open outside of lock, other threads can render already opened scenes meanwhile
+        GdalRasterDataSource dataSource;
+        try {
+            dataSource = new GdalRasterDataSource(projection, getMinZoom(), getMaxZoom(), scene.path);
+        } catch (IOException e) {
+            Log.error("MosaicRasterDataSource: Failed to open scene! " + e.getMessage());
+            return null;
+        }
+
+        synchronized (openScenes) {
+            if (closed) {
+                dataSource.close();
+                return null;
+            }
+            OpenScene openScene = openScenes.get(scene.path);
+            if (openScene == null) {
+                openScene = new OpenScene(dataSource);
+                openScenes.put(scene.path, openScene);
+            } else {
+                dataSource.close();
+            }
+            openScene.users++;
+            return openScene;
+        }
+    }
+
+    private void release(OpenScene openScene) {
+        synchronized (openScenes) {
+            openScene.users--;
+            if (openScene.evicted && openScene.users == 0) {
+                openScene.dataSource.close();
+            }
+        }
+    }
+
+    private void closeScenes(List<Scene> scenes) {
+        // changed files must be reopened
+        List<OpenScene> changed = new ArrayList<OpenScene>();
+        synchronized (openScenes) {
+            for (Scene scene : scenes) {
+                OpenScene openScene = openScenes.remove(scene.path);
+                if (openScene != null) {
+                    changed.add(openScene);
+                }
+            }
+            for (OpenScene openScene : changed) {
+                openScene.evicted = true;
+                if (openScene.users == 0) {
+                    openScene.dataSource.close();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.nutiteq.components.Envelope;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.log.Log;
+import com.nutiteq.utils.WkbRead;
+
+/**
+ *
+ * Reads OGR layer features in batches, with one JNI call per batch (native library ogrbatch).
+ * Geometries are returned in EPSG3857 map coordinates.
+ *
+ * Batch format: int feature count, then for each feature: long FID, int field count,
+ * fields as (int length, UTF-8 bytes), int WKB length, WKB bytes. Integers are big-endian.
+ *
+ * Not thread-safe, use from single thread only.
+ *
+ * @author jaak
+ *
+ */
+public class OGRBatchReader {
+    private static boolean libraryLoaded;
+
+    static {
+        try {
+            System.loadLibrary("ogrbatch");
+            libraryLoaded = true;
+        } catch (Throwable t) {
+            Log.warning("OGRBatchReader: Unable to load ogrbatch: " + t);
+        }
+    }
+
+    private long handle;
+    private final String[] fieldNames;
+
+    /**
+     * Open OGR file.
+     *
+     * @param path path of the OGR-supported file
+     * @param layerName layer to read, if null then first layer is used
+     * @throws IOException if native library is missing or file can not be opened
+     */
+    public OGRBatchReader(String path, String layerName) throws IOException {
+        if (!libraryLoaded) {
+            throw new IOException("OGRBatchReader: Native library ogrbatch is not available!");
+        }
+        handle = nativeOpen(path, layerName);
+        if (handle == 0) {
+            throw new IOException("OGRBatchReader: Failed to open " + path + "!");
+        }
+        fieldNames = nativeGetFieldNames(handle);
+    }
+
+    public static boolean isAvailable() {
+        return libraryLoaded;
+    }
+
+    public String[] getFieldNames() {
+        return fieldNames;
+    }
+
+    /**
+     * Extent of the layer in map (EPSG3857) coordinates.
+     *
+     * @throws IOException if extent can not be calculated
+     */
+    public Envelope getDataExtent() throws IOException {
+        double[] extent = nativeGetExtent(handle);
+        return new Envelope(extent[0], extent[2], extent[1], extent[3]);
+    }
+
+    /**
+     * Start reading features from given envelope. Envelope is in map (EPSG3857) coordinates.
+     */
+    public void setSpatialFilter(Envelope envelope) {
+        nativeSetSpatialFilter(handle, envelope.minX, envelope.minY, envelope.maxX, envelope.maxY);
+    }
+
+    /**
+     * Read next batch of features from current spatial filter. Returned list is empty (not null) if
+     * features of the batch have no readable geometries, so reading ends only when null is returned.
+     *
+     * @param maxFeatures maximum number of features to read
+     * @param geomFactory factory for creating geometries
+     * @return list of geometries, with FID as id and field values as user data, possibly empty.
+     *         Null if all features are read.
+     * @throws IOException if features can not be read
+     */
+    public List<Geometry> readBatch(int maxFeatures, WkbRead.GeometryFactory geomFactory) throws IOException {
+        byte[] batch = nativeReadBatch(handle, maxFeatures);
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(batch));
+        int count = stream.readInt();
+        if (count == 0) {
+            return null;
+        }
+
+        // features without geometry or WKB which the factory can not read give no elements
+        List<Geometry> geometries = new ArrayList<Geometry>(count);
+        for (int i = 0; i < count; i++) {
+            long fid = stream.readLong();
+            int fieldCount = stream.readInt();
+            Map<String, String> userData = new HashMap<String, String>();
+            for (int j = 0; j < fieldCount; j++) {
+                byte[] value = new byte[stream.readInt()];
+                stream.readFully(value);
+                userData.put(fieldNames[j], new String(value, "UTF-8"));
+            }
+            byte[] wkb = new byte[stream.readInt()];
+            stream.readFully(wkb);
+
+            Geometry[] geoms = WkbRead.readWkb(new ByteArrayInputStream(wkb), geomFactory, userData);
+            if (geoms == null) {
+                continue;
+            }
+            for (Geometry geom : geoms) {
+                geom.setId(fid);
+                geometries.add(geom);
+            }
+        }
+        return geometries;
+    }
+
+    public void close() {
+        if (handle != 0) {
+            nativeClose(handle);
+            handle = 0;
+        }
+    }
+
+    private static native long nativeOpen(String path, String layerName);
+    private static native String[] nativeGetFieldNames(long handle);
+    private static native double[] nativeGetExtent(long handle) throws IOException;
+    private static native void nativeSetSpatialFilter(long handle, double minX, double minY, double maxX, double maxY);
+    private static native byte[] nativeReadBatch(long handle, int maxFeatures) throws IOException;
+    private static native void nativeClose(long handle);
+
+}
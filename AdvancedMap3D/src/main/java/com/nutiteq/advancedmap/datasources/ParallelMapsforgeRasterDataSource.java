@@ -0,0 +1,565 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.android.graphics.AndroidGraphicFactory;
+import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.reader.MapDatabase;
+import org.mapsforge.map.reader.header.FileOpenResult;
+import org.mapsforge.map.reader.header.MapFileInfo;
+import org.mapsforge.map.rendertheme.XmlRenderTheme;
+
+import android.app.ActivityManager;
+import android.app.Application;
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import com.nutiteq.advancedmap.cache.CacheFiles;
+import com.nutiteq.components.MapTile;
+import com.nutiteq.components.TileBitmap;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.rasterdatasources.AbstractRasterDataSource;
+
+/**
+ *
+ * Multi-threaded replacement for MapsforgeRasterDataSource. MapDatabase and DatabaseRenderer
+ * are not thread-safe, so each fetch thread gets its own pair. Render theme XML is read once,
+ * each renderer parses it on first tile only.
+ *
+ * Tiles are rendered in metatiles (4x4 by default): first request starts a metatile job which renders
+ * all tiles of the metatile on one background renderer, so Mapsforge label placement (DependencyCache)
+ * sees the neighbours and labels are not cut or duplicated on inner tile edges. The job renders the
+ * requested tile first and the requester gets it as soon as it is ready, other tiles follow in row order.
+ * Other tiles of the metatile are then served from memory when requested, a request for tile which is
+ * not rendered yet renders it on its own thread instead of waiting. Requests wait for the job at most
+ * MAX_WAIT_TIME and then render directly. Number of kept metatiles is sized from app memory class,
+ * bitmaps which were not requested are recycled when metatile is removed.
+ *
+ * Use with Options.setRasterTaskPoolSize() > 1, and wrap with CacheRasterDataSource using
+ * getCacheName() for persistent caching. Tiles are rendered under read lock, close() waits for them.
+ *
+ * @author jaak
+ *
+ */
+public class ParallelMapsforgeRasterDataSource extends AbstractRasterDataSource {
+    private static final float TEXT_SCALE = 1;
+    private static final int DEFAULT_METATILE_SIZE = 4;
+    // threads rendering metatile jobs, each with its own renderer
+    private static final int METATILE_THREADS = 2;
+    // fetch threads of activities, see Options.setRasterTaskPoolSize()
+    private static final int MAX_FETCH_THREADS = 4;
+    // 4x4 metatile of 256x256 ARGB tiles takes up to 4 MB. Each fetch thread may be waiting for its
+    // own metatile, more metatiles are not useful.
+    private static final int MAX_CACHED_METATILES = MAX_FETCH_THREADS + 1;
+    // share of app memory class for unrequested metatile bitmaps
+    private static final int METATILE_MEMORY_DIVISOR = 8;
+    // longest wait for metatile job before rendering the tile directly, in milliseconds
+    private static final long MAX_WAIT_TIME = 2000;
+
+    private final File mapFile;
+    private final PrecompiledRenderTheme theme;
+    private final DisplayModel displayModel = new DisplayModel();
+    private final MapFileInfo mapFileInfo;
+    private final long metatileMemory;
+
+    private final ThreadLocal<DatabaseRenderer> renderer = new ThreadLocal<DatabaseRenderer>();
+    private final List<DatabaseRenderer> renderers = new ArrayList<DatabaseRenderer>();
+    private final Map<String, Metatile> metatiles;
+    private final ExecutorService metatileExecutor = Executors.newFixedThreadPool(METATILE_THREADS);
+    private volatile int metatileSize = DEFAULT_METATILE_SIZE;
+    private volatile boolean closed;
+    // renders hold read lock, close() takes write lock so that renderers are not destroyed during a job
+    private final ReadWriteLock renderLock = new ReentrantReadWriteLock();
+
+    private int renderedTileCount;
+    private long totalRenderTime;
+    private int metatileRenderCount;
+    private int metatileHitCount;
+    private int metatileEvictCount;
+
+    /**
+     * Tiles of one metatile, rendered by one metatile job unless requested before.
+     * Access is synchronized on metatile.
+     */
+    private static class Metatile {
+        final int x0;
+        final int y0;
+        final int size;
+        final Bitmap[] bitmaps;
+        // tile is being rendered or was rendered, by metatile job or by requester
+        final boolean[] claimed;
+        // tile render is finished, bitmap is null if render failed or requester rendered it directly
+        final boolean[] rendered;
+        boolean removed;
+
+        Metatile(int x0, int y0, int size) {
+            this.x0 = x0;
+            this.y0 = y0;
+            this.size = size;
+            this.bitmaps = new Bitmap[size * size];
+            this.claimed = new boolean[size * size];
+            this.rendered = new boolean[size * size];
+        }
+
+        boolean claim(int index) {
+            if (claimed[index] || removed) {
+                return false;
+            }
+            claimed[index] = true;
+            return true;
+        }
+
+        void setRendered(int index, Bitmap bitmap) {
+            if (removed && bitmap != null) {
+                bitmap.recycle();
+                bitmap = null;
+            }
+            bitmaps[index] = bitmap;
+            rendered[index] = true;
+            notifyAll();
+        }
+
+        // bitmaps which were not requested are recycled, waiting requesters render their own tiles
+        void remove() {
+            removed = true;
+            for (int i = 0; i < bitmaps.length; i++) {
+                if (bitmaps[i] != null) {
+                    bitmaps[i].recycle();
+                    bitmaps[i] = null;
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Render theme which keeps XML in memory, so it is read from assets or file only once.
+     * Same instance is given to all renderers, so each parses it only once.
+     */
+    public static class PrecompiledRenderTheme implements XmlRenderTheme {
+        private final byte[] xml;
+        private final String relativePathPrefix;
+
+        public PrecompiledRenderTheme(XmlRenderTheme theme) throws IOException {
+            relativePathPrefix = theme.getRelativePathPrefix();
+            InputStream in = theme.getRenderThemeAsStream();
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                }
+                xml = out.toByteArray();
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public String getRelativePathPrefix() {
+            return relativePathPrefix;
+        }
+
+        @Override
+        public InputStream getRenderThemeAsStream() {
+            return new ByteArrayInputStream(xml);
+        }
+
+        /**
+         * @return hash of theme XML contents
+         */
+        public int getContentHash() {
+            return Arrays.hashCode(xml);
+        }
+    }
+
+    /**
+     * Default constructor.
+     *
+     * @param proj map projection, must be EPSG3857
+     * @param minZoom minimum zoom
+     * @param maxZoom maximum zoom
+     * @param mapFile Mapsforge .map file
+     * @param theme render theme, e.g. InternalRenderTheme.OSMARENDER
+     * @param app application, needed for Mapsforge graphics
+     * @throws IOException if map file or theme can not be read
+     */
+    public ParallelMapsforgeRasterDataSource(Projection proj, int minZoom, int maxZoom, File mapFile, XmlRenderTheme theme, Application app) throws IOException {
+        super(proj, minZoom, maxZoom);
+        this.mapFile = mapFile;
+        this.theme = new PrecompiledRenderTheme(theme);
+        int memoryClass = ((ActivityManager) app.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+        this.metatileMemory = (long) memoryClass * 1024 * 1024 / METATILE_MEMORY_DIVISOR;
+        this.metatiles = new LinkedHashMap<String, Metatile>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Metatile> eldest) {
+                if (size() <= getMaxCachedMetatiles()) {
+                    return false;
+                }
+                Metatile metatile = eldest.getValue();
+                synchronized (metatile) {
+                    metatile.remove();
+                }
+                synchronized (ParallelMapsforgeRasterDataSource.this) {
+                    metatileEvictCount++;
+                }
+                return true;
+            }
+        };
+        AndroidGraphicFactory.createInstance(app);
+
+        MapDatabase mapDatabase = new MapDatabase();
+        FileOpenResult result = mapDatabase.openFile(mapFile);
+        if (!result.isSuccess()) {
+            throw new IOException("ParallelMapsforgeRasterDataSource: Failed to open " + mapFile + "! " + result.getErrorMessage());
+        }
+        mapFileInfo = mapDatabase.getMapFileInfo();
+        mapDatabase.closeFile();
+    }
+
+    public MapFileInfo getMapFileInfo() {
+        return mapFileInfo;
+    }
+
+    /**
+     * Persistent cache name, changes when map file or theme changes.
+     */
+    public String getCacheName() {
+        return "mapsforge_" + mapFile.getName().replaceAll("[^A-Za-z0-9_]", "_") + "_" + Integer.toHexString(mapFile.getPath().hashCode())
+                + "_" + mapFile.lastModified() + "_" + Integer.toHexString(theme.getContentHash());
+    }
+
+    /**
+     * Delete persistent caches of earlier versions of the map file and theme, see getCacheName().
+     *
+     * @param cacheDir directory of cache databases
+     */
+    public void deleteOldCaches(File cacheDir) {
+        String cacheName = getCacheName();
+        String prefix = "mapsforge_" + mapFile.getName().replaceAll("[^A-Za-z0-9_]", "_") + "_"
+                + Integer.toHexString(mapFile.getPath().hashCode()) + "_";
+        CacheFiles.deleteOldVersions(cacheDir, prefix, cacheName);
+    }
+
+    /**
+     * Set metatile size in tiles per side, 1 disables metatiles.
+     */
+    public void setMetatileSize(int metatileSize) {
+        this.metatileSize = Math.max(1, metatileSize);
+    }
+
+    public int getMetatileSize() {
+        return metatileSize;
+    }
+
+    /**
+     * @return number of metatiles kept in memory, at least one, so that the metatile being rendered is kept
+     */
+    public int getMaxCachedMetatiles() {
+        int tileSize = displayModel.getTileSize();
+        long metatileBytes = (long) metatileSize * metatileSize * tileSize * tileSize * 4;
+        return (int) Math.max(1, Math.min(MAX_CACHED_METATILES, metatileMemory / metatileBytes));
+    }
+
+    @Override
+    public TileBitmap loadTile(MapTile tile) {
+        if (closed) {
+            return null;
+        }
+        Bitmap bitmap;
+        if (metatileSize > 1 && tile.zoom > 0) {
+            bitmap = loadFromMetatile(tile);
+        } else {
+            bitmap = renderTile(tile.x, tile.y, tile.zoom);
+        }
+        return bitmap != null ? new TileBitmap(bitmap) : null;
+    }
+
+    public synchronized int getRenderedTileCount() {
+        return renderedTileCount;
+    }
+
+    public synchronized long getAverageRenderTime() {
+        return renderedTileCount > 0 ? totalRenderTime / renderedTileCount : 0;
+    }
+
+    public synchronized int getMetatileRenderCount() {
+        return metatileRenderCount;
+    }
+
+    /**
+     * @return number of tiles served from already rendered metatiles
+     */
+    public synchronized int getMetatileHitCount() {
+        return metatileHitCount;
+    }
+
+    /**
+     * @return number of metatiles removed to keep memory limit
+     */
+    public synchronized int getMetatileEvictCount() {
+        return metatileEvictCount;
+    }
+
+    /**
+     * @return number of renderers (fetch threads) created so far
+     */
+    public int getRendererCount() {
+        synchronized (renderers) {
+            return renderers.size();
+        }
+    }
+
+    /**
+     * Render metrics for logging, e.g. "tiles 120 avg 85 ms, metatiles 8 hits 112 evicted 2 (max 2), renderers 4".
+     */
+    public String getStats() {
+        String stats;
+        synchronized (this) {
+            stats = "tiles " + renderedTileCount + " avg " + getAverageRenderTime() + " ms, metatiles " + metatileRenderCount
+                    + " hits " + metatileHitCount + " evicted " + metatileEvictCount;
+        }
+        return stats + " (max " + getMaxCachedMetatiles() + "), renderers " + getRendererCount();
+    }
+
+    /**
+     * Close map files of all renderers.
+     */
+    public void close() {
+        closed = true;
+        synchronized (metatileExecutor) {
+            metatileExecutor.shutdown();
+        }
+        renderLock.writeLock().lock();
+        try {
+            synchronized (renderers) {
+                for (DatabaseRenderer databaseRenderer : renderers) {
+                    databaseRenderer.destroy();
+                    databaseRenderer.getMapDatabase().closeFile();
+                }
+                renderers.clear();
+            }
+        } finally {
+            renderLock.writeLock().unlock();
+        }
+        synchronized (metatiles) {
+            // recycle unrequested tiles and wake up threads waiting for unfinished metatiles
+            for (Metatile metatile : metatiles.values()) {
+                synchronized (metatile) {
+                    metatile.remove();
+                }
+            }
+            metatiles.clear();
+        }
+    }
+
+    private Bitmap loadFromMetatile(MapTile tile) {
+        int size = Math.min(metatileSize, 1 << tile.zoom);
+        int mx = tile.x / size;
+        int my = tile.y / size;
+        String key = tile.zoom + "/" + mx + "/" + my;
+        Metatile metatile;
+        boolean created = false;
+        synchronized (metatiles) {
+            metatile = metatiles.get(key);
+            if (metatile == null) {
+                metatile = new Metatile(mx * size, my * size, size);
+                metatiles.put(key, metatile);
+                created = true;
+            }
+        }
+
+        int index = (tile.y - metatile.y0) * size + (tile.x - metatile.x0);
+        if (created) {
+            synchronized (this) {
+                metatileRenderCount++;
+            }
+            synchronized (metatileExecutor) {
+                if (!metatileExecutor.isShutdown()) {
+                    metatileExecutor.execute(new MetatileJob(key, metatile, index, tile.zoom));
+                }
+            }
+        }
+
+        boolean claimed = false;
+        synchronized (metatile) {
+            // first requester waits until the job renders its tile, others only while the tile is being rendered
+            long deadline = System.currentTimeMillis() + MAX_WAIT_TIME;
+            while (!metatile.rendered[index] && !metatile.removed && !closed) {
+                if (!created && metatile.claim(index)) {
+                    claimed = true;
+                    break;
+                }
+                long waitTime = deadline - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    // job is slow or queued, job skips the tile if it has not started it yet
+                    claimed = metatile.claim(index);
+                    break;
+                }
+                try {
+                    metatile.wait(waitTime);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            if (closed) {
+                return null;
+            }
+            if (metatile.rendered[index]) {
+                Bitmap bitmap = metatile.bitmaps[index];
+                metatile.bitmaps[index] = null;
+                if (bitmap != null) {
+                    // each tile is usually requested once, layer caches it afterwards
+                    if (!created) {
+                        synchronized (this) {
+                            metatileHitCount++;
+                        }
+                    }
+                    return bitmap;
+                }
+            }
+        }
+        // not rendered yet, recycled, failed, or requested again e.g. after layer cache eviction
+        Bitmap bitmap = null;
+        try {
+            bitmap = renderTile(tile.x, tile.y, tile.zoom);
+        } finally {
+            if (claimed) {
+                // wake up requesters waiting for this tile, they render it themselves
+                synchronized (metatile) {
+                    metatile.setRendered(index, null);
+                }
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Renders tiles of metatile which are not claimed by requesters on one renderer:
+     * first the requested tile, then others in row order.
+     */
+    private class MetatileJob implements Runnable {
+        private final String key;
+        private final Metatile metatile;
+        private final int firstIndex;
+        private final int zoom;
+
+        MetatileJob(String key, Metatile metatile, int firstIndex, int zoom) {
+            this.key = key;
+            this.metatile = metatile;
+            this.firstIndex = firstIndex;
+            this.zoom = zoom;
+        }
+
+        @Override
+        public void run() {
+            int size = metatile.size;
+            for (int n = -1; n < size * size && !closed; n++) {
+                int i = n < 0 ? firstIndex : n;
+                if (n == firstIndex) {
+                    continue;
+                }
+                synchronized (metatile) {
+                    if (!metatile.claim(i)) {
+                        continue;
+                    }
+                }
+                Bitmap bitmap = null;
+                boolean success = false;
+                try {
+                    bitmap = renderTile(metatile.x0 + i % size, metatile.y0 + i / size, zoom);
+                    success = true;
+                } catch (RuntimeException e) {
+                    Log.error("ParallelMapsforgeRasterDataSource: Failed to render metatile " + key + "! " + e.getMessage());
+                } finally {
+                    synchronized (metatile) {
+                        metatile.setRendered(i, bitmap);
+                    }
+                }
+                if (!success) {
+                    // do not keep failed metatile, waiters get null and next requests render again
+                    synchronized (metatiles) {
+                        if (metatiles.get(key) == metatile) {
+                            metatiles.remove(key);
+                        }
+                    }
+                    synchronized (metatile) {
+                        metatile.remove();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private Bitmap renderTile(int x, int y, int zoom) {
+        long startTime = System.currentTimeMillis();
+        RendererJob job = new RendererJob(new Tile(x, y, (byte) zoom), mapFile, theme, displayModel, TEXT_SCALE, false);
+        org.mapsforge.core.graphics.TileBitmap bitmap;
+        renderLock.readLock().lock();
+        try {
+            DatabaseRenderer databaseRenderer = getRenderer();
+            if (databaseRenderer == null) {
+                return null;
+            }
+            bitmap = databaseRenderer.executeJob(job);
+        } finally {
+            renderLock.readLock().unlock();
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        Bitmap androidBitmap = AndroidGraphicFactory.getBitmap(bitmap);
+        synchronized (this) {
+            renderedTileCount++;
+            totalRenderTime += System.currentTimeMillis() - startTime;
+        }
+        return androidBitmap;
+    }
+
+    // Renderer of current thread, call with read lock held. Null if data source is closed or map file can not be opened.
+    private DatabaseRenderer getRenderer() {
+        DatabaseRenderer databaseRenderer = renderer.get();
+        if (databaseRenderer == null) {
+            if (closed) {
+                return null;
+            }
+            MapDatabase mapDatabase = new MapDatabase();
+            FileOpenResult result = mapDatabase.openFile(mapFile);
+            if (!result.isSuccess()) {
+                Log.error("ParallelMapsforgeRasterDataSource: Failed to open " + mapFile + "! " + result.getErrorMessage());
+                return null;
+            }
+            databaseRenderer = new DatabaseRenderer(mapDatabase, AndroidGraphicFactory.INSTANCE);
+            renderer.set(databaseRenderer);
+            int count;
+            synchronized (renderers) {
+                renderers.add(databaseRenderer);
+                count = renderers.size();
+            }
+            Log.debug("ParallelMapsforgeRasterDataSource: created renderer " + count);
+        }
+        return databaseRenderer;
+    }
+
+}
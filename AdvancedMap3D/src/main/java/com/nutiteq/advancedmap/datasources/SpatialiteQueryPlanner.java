@@ -0,0 +1,426 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jsqlite.Constants;
+import jsqlite.Database;
+import jsqlite.Stmt;
+
+import com.nutiteq.advancedmap.proj.ProjException;
+import com.nutiteq.advancedmap.proj.TransformPipeline;
+import com.nutiteq.advancedmap.proj.TransformRegistry;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.db.SpatialLiteDbHelper;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.EPSG3857;
+import com.nutiteq.utils.GeoUtils;
+import com.nutiteq.utils.Utils;
+import com.nutiteq.utils.WkbRead;
+
+/**
+ *
+ * Viewport query planner for a single Spatialite geometry table.
+ *
+ * Uses the R*Tree virtual table (idx_table_geom) directly instead of MBRIntersects full table scans,
+ * optionally creates the index on demand, and keeps prepared statements per (table, zoom bucket),
+ * so panning only rebinds bbox parameters instead of compiling new SQL for each viewport.
+ *
+ * If the table has generalized levels (see GeometryPyramidBuilder), matching level table is queried
+ * automatically for lower zooms.
+ *
+ * Query time of every viewport load is recorded, see {@link #getLastQueryTime()} and {@link #getAverageQueryTime()}.
+ *
+ * @author jaak
+ *
+ */
+public class SpatialiteQueryPlanner {
+    // SRID used by map (EPSG:3857), same definition as in SpatialLiteDbHelper
+    static final int SDK_SRID = 3857;
+    // only for javaproj fallback: for Proj.4 the +towgs84 sphere is a datum shift of about 20 km, see getMapProj4()
+    static final String SDK_PROJ4TEXT = "+proj=merc +lon_0=0 +k=1 +x_0=0 +y_0=0 +a=6378137 +b=6378137 +towgs84=0,0,0,0,0,0,0 +units=m +no_defs";
+
+    // zoom levels sharing one prepared statement (and one simplification tolerance)
+    private static final int ZOOM_BUCKET_SIZE = 3;
+    private static final int MAX_CACHED_STATEMENTS = 16;
+    private static final int ENVELOPE_SEGMENTS = 4;
+
+    // EPSG:3857 world width in meters, used to get meters per pixel for given zoom
+    static final double WORLD_SIZE = 40075016.68;
+    static final int TILE_SIZE = 256;
+
+    private final Database db;
+    private final SpatialLiteDbHelper.DbLayer dbLayer;
+    private final String[] userColumns;
+    private final String filter;
+
+    private boolean spatialIndex;
+    private float simplifyPixels = 0;
+    private GeometryPyramid pyramid;
+    private boolean pyramidEnabled = true;
+    private TransformPipeline toDataPipeline;
+
+    private final Map<String, Stmt> statementCache = new LinkedHashMap<String, Stmt>(MAX_CACHED_STATEMENTS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Stmt> eldest) {
+            if (size() > MAX_CACHED_STATEMENTS) {
+                closeStatement(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // query time metrics
+    private long lastQueryTime;
+    private long totalQueryTime;
+    private int queryCount;
+    private int lastResultCount;
+
+    /**
+     * Open planner for given Spatialite table. A separate connection is used,
+     * so prepared statements do not interfere with SpatialLiteDbHelper queries.
+     *
+     * @param dbPath path to Spatialite database file
+     * @param dbLayer layer metadata, from SpatialLiteDbHelper.qrySpatialLayerMetadata()
+     * @param userColumns columns to be read to element user data
+     * @param filter optional SQL filter expression, can be null
+     * @param createIndex if true, then missing R*Tree spatial index is created
+     * @throws IOException if database can not be opened
+     */
+    public SpatialiteQueryPlanner(String dbPath, SpatialLiteDbHelper.DbLayer dbLayer, String[] userColumns, String filter, boolean createIndex) throws IOException {
+        this.dbLayer = dbLayer;
+        this.userColumns = userColumns != null ? userColumns : new String[0];
+        this.filter = filter;
+
+        db = new Database();
+        try {
+            db.open(dbPath, Constants.SQLITE_OPEN_READWRITE);
+            db.busy_timeout(5000);
+        } catch (jsqlite.Exception e) {
+            throw new IOException("SpatialiteQueryPlanner: Failed to open database! " + e.getMessage());
+        }
+
+        spatialIndex = hasSpatialIndex();
+        if (!spatialIndex && createIndex) {
+            spatialIndex = createSpatialIndex();
+        }
+        pyramid = GeometryPyramid.load(db, dbLayer.table, dbLayer.geomColumn);
+        Log.debug("SpatialiteQueryPlanner: " + dbLayer.table + "." + dbLayer.geomColumn + " R*Tree index: " + spatialIndex
+                + " pyramid levels: " + (pyramid != null ? pyramid.getLevels().size() : 0));
+    }
+
+    /**
+     * Enable simplification of geometries. Tolerance is calculated from zoom bucket, so that
+     * error is less than given number of pixels.
+     *
+     * @param pixels maximum simplification error in pixels, 0 disables simplification
+     */
+    public synchronized void setAutoSimplify(float pixels) {
+        this.simplifyPixels = pixels;
+        clearStatementCache();
+    }
+
+    public boolean isSpatialIndexUsed() {
+        return spatialIndex;
+    }
+
+    /**
+     * Reload generalized levels, needed after GeometryPyramidBuilder has (re)built them.
+     */
+    public synchronized void reloadPyramid() {
+        clearStatementCache();
+        pyramid = GeometryPyramid.load(db, dbLayer.table, dbLayer.geomColumn);
+    }
+
+    /**
+     * Invalidate generalized levels after the table has been edited, so they are not used
+     * until GeometryPyramidBuilder builds them again.
+     */
+    public synchronized void invalidatePyramid() {
+        if (pyramid == null) {
+            return;
+        }
+        clearStatementCache();
+        pyramid = null;
+        if (GeometryPyramid.invalidate(db, dbLayer.table, dbLayer.geomColumn)) {
+            Log.debug("SpatialiteQueryPlanner: invalidated levels of " + dbLayer.table + "." + dbLayer.geomColumn);
+        }
+    }
+
+    /**
+     * Enable or disable use of generalized levels. Levels are not updated on edits,
+     * so editable data sources should disable them.
+     */
+    public synchronized void setPyramidEnabled(boolean enabled) {
+        this.pyramidEnabled = enabled;
+    }
+
+    /**
+     * @return generalized levels of the table, or null if there are none
+     */
+    public synchronized GeometryPyramid getPyramid() {
+        return pyramid;
+    }
+
+    /**
+     * Load geometries intersecting given envelope.
+     *
+     * @param envelope bounding box in EPSG:3857 coordinates
+     * @param zoom current zoom level, used for statement and simplification selection
+     * @param maxElements maximum number of elements to return
+     * @param geomFactory factory for geometry elements
+     * @return list of geometries, with rowid as element id and user columns as user data
+     */
+    public synchronized List<Geometry> query(Envelope envelope, int zoom, int maxElements, WkbRead.GeometryFactory geomFactory) {
+        List<Geometry> geoms = new ArrayList<Geometry>();
+        long startTime = System.currentTimeMillis();
+
+        Envelope bbox = envelope;
+        if (dbLayer.srid != SDK_SRID) {
+            bbox = toDataEnvelope(envelope);
+        }
+
+        try {
+            GeometryPyramid.Level level = (pyramid != null && pyramidEnabled) ? pyramid.getLevel(zoom) : null;
+            Stmt stmt = getStatement(getZoomBucket(zoom, level), level);
+            stmt.reset();
+            if (spatialIndex || level != null) {
+                // R*Tree rows intersect if xmin <= bbox.maxX && xmax >= bbox.minX etc
+                stmt.bind(1, bbox.maxX);
+                stmt.bind(2, bbox.minX);
+                stmt.bind(3, bbox.maxY);
+                stmt.bind(4, bbox.minY);
+            } else {
+                stmt.bind(1, bbox.minX);
+                stmt.bind(2, bbox.minY);
+                stmt.bind(3, bbox.maxX);
+                stmt.bind(4, bbox.maxY);
+            }
+            stmt.bind(5, maxElements);
+
+            while (stmt.step()) {
+                long id = stmt.column_long(0);
+                String wkb = stmt.column_string(1);
+                if (wkb == null) {
+                    continue;
+                }
+
+                Map<String, String> userData = new HashMap<String, String>();
+                for (int i = 0; i < userColumns.length; i++) {
+                    userData.put(userColumns[i], stmt.column_string(i + 2));
+                }
+
+                Geometry[] elements = WkbRead.readWkb(new ByteArrayInputStream(Utils.hexStringToByteArray(wkb)), geomFactory, userData);
+                if (elements != null) {
+                    for (Geometry element : elements) {
+                        element.setId(id);
+                        geoms.add(element);
+                    }
+                }
+            }
+            stmt.reset();
+        } catch (jsqlite.Exception e) {
+            Log.error("SpatialiteQueryPlanner: Failed to query data! " + e.getMessage());
+        }
+
+        long queryTime = System.currentTimeMillis() - startTime;
+        lastQueryTime = queryTime;
+        lastResultCount = geoms.size();
+        totalQueryTime += queryTime;
+        queryCount++;
+        Log.debug("SpatialiteQueryPlanner: Query time: " + queryTime + " ms, size: " + geoms.size());
+
+        return geoms;
+    }
+
+    /**
+     * @return time spent in last viewport query, in milliseconds
+     */
+    public synchronized long getLastQueryTime() {
+        return lastQueryTime;
+    }
+
+    /**
+     * @return number of elements returned by last viewport query
+     */
+    public synchronized int getLastResultCount() {
+        return lastResultCount;
+    }
+
+    /**
+     * @return average viewport query time since creation or last reset, in milliseconds
+     */
+    public synchronized float getAverageQueryTime() {
+        return queryCount > 0 ? (float) totalQueryTime / queryCount : 0;
+    }
+
+    public synchronized int getQueryCount() {
+        return queryCount;
+    }
+
+    public synchronized void resetStatistics() {
+        lastQueryTime = 0;
+        totalQueryTime = 0;
+        queryCount = 0;
+        lastResultCount = 0;
+    }
+
+    /**
+     * Close prepared statements and database connection. Planner can not be used after this.
+     */
+    public synchronized void close() {
+        clearStatementCache();
+        try {
+            db.close();
+        } catch (jsqlite.Exception e) {
+            Log.error("SpatialiteQueryPlanner: Failed to close database! " + e.getMessage());
+        }
+    }
+
+    private int getZoomBucket(int zoom, GeometryPyramid.Level level) {
+        if (simplifyPixels <= 0 || level != null) {
+            // no runtime simplification, so all zooms share the same SQL
+            return 0;
+        }
+        return Math.max(0, zoom) / ZOOM_BUCKET_SIZE;
+    }
+
+    private Stmt getStatement(int zoomBucket, GeometryPyramid.Level level) throws jsqlite.Exception {
+        String key = (level != null ? level.table : dbLayer.table + "." + dbLayer.geomColumn) + "@" + zoomBucket;
+        Stmt stmt = statementCache.get(key);
+        if (stmt == null) {
+            String sql = buildQuery(zoomBucket, level);
+            Log.debug("SpatialiteQueryPlanner: prepare " + sql);
+            stmt = db.prepare(sql);
+            statementCache.put(key, stmt);
+        }
+        return stmt;
+    }
+
+    private String buildQuery(int zoomBucket, GeometryPyramid.Level level) {
+        // source table is always "t", generalized level table "g" has source ROWID as its ROWID
+        String geomExpr = (level != null) ? "g." + GeometryPyramid.LEVEL_GEOMETRY_COLUMN : "t." + quote(dbLayer.geomColumn);
+        String mbrGeomExpr = geomExpr;
+        if (dbLayer.srid != SDK_SRID) {
+            geomExpr = "Transform(" + geomExpr + ", " + SDK_SRID + ")";
+        }
+        if (simplifyPixels > 0 && level == null) {
+            // use the most detailed zoom of the bucket, so that error stays below simplifyPixels
+            int bucketMaxZoom = zoomBucket * ZOOM_BUCKET_SIZE + ZOOM_BUCKET_SIZE - 1;
+            double tolerance = simplifyPixels * WORLD_SIZE / TILE_SIZE / Math.pow(2, bucketMaxZoom);
+            geomExpr = "SimplifyPreserveTopology(" + geomExpr + ", " + tolerance + ")";
+        }
+
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT t.ROWID, AsEWKB(").append(geomExpr).append(")");
+        for (String column : userColumns) {
+            sql.append(", t.").append(quote(column));
+        }
+        if (level != null) {
+            sql.append(" FROM ").append(quote(level.table)).append(" g JOIN ").append(quote(dbLayer.table)).append(" t ON t.ROWID = g.ROWID");
+            sql.append(" WHERE g.ROWID IN (SELECT pkid FROM ").append(quote(level.getIndexName()))
+                .append(" WHERE xmin <= ? AND xmax >= ? AND ymin <= ? AND ymax >= ?)");
+        } else if (spatialIndex) {
+            sql.append(" FROM ").append(quote(dbLayer.table)).append(" t");
+            sql.append(" WHERE t.ROWID IN (SELECT pkid FROM ").append(quote(getIndexName()))
+                .append(" WHERE xmin <= ? AND xmax >= ? AND ymin <= ? AND ymax >= ?)");
+        } else {
+            sql.append(" FROM ").append(quote(dbLayer.table)).append(" t");
+            sql.append(" WHERE MBRIntersects(").append(mbrGeomExpr).append(", BuildMBR(?, ?, ?, ?))");
+        }
+        if (filter != null) {
+            sql.append(" AND ").append(filter);
+        }
+        sql.append(" LIMIT ?");
+        return sql.toString();
+    }
+
+    private String getIndexName() {
+        return "idx_" + dbLayer.table + "_" + dbLayer.geomColumn;
+    }
+
+    private boolean hasSpatialIndex() {
+        try {
+            Stmt stmt = db.prepare("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ? AND sql LIKE '%rtree%'");
+            try {
+                stmt.bind(1, getIndexName());
+                return stmt.step() && stmt.column_int(0) > 0;
+            } finally {
+                stmt.close();
+            }
+        } catch (jsqlite.Exception e) {
+            Log.error("SpatialiteQueryPlanner: Failed to query spatial index! " + e.getMessage());
+        }
+        return false;
+    }
+
+    private boolean createSpatialIndex() {
+        Log.info("SpatialiteQueryPlanner: creating R*Tree index for " + dbLayer.table + "." + dbLayer.geomColumn);
+        long startTime = System.currentTimeMillis();
+        try {
+            Stmt stmt = db.prepare("SELECT CreateSpatialIndex(?, ?)");
+            try {
+                stmt.bind(1, dbLayer.table);
+                stmt.bind(2, dbLayer.geomColumn);
+                stmt.step();
+            } finally {
+                stmt.close();
+            }
+        } catch (jsqlite.Exception e) {
+            Log.error("SpatialiteQueryPlanner: Failed to create spatial index! " + e.getMessage());
+            return false;
+        }
+        Log.info("SpatialiteQueryPlanner: index created in " + (System.currentTimeMillis() - startTime) + " ms");
+        dbLayer.spatialIndex = hasSpatialIndex();
+        return dbLayer.spatialIndex;
+    }
+
+    private void clearStatementCache() {
+        for (Iterator<Stmt> it = statementCache.values().iterator(); it.hasNext(); ) {
+            closeStatement(it.next());
+            it.remove();
+        }
+    }
+
+    private static void closeStatement(Stmt stmt) {
+        try {
+            stmt.close();
+        } catch (jsqlite.Exception e) {
+            Log.error("SpatialiteQueryPlanner: Failed to close statement! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Map projection definition for transform pipelines: registered EPSG:3857, with +nadgrids=@null.
+     */
+    static String getMapProj4() {
+        return TransformRegistry.getInstance().getDefinition(new EPSG3857());
+    }
+
+    private static String quote(String name) {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+
+    private Envelope toDataEnvelope(Envelope envelope) {
+        try {
+            if (toDataPipeline == null) {
+                toDataPipeline = TransformRegistry.getInstance().getPipeline(getMapProj4(), dbLayer.proj4txt);
+            }
+            return toDataPipeline.transformEnvelope(envelope, ENVELOPE_SEGMENTS);
+        } catch (ProjException e) {
+            Log.warning("SpatialiteQueryPlanner: transform pipeline not used: " + e.getMessage());
+            return GeoUtils.transformBboxJavaProj(envelope, SDK_PROJ4TEXT, dbLayer.proj4txt.replace("longlat", "latlong"));
+        }
+    }
+
+}
@@ -0,0 +1,326 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.nutiteq.components.CullState;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.geometry.NMLModel;
+import com.nutiteq.log.Log;
+import com.nutiteq.nmlpackage.NMLPackage;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.style.ModelStyle;
+import com.nutiteq.style.StyleSet;
+import com.nutiteq.utils.LongArrayList;
+import com.nutiteq.utils.LongHashMap;
+import com.nutiteq.vectorlayers.NMLModelDbLayer;
+
+/**
+ *
+ * NMLModelDbLayer with texture memory budget, for city-scale .nmldb files.
+ *
+ * Base layer already loads only model LOD tree nodes needed for current view, but always reads
+ * full resolution (level 0) textures. Here textures are kept in LRU cache with budget of texture memory
+ * (see getTextureSize()): unused textures are evicted first, and if textures in use still exceed
+ * the budget, new ones are read from coarser levels of Textures table. Budget is a soft limit:
+ * if even the coarsest level does not fit, it is still loaded, as model without texture would be
+ * drawn wrong. Meshes are loaded by base layer.
+ *
+ * Data is loaded under read lock and close() takes write lock, so database is not closed during load.
+ *
+ * @author jaak
+ *
+ */
+public class StreamingNMLModelDbLayer extends NMLModelDbLayer {
+    private static final int BLOB_CHUNK_SIZE = 512 * 1024;
+
+    private final SQLiteDatabase db;
+    private final ReadWriteLock dbLock = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+    private final int textureBudget;
+    private final LinkedHashMap<Long, NMLModel.Texture> textureCache = new LinkedHashMap<Long, NMLModel.Texture>(16, 0.75f, true);
+    private long textureCacheBytes;
+
+    private long bytesRead;
+    private int textureEvictions;
+    private int textureDowngrades;
+    private int textureCacheHits;
+
+    /**
+     * Default constructor.
+     *
+     * @param proj layer projection, must be EPSG3857
+     * @param path path of .nmldb file
+     * @param styleSet model style set
+     * @param textureBudget maximum texture memory in bytes
+     * @throws IOException if database can not be opened
+     */
+    public StreamingNMLModelDbLayer(Projection proj, String path, StyleSet<ModelStyle> styleSet, int textureBudget) throws IOException {
+        this(proj, openDatabase(path), styleSet, textureBudget);
+    }
+
+    private StreamingNMLModelDbLayer(Projection proj, SQLiteDatabase db, StyleSet<ModelStyle> styleSet, int textureBudget) {
+        super(proj, db, styleSet);
+        this.db = db;
+        this.textureBudget = textureBudget;
+    }
+
+    /**
+     * @return number of models currently in layer
+     */
+    public int getResidentModelCount() {
+        return getAll().size();
+    }
+
+    public synchronized long getResidentTextureBytes() {
+        return textureCacheBytes;
+    }
+
+    /**
+     * @return bytes of texture blobs read from database so far
+     */
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    public synchronized int getTextureEvictions() {
+        return textureEvictions;
+    }
+
+    /**
+     * @return number of textures loaded with lower resolution because of budget
+     */
+    public synchronized int getTextureDowngrades() {
+        return textureDowngrades;
+    }
+
+    public synchronized int getTextureCacheHits() {
+        return textureCacheHits;
+    }
+
+    /**
+     * Close database, layer can not be used afterwards. Waits until current load is finished,
+     * so can be called from any thread.
+     */
+    public void close() {
+        closed = true;
+        dbLock.writeLock().lock();
+        try {
+            db.close();
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    protected void loadData(CullState cullState) {
+        dbLock.readLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            super.loadData(cullState);
+        } finally {
+            dbLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected Envelope fetchDataExtent() {
+        dbLock.readLock().lock();
+        try {
+            if (closed) {
+                return null;
+            }
+            return super.fetchDataExtent();
+        } finally {
+            dbLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected LongHashMap<NMLModel.Texture> fetchTextures(LongArrayList ids) {
+        LongHashMap<NMLModel.Texture> textures = new LongHashMap<NMLModel.Texture>();
+        for (int i = 0; i < ids.size(); i++) {
+            long id = ids.get(i);
+            synchronized (this) {
+                NMLModel.Texture texture = textureCache.get(id);
+                if (texture != null) {
+                    textureCacheHits++;
+                    textures.put(id, texture);
+                    continue;
+                }
+            }
+
+            NMLModel.Texture texture = loadTexture(id, textures);
+            if (texture == null) {
+                continue;
+            }
+            textures.put(id, texture);
+            synchronized (this) {
+                textureCache.put(id, texture);
+                textureCacheBytes += getTextureSize(texture.nmlTexture);
+                evictTextures(textures);
+            }
+        }
+        return textures;
+    }
+
+    /**
+     * Load finest texture level which fits to budget, or coarsest level if none fits.
+     * Level is chosen by stored blob size, which is close to texture memory size for raw and ETC1 textures,
+     * so usually only one level is read. Size of read texture is checked again, as it is known only after parsing.
+     */
+    private NMLModel.Texture loadTexture(long id, LongHashMap<NMLModel.Texture> loading) {
+        long available;
+        synchronized (this) {
+            evictTextures(loading);
+            available = textureBudget - textureCacheBytes;
+        }
+
+        LongArrayList levels = new LongArrayList();
+        LongArrayList storedSizes = new LongArrayList();
+        Cursor cursor = db.rawQuery("SELECT level, LENGTH(nmltexture) FROM Textures WHERE id=? ORDER BY level", new String[] { Long.toString(id) });
+        try {
+            while (cursor.moveToNext()) {
+                levels.add(cursor.getInt(0));
+                storedSizes.add(cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int first = 0;
+        while (first < levels.size() - 1 && storedSizes.get(first) > available) {
+            first++;
+        }
+        for (int i = first; i < levels.size(); i++) {
+            byte[] data = readBlob("SELECT LENGTH(nmltexture), SUBSTR(nmltexture, ?, ?) FROM Textures WHERE id=? AND level=?",
+                    Long.toString(id), Long.toString(levels.get(i)));
+            if (data == null) {
+                continue;
+            }
+            synchronized (this) {
+                bytesRead += data.length;
+            }
+            NMLPackage.Texture nmlTexture;
+            try {
+                nmlTexture = NMLPackage.Texture.parseFrom(data);
+            } catch (InvalidProtocolBufferException e) {
+                Log.error("StreamingNMLModelDbLayer: Failed to load texture! " + e.getMessage());
+                continue;
+            }
+            if (getTextureSize(nmlTexture) <= available || i == levels.size() - 1) {
+                if (levels.get(i) > 0) {
+                    synchronized (this) {
+                        textureDowngrades++;
+                    }
+                }
+                return new NMLModel.Texture(id, nmlTexture);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Evict least recently used textures until cache fits to budget. Textures in use are kept.
+     */
+    private void evictTextures(LongHashMap<NMLModel.Texture> loading) {
+        Iterator<Map.Entry<Long, NMLModel.Texture>> it = textureCache.entrySet().iterator();
+        while (textureCacheBytes > textureBudget && it.hasNext()) {
+            Map.Entry<Long, NMLModel.Texture> entry = it.next();
+            long id = entry.getKey();
+            if (loading.containsKey(id) || (textureMap != null && textureMap.containsKey(id))) {
+                continue;
+            }
+            textureCacheBytes -= getTextureSize(entry.getValue().nmlTexture);
+            it.remove();
+            textureEvictions++;
+        }
+    }
+
+    /**
+     * Read blob in chunks, without hitting cursor window size limits. Base layer has similar reader,
+     * but it is private and reads only level 0 textures. Query must have parameters for chunk
+     * offset and length first, then the given ones.
+     */
+    private byte[] readBlob(String sql, String... args) {
+        String[] params = new String[args.length + 2];
+        System.arraycopy(args, 0, params, 2, args.length);
+        ByteArrayOutputStream out = null;
+        long length = -1;
+        for (long offset = 0; length < 0 || offset < length; offset += BLOB_CHUNK_SIZE) {
+            params[0] = Long.toString(offset + 1);
+            params[1] = Integer.toString(BLOB_CHUNK_SIZE);
+            Cursor cursor = db.rawQuery(sql, params);
+            try {
+                if (!cursor.moveToFirst()) {
+                    return null;
+                }
+                if (length < 0) {
+                    length = cursor.getLong(0);
+                    out = new ByteArrayOutputStream((int) length);
+                }
+                byte[] chunk = cursor.getBlob(1);
+                if (chunk == null || chunk.length == 0) {
+                    break;
+                }
+                out.write(chunk, 0, chunk.length);
+            } finally {
+                cursor.close();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Texture memory of texture. GLTexture uploads LUMINANCE8, RGB8 and RGBA8 at 1, 3 and 4 bytes per pixel,
+     * and ETC1 as is, so stored mipmap data is counted for it. Other formats (JPEG, PNG, PVRTC) are not uploaded,
+     * but their stored data is still kept in memory.
+     */
+    private static long getTextureSize(NMLPackage.Texture nmlTexture) {
+        int bytesPerPixel;
+        switch (nmlTexture.getFormat()) {
+        case LUMINANCE8:
+            bytesPerPixel = 1;
+            break;
+        case RGB8:
+            bytesPerPixel = 3;
+            break;
+        case RGBA8:
+            bytesPerPixel = 4;
+            break;
+        default:
+            long size = 0;
+            for (int i = 0; i < nmlTexture.getMipmapsCount(); i++) {
+                size += nmlTexture.getMipmaps(i).size();
+            }
+            return size;
+        }
+        long pixels = 0;
+        int levels = Math.max(1, nmlTexture.getMipmapsCount());
+        for (int i = 0; i < levels; i++) {
+            pixels += (long) Math.max(1, nmlTexture.getWidth() >> i) * Math.max(1, nmlTexture.getHeight() >> i);
+        }
+        return pixels * bytesPerPixel;
+    }
+
+    private static SQLiteDatabase openDatabase(String path) throws IOException {
+        try {
+            return SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        } catch (SQLiteException e) {
+            throw new IOException("StreamingNMLModelDbLayer: Can not open " + path + ", " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.nutiteq.advancedmap.datasources;
+
+import java.util.List;
+import java.util.Map;
+
+import com.nutiteq.components.MapPos;
+import com.nutiteq.geometry.Geometry;
+import com.nutiteq.geometry.Line;
+import com.nutiteq.geometry.Point;
+import com.nutiteq.geometry.Polygon;
+import com.nutiteq.style.LineStyle;
+import com.nutiteq.style.PointStyle;
+import com.nutiteq.style.PolygonStyle;
+import com.nutiteq.style.StyleSet;
+import com.nutiteq.ui.Label;
+import com.nutiteq.utils.WkbRead;
+
+/**
+ *
+ * WKB geometry factory shared by data sources which read features with user data map:
+ * creates Point, Line and Polygon elements with label and style sets of given zoom.
+ * Labels and styles are taken from StyleProvider, which is usually the data source itself.
+ *
+ * @author jaak
+ *
+ */
+public class StyledGeometryFactory implements WkbRead.GeometryFactory {
+
+    /**
+     * Gives labels and style sets for elements, by user data of the feature.
+     */
+    public interface StyleProvider {
+        Label createLabel(Map<String, String> userData);
+
+        StyleSet<PointStyle> createPointStyleSet(Map<String, String> userData, int zoom);
+
+        StyleSet<LineStyle> createLineStyleSet(Map<String, String> userData, int zoom);
+
+        StyleSet<PolygonStyle> createPolygonStyleSet(Map<String, String> userData, int zoom);
+    }
+
+    private final StyleProvider styleProvider;
+    private final int zoom;
+
+    public StyledGeometryFactory(StyleProvider styleProvider, int zoom) {
+        this.styleProvider = styleProvider;
+        this.zoom = zoom;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Point createPoint(MapPos mapPos, Object userData) {
+        Map<String, String> data = (Map<String, String>) userData;
+        return new Point(mapPos, styleProvider.createLabel(data), styleProvider.createPointStyleSet(data, zoom), userData);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Line createLine(List<MapPos> points, Object userData) {
+        Map<String, String> data = (Map<String, String>) userData;
+        return new Line(points, styleProvider.createLabel(data), styleProvider.createLineStyleSet(data, zoom), userData);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Polygon createPolygon(List<MapPos> outerRing, List<List<MapPos>> innerRings, Object userData) {
+        Map<String, String> data = (Map<String, String>) userData;
+        return new Polygon(outerRing, innerRings, styleProvider.createLabel(data), styleProvider.createPolygonStyleSet(data, zoom), userData);
+    }
+
+    @Override
+    public Geometry[] createMultigeometry(List<Geometry> geoms) {
+        return geoms.toArray(new Geometry[geoms.size()]);
+    }
+
+}
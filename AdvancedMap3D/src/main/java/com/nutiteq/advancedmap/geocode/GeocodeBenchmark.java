@@ -0,0 +1,92 @@
+package com.nutiteq.advancedmap.geocode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Measures OfflineGeocoder query latency for as-you-type search. Queries are typed names of random
+ * entries, one letter at a time, half of them with city name added, so short prefixes with long
+ * posting lists are measured too. Entries are picked with fixed seed, so same index gives same queries.
+ *
+ * Run from background thread, AdvancedMapActivity has a menu item for it. Results (median, 95th percentile
+ * and max time, and number of queries over TARGET_MILLIS) are written to log and returned as text.
+ *
+ * @author jaak
+ *
+ */
+public class GeocodeBenchmark {
+    public static final int DEFAULT_NAME_COUNT = 200;
+    // as-you-type search should keep up with typing
+    public static final float TARGET_MILLIS = 10.0f;
+    private static final int RESULT_LIMIT = 10;
+    private static final int WARMUP_NAME_COUNT = 20;
+
+    private final OfflineGeocoder geocoder;
+
+    public GeocodeBenchmark(OfflineGeocoder geocoder) {
+        this.geocoder = geocoder;
+    }
+
+    /**
+     * @param nameCount number of names to type
+     * @return results as text
+     */
+    public String run(int nameCount) {
+        if (geocoder.getEntryCount() == 0) {
+            return "empty index";
+        }
+        List<String> queries = createQueries(nameCount);
+        // warm up JIT
+        for (String query : createQueries(WARMUP_NAME_COUNT)) {
+            geocoder.search(query, Double.NaN, Double.NaN, RESULT_LIMIT);
+        }
+
+        long[] times = new long[queries.size()];
+        for (int i = 0; i < times.length; i++) {
+            long start = System.nanoTime();
+            geocoder.search(queries.get(i), Double.NaN, Double.NaN, RESULT_LIMIT);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        int slowCount = 0;
+        for (long time : times) {
+            if (time > TARGET_MILLIS * 1000000) {
+                slowCount++;
+            }
+        }
+        String result = times.length + " queries, " + geocoder.getEntryCount() + " entries: median " + formatMillis(times[times.length / 2])
+                + " ms, 95% " + formatMillis(times[times.length * 95 / 100]) + " ms, max " + formatMillis(times[times.length - 1])
+                + " ms, " + slowCount + " over " + TARGET_MILLIS + " ms";
+        Log.info("GeocodeBenchmark: " + result);
+        return result;
+    }
+
+    private List<String> createQueries(int nameCount) {
+        Random random = new Random(nameCount);
+        List<String> queries = new ArrayList<String>();
+        for (int i = 0; i < nameCount; i++) {
+            int id = random.nextInt(geocoder.getEntryCount());
+            String text = geocoder.getString(id, 0);
+            String city = geocoder.getString(id, 1);
+            if (city.length() > 0 && random.nextBoolean()) {
+                text += " " + city;
+            }
+            for (int length = 1; length <= text.length(); length++) {
+                if (text.charAt(length - 1) != ' ') {
+                    queries.add(text.substring(0, length));
+                }
+            }
+        }
+        return queries;
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.valueOf(Math.round(nanos / 10000.0) / 100.0);
+    }
+
+}
@@ -0,0 +1,591 @@
+package com.nutiteq.advancedmap.geocode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Builds OfflineGeocoder index from OSM XML extract (e.g. from Overpass API or osmosis).
+ *
+ * Indexed are place nodes (country, state, county, city, town, village, suburb etc.), named streets
+ * (ways with highway tag, all ways with same name in same city are merged) and addresses
+ * (nodes and ways with addr:housenumber and addr:street) and named POIs (amenity, shop, tourism,
+ * leisure and historic features). City, county, state and country of an
+ * entry are taken from addr:* and is_in:* tags, or from nearest place of that level.
+ * Relations are not used, so administrative areas are known by their place nodes only.
+ *
+ * Entries are sorted by importance, which depends on type, population and road class, so ids
+ * are in rank order in the posting lists. Geometry of street ways is saved too, for reverse
+ * geocoding.
+ *
+ * Extract is read twice: first pass collects ids of nodes used by indexed ways, second pass keeps
+ * coordinates of those nodes only, in primitive arrays, so most nodes of the extract (building
+ * outlines, paths etc.) are not held in memory.
+ *
+ * @author jaak
+ *
+ */
+public class GeocodeIndexBuilder {
+    // grid cell size in degrees for nearest place search
+    private static final double GRID_SIZE = 0.2;
+
+    private static class Entry {
+        int type;
+        int lat;
+        int lon;
+        float importance;
+        String name;
+        String[] areas = new String[4];
+        int size;
+        // street geometry, lat and lon pairs of each way
+        List<int[]> lines;
+    }
+
+    // latitude of node which is not found in extract
+    private static final int MISSING = Integer.MIN_VALUE;
+
+    // sorted ids of nodes used by indexed ways, and their coordinates
+    private final long[] nodeIds;
+    private final int[] nodeLats;
+    private final int[] nodeLons;
+    private int nodeCount;
+
+    private final List<Entry> places = new ArrayList<Entry>();
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final List<Entry> streetParts = new ArrayList<Entry>();
+
+    private GeocodeIndexBuilder(long[] nodeIds) {
+        this.nodeIds = nodeIds;
+        nodeLats = new int[nodeIds.length];
+        nodeLons = new int[nodeIds.length];
+        Arrays.fill(nodeLats, MISSING);
+    }
+
+    /**
+     * Parse OSM XML file and write index.
+     *
+     * @throws IOException if OSM can not be read or index written
+     */
+    public static void build(File osmFile, File indexFile) throws IOException {
+        long startTime = System.currentTimeMillis();
+        GeocodeIndexBuilder builder;
+        try {
+            InputStream osm = new BufferedInputStream(new FileInputStream(osmFile), 65536);
+            try {
+                builder = new GeocodeIndexBuilder(readWayNodeIds(osm));
+            } finally {
+                osm.close();
+            }
+            osm = new BufferedInputStream(new FileInputStream(osmFile), 65536);
+            try {
+                builder.parse(osm);
+            } finally {
+                osm.close();
+            }
+        } catch (XmlPullParserException e) {
+            throw new IOException("GeocodeIndexBuilder: Failed to parse OSM! " + e.getMessage());
+        }
+        builder.assignAreas();
+
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 65536));
+        try {
+            builder.write(out);
+        } finally {
+            out.close();
+        }
+        if (indexFile.exists() && !indexFile.delete() || !tempFile.renameTo(indexFile)) {
+            throw new IOException("GeocodeIndexBuilder: Failed to replace " + indexFile);
+        }
+        Log.debug("GeocodeIndexBuilder: " + builder.entries.size() + " entries from " + builder.nodeCount + " nodes, "
+                + builder.nodeIds.length + " kept for ways, in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    // first pass: sorted unique ids of nodes of ways which are indexed
+    private static long[] readWayNodeIds(InputStream osm) throws XmlPullParserException, IOException {
+        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setInput(osm, null);
+        Map<String, String> tags = new HashMap<String, String>();
+        long[] refs = new long[256];
+        int refCount = 0;
+        long[] ids = new long[65536];
+        int idCount = 0;
+        boolean inWay = false;
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+            if (event == XmlPullParser.START_TAG) {
+                String name = parser.getName();
+                if (name.equals("way")) {
+                    inWay = true;
+                    tags.clear();
+                    refCount = 0;
+                } else if (!inWay) {
+                    continue;
+                } else if (name.equals("nd")) {
+                    if (refCount == refs.length) {
+                        refs = resize(refs, refCount * 2);
+                    }
+                    refs[refCount++] = Long.parseLong(parser.getAttributeValue(null, "ref"));
+                } else if (name.equals("tag")) {
+                    tags.put(parser.getAttributeValue(null, "k"), parser.getAttributeValue(null, "v"));
+                }
+            } else if (event == XmlPullParser.END_TAG && parser.getName().equals("way")) {
+                inWay = false;
+                if (isIndexedWay(tags)) {
+                    if (idCount + refCount > ids.length) {
+                        ids = resize(ids, Math.max(ids.length * 2, idCount + refCount));
+                    }
+                    System.arraycopy(refs, 0, ids, idCount, refCount);
+                    idCount += refCount;
+                }
+            }
+        }
+        Arrays.sort(ids, 0, idCount);
+        int uniqueCount = 0;
+        for (int i = 0; i < idCount; i++) {
+            if (uniqueCount == 0 || ids[i] != ids[uniqueCount - 1]) {
+                ids[uniqueCount++] = ids[i];
+            }
+        }
+        return resize(ids, uniqueCount);
+    }
+
+    // same conditions as in addFeature(), for ways
+    private static boolean isIndexedWay(Map<String, String> tags) {
+        String name = tags.get("name");
+        if (name != null && (tags.containsKey("highway") || isPoi(tags))) {
+            return true;
+        }
+        return tags.containsKey("addr:housenumber") && tags.containsKey("addr:street");
+    }
+
+    private void parse(InputStream osm) throws XmlPullParserException, IOException {
+        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setInput(osm, null);
+        Map<String, String> tags = new HashMap<String, String>();
+        long[] refs = new long[256];
+        int refCount = 0;
+        int lat = 0;
+        int lon = 0;
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+            if (event == XmlPullParser.START_TAG) {
+                String name = parser.getName();
+                if (name.equals("node")) {
+                    tags.clear();
+                    lat = parseMicroDegrees(parser.getAttributeValue(null, "lat"));
+                    lon = parseMicroDegrees(parser.getAttributeValue(null, "lon"));
+                    addNode(Long.parseLong(parser.getAttributeValue(null, "id")), lat, lon);
+                } else if (name.equals("way") || name.equals("relation")) {
+                    tags.clear();
+                    refCount = 0;
+                } else if (name.equals("nd")) {
+                    if (refCount == refs.length) {
+                        refs = resize(refs, refCount * 2);
+                    }
+                    refs[refCount++] = Long.parseLong(parser.getAttributeValue(null, "ref"));
+                } else if (name.equals("tag")) {
+                    tags.put(parser.getAttributeValue(null, "k"), parser.getAttributeValue(null, "v"));
+                }
+            } else if (event == XmlPullParser.END_TAG) {
+                String name = parser.getName();
+                if (name.equals("node") && !tags.isEmpty()) {
+                    addFeature(tags, lat, lon, 1);
+                } else if (name.equals("way") && refCount > 0 && !tags.isEmpty()) {
+                    int[] line = new int[refCount * 2];
+                    int pointCount = 0;
+                    for (int i = 0; i < refCount; i++) {
+                        int index = findNode(refs[i]);
+                        if (index >= 0) {
+                            line[pointCount * 2] = nodeLats[index];
+                            line[pointCount * 2 + 1] = nodeLons[index];
+                            pointCount++;
+                        }
+                    }
+                    if (pointCount > 0) {
+                        // middle node is on the street, unlike centroid of a curved street
+                        Entry entry = addFeature(tags, line[pointCount / 2 * 2], line[pointCount / 2 * 2 + 1], pointCount);
+                        if (entry != null && pointCount > 1) {
+                            entry.lines = new ArrayList<int[]>();
+                            entry.lines.add(resize(line, pointCount * 2));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // coordinates are kept only if node is used by an indexed way
+    private void addNode(long id, int lat, int lon) {
+        nodeCount++;
+        int index = Arrays.binarySearch(nodeIds, id);
+        if (index >= 0) {
+            nodeLats[index] = lat;
+            nodeLons[index] = lon;
+        }
+    }
+
+    private int findNode(long id) {
+        int index = Arrays.binarySearch(nodeIds, id);
+        return index >= 0 && nodeLats[index] != MISSING ? index : -1;
+    }
+
+    // returns street entry, if feature is a street
+    private Entry addFeature(Map<String, String> tags, int lat, int lon, int size) {
+        String name = tags.get("name");
+        String place = tags.get("place");
+        String highway = tags.get("highway");
+        String houseNumber = tags.get("addr:housenumber");
+        String street = tags.get("addr:street");
+
+        if (place != null && name != null && size == 1) {
+            int type = getPlaceType(place);
+            if (type >= 0) {
+                Entry entry = createEntry(type, name, lat, lon, tags);
+                entry.importance = getPlaceImportance(place);
+                String population = tags.get("population");
+                if (population != null) {
+                    try {
+                        entry.importance += 5 * (float) Math.log10(1 + Math.max(0, Long.parseLong(population.replace(",", "").trim())));
+                    } catch (NumberFormatException e) {
+                        // population is free text sometimes
+                    }
+                }
+                places.add(entry);
+                entries.add(entry);
+            }
+        }
+        Entry streetPart = null;
+        if (highway != null && name != null && size > 1) {
+            streetPart = createEntry(OfflineGeocoder.TYPE_STREET, name, lat, lon, tags);
+            streetPart.importance = getStreetImportance(highway);
+            streetPart.size = size;
+            streetParts.add(streetPart);
+        }
+        if (name != null && place == null && highway == null && isPoi(tags)) {
+            Entry entry = createEntry(OfflineGeocoder.TYPE_POI, name, lat, lon, tags);
+            entry.importance = 12;
+            entries.add(entry);
+        } else if (houseNumber != null && street != null) {
+            Entry entry = createEntry(OfflineGeocoder.TYPE_ADDRESS, street + " " + houseNumber, lat, lon, tags);
+            entry.importance = 10;
+            entries.add(entry);
+        }
+        return streetPart;
+    }
+
+    private static boolean isPoi(Map<String, String> tags) {
+        return tags.containsKey("amenity") || tags.containsKey("shop") || tags.containsKey("tourism")
+                || tags.containsKey("leisure") || tags.containsKey("historic");
+    }
+
+    private static Entry createEntry(int type, String name, int lat, int lon, Map<String, String> tags) {
+        Entry entry = new Entry();
+        entry.type = type;
+        entry.name = name;
+        entry.lat = lat;
+        entry.lon = lon;
+        entry.areas[0] = getTag(tags, "addr:city", "is_in:city");
+        entry.areas[1] = getTag(tags, "addr:county", "is_in:county");
+        entry.areas[2] = getTag(tags, "addr:state", "is_in:state");
+        entry.areas[3] = getTag(tags, "addr:country", "is_in:country");
+        return entry;
+    }
+
+    private static String getTag(Map<String, String> tags, String key1, String key2) {
+        String value = tags.get(key1);
+        return value != null ? value : tags.get(key2);
+    }
+
+    private static int getPlaceType(String place) {
+        if (place.equals("country")) {
+            return OfflineGeocoder.TYPE_COUNTRY;
+        } else if (place.equals("state") || place.equals("province") || place.equals("region")) {
+            return OfflineGeocoder.TYPE_STATE;
+        } else if (place.equals("county") || place.equals("district")) {
+            return OfflineGeocoder.TYPE_COUNTY;
+        } else if (place.equals("city") || place.equals("town") || place.equals("village") || place.equals("hamlet")) {
+            return OfflineGeocoder.TYPE_CITY;
+        } else if (place.equals("suburb") || place.equals("quarter") || place.equals("neighbourhood") || place.equals("locality")) {
+            return OfflineGeocoder.TYPE_SUBURB;
+        }
+        return -1;
+    }
+
+    private static float getPlaceImportance(String place) {
+        if (place.equals("country")) {
+            return 100;
+        } else if (place.equals("state") || place.equals("province") || place.equals("region")) {
+            return 80;
+        } else if (place.equals("county") || place.equals("district")) {
+            return 60;
+        } else if (place.equals("city")) {
+            return 55;
+        } else if (place.equals("town")) {
+            return 45;
+        } else if (place.equals("village") || place.equals("suburb")) {
+            return 30;
+        } else if (place.equals("hamlet") || place.equals("quarter")) {
+            return 20;
+        }
+        return 15;
+    }
+
+    private static float getStreetImportance(String highway) {
+        if (highway.startsWith("motorway") || highway.startsWith("trunk") || highway.startsWith("primary")) {
+            return 22;
+        } else if (highway.startsWith("secondary")) {
+            return 20;
+        } else if (highway.startsWith("tertiary")) {
+            return 18;
+        } else if (highway.equals("residential") || highway.equals("unclassified") || highway.equals("living_street")) {
+            return 15;
+        }
+        return 12;
+    }
+
+    // fill missing city, county, state and country from nearest place of that level
+    private void assignAreas() {
+        List<Entry> allEntries = new ArrayList<Entry>(entries);
+        allEntries.addAll(streetParts);
+
+        List<Map<Long, List<Entry>>> grids = new ArrayList<Map<Long, List<Entry>>>();
+        int[] areaTypes = { OfflineGeocoder.TYPE_CITY, OfflineGeocoder.TYPE_COUNTY, OfflineGeocoder.TYPE_STATE, OfflineGeocoder.TYPE_COUNTRY };
+        double[] gridSizes = { GRID_SIZE, GRID_SIZE * 4, GRID_SIZE * 16, GRID_SIZE * 64 };
+        for (int level = 0; level < areaTypes.length; level++) {
+            Map<Long, List<Entry>> grid = new HashMap<Long, List<Entry>>();
+            for (Entry place : places) {
+                if (place.type == areaTypes[level]) {
+                    Long cell = getCell(place.lat, place.lon, gridSizes[level]);
+                    List<Entry> cellPlaces = grid.get(cell);
+                    if (cellPlaces == null) {
+                        cellPlaces = new ArrayList<Entry>();
+                        grid.put(cell, cellPlaces);
+                    }
+                    cellPlaces.add(place);
+                }
+            }
+            grids.add(grid);
+        }
+
+        for (Entry entry : allEntries) {
+            for (int level = 0; level < areaTypes.length; level++) {
+                if (entry.areas[level] != null || entry.type <= areaTypes[level]) {
+                    continue;
+                }
+                Entry nearest = findNearest(grids.get(level), entry, gridSizes[level]);
+                if (nearest != null) {
+                    entry.areas[level] = nearest.name;
+                }
+            }
+        }
+
+        // same street in same city is one entry, at the middle of its longest part
+        Map<String, Entry> streets = new HashMap<String, Entry>();
+        for (Entry part : streetParts) {
+            String key = part.name + "|" + part.areas[0];
+            Entry street = streets.get(key);
+            if (street == null) {
+                streets.put(key, part);
+                entries.add(part);
+            } else {
+                street.lines.addAll(part.lines);
+                street.importance = Math.max(street.importance, part.importance);
+                if (part.size > street.size) {
+                    street.lat = part.lat;
+                    street.lon = part.lon;
+                    street.size = part.size;
+                }
+            }
+        }
+        streetParts.clear();
+    }
+
+    private static Entry findNearest(Map<Long, List<Entry>> grid, Entry entry, double gridSize) {
+        Entry nearest = null;
+        double nearestDistance = Double.MAX_VALUE;
+        double scale = Math.cos(Math.toRadians(entry.lat / 1e6));
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                List<Entry> cellPlaces = grid.get(getCell(entry.lat + dy * (int) (gridSize * 1e6), entry.lon + dx * (int) (gridSize * 1e6), gridSize));
+                if (cellPlaces == null) {
+                    continue;
+                }
+                for (Entry place : cellPlaces) {
+                    double lat = place.lat - entry.lat;
+                    double lon = (place.lon - entry.lon) * scale;
+                    double distance = lat * lat + lon * lon;
+                    if (distance < nearestDistance) {
+                        nearestDistance = distance;
+                        nearest = place;
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    // coordinate in micro-degrees, +-180 degrees fits to int
+    private static int parseMicroDegrees(String value) {
+        return (int) Math.round(Double.parseDouble(value) * 1e6);
+    }
+
+    // Arrays.copyOf is not available before API 9
+    private static long[] resize(long[] array, int size) {
+        long[] resized = new long[size];
+        System.arraycopy(array, 0, resized, 0, Math.min(array.length, size));
+        return resized;
+    }
+
+    static int[] resize(int[] array, int size) {
+        int[] resized = new int[size];
+        System.arraycopy(array, 0, resized, 0, Math.min(array.length, size));
+        return resized;
+    }
+
+    private static Long getCell(int lat, int lon, double gridSize) {
+        long y = (long) Math.floor(lat / 1e6 / gridSize);
+        long x = (long) Math.floor(lon / 1e6 / gridSize);
+        return (y << 32) + x;
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry entry1, Entry entry2) {
+                return Float.compare(entry2.importance, entry1.importance);
+            }
+        });
+
+        // string pool and postings of all words of name and areas
+        Map<String, Integer> stringIds = new HashMap<String, Integer>();
+        List<String> strings = new ArrayList<String>();
+        TreeMap<String, List<Integer>> postings = new TreeMap<String, List<Integer>>();
+        List<List<String>> entryWords = new ArrayList<List<String>>();
+        for (int id = 0; id < entries.size(); id++) {
+            Entry entry = entries.get(id);
+            List<String> words = new ArrayList<String>();
+            words.addAll(OfflineGeocoder.tokenize(entry.name));
+            getStringId(entry.name, stringIds, strings);
+            for (String area : entry.areas) {
+                if (area != null) {
+                    words.addAll(OfflineGeocoder.tokenize(area));
+                    getStringId(area, stringIds, strings);
+                }
+            }
+            for (String word : words) {
+                List<Integer> ids = postings.get(word);
+                if (ids == null) {
+                    ids = new ArrayList<Integer>();
+                    postings.put(word, ids);
+                }
+                if (ids.isEmpty() || ids.get(ids.size() - 1) != id) {
+                    ids.add(id);
+                }
+            }
+            entryWords.add(words);
+        }
+        List<String> keys = new ArrayList<String>(postings.keySet());
+        Map<String, Integer> keyIds = new HashMap<String, Integer>();
+        List<int[]> keyPostings = new ArrayList<int[]>();
+        for (String key : keys) {
+            keyIds.put(key, keyIds.size());
+            List<Integer> ids = postings.get(key);
+            int[] array = new int[ids.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = ids.get(i);
+            }
+            keyPostings.add(array);
+        }
+
+        out.writeInt(OfflineGeocoder.MAGIC);
+        out.writeInt(OfflineGeocoder.VERSION);
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeByte(entry.type);
+            out.writeInt(entry.lat);
+            out.writeInt(entry.lon);
+            out.writeFloat(entry.importance);
+            out.writeInt(stringIds.get(entry.name));
+            for (String area : entry.areas) {
+                out.writeInt(area != null ? stringIds.get(area) : -1);
+            }
+        }
+
+        // key ids of each entry, delta coded
+        ByteArrayOutputStream tokenData = new ByteArrayOutputStream();
+        for (List<String> words : entryWords) {
+            int[] ids = new int[words.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = keyIds.get(words.get(i));
+            }
+            Arrays.sort(ids);
+            int size = tokenData.size();
+            int last = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (i == 0 || ids[i] != ids[i - 1]) {
+                    PrefixIndex.writeVarint(tokenData, ids[i] - last);
+                    last = ids[i];
+                }
+            }
+            out.writeShort(tokenData.size() - size);
+        }
+        tokenData.writeTo(out);
+
+        PrefixIndex.write(out, keys, keyPostings);
+
+        // street lines: entry id, point count, points
+        int lineCount = 0;
+        for (Entry entry : entries) {
+            lineCount += entry.lines != null ? entry.lines.size() : 0;
+        }
+        out.writeInt(lineCount);
+        for (int id = 0; id < entries.size(); id++) {
+            Entry entry = entries.get(id);
+            if (entry.lines == null) {
+                continue;
+            }
+            for (int[] line : entry.lines) {
+                out.writeInt(id);
+                out.writeInt(line.length / 2);
+                for (int coordinate : line) {
+                    out.writeInt(coordinate);
+                }
+            }
+        }
+    }
+
+    private static int getStringId(String string, Map<String, Integer> stringIds, List<String> strings) {
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            id = strings.size();
+            stringIds.put(string, id);
+            strings.add(string);
+        }
+        return id;
+    }
+
+}
@@ -0,0 +1,530 @@
+package com.nutiteq.advancedmap.geocode;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.os.Environment;
+
+import com.nutiteq.log.Log;
+import com.nutiteq.services.geocode.SearchQueryResults;
+
+/**
+ *
+ * Offline geocoder for index built with GeocodeIndexBuilder from an OSM extract. Fast enough
+ * for as-you-type search: every word of the query is a prefix, the most selective word is
+ * looked up from PrefixIndex and its posting lists are merged in rank order, other words are checked
+ * against token ids of each candidate. Candidates are ranked again by importance and distance
+ * from given location. If a word has no prefix match, the closest key with small edit distance is
+ * used instead, so simple typos are tolerated.
+ *
+ * Results are JSON in same form as MapQuest geocoder gives, so same SearchQueryResults
+ * implementation can show both.
+ *
+ * @author jaak
+ *
+ */
+public class OfflineGeocoder {
+    static final int MAGIC = 0x4e474931;
+    static final int VERSION = 3;
+
+    // OSM extract on SD card, index is built from it to app directory
+    private static final String OSM_EXTRACT = "mapxt/geocode.osm";
+    private static final String INDEX_FILE = "index.bin";
+
+    public static final int TYPE_COUNTRY = 0;
+    public static final int TYPE_STATE = 1;
+    public static final int TYPE_COUNTY = 2;
+    public static final int TYPE_CITY = 3;
+    public static final int TYPE_SUBURB = 4;
+    public static final int TYPE_STREET = 5;
+    public static final int TYPE_ADDRESS = 6;
+    public static final int TYPE_POI = 7;
+
+    // MapQuest geocodeQuality values for types
+    private static final String[] TYPE_QUALITY = { "COUNTRY", "STATE", "COUNTY", "CITY", "NEIGHBORHOOD", "STREET", "ADDRESS", "POINT" };
+
+    // candidates checked for other query words, and candidates ranked by distance
+    private static final int MAX_SCAN = 20000;
+    private static final int MAX_CANDIDATES = 200;
+    // score decrease per tenfold distance in km
+    private static final float DISTANCE_WEIGHT = 10.0f;
+    // score decrease per typo
+    private static final float TYPO_PENALTY = 10.0f;
+
+    private static final String ACCENTED = "àáâãäåāăąçćĉċčďđèéêëēĕėęěĝğġģĥħìíîïĩīĭįıĵķĺļľŀłñńņňòóôõöøōŏőŕŗřśŝşšţťŧùúûüũūŭůűųŵýÿŷźżž";
+    private static final String PLAIN    = "aaaaaaaaacccccddeeeeeeeeegggghhiiiiiiiiijklllllnnnnooooooooorrrsssstttuuuuuuuuuuwyyyzzz";
+
+    private static OfflineGeocoder sharedInstance;
+    private static File sharedFile;
+    private static long sharedModified;
+    // only one index build at a time, without blocking getLoadedInstance()
+    private static final Object buildLock = new Object();
+
+    private final String[] strings;
+    private final byte[] types;
+    private final int[] latitudes;
+    private final int[] longitudes;
+    private final float[] importances;
+    // string ids: name, city, county, state, country
+    private final int[] fields;
+    private final byte[] tokenData;
+    private final int[] tokenOffsets;
+    private final PrefixIndex index;
+    // street lines: entry id and first point of each line, lat and lon of points
+    private final int[] lineIds;
+    private final int[] lineStarts;
+    private final int[] linePoints;
+
+    /**
+     * Found entry with score.
+     */
+    public static class Result {
+        public final int id;
+        public final float score;
+
+        Result(int id, float score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Load index.
+     *
+     * @throws IOException if index can not be read or has wrong version
+     */
+    public OfflineGeocoder(File indexFile) throws IOException {
+        long startTime = System.currentTimeMillis();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 65536));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("OfflineGeocoder: Wrong index version in " + indexFile);
+            }
+            strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+            int count = in.readInt();
+            types = new byte[count];
+            latitudes = new int[count];
+            longitudes = new int[count];
+            importances = new float[count];
+            fields = new int[count * 5];
+            for (int i = 0; i < count; i++) {
+                types[i] = in.readByte();
+                latitudes[i] = in.readInt();
+                longitudes[i] = in.readInt();
+                importances[i] = in.readFloat();
+                for (int j = 0; j < 5; j++) {
+                    fields[i * 5 + j] = in.readInt();
+                }
+            }
+            tokenOffsets = new int[count + 1];
+            for (int i = 1; i <= count; i++) {
+                tokenOffsets[i] = tokenOffsets[i - 1] + in.readUnsignedShort();
+            }
+            tokenData = new byte[tokenOffsets[count]];
+            in.readFully(tokenData);
+            index = new PrefixIndex(in);
+
+            int lineCount = in.readInt();
+            lineIds = new int[lineCount];
+            lineStarts = new int[lineCount + 1];
+            int[] points = new int[1024];
+            for (int i = 0; i < lineCount; i++) {
+                lineIds[i] = in.readInt();
+                int pointCount = in.readInt();
+                lineStarts[i + 1] = lineStarts[i] + pointCount;
+                if (lineStarts[i + 1] * 2 > points.length) {
+                    points = GeocodeIndexBuilder.resize(points, Math.max(points.length * 2, lineStarts[i + 1] * 2));
+                }
+                for (int j = lineStarts[i] * 2; j < lineStarts[i + 1] * 2; j++) {
+                    points[j] = in.readInt();
+                }
+            }
+            linePoints = GeocodeIndexBuilder.resize(points, lineStarts[lineCount] * 2);
+        } finally {
+            in.close();
+        }
+        Log.debug("OfflineGeocoder: loaded " + types.length + " entries, " + index.getKeyCount() + " keys in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * OSM extract for offline geocoder, it may not exist.
+     */
+    public static File getOsmExtractFile() {
+        return new File(Environment.getExternalStorageDirectory(), OSM_EXTRACT);
+    }
+
+    /**
+     * Index file built from OSM extract.
+     */
+    public static File getIndexFile(Context context) {
+        return new File(context.getDir("geocode", Context.MODE_PRIVATE), INDEX_FILE);
+    }
+
+    /**
+     * Index file exists and has current version. Index from older version of the app must be built again.
+     */
+    public static boolean isCurrentIndex(File indexFile) {
+        if (!indexFile.exists()) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(indexFile));
+            try {
+                return in.readInt() == MAGIC && in.readInt() == VERSION;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get geocoder shared by all activities, index is loaded again if file has changed.
+     *
+     * @throws IOException if index can not be read
+     */
+    public static synchronized OfflineGeocoder getInstance(File indexFile) throws IOException {
+        if (sharedInstance == null || !indexFile.equals(sharedFile) || indexFile.lastModified() != sharedModified) {
+            sharedInstance = new OfflineGeocoder(indexFile);
+            sharedFile = indexFile;
+            sharedModified = indexFile.lastModified();
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * Get shared geocoder, index is built first if it is missing, older than OSM extract or has old version.
+     * Call from background thread, building takes long.
+     *
+     * @throws IOException if index can not be built or read
+     */
+    public static OfflineGeocoder getInstance(File osmFile, File indexFile) throws IOException {
+        synchronized (buildLock) {
+            if (!isCurrentIndex(indexFile) || indexFile.lastModified() < osmFile.lastModified()) {
+                GeocodeIndexBuilder.build(osmFile, indexFile);
+            }
+        }
+        return getInstance(indexFile);
+    }
+
+    /**
+     * Shared geocoder if it is loaded already, otherwise null.
+     */
+    public static synchronized OfflineGeocoder getLoadedInstance() {
+        return sharedInstance;
+    }
+
+    /**
+     * Search and give results to receiver in calling thread, in MapQuest geocoder format.
+     *
+     * @param query free text, words can be incomplete
+     * @param lon longitude of user or map, for ranking, NaN if unknown
+     * @param lat latitude of user or map
+     * @param limit maximum number of results
+     */
+    public void geocode(String query, double lon, double lat, int limit, SearchQueryResults results) {
+        results.searchResults(toJson(search(query, lon, lat, limit)));
+    }
+
+    /**
+     * Find entries with all query words.
+     *
+     * @return results, best first
+     */
+    public List<Result> search(String query, double lon, double lat, int limit) {
+        long startTime = System.nanoTime();
+        List<Result> results = new ArrayList<Result>();
+        List<String> words = tokenize(query);
+        if (words.isEmpty()) {
+            return results;
+        }
+
+        // key range for each word, the word with fewest postings drives the search
+        int[][] ranges = new int[words.size()][];
+        int driver = 0;
+        int typos = 0;
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = index.getPrefixRange(words.get(i));
+            if (ranges[i][0] == ranges[i][1]) {
+                int[] similar = findSimilarKey(words.get(i));
+                if (similar == null) {
+                    return results;
+                }
+                ranges[i] = new int[] { similar[0], similar[0] + 1 };
+                typos += similar[1];
+            }
+            if (index.getPostingCount(ranges[i][0], ranges[i][1]) < index.getPostingCount(ranges[driver][0], ranges[driver][1])) {
+                driver = i;
+            }
+        }
+
+        // entries are sorted by importance, so merged postings come in rank order
+        PriorityQueue<PrefixIndex.PostingCursor> queue = new PriorityQueue<PrefixIndex.PostingCursor>();
+        for (int keyId = ranges[driver][0]; keyId < ranges[driver][1]; keyId++) {
+            PrefixIndex.PostingCursor cursor = index.getPostings(keyId);
+            if (cursor.next()) {
+                queue.add(cursor);
+            }
+        }
+        int lastId = -1;
+        int scanned = 0;
+        while (!queue.isEmpty() && results.size() < MAX_CANDIDATES && scanned < MAX_SCAN) {
+            PrefixIndex.PostingCursor cursor = queue.poll();
+            int id = cursor.getId();
+            if (cursor.next()) {
+                queue.add(cursor);
+            }
+            if (id == lastId) {
+                continue;
+            }
+            lastId = id;
+            scanned++;
+            if (matches(id, ranges, driver)) {
+                results.add(new Result(id, getScore(id, lon, lat) - typos * TYPO_PENALTY));
+            }
+        }
+
+        Collections.sort(results, new Comparator<Result>() {
+            @Override
+            public int compare(Result result1, Result result2) {
+                return Float.compare(result2.score, result1.score);
+            }
+        });
+        if (results.size() > limit) {
+            results = new ArrayList<Result>(results.subList(0, limit));
+        }
+        Log.debug("OfflineGeocoder: '" + query + "' " + results.size() + " results, " + scanned + " scanned in "
+                + (System.nanoTime() - startTime) / 1000 + " us");
+        return results;
+    }
+
+    /**
+     * Results in MapQuest geocoder format: street, adminArea5 (city), adminArea4 (county),
+     * adminArea3 (state), adminArea1 (country), latLng and geocodeQuality.
+     */
+    public JSONArray toJson(List<Result> results) {
+        JSONArray locations = new JSONArray();
+        for (Result result : results) {
+            int id = result.id;
+            try {
+                JSONObject location = new JSONObject();
+                int type = types[id];
+                if (type >= TYPE_STREET) {
+                    location.put("street", getString(id, 0));
+                    location.put("adminArea5", getString(id, 1));
+                } else if (type == TYPE_CITY || type == TYPE_SUBURB) {
+                    location.put("adminArea5", getString(id, 0));
+                } else if (type == TYPE_COUNTY) {
+                    location.put("adminArea4", getString(id, 0));
+                } else if (type == TYPE_STATE) {
+                    location.put("adminArea3", getString(id, 0));
+                } else {
+                    location.put("adminArea1", getString(id, 0));
+                }
+                if (type > TYPE_COUNTY) {
+                    location.put("adminArea4", getString(id, 2));
+                }
+                if (type > TYPE_STATE) {
+                    location.put("adminArea3", getString(id, 3));
+                }
+                if (type > TYPE_COUNTRY) {
+                    location.put("adminArea1", getString(id, 4));
+                }
+                JSONObject latLng = new JSONObject();
+                latLng.put("lat", getLatitude(id));
+                latLng.put("lng", getLongitude(id));
+                location.put("latLng", latLng);
+                location.put("geocodeQuality", TYPE_QUALITY[type]);
+                locations.put(location);
+            } catch (JSONException e) {
+                Log.error("OfflineGeocoder: Failed to create result! " + e.getMessage());
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Entries of given type near a location, e.g. POIs for local suggestions. Linear scan, so
+     * this is for background use.
+     *
+     * @return entry ids in importance order
+     */
+    public List<Integer> getEntriesNear(int type, double lon, double lat, double radiusKm, int limit) {
+        List<Integer> ids = new ArrayList<Integer>();
+        double maxLat = radiusKm / 111.32;
+        double maxLon = maxLat / Math.max(0.01, Math.cos(Math.toRadians(lat)));
+        for (int id = 0; id < types.length && ids.size() < limit; id++) {
+            if (types[id] == type && Math.abs(getLatitude(id) - lat) <= maxLat && Math.abs(getLongitude(id) - lon) <= maxLon) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    public int getLineCount() {
+        return lineIds.length;
+    }
+
+    /**
+     * Street entry of line.
+     */
+    public int getLineEntry(int line) {
+        return lineIds[line];
+    }
+
+    /**
+     * Points of all lines, index of first point of line is getLineStart(line), points of line
+     * end at getLineStart(line + 1).
+     */
+    public int getLineStart(int line) {
+        return lineStarts[line];
+    }
+
+    public double getPointLatitude(int point) {
+        return linePoints[point * 2] / 1e6;
+    }
+
+    public double getPointLongitude(int point) {
+        return linePoints[point * 2 + 1] / 1e6;
+    }
+
+    public float getImportance(int id) {
+        return importances[id];
+    }
+
+    public int getEntryCount() {
+        return types.length;
+    }
+
+    public PrefixIndex getIndex() {
+        return index;
+    }
+
+    public int getType(int id) {
+        return types[id];
+    }
+
+    public double getLatitude(int id) {
+        return latitudes[id] / 1e6;
+    }
+
+    public double getLongitude(int id) {
+        return longitudes[id] / 1e6;
+    }
+
+    /**
+     * Name, city, county, state or country of entry.
+     *
+     * @param field 0 for name, 1 city, 2 county, 3 state, 4 country
+     * @return field value, empty if not known
+     */
+    public String getString(int id, int field) {
+        int stringId = fields[id * 5 + field];
+        return stringId >= 0 ? strings[stringId] : "";
+    }
+
+    /**
+     * Normalized words of text: lower case, without accents, letters and digits only.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+        String lower = text.toLowerCase(Locale.ENGLISH);
+        for (int i = 0; i <= lower.length(); i++) {
+            char c = i < lower.length() ? lower.charAt(i) : ' ';
+            int accent = ACCENTED.indexOf(c);
+            if (accent >= 0) {
+                word.append(PLAIN.charAt(accent));
+            } else if (c == 'ß') {
+                word.append("ss");
+            } else if (c == 'æ') {
+                word.append("ae");
+            } else if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+
+    // maximum edits for a word, short words must be typed correctly
+    static int getMaxEdits(String word) {
+        return word.length() < 4 ? 0 : word.length() < 8 ? 1 : 2;
+    }
+
+    // closest key for a mistyped word: fewest edits, then most postings
+    private int[] findSimilarKey(String word) {
+        int maxEdits = getMaxEdits(word);
+        if (maxEdits == 0) {
+            return null;
+        }
+        int[] best = null;
+        for (int[] similar : index.findSimilar(word, maxEdits)) {
+            if (best == null || similar[1] < best[1]
+                    || similar[1] == best[1] && index.getPostingCount(similar[0], similar[0] + 1) > index.getPostingCount(best[0], best[0] + 1)) {
+                best = similar;
+            }
+        }
+        return best;
+    }
+
+    private boolean matches(int id, int[][] ranges, int driver) {
+        for (int i = 0; i < ranges.length; i++) {
+            if (i == driver) {
+                continue;
+            }
+            boolean found = false;
+            int position = tokenOffsets[id];
+            int keyId = 0;
+            while (position < tokenOffsets[id + 1] && !found) {
+                int value = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = tokenData[position++];
+                    value |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                keyId += value;
+                found = keyId >= ranges[i][0] && keyId < ranges[i][1];
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private float getScore(int id, double lon, double lat) {
+        if (Double.isNaN(lon) || Double.isNaN(lat)) {
+            return importances[id];
+        }
+        // equirectangular distance is precise enough for ranking
+        double dLat = getLatitude(id) - lat;
+        double dLon = (getLongitude(id) - lon) * Math.cos(Math.toRadians(lat));
+        double distanceKm = Math.sqrt(dLat * dLat + dLon * dLon) * 111.32;
+        return importances[id] - DISTANCE_WEIGHT * (float) Math.log10(1 + distanceKm);
+    }
+
+}
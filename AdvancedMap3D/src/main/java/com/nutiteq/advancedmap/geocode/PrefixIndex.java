@@ -0,0 +1,335 @@
+package com.nutiteq.advancedmap.geocode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * Sorted dictionary of keys with posting lists (ascending ids), compressed like a trie:
+ * keys are front coded in blocks, so each key stores only the suffix after the prefix shared with
+ * previous key, and posting lists are delta coded varints. Keys with same prefix are consecutive,
+ * so a prefix query gives a range of key ids, like a node in a trie, found with binary search
+ * over block first keys and short scan within one block.
+ *
+ * For typo tolerant search findSimilar() gives keys with small prefix edit distance to a word,
+ * only keys with same first letter are checked, as first letter is rarely mistyped.
+ *
+ * Index is immutable and can be used from several threads.
+ *
+ * @author jaak
+ *
+ */
+public class PrefixIndex {
+    private static final int BLOCK_SIZE = 16;
+
+    private final int keyCount;
+    private final String[] blockKeys;
+    private final int[] blockOffsets;
+    // per key: shared prefix length, suffix length, suffix chars
+    private final char[] keyData;
+    private final byte[] postingData;
+    private final int[] postingOffsets;
+    private final int[] postingCounts;
+
+    /**
+     * Iterator over posting list of one key.
+     */
+    public class PostingCursor implements Comparable<PostingCursor> {
+        private final int keyId;
+        private int position;
+        private int current = -1;
+
+        PostingCursor(int keyId) {
+            this.keyId = keyId;
+            this.position = postingOffsets[keyId];
+        }
+
+        /**
+         * Move to next id.
+         *
+         * @return false if list has ended
+         */
+        public boolean next() {
+            if (position >= postingOffsets[keyId + 1]) {
+                return false;
+            }
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = postingData[position++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            current = current < 0 ? value : current + value;
+            return true;
+        }
+
+        public int getId() {
+            return current;
+        }
+
+        public int getKeyId() {
+            return keyId;
+        }
+
+        @Override
+        public int compareTo(PostingCursor other) {
+            return current < other.current ? -1 : current > other.current ? 1 : 0;
+        }
+    }
+
+    /**
+     * Read index written with write().
+     */
+    public PrefixIndex(DataInputStream in) throws IOException {
+        keyCount = in.readInt();
+        keyData = new char[in.readInt()];
+        for (int i = 0; i < keyData.length; i++) {
+            keyData[i] = in.readChar();
+        }
+        postingData = new byte[in.readInt()];
+        in.readFully(postingData);
+        postingOffsets = new int[keyCount + 1];
+        postingCounts = new int[keyCount + 1];
+        for (int i = 1; i <= keyCount; i++) {
+            postingOffsets[i] = postingOffsets[i - 1] + in.readInt();
+            postingCounts[i] = postingCounts[i - 1] + in.readInt();
+        }
+
+        int blockCount = (keyCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        blockKeys = new String[blockCount];
+        blockOffsets = new int[blockCount];
+        int position = 0;
+        for (int i = 0; i < keyCount; i++) {
+            if (i % BLOCK_SIZE == 0) {
+                blockOffsets[i / BLOCK_SIZE] = position;
+                blockKeys[i / BLOCK_SIZE] = new String(keyData, position + 2, keyData[position + 1]);
+            }
+            position += 2 + keyData[position + 1];
+        }
+    }
+
+    /**
+     * Write index.
+     *
+     * @param keys sorted unique keys
+     * @param postings ascending ids for each key
+     */
+    public static void write(DataOutputStream out, List<String> keys, List<int[]> postings) throws IOException {
+        StringBuilder keyData = new StringBuilder();
+        String previous = "";
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            int shared = 0;
+            if (i % BLOCK_SIZE != 0) {
+                int max = Math.min(previous.length(), key.length());
+                while (shared < max && previous.charAt(shared) == key.charAt(shared)) {
+                    shared++;
+                }
+            }
+            keyData.append((char) shared).append((char) (key.length() - shared)).append(key, shared, key.length());
+            previous = key;
+        }
+
+        ByteArrayOutputStream postingData = new ByteArrayOutputStream();
+        int[] postingSizes = new int[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            int size = postingData.size();
+            int last = 0;
+            for (int id : postings.get(i)) {
+                writeVarint(postingData, id - last);
+                last = id;
+            }
+            postingSizes[i] = postingData.size() - size;
+        }
+
+        out.writeInt(keys.size());
+        out.writeInt(keyData.length());
+        out.writeChars(keyData.toString());
+        out.writeInt(postingData.size());
+        postingData.writeTo(out);
+        for (int i = 0; i < keys.size(); i++) {
+            out.writeInt(postingSizes[i]);
+            out.writeInt(postings.get(i).length);
+        }
+    }
+
+    public int getKeyCount() {
+        return keyCount;
+    }
+
+    public String getKey(int keyId) {
+        char[] buffer = new char[64];
+        int block = keyId / BLOCK_SIZE;
+        int position = blockOffsets[block];
+        int length = 0;
+        for (int i = block * BLOCK_SIZE; i <= keyId; i++) {
+            length = keyData[position];
+            int suffix = keyData[position + 1];
+            if (length + suffix > buffer.length) {
+                char[] newBuffer = new char[(length + suffix) * 2];
+                System.arraycopy(buffer, 0, newBuffer, 0, length);
+                buffer = newBuffer;
+            }
+            System.arraycopy(keyData, position + 2, buffer, length, suffix);
+            length += suffix;
+            position += 2 + suffix;
+        }
+        return new String(buffer, 0, length);
+    }
+
+    /**
+     * Id of first key which is equal or greater than given key.
+     */
+    public int lowerBound(String key) {
+        int low = 0;
+        int high = blockKeys.length - 1;
+        int block = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (blockKeys[mid].compareTo(key) <= 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (block < 0) {
+            return 0;
+        }
+        int end = Math.min(keyCount, (block + 1) * BLOCK_SIZE);
+        for (int i = block * BLOCK_SIZE; i < end; i++) {
+            if (getKey(i).compareTo(key) >= 0) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Range of keys starting with prefix.
+     *
+     * @return first key id and key id after last match, equal if nothing matches
+     */
+    public int[] getPrefixRange(String prefix) {
+        return new int[] { lowerBound(prefix), lowerBound(prefix + '\uffff') };
+    }
+
+    /**
+     * Id of key, or -1 if not found.
+     */
+    public int getKeyId(String key) {
+        int id = lowerBound(key);
+        return id < keyCount && getKey(id).equals(key) ? id : -1;
+    }
+
+    /**
+     * Keys which have a prefix within given edit distance from word.
+     *
+     * @param word normalized word
+     * @param maxEdits maximum number of inserted, deleted, replaced or swapped letters
+     * @return pairs of key id and edit distance
+     */
+    public List<int[]> findSimilar(String word, int maxEdits) {
+        List<int[]> similar = new ArrayList<int[]>();
+        if (word.length() == 0 || keyCount == 0) {
+            return similar;
+        }
+        int[] range = getPrefixRange(word.substring(0, 1));
+        if (range[0] == range[1]) {
+            return similar;
+        }
+        // keys are decoded sequentially from the block of first key
+        char[] buffer = new char[64];
+        int block = range[0] / BLOCK_SIZE;
+        int position = blockOffsets[block];
+        int length = 0;
+        for (int i = block * BLOCK_SIZE; i < range[1]; i++) {
+            length = keyData[position];
+            int suffix = keyData[position + 1];
+            if (length + suffix > buffer.length) {
+                char[] newBuffer = new char[(length + suffix) * 2];
+                System.arraycopy(buffer, 0, newBuffer, 0, length);
+                buffer = newBuffer;
+            }
+            System.arraycopy(keyData, position + 2, buffer, length, suffix);
+            length += suffix;
+            position += 2 + suffix;
+            if (i >= range[0]) {
+                int distance = getPrefixDistance(word, buffer, length, maxEdits);
+                if (distance <= maxEdits) {
+                    similar.add(new int[] { i, distance });
+                }
+            }
+        }
+        return similar;
+    }
+
+    /**
+     * Smallest edit distance (Damerau-Levenshtein, adjacent swap is one edit) between word and
+     * any prefix of key.
+     *
+     * @return distance, or maxEdits + 1 if it is larger than maxEdits
+     */
+    public static int getPrefixDistance(String word, char[] key, int keyLength, int maxEdits) {
+        int n = word.length();
+        int m = Math.min(keyLength, n + maxEdits);
+        int[] previous2 = new int[m + 1];
+        int[] previous = new int[m + 1];
+        int[] row = new int[m + 1];
+        for (int j = 0; j <= m; j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= n; i++) {
+            row[0] = i;
+            int rowMin = i;
+            char c = word.charAt(i - 1);
+            for (int j = 1; j <= m; j++) {
+                int cost = c == key[j - 1] ? 0 : 1;
+                int value = Math.min(Math.min(row[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && c == key[j - 2] && word.charAt(i - 2) == key[j - 1]) {
+                    value = Math.min(value, previous2[j - 2] + 1);
+                }
+                row[j] = value;
+                rowMin = Math.min(rowMin, value);
+            }
+            if (rowMin > maxEdits) {
+                return maxEdits + 1;
+            }
+            int[] temp = previous2;
+            previous2 = previous;
+            previous = row;
+            row = temp;
+        }
+        int distance = maxEdits + 1;
+        for (int j = 0; j <= m; j++) {
+            distance = Math.min(distance, previous[j]);
+        }
+        return distance;
+    }
+
+    /**
+     * Total length of posting lists in key range.
+     */
+    public int getPostingCount(int fromKeyId, int toKeyId) {
+        return postingCounts[toKeyId] - postingCounts[fromKeyId];
+    }
+
+    public PostingCursor getPostings(int keyId) {
+        return new PostingCursor(keyId);
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+}
@@ -0,0 +1,591 @@
+package com.nutiteq.advancedmap.geocode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.nutiteq.log.Log;
+import com.nutiteq.utils.NetUtils;
+
+/**
+ *
+ * Reverse geocoder, answers "what is here" for map clicks. Nearest address, POI or street
+ * segment is found from a spatial grid over OfflineGeocoder entries and street lines, so a
+ * lookup takes well under a frame and can be done on the UI thread:
+ * address or POI within ADDRESS_RADIUS wins, then nearest street within STREET_RADIUS, then
+ * nearest address or POI within STREET_RADIUS, and finally nearest city or suburb.
+ *
+ * Results are kept in a LRU cache by rounded location. Locations without local result are
+ * resolved with MapQuest reverse geocoder in background, many locations are sent with one
+ * batch request.
+ *
+ * OfflineGeocoder index is loaded in background on first use, and built from OSM extract if it is
+ * missing, outdated or has old version. Grid is built when it is loaded, until that all lookups go online.
+ *
+ * @author jaak
+ *
+ */
+public class ReverseGeocoder {
+    private static final String REVERSE_URL = "http://open.mapquestapi.com/geocoding/v1/reverse?key=";
+    private static final String BATCH_URL = "http://open.mapquestapi.com/geocoding/v1/batch?key=";
+    private static final int MAX_BATCH_SIZE = 100;
+
+    // search radiuses in meters
+    private static final double ADDRESS_RADIUS = 50;
+    private static final double STREET_RADIUS = 300;
+    private static final double PLACE_RADIUS = 30000;
+
+    // grid cell size in degrees, larger for big extracts to limit cell count
+    private static final double MIN_CELL_SIZE = 0.005;
+    private static final int MAX_CELLS = 1 << 20;
+
+    // about 20 m, locations closer than this share the cache entry
+    private static final double CACHE_PRECISION = 0.0002;
+    private static final int CACHE_SIZE = 512;
+
+    // lookups on UI thread should fit into one frame
+    private static final long FRAME_BUDGET = 16;
+
+    private static final double METERS_PER_DEGREE = 111320;
+
+    private static ReverseGeocoder instance;
+
+    private final String mapQuestKey;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // index loading and grid building, so online lookups do not wait for them
+    private final ExecutorService gridExecutor = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final Map<Long, Result> cache = new LinkedHashMap<Long, Result>(CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Result> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private volatile Grid grid;
+    private OfflineGeocoder gridGeocoder;
+    private boolean indexRequested;
+
+    /**
+     * Resolved location.
+     */
+    public static class Result {
+        // address, POI or street name, empty if only city is known
+        public final String name;
+        public final String city;
+        public final String county;
+        public final String state;
+        public final String country;
+        public final double lon;
+        public final double lat;
+        // from requested location, in meters
+        public final float distance;
+        public final boolean online;
+
+        Result(String name, String city, String county, String state, String country, double lon, double lat, float distance, boolean online) {
+            this.name = name;
+            this.city = city;
+            this.county = county;
+            this.state = state;
+            this.country = country;
+            this.lon = lon;
+            this.lat = lat;
+            this.distance = distance;
+            this.online = online;
+        }
+
+        /**
+         * Short description for callouts, e.g. "Raekoja plats 1, Tallinn" or "near Tallinn".
+         */
+        public String getTitle() {
+            if (name.length() == 0) {
+                return city.length() > 0 ? "near " + city : country;
+            }
+            if (city.length() == 0 || city.equals(name)) {
+                return name;
+            }
+            return name + ", " + city;
+        }
+
+        @Override
+        public String toString() {
+            return getTitle();
+        }
+    }
+
+    public interface ResultListener {
+        /**
+         * Called on UI thread.
+         *
+         * @param result null if location could not be resolved
+         */
+        void onResult(double lon, double lat, Result result);
+    }
+
+    public interface BatchListener {
+        /**
+         * Called on UI thread.
+         *
+         * @param results in same order as requested locations, null for unresolved ones
+         */
+        void onResults(Result[] results);
+    }
+
+    // address and POI entries (id) and street segments (-first point - 1) by cells
+    private static class Grid {
+        final OfflineGeocoder geocoder;
+        final double cellSize;
+        final double minLon;
+        final double minLat;
+        final int columns;
+        final int rows;
+        final int[] cellStarts;
+        final int[] items;
+        // street entry of each line point
+        final int[] pointEntries;
+        final int[] places;
+
+        Grid(OfflineGeocoder geocoder, double cellSize, double minLon, double minLat, int columns, int rows,
+                int[] cellStarts, int[] items, int[] pointEntries, int[] places) {
+            this.geocoder = geocoder;
+            this.cellSize = cellSize;
+            this.minLon = minLon;
+            this.minLat = minLat;
+            this.columns = columns;
+            this.rows = rows;
+            this.cellStarts = cellStarts;
+            this.items = items;
+            this.pointEntries = pointEntries;
+            this.places = places;
+        }
+
+        int getColumn(double lon) {
+            return Math.max(0, Math.min(columns - 1, (int) ((lon - minLon) / cellSize)));
+        }
+
+        int getRow(double lat) {
+            return Math.max(0, Math.min(rows - 1, (int) ((lat - minLat) / cellSize)));
+        }
+    }
+
+    private ReverseGeocoder(String mapQuestKey) {
+        this.mapQuestKey = mapQuestKey;
+    }
+
+    /**
+     * Shared reverse geocoder. Offline index is loaded in background, if it is not loaded yet.
+     *
+     * @param context for offline index location
+     * @param mapQuestKey key for online fallback
+     */
+    public static synchronized ReverseGeocoder getInstance(Context context, String mapQuestKey) {
+        if (instance == null) {
+            instance = new ReverseGeocoder(mapQuestKey);
+        }
+        instance.loadIndex(OfflineGeocoder.getOsmExtractFile(), OfflineGeocoder.getIndexFile(context));
+        instance.updateGrid();
+        return instance;
+    }
+
+    /**
+     * Resolve location. Cached and local results are returned at once, otherwise null is
+     * returned and listener gets online result later.
+     *
+     * @param listener for online result, can be null
+     */
+    public Result resolve(final double lon, final double lat, final ResultListener listener) {
+        long startTime = System.currentTimeMillis();
+        final Long key = getCacheKey(lon, lat);
+        Result result;
+        synchronized (cache) {
+            result = cache.get(key);
+        }
+        if (result == null) {
+            result = resolveLocal(lon, lat);
+            if (result != null) {
+                synchronized (cache) {
+                    cache.put(key, result);
+                }
+            }
+        }
+        long time = System.currentTimeMillis() - startTime;
+        if (time > FRAME_BUDGET) {
+            Log.warning("ReverseGeocoder: lookup took " + time + " ms, over frame budget");
+        }
+        if (result != null || listener == null) {
+            return result;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Result onlineResult = resolveOnline(lon, lat);
+                if (onlineResult != null) {
+                    synchronized (cache) {
+                        cache.put(key, onlineResult);
+                    }
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onResult(lon, lat, onlineResult);
+                    }
+                });
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Resolve many locations in background, e.g. route instruction points. Locations without
+     * cached or local result are sent online in batches.
+     */
+    public void resolveBatch(final double[] lons, final double[] lats, final BatchListener listener) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                final Result[] results = new Result[lons.length];
+                List<Integer> misses = new ArrayList<Integer>();
+                for (int i = 0; i < lons.length; i++) {
+                    Long key = getCacheKey(lons[i], lats[i]);
+                    synchronized (cache) {
+                        results[i] = cache.get(key);
+                    }
+                    if (results[i] == null) {
+                        results[i] = resolveLocal(lons[i], lats[i]);
+                    }
+                    if (results[i] == null) {
+                        misses.add(i);
+                    } else {
+                        synchronized (cache) {
+                            cache.put(key, results[i]);
+                        }
+                    }
+                }
+                for (int start = 0; start < misses.size(); start += MAX_BATCH_SIZE) {
+                    resolveOnline(lons, lats, misses.subList(start, Math.min(misses.size(), start + MAX_BATCH_SIZE)), results);
+                }
+                Log.debug("ReverseGeocoder: resolved " + lons.length + " locations, " + misses.size() + " online, in "
+                        + (System.currentTimeMillis() - startTime) + " ms");
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onResults(results);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Resolve from offline geocoder index only.
+     *
+     * @return result, or null if index is not ready or there is nothing near
+     */
+    public Result resolveLocal(double lon, double lat) {
+        updateGrid();
+        Grid grid = this.grid;
+        if (grid == null) {
+            return null;
+        }
+        OfflineGeocoder geocoder = grid.geocoder;
+        double lonScale = Math.cos(Math.toRadians(lat));
+
+        double radius = STREET_RADIUS / METERS_PER_DEGREE;
+        int column0 = grid.getColumn(lon - radius / Math.max(0.01, lonScale));
+        int column1 = grid.getColumn(lon + radius / Math.max(0.01, lonScale));
+        int row0 = grid.getRow(lat - radius);
+        int row1 = grid.getRow(lat + radius);
+
+        int nearestEntry = -1;
+        double entryDistance = Double.MAX_VALUE;
+        int nearestSegment = -1;
+        double segmentDistance = Double.MAX_VALUE;
+        for (int row = row0; row <= row1; row++) {
+            for (int column = column0; column <= column1; column++) {
+                int cell = row * grid.columns + column;
+                for (int i = grid.cellStarts[cell]; i < grid.cellStarts[cell + 1]; i++) {
+                    int item = grid.items[i];
+                    if (item >= 0) {
+                        double distance = getDistance(lon, lat, geocoder.getLongitude(item), geocoder.getLatitude(item), lonScale);
+                        if (distance < entryDistance) {
+                            entryDistance = distance;
+                            nearestEntry = item;
+                        }
+                    } else {
+                        int point = -item - 1;
+                        double distance = getSegmentDistance(lon, lat, geocoder.getPointLongitude(point), geocoder.getPointLatitude(point),
+                                geocoder.getPointLongitude(point + 1), geocoder.getPointLatitude(point + 1), lonScale);
+                        if (distance < segmentDistance) {
+                            segmentDistance = distance;
+                            nearestSegment = point;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (nearestEntry >= 0 && entryDistance <= ADDRESS_RADIUS) {
+            return createResult(geocoder, nearestEntry, entryDistance);
+        }
+        if (nearestSegment >= 0 && segmentDistance <= STREET_RADIUS) {
+            return createResult(geocoder, grid.pointEntries[nearestSegment], segmentDistance);
+        }
+        if (nearestEntry >= 0 && entryDistance <= STREET_RADIUS) {
+            return createResult(geocoder, nearestEntry, entryDistance);
+        }
+
+        int nearestPlace = -1;
+        double placeDistance = PLACE_RADIUS;
+        for (int id : grid.places) {
+            double distance = getDistance(lon, lat, geocoder.getLongitude(id), geocoder.getLatitude(id), lonScale);
+            if (distance < placeDistance) {
+                placeDistance = distance;
+                nearestPlace = id;
+            }
+        }
+        if (nearestPlace >= 0) {
+            return new Result("", geocoder.getString(nearestPlace, 0), geocoder.getString(nearestPlace, 2), geocoder.getString(nearestPlace, 3),
+                    geocoder.getString(nearestPlace, 4), geocoder.getLongitude(nearestPlace), geocoder.getLatitude(nearestPlace), (float) placeDistance, false);
+        }
+        return null;
+    }
+
+    private static Result createResult(OfflineGeocoder geocoder, int id, double distance) {
+        return new Result(geocoder.getString(id, 0), geocoder.getString(id, 1), geocoder.getString(id, 2), geocoder.getString(id, 3),
+                geocoder.getString(id, 4), geocoder.getLongitude(id), geocoder.getLatitude(id), (float) distance, false);
+    }
+
+    /**
+     * Load offline geocoder in background, index is built first if it is missing or has old version.
+     * Nothing is done if geocoder is loaded already, or there is neither OSM extract nor index.
+     */
+    public synchronized void loadIndex(final File osmFile, final File indexFile) {
+        if (indexRequested || OfflineGeocoder.getLoadedInstance() != null || !osmFile.exists() && !indexFile.exists()) {
+            return;
+        }
+        indexRequested = true;
+        gridExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OfflineGeocoder.getInstance(osmFile, indexFile);
+                    updateGrid();
+                } catch (IOException e) {
+                    Log.error("ReverseGeocoder: Failed to load offline geocoder! " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    // starts building grid in background if loaded geocoder has changed
+    private synchronized void updateGrid() {
+        final OfflineGeocoder geocoder = OfflineGeocoder.getLoadedInstance();
+        if (geocoder == null || geocoder == gridGeocoder) {
+            return;
+        }
+        gridGeocoder = geocoder;
+        synchronized (cache) {
+            cache.clear();
+        }
+        gridExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                grid = buildGrid(geocoder);
+                Log.debug("ReverseGeocoder: grid with " + grid.items.length + " items in " + grid.columns * grid.rows + " cells built in "
+                        + (System.currentTimeMillis() - startTime) + " ms");
+            }
+        });
+    }
+
+    private static Grid buildGrid(OfflineGeocoder geocoder) {
+        int entryCount = geocoder.getEntryCount();
+        int lineCount = geocoder.getLineCount();
+        int pointCount = geocoder.getLineStart(lineCount);
+
+        double minLon = 180, maxLon = -180, minLat = 90, maxLat = -90;
+        List<Integer> places = new ArrayList<Integer>();
+        for (int id = 0; id < entryCount; id++) {
+            int type = geocoder.getType(id);
+            if (type == OfflineGeocoder.TYPE_CITY || type == OfflineGeocoder.TYPE_SUBURB) {
+                places.add(id);
+            } else if (type == OfflineGeocoder.TYPE_ADDRESS || type == OfflineGeocoder.TYPE_POI) {
+                minLon = Math.min(minLon, geocoder.getLongitude(id));
+                maxLon = Math.max(maxLon, geocoder.getLongitude(id));
+                minLat = Math.min(minLat, geocoder.getLatitude(id));
+                maxLat = Math.max(maxLat, geocoder.getLatitude(id));
+            }
+        }
+        int[] pointEntries = new int[pointCount];
+        for (int line = 0; line < lineCount; line++) {
+            for (int point = geocoder.getLineStart(line); point < geocoder.getLineStart(line + 1); point++) {
+                pointEntries[point] = geocoder.getLineEntry(line);
+                minLon = Math.min(minLon, geocoder.getPointLongitude(point));
+                maxLon = Math.max(maxLon, geocoder.getPointLongitude(point));
+                minLat = Math.min(minLat, geocoder.getPointLatitude(point));
+                maxLat = Math.max(maxLat, geocoder.getPointLatitude(point));
+            }
+        }
+        if (minLon > maxLon) {
+            minLon = maxLon = minLat = maxLat = 0;
+        }
+
+        double cellSize = MIN_CELL_SIZE;
+        while ((maxLon - minLon) / cellSize * (maxLat - minLat) / cellSize > MAX_CELLS) {
+            cellSize *= 2;
+        }
+        int columns = (int) ((maxLon - minLon) / cellSize) + 1;
+        int rows = (int) ((maxLat - minLat) / cellSize) + 1;
+        Grid grid = new Grid(geocoder, cellSize, minLon, minLat, columns, rows, new int[columns * rows + 1], null, pointEntries, toArray(places));
+
+        // count items per cell, then fill, segments go to all cells their bounds touch
+        int[] counts = grid.cellStarts;
+        for (int pass = 0; pass < 2; pass++) {
+            int[] items = pass == 0 ? null : new int[counts[columns * rows]];
+            int[] positions = pass == 0 ? null : counts.clone();
+            for (int id = 0; id < entryCount; id++) {
+                int type = geocoder.getType(id);
+                if (type == OfflineGeocoder.TYPE_ADDRESS || type == OfflineGeocoder.TYPE_POI) {
+                    int cell = grid.getRow(geocoder.getLatitude(id)) * columns + grid.getColumn(geocoder.getLongitude(id));
+                    if (pass == 0) {
+                        counts[cell + 1]++;
+                    } else {
+                        items[positions[cell]++] = id;
+                    }
+                }
+            }
+            for (int line = 0; line < lineCount; line++) {
+                for (int point = geocoder.getLineStart(line); point < geocoder.getLineStart(line + 1) - 1; point++) {
+                    double lon0 = geocoder.getPointLongitude(point), lon1 = geocoder.getPointLongitude(point + 1);
+                    double lat0 = geocoder.getPointLatitude(point), lat1 = geocoder.getPointLatitude(point + 1);
+                    int column0 = grid.getColumn(Math.min(lon0, lon1));
+                    int column1 = grid.getColumn(Math.max(lon0, lon1));
+                    int row0 = grid.getRow(Math.min(lat0, lat1));
+                    int row1 = grid.getRow(Math.max(lat0, lat1));
+                    for (int row = row0; row <= row1; row++) {
+                        for (int column = column0; column <= column1; column++) {
+                            int cell = row * columns + column;
+                            if (pass == 0) {
+                                counts[cell + 1]++;
+                            } else {
+                                items[positions[cell]++] = -point - 1;
+                            }
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int cell = 0; cell < columns * rows; cell++) {
+                    counts[cell + 1] += counts[cell];
+                }
+            } else {
+                grid = new Grid(geocoder, cellSize, minLon, minLat, columns, rows, counts, items, pointEntries, grid.places);
+            }
+        }
+        return grid;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    private static Long getCacheKey(double lon, double lat) {
+        long x = Math.round(lon / CACHE_PRECISION);
+        long y = Math.round(lat / CACHE_PRECISION);
+        return (y << 32) ^ (x & 0xffffffffL);
+    }
+
+    // meters, equirectangular approximation is enough for short distances
+    private static double getDistance(double lon, double lat, double lon1, double lat1, double lonScale) {
+        double dx = (lon1 - lon) * lonScale;
+        double dy = lat1 - lat;
+        return Math.sqrt(dx * dx + dy * dy) * METERS_PER_DEGREE;
+    }
+
+    private static double getSegmentDistance(double lon, double lat, double lon0, double lat0, double lon1, double lat1, double lonScale) {
+        double dx = (lon1 - lon0) * lonScale;
+        double dy = lat1 - lat0;
+        double px = (lon - lon0) * lonScale;
+        double py = lat - lat0;
+        double length2 = dx * dx + dy * dy;
+        double t = length2 > 0 ? Math.max(0, Math.min(1, (px * dx + py * dy) / length2)) : 0;
+        double ex = px - t * dx;
+        double ey = py - t * dy;
+        return Math.sqrt(ex * ex + ey * ey) * METERS_PER_DEGREE;
+    }
+
+    private Result resolveOnline(double lon, double lat) {
+        String url = REVERSE_URL + mapQuestKey + "&location=" + formatLocation(lon, lat);
+        JSONObject response = NetUtils.getJSONFromUrl(url);
+        if (response == null) {
+            Log.error("ReverseGeocoder: Failed to get online result!");
+            return null;
+        }
+        JSONArray results = response.optJSONArray("results");
+        return results != null && results.length() > 0 ? parseResult(results.optJSONObject(0), lon, lat) : null;
+    }
+
+    // fills results of given indexes with one batch request
+    private void resolveOnline(double[] lons, double[] lats, List<Integer> indexes, Result[] results) {
+        StringBuilder url = new StringBuilder(BATCH_URL).append(mapQuestKey);
+        for (int i : indexes) {
+            url.append("&location=").append(formatLocation(lons[i], lats[i]));
+        }
+        JSONObject response = NetUtils.getJSONFromUrl(url.toString());
+        if (response == null) {
+            Log.error("ReverseGeocoder: Failed to get batch result!");
+            return;
+        }
+        JSONArray responseResults = response.optJSONArray("results");
+        for (int i = 0; responseResults != null && i < responseResults.length() && i < indexes.size(); i++) {
+            int index = indexes.get(i);
+            results[index] = parseResult(responseResults.optJSONObject(i), lons[index], lats[index]);
+            if (results[index] != null) {
+                synchronized (cache) {
+                    cache.put(getCacheKey(lons[index], lats[index]), results[index]);
+                }
+            }
+        }
+    }
+
+    private static String formatLocation(double lon, double lat) {
+        return String.format(Locale.US, "%.6f,%.6f", lat, lon);
+    }
+
+    private static Result parseResult(JSONObject result, double lon, double lat) {
+        JSONArray locations = result != null ? result.optJSONArray("locations") : null;
+        JSONObject location = locations != null ? locations.optJSONObject(0) : null;
+        if (location == null) {
+            return null;
+        }
+        JSONObject latLng = location.optJSONObject("latLng");
+        double resultLon = latLng != null ? latLng.optDouble("lng", lon) : lon;
+        double resultLat = latLng != null ? latLng.optDouble("lat", lat) : lat;
+        float distance = (float) getDistance(lon, lat, resultLon, resultLat, Math.cos(Math.toRadians(lat)));
+        return new Result(location.optString("street"), location.optString("adminArea5"), location.optString("adminArea4"),
+                location.optString("adminArea3"), location.optString("adminArea1"), resultLon, resultLat, distance, true);
+    }
+
+}
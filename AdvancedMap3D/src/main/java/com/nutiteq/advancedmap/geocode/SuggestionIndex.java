@@ -0,0 +1,604 @@
+package com.nutiteq.advancedmap.geocode;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Ranked in-memory index for as-you-type search suggestions. Suggestions come from recent queries
+ * of the user, POIs near the map (copied from OfflineGeocoder, so these are available before the
+ * big geocoder index is loaded) and from OfflineGeocoder itself, when it is loaded.
+ *
+ * Recent queries and local POIs are kept in a small PrefixIndex. Query words match as prefixes,
+ * or with small prefix edit distance for typos, and typos decrease the score. Entries are stored
+ * best first, so if a short prefix matches too many entries, the best ones are checked.
+ *
+ * The index is rebuilt in background when recent queries or POIs change, and saved as compact
+ * snapshot file at most once per SAVE_DELAY. Snapshot is loaded in background at startup. Queries
+ * use the current immutable snapshot, so they never wait for disk. Recent queries of the old
+ * SearchRecentSuggestionsProvider database are imported once.
+ *
+ * @author jaak
+ *
+ */
+public class SuggestionIndex {
+    private static final int MAGIC = 0x4e534931;
+    private static final int VERSION = 1;
+
+    public static final int KIND_RECENT = 0;
+    public static final int KIND_POI = 1;
+    public static final int KIND_GEOCODER = 2;
+
+    private static final int MAX_RECENT = 100;
+    private static final int MAX_POIS = 5000;
+    private static final int MAX_CANDIDATES = 500;
+    private static final long SAVE_DELAY = 10000;
+    private static final double POI_RADIUS = 20;
+    private static final double POI_REFRESH_DISTANCE = 5;
+    private static final float RECENT_SCORE = 100;
+    private static final float RECENT_DECAY_PER_DAY = 0.5f;
+    private static final float TYPO_PENALTY = 15;
+    private static final float DISTANCE_WEIGHT = 10;
+    // database of SearchRecentSuggestionsProvider, used by earlier versions
+    private static final String RECENT_SUGGESTIONS_DATABASE = "suggestions.db";
+
+    private static SuggestionIndex sharedInstance;
+
+    /**
+     * One suggestion, query is the text to search for when suggestion is selected.
+     */
+    public static class Suggestion {
+        public final int kind;
+        public final String text;
+        public final String detail;
+        public final String query;
+        public final float score;
+
+        Suggestion(int kind, String text, String detail, float score) {
+            this.kind = kind;
+            this.text = text;
+            this.detail = detail;
+            this.query = detail.length() > 0 ? text + " " + detail : text;
+            this.score = score;
+        }
+    }
+
+    private static class Entry {
+        int kind;
+        String text;
+        String detail;
+        int lat;
+        int lon;
+        long time;
+        int count;
+        float importance;
+        int[] keyIds;
+    }
+
+    private static class Snapshot {
+        Entry[] entries;
+        PrefixIndex index;
+    }
+
+    private final File file;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private volatile Snapshot snapshot;
+    private volatile double lon = Double.NaN;
+    private volatile double lat = Double.NaN;
+
+    // changed in executor thread only
+    private final List<Entry> recent = new ArrayList<Entry>();
+    private final List<Entry> pois = new ArrayList<Entry>();
+    private OfflineGeocoder poiSource;
+    private double poiLon = Double.NaN;
+    private double poiLat = Double.NaN;
+    private byte[] unsavedData;
+
+    private final Comparator<Entry> rankOrder = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry entry1, Entry entry2) {
+            return Float.compare(getScore(entry2), getScore(entry1));
+        }
+    };
+
+    private final Runnable saveTask = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    /**
+     * @param file snapshot file
+     */
+    public SuggestionIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Get index shared by provider and activities, snapshot loading is started when it is created.
+     */
+    public static synchronized SuggestionIndex getInstance(Context context) {
+        if (sharedInstance == null) {
+            sharedInstance = new SuggestionIndex(new File(context.getDir("suggestions", Context.MODE_PRIVATE), "snapshot.bin"));
+            sharedInstance.preload();
+            sharedInstance.importRecentSuggestions(context.getDatabasePath(RECENT_SUGGESTIONS_DATABASE));
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * Load snapshot in background.
+     */
+    public void preload() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Snapshot is loaded and queries give local suggestions.
+     */
+    public boolean isLoaded() {
+        return snapshot != null;
+    }
+
+    /**
+     * Remember query, done in background.
+     */
+    public void addRecentQuery(final String query) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (addRecent(query, System.currentTimeMillis())) {
+                    trimRecent();
+                    rebuild();
+                }
+            }
+        });
+    }
+
+    /**
+     * Import recent queries from SearchRecentSuggestionsProvider database, done in background.
+     * Database is deleted after import.
+     */
+    public void importRecentSuggestions(final File databaseFile) {
+        if (!databaseFile.exists()) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int count = 0;
+                try {
+                    SQLiteDatabase database = SQLiteDatabase.openDatabase(databaseFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+                    try {
+                        Cursor cursor = database.query("suggestions", new String[] { "query", "date" }, null, null, null, null, "date DESC",
+                                String.valueOf(MAX_RECENT));
+                        try {
+                            while (cursor.moveToNext()) {
+                                if (addRecent(cursor.getString(0), cursor.getLong(1))) {
+                                    count++;
+                                }
+                            }
+                        } finally {
+                            cursor.close();
+                        }
+                    } finally {
+                        database.close();
+                    }
+                } catch (SQLiteException e) {
+                    Log.error("SuggestionIndex: Failed to import recent suggestions! " + e.getMessage());
+                    return;
+                }
+                trimRecent();
+                rebuild();
+                if (!databaseFile.delete()) {
+                    Log.error("SuggestionIndex: Failed to delete " + databaseFile);
+                }
+                new File(databaseFile.getPath() + "-journal").delete();
+                Log.debug("SuggestionIndex: imported " + count + " recent queries");
+            }
+        });
+    }
+
+    /**
+     * Forget recent queries, done in background.
+     */
+    public void clearHistory() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                recent.clear();
+                rebuild();
+            }
+        });
+    }
+
+    /**
+     * Set location of user or map, for ranking. Local POIs are updated if location has changed
+     * enough and geocoder is loaded.
+     */
+    public void setLocation(double lon, double lat) {
+        this.lon = lon;
+        this.lat = lat;
+        OfflineGeocoder geocoder = OfflineGeocoder.getLoadedInstance();
+        if (geocoder != null) {
+            updatePois(geocoder);
+        }
+    }
+
+    /**
+     * Copy POIs near current location from geocoder, done in background.
+     */
+    public void updatePois(final OfflineGeocoder geocoder) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                double lon = SuggestionIndex.this.lon;
+                double lat = SuggestionIndex.this.lat;
+                if (Double.isNaN(lon) || Double.isNaN(lat)) {
+                    return;
+                }
+                if (geocoder == poiSource && getDistance(lon, lat, poiLon, poiLat) < POI_REFRESH_DISTANCE) {
+                    return;
+                }
+                pois.clear();
+                for (int id : geocoder.getEntriesNear(OfflineGeocoder.TYPE_POI, lon, lat, POI_RADIUS, MAX_POIS)) {
+                    Entry entry = new Entry();
+                    entry.kind = KIND_POI;
+                    entry.text = geocoder.getString(id, 0);
+                    entry.detail = geocoder.getString(id, 1);
+                    entry.lat = (int) Math.round(geocoder.getLatitude(id) * 1e6);
+                    entry.lon = (int) Math.round(geocoder.getLongitude(id) * 1e6);
+                    entry.importance = geocoder.getImportance(id);
+                    pois.add(entry);
+                }
+                // best first, see findEntries()
+                Collections.sort(pois, rankOrder);
+                poiSource = geocoder;
+                poiLon = lon;
+                poiLat = lat;
+                rebuild();
+                Log.debug("SuggestionIndex: " + pois.size() + " local POIs");
+            }
+        });
+    }
+
+    /**
+     * Suggestions for partly typed query, best first. Empty query gives recent queries.
+     */
+    public List<Suggestion> suggest(String query, int limit) {
+        List<Suggestion> suggestions = new ArrayList<Suggestion>();
+        List<String> words = OfflineGeocoder.tokenize(query);
+        Snapshot snapshot = this.snapshot;
+        if (snapshot != null) {
+            if (words.isEmpty()) {
+                for (Entry entry : snapshot.entries) {
+                    if (entry.kind == KIND_RECENT && suggestions.size() < limit) {
+                        suggestions.add(new Suggestion(entry.kind, entry.text, entry.detail, getScore(entry)));
+                    }
+                }
+                return suggestions;
+            }
+            findEntries(snapshot, words, suggestions);
+        }
+
+        OfflineGeocoder geocoder = OfflineGeocoder.getLoadedInstance();
+        if (geocoder != null && !words.isEmpty()) {
+            for (OfflineGeocoder.Result result : geocoder.search(query, lon, lat, limit)) {
+                String detail = geocoder.getString(result.id, 1);
+                if (detail.length() == 0) {
+                    detail = geocoder.getString(result.id, 3);
+                }
+                suggestions.add(new Suggestion(KIND_GEOCODER, geocoder.getString(result.id, 0), detail, result.score));
+            }
+        }
+
+        Collections.sort(suggestions, new Comparator<Suggestion>() {
+            @Override
+            public int compare(Suggestion suggestion1, Suggestion suggestion2) {
+                return Float.compare(suggestion2.score, suggestion1.score);
+            }
+        });
+        // same place can come from POIs and geocoder
+        Set<String> queries = new HashSet<String>();
+        List<Suggestion> unique = new ArrayList<Suggestion>();
+        for (Suggestion suggestion : suggestions) {
+            if (unique.size() < limit && queries.add(suggestion.query.toLowerCase(Locale.ENGLISH))) {
+                unique.add(suggestion);
+            }
+        }
+        return unique;
+    }
+
+    private void findEntries(Snapshot snapshot, List<String> words, List<Suggestion> suggestions) {
+        // matching keys with edit distance for each word
+        List<Map<Integer, Integer>> wordKeys = new ArrayList<Map<Integer, Integer>>();
+        int driver = -1;
+        int driverCount = 0;
+        for (String word : words) {
+            Map<Integer, Integer> keys = new HashMap<Integer, Integer>();
+            int[] range = snapshot.index.getPrefixRange(word);
+            for (int keyId = range[0]; keyId < range[1]; keyId++) {
+                keys.put(keyId, 0);
+            }
+            int maxEdits = OfflineGeocoder.getMaxEdits(word);
+            if (maxEdits > 0) {
+                for (int[] similar : snapshot.index.findSimilar(word, maxEdits)) {
+                    if (!keys.containsKey(similar[0])) {
+                        keys.put(similar[0], similar[1]);
+                    }
+                }
+            }
+            if (keys.isEmpty()) {
+                return;
+            }
+            int count = 0;
+            for (int keyId : keys.keySet()) {
+                count += snapshot.index.getPostingCount(keyId, keyId + 1);
+            }
+            if (driver < 0 || count < driverCount) {
+                driver = wordKeys.size();
+                driverCount = count;
+            }
+            wordKeys.add(keys);
+        }
+
+        BitSet candidates = new BitSet(snapshot.entries.length);
+        for (int keyId : wordKeys.get(driver).keySet()) {
+            PrefixIndex.PostingCursor cursor = snapshot.index.getPostings(keyId);
+            while (cursor.next()) {
+                candidates.set(cursor.getId());
+            }
+        }
+
+        // entries are stored best first, so the lowest ids are the best candidates
+        int candidateCount = 0;
+        for (int id = candidates.nextSetBit(0); id >= 0 && candidateCount < MAX_CANDIDATES; id = candidates.nextSetBit(id + 1)) {
+            candidateCount++;
+            Entry entry = snapshot.entries[id];
+            int edits = 0;
+            for (Map<Integer, Integer> keys : wordKeys) {
+                int wordEdits = Integer.MAX_VALUE;
+                for (int keyId : entry.keyIds) {
+                    Integer keyEdits = keys.get(keyId);
+                    if (keyEdits != null) {
+                        wordEdits = Math.min(wordEdits, keyEdits);
+                    }
+                }
+                if (wordEdits == Integer.MAX_VALUE) {
+                    edits = -1;
+                    break;
+                }
+                edits += wordEdits;
+            }
+            if (edits >= 0) {
+                suggestions.add(new Suggestion(entry.kind, entry.text, entry.detail, getScore(entry) - edits * TYPO_PENALTY));
+            }
+        }
+    }
+
+    private float getScore(Entry entry) {
+        if (entry.kind == KIND_RECENT) {
+            float days = (System.currentTimeMillis() - entry.time) / 86400000.0f;
+            return RECENT_SCORE + 10 * (float) Math.log10(entry.count) - Math.min(50, days * RECENT_DECAY_PER_DAY);
+        }
+        if (Double.isNaN(lon) || Double.isNaN(lat)) {
+            return entry.importance;
+        }
+        return entry.importance - DISTANCE_WEIGHT * (float) Math.log10(1 + getDistance(lon, lat, entry.lon / 1e6, entry.lat / 1e6));
+    }
+
+    // adds query or updates existing one, false if query is empty
+    private boolean addRecent(String query, long time) {
+        String text = query != null ? query.trim() : "";
+        if (text.length() == 0) {
+            return false;
+        }
+        Entry entry = null;
+        for (Entry recentEntry : recent) {
+            if (recentEntry.text.equalsIgnoreCase(text)) {
+                entry = recentEntry;
+            }
+        }
+        if (entry == null) {
+            entry = new Entry();
+            entry.kind = KIND_RECENT;
+            entry.text = text;
+            entry.detail = "";
+            recent.add(entry);
+        }
+        entry.count++;
+        entry.time = Math.max(entry.time, time);
+        return true;
+    }
+
+    private void trimRecent() {
+        Collections.sort(recent, rankOrder);
+        while (recent.size() > MAX_RECENT) {
+            recent.remove(recent.size() - 1);
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            rebuild();
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        try {
+            byte[] data = new byte[(int) file.length()];
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                in.readFully(data);
+            } finally {
+                in.close();
+            }
+            Snapshot loaded = parse(data);
+            for (Entry entry : loaded.entries) {
+                (entry.kind == KIND_RECENT ? recent : pois).add(entry);
+            }
+            snapshot = loaded;
+            Log.debug("SuggestionIndex: loaded " + recent.size() + " recent queries, " + pois.size() + " POIs in "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+        } catch (IOException e) {
+            Log.error("SuggestionIndex: Failed to load snapshot! " + e.getMessage());
+            rebuild();
+        }
+    }
+
+    // build new snapshot from recent queries and POIs and start to use it, save it later
+    private void rebuild() {
+        List<Entry> entries = new ArrayList<Entry>(recent);
+        entries.addAll(pois);
+
+        TreeMap<String, List<Integer>> postings = new TreeMap<String, List<Integer>>();
+        for (int id = 0; id < entries.size(); id++) {
+            Entry entry = entries.get(id);
+            for (String word : OfflineGeocoder.tokenize(entry.text + " " + entry.detail)) {
+                List<Integer> ids = postings.get(word);
+                if (ids == null) {
+                    ids = new ArrayList<Integer>();
+                    postings.put(word, ids);
+                }
+                if (ids.isEmpty() || ids.get(ids.size() - 1) != id) {
+                    ids.add(id);
+                }
+            }
+        }
+        List<int[]> keyPostings = new ArrayList<int[]>();
+        for (List<Integer> ids : postings.values()) {
+            int[] array = new int[ids.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = ids.get(i);
+            }
+            keyPostings.add(array);
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeByte(entry.kind);
+                out.writeUTF(entry.text);
+                out.writeUTF(entry.detail);
+                out.writeInt(entry.lat);
+                out.writeInt(entry.lon);
+                out.writeLong(entry.time);
+                out.writeInt(entry.count);
+                out.writeFloat(entry.importance);
+            }
+            PrefixIndex.write(out, new ArrayList<String>(postings.keySet()), keyPostings);
+            out.close();
+            byte[] data = bytes.toByteArray();
+            snapshot = parse(data);
+
+            // queries and map moves come in bursts, snapshot with thousands of POIs is written once
+            if (unsavedData == null) {
+                executor.schedule(saveTask, SAVE_DELAY, TimeUnit.MILLISECONDS);
+            }
+            unsavedData = data;
+        } catch (IOException e) {
+            Log.error("SuggestionIndex: Failed to build snapshot! " + e.getMessage());
+        }
+    }
+
+    // write latest snapshot, in executor thread
+    private void save() {
+        byte[] data = unsavedData;
+        unsavedData = null;
+        if (data == null) {
+            return;
+        }
+        try {
+            File tempFile = new File(file.getPath() + ".tmp");
+            FileOutputStream fileOut = new FileOutputStream(tempFile);
+            try {
+                fileOut.write(data);
+            } finally {
+                fileOut.close();
+            }
+            if (file.exists() && !file.delete() || !tempFile.renameTo(file)) {
+                Log.error("SuggestionIndex: Failed to replace " + file);
+            }
+        } catch (IOException e) {
+            Log.error("SuggestionIndex: Failed to save snapshot! " + e.getMessage());
+        }
+    }
+
+    private static Snapshot parse(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("SuggestionIndex: Wrong snapshot version");
+        }
+        Snapshot snapshot = new Snapshot();
+        snapshot.entries = new Entry[in.readInt()];
+        for (int i = 0; i < snapshot.entries.length; i++) {
+            Entry entry = new Entry();
+            entry.kind = in.readByte();
+            entry.text = in.readUTF();
+            entry.detail = in.readUTF();
+            entry.lat = in.readInt();
+            entry.lon = in.readInt();
+            entry.time = in.readLong();
+            entry.count = in.readInt();
+            entry.importance = in.readFloat();
+            snapshot.entries[i] = entry;
+        }
+        snapshot.index = new PrefixIndex(in);
+        for (Entry entry : snapshot.entries) {
+            List<String> words = OfflineGeocoder.tokenize(entry.text + " " + entry.detail);
+            entry.keyIds = new int[words.size()];
+            for (int i = 0; i < entry.keyIds.length; i++) {
+                entry.keyIds[i] = snapshot.index.getKeyId(words.get(i));
+            }
+        }
+        return snapshot;
+    }
+
+    // equirectangular distance in km
+    private static double getDistance(double lon1, double lat1, double lon2, double lat2) {
+        if (Double.isNaN(lon2) || Double.isNaN(lat2)) {
+            return Double.MAX_VALUE;
+        }
+        double dLat = lat2 - lat1;
+        double dLon = (lon2 - lon1) * Math.cos(Math.toRadians(lat1));
+        return Math.sqrt(dLat * dLat + dLon * dLon) * 111.32;
+    }
+
+}
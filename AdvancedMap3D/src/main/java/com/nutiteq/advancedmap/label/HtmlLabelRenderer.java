@@ -0,0 +1,314 @@
+package com.nutiteq.advancedmap.label;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.text.Html;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+import android.widget.ImageView;
+
+import com.nutiteq.geometry.Marker;
+import com.nutiteq.log.Log;
+import com.nutiteq.ui.Label;
+import com.nutiteq.ui.ViewLabel;
+import com.nutiteq.utils.UiUtils;
+
+/**
+ *
+ * Renders HTML callouts for Marker labels. Simple HTML (text formatting tags which
+ * android.text.Html supports) is drawn natively to a bitmap sized to its content, no WebView
+ * is needed. Other HTML, e.g. tables and images, is loaded to a WebView from a pool which is
+ * created and warmed up when UI thread is idle, so WebView cold start is not on click. When page
+ * is loaded and laid out, WebView is sized to content height and drawn to a bitmap, and WebView
+ * goes back to pool. Page can be finished before its layout, so content height is checked again
+ * until it is known.
+ *
+ * Rendered bitmaps are kept in a shared LRU cache by content hash, so repeated callouts are
+ * shown at once.
+ *
+ * @author jaak
+ *
+ */
+public class HtmlLabelRenderer {
+    private static final int POOL_SIZE = 2;
+    private static final int CACHE_BYTES = 4 * 1024 * 1024;
+    // wait for page layout after onPageFinished(), up to one second
+    private static final long LAYOUT_RETRY_DELAY = 50;
+    private static final int MAX_LAYOUT_RETRIES = 20;
+
+    // text and padding in dp
+    private static final float TEXT_SIZE = 14;
+    private static final int PADDING = 6;
+    private static final int BACKGROUND_COLOR = Color.WHITE;
+
+    private static final Pattern TAG_PATTERN = Pattern.compile("<\\s*/?\\s*([a-zA-Z0-9]+)[^>]*>");
+    private static final String SIMPLE_TAGS = " a b big blockquote br cite dfn div em font h1 h2 h3 h4 h5 h6 i p small span strike strong sub sup tt u ";
+
+    // access ordered for LRU
+    private static final Map<String, Bitmap> cache = new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+    private static int cacheBytes;
+
+    private final Activity activity;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final float density;
+    private final int maxWidth;
+    private final int maxHeight;
+    private final List<WebView> webViewPool = new ArrayList<WebView>();
+    // latest content key of each marker, to skip results of older requests
+    private final Map<Marker, String> markerKeys = new HashMap<Marker, String>();
+    private boolean released;
+
+    /**
+     * @param maxWidth maximum callout width in dp
+     * @param maxHeight maximum callout height in dp
+     */
+    public HtmlLabelRenderer(Activity activity, int maxWidth, int maxHeight) {
+        this.activity = activity;
+        this.density = activity.getResources().getDisplayMetrics().density;
+        this.maxWidth = (int) (maxWidth * density);
+        this.maxHeight = (int) (maxHeight * density);
+
+        // warm up WebViews after activity has been drawn
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                if (released) {
+                    return false;
+                }
+                long startTime = System.currentTimeMillis();
+                while (webViewPool.size() < POOL_SIZE) {
+                    WebView webView = createWebView();
+                    webView.loadDataWithBaseURL("file:///android_asset/", UiUtils.HTML_HEAD + UiUtils.HTML_FOOT, "text/html", "UTF-8", null);
+                    webViewPool.add(webView);
+                }
+                Log.debug("HtmlLabelRenderer: " + POOL_SIZE + " WebViews created in " + (System.currentTimeMillis() - startTime) + " ms");
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Empty label for a marker, to be replaced by showHtml().
+     */
+    public Label createEmptyLabel() {
+        return createLabel(null);
+    }
+
+    /**
+     * Show HTML as marker label. Cached and simple HTML is shown at once, other HTML when
+     * WebView has loaded it.
+     *
+     * @param html HTML fragment or full document
+     */
+    public void showHtml(final Marker marker, String html) {
+        long startTime = System.nanoTime();
+        final String key = getContentKey(html);
+        markerKeys.put(marker, key);
+
+        Bitmap bitmap = getCached(key);
+        if (bitmap == null && isSimpleHtml(html)) {
+            bitmap = renderNative(html);
+            putCached(key, bitmap);
+        }
+        if (bitmap != null) {
+            marker.setLabel(createLabel(bitmap));
+            Log.debug("HtmlLabelRenderer: label shown in " + (System.nanoTime() - startTime) / 1000 + " us");
+            return;
+        }
+
+        final WebView webView = webViewPool.isEmpty() ? createWebView() : webViewPool.remove(webViewPool.size() - 1);
+        webView.layout(0, 0, maxWidth, maxHeight);
+        webView.setWebViewClient(new WebViewClient() {
+            @Override
+            public void onPageFinished(final WebView view, String url) {
+                // content height is known after layout of page
+                handler.post(new Runnable() {
+                    private int retries;
+
+                    @Override
+                    public void run() {
+                        if (released) {
+                            view.destroy();
+                            return;
+                        }
+                        if (view.getContentHeight() == 0 && retries < MAX_LAYOUT_RETRIES) {
+                            retries++;
+                            handler.postDelayed(this, LAYOUT_RETRY_DELAY);
+                            return;
+                        }
+                        boolean laidOut = view.getContentHeight() > 0;
+                        Bitmap bitmap = renderWebView(view);
+                        // empty bitmap of a page which was not laid out is not kept
+                        if (laidOut) {
+                            putCached(key, bitmap);
+                        } else {
+                            Log.warning("HtmlLabelRenderer: WebView content height not known after " + retries + " retries");
+                        }
+                        releaseWebView(view);
+                        if (key.equals(markerKeys.get(marker))) {
+                            marker.setLabel(createLabel(bitmap));
+                        }
+                    }
+                });
+            }
+        });
+        String document = html.toLowerCase(Locale.US).contains("<html") ? html : UiUtils.HTML_HEAD + html + UiUtils.HTML_FOOT;
+        webView.loadDataWithBaseURL("file:///android_asset/", document, "text/html", "UTF-8", null);
+    }
+
+    /**
+     * Destroy pooled WebViews, call from onDestroy() of activity. WebViews which are still
+     * loading are destroyed when they finish.
+     */
+    public void release() {
+        released = true;
+        for (WebView webView : webViewPool) {
+            webView.destroy();
+        }
+        webViewPool.clear();
+        markerKeys.clear();
+    }
+
+    /**
+     * True if HTML has only text formatting tags, which can be drawn without WebView.
+     */
+    public static boolean isSimpleHtml(String html) {
+        Matcher matcher = TAG_PATTERN.matcher(html);
+        while (matcher.find()) {
+            if (!SIMPLE_TAGS.contains(" " + matcher.group(1).toLowerCase(Locale.US) + " ")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private WebView createWebView() {
+        WebView webView = new WebView(activity);
+        webView.setBackgroundColor(BACKGROUND_COLOR);
+        webView.setVerticalScrollBarEnabled(false);
+        webView.setHorizontalScrollBarEnabled(false);
+        return webView;
+    }
+
+    private void releaseWebView(WebView webView) {
+        webView.setWebViewClient(new WebViewClient());
+        if (!released && webViewPool.size() < POOL_SIZE) {
+            webViewPool.add(webView);
+        } else {
+            webView.destroy();
+        }
+    }
+
+    private Bitmap renderNative(String html) {
+        TextPaint paint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+        paint.setTextSize(TEXT_SIZE * density);
+        paint.setColor(Color.BLACK);
+        int padding = (int) (PADDING * density);
+        CharSequence text = Html.fromHtml(html);
+        StaticLayout layout = new StaticLayout(text, paint, maxWidth - 2 * padding, Layout.Alignment.ALIGN_NORMAL, 1, 0, false);
+
+        // shrink to widest line, so short texts give small callouts
+        float textWidth = 0;
+        for (int i = 0; i < layout.getLineCount(); i++) {
+            textWidth = Math.max(textWidth, layout.getLineWidth(i));
+        }
+        int width = Math.max(1, (int) Math.ceil(textWidth)) + 2 * padding;
+        int height = Math.min(maxHeight, layout.getHeight() + 2 * padding);
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawColor(BACKGROUND_COLOR);
+        canvas.translate(padding, padding);
+        canvas.clipRect(0, 0, width - 2 * padding, height - 2 * padding);
+        layout.draw(canvas);
+        return bitmap;
+    }
+
+    @SuppressWarnings("deprecation")
+    private Bitmap renderWebView(WebView webView) {
+        int contentHeight = (int) Math.ceil(webView.getContentHeight() * webView.getScale());
+        int height = Math.max(1, Math.min(maxHeight, contentHeight));
+        webView.layout(0, 0, maxWidth, height);
+        Bitmap bitmap = Bitmap.createBitmap(maxWidth, height, Bitmap.Config.ARGB_8888);
+        webView.draw(new Canvas(bitmap));
+        Log.debug("HtmlLabelRenderer: WebView content " + maxWidth + "x" + contentHeight);
+        return bitmap;
+    }
+
+    private Label createLabel(Bitmap bitmap) {
+        ImageView view = new ImageView(activity);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            view.layout(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        } else {
+            // ViewLabel requires a sized view
+            view.layout(0, 0, 1, 1);
+        }
+        return new ViewLabel("", view, handler);
+    }
+
+    private String getContentKey(String html) {
+        // callout size depends on maximum size too
+        String content = maxWidth + "x" + maxHeight + ":" + html;
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(content.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return content;
+        } catch (UnsupportedEncodingException e) {
+            return content;
+        }
+    }
+
+    private static Bitmap getCached(String key) {
+        synchronized (cache) {
+            return cache.get(key);
+        }
+    }
+
+    private static void putCached(String key, Bitmap bitmap) {
+        synchronized (cache) {
+            Bitmap old = cache.put(key, bitmap);
+            if (old != null) {
+                cacheBytes -= old.getRowBytes() * old.getHeight();
+            }
+            cacheBytes += bitmap.getRowBytes() * bitmap.getHeight();
+            // bitmaps may still be shown by labels, so they are not recycled
+            Iterator<Bitmap> it = cache.values().iterator();
+            while (cacheBytes > CACHE_BYTES && it.hasNext()) {
+                Bitmap eldest = it.next();
+                if (eldest == bitmap) {
+                    break;
+                }
+                cacheBytes -= eldest.getRowBytes() * eldest.getHeight();
+                it.remove();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+package com.nutiteq.advancedmap.location;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Replays GPX track points as location fixes, for repeatable testing and benchmarking of
+ * location handling without moving around. Fixes are given to listener (e.g. LocationPipeline)
+ * with original time gaps divided by replay speed, or all at once with replayAll(). replayAll() runs
+ * tasks of pipeline with VirtualScheduler in track time, so it does not wait, and its results do not
+ * depend on device speed.
+ *
+ * Fix times are taken from GPX, so time-based logic of the listener sees the original track.
+ * Accuracy comes from hdop if present, speed is calculated from neighbour points.
+ *
+ * @author jaak
+ *
+ */
+public class GpxLocationReplay {
+    public static final String PROVIDER = "gpx";
+
+    private static final float DEFAULT_ACCURACY = 10.0f;
+    private static final float HDOP_TO_ACCURACY = 5.0f;
+
+    private final List<Location> fixes;
+    // created by start(), replayAll() does not need main thread
+    private Handler handler;
+    private Runnable nextFix;
+
+    /**
+     * Parse GPX, track points and route points are used.
+     *
+     * @throws IOException if GPX can not be read or parsed
+     */
+    public GpxLocationReplay(InputStream gpx) throws IOException {
+        try {
+            fixes = parse(gpx);
+        } catch (XmlPullParserException e) {
+            throw new IOException("GpxLocationReplay: Failed to parse GPX! " + e.getMessage());
+        }
+        calculateSpeeds(fixes);
+        Log.debug("GpxLocationReplay: " + fixes.size() + " points");
+    }
+
+    public List<Location> getFixes() {
+        return fixes;
+    }
+
+    /**
+     * Start replay in main thread, previous replay is stopped.
+     *
+     * @param listener receiver of fixes
+     * @param speed replay speed, 1 for real time
+     */
+    public void start(final LocationListener listener, final float speed) {
+        stop();
+        if (fixes.isEmpty()) {
+            return;
+        }
+        if (handler == null) {
+            handler = new Handler(Looper.getMainLooper());
+        }
+        nextFix = new Runnable() {
+            private int index = 0;
+
+            @Override
+            public void run() {
+                Location fix = fixes.get(index);
+                listener.onLocationChanged(new Location(fix));
+                index++;
+                if (index < fixes.size() && nextFix == this) {
+                    long gap = fixes.get(index).getTime() - fix.getTime();
+                    handler.postDelayed(this, Math.max(0, (long) (gap / speed)));
+                }
+            }
+        };
+        handler.post(nextFix);
+    }
+
+    public void stop() {
+        if (nextFix != null) {
+            handler.removeCallbacks(nextFix);
+            nextFix = null;
+        }
+    }
+
+    /**
+     * Give all fixes to listener immediately in calling thread, e.g. for benchmarks. Tasks posted to
+     * scheduler are run in between, when track time reaches them.
+     *
+     * @param listener receiver of fixes, e.g. LocationPipeline created with the same scheduler
+     * @param scheduler virtual clock of listener
+     */
+    public void replayAll(LocationListener listener, VirtualScheduler scheduler) {
+        for (Location fix : fixes) {
+            scheduler.advanceTo(fix.getTime());
+            listener.onLocationChanged(new Location(fix));
+        }
+        scheduler.runAll();
+    }
+
+    /**
+     * Scheduler for LocationPipeline with virtual time: tasks are run by replayAll() when track time
+     * passes them, not by wall clock.
+     */
+    public static class VirtualScheduler implements LocationPipeline.Scheduler {
+        // tasks are not expected to post new tasks forever, limit for runAll()
+        private static final int MAX_RUN_ALL_TASKS = 100000;
+
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+        private final List<Long> times = new ArrayList<Long>();
+        private long time;
+
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delay) {
+            long due = time + Math.max(0, delay);
+            // sorted by due time, tasks with equal time in posting order
+            int i = times.size();
+            while (i > 0 && times.get(i - 1) > due) {
+                i--;
+            }
+            tasks.add(i, task);
+            times.add(i, due);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            for (int i = tasks.size() - 1; i >= 0; i--) {
+                if (tasks.get(i) == task) {
+                    tasks.remove(i);
+                    times.remove(i);
+                }
+            }
+        }
+
+        /**
+         * Run tasks which are due until given time, and set time.
+         */
+        public void advanceTo(long newTime) {
+            while (!tasks.isEmpty() && times.get(0) <= newTime) {
+                runNext();
+            }
+            time = Math.max(time, newTime);
+        }
+
+        /**
+         * Run all tasks, including ones posted by them.
+         */
+        public void runAll() {
+            for (int i = 0; i < MAX_RUN_ALL_TASKS && !tasks.isEmpty(); i++) {
+                runNext();
+            }
+        }
+
+        private void runNext() {
+            time = Math.max(time, times.remove(0));
+            tasks.remove(0).run();
+        }
+    }
+
+    private static List<Location> parse(InputStream gpx) throws XmlPullParserException, IOException {
+        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        List<Location> fixes = new ArrayList<Location>();
+        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setInput(gpx, null);
+        Location fix = null;
+        String element = null;
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+            if (event == XmlPullParser.START_TAG) {
+                element = parser.getName();
+                if (element.equals("trkpt") || element.equals("rtept")) {
+                    fix = new Location(PROVIDER);
+                    fix.setLatitude(Double.parseDouble(parser.getAttributeValue(null, "lat")));
+                    fix.setLongitude(Double.parseDouble(parser.getAttributeValue(null, "lon")));
+                    fix.setAccuracy(DEFAULT_ACCURACY);
+                }
+            } else if (event == XmlPullParser.TEXT && fix != null && element != null) {
+                String text = parser.getText().trim();
+                if (text.length() == 0) {
+                    continue;
+                }
+                try {
+                    if (element.equals("ele")) {
+                        fix.setAltitude(Double.parseDouble(text));
+                    } else if (element.equals("time")) {
+                        fix.setTime(parseTime(timeFormat, text));
+                    } else if (element.equals("hdop")) {
+                        fix.setAccuracy(Float.parseFloat(text) * HDOP_TO_ACCURACY);
+                    }
+                } catch (NumberFormatException e) {
+                    Log.error("GpxLocationReplay: Failed to parse " + element + " from: " + text);
+                } catch (ParseException e) {
+                    Log.error("GpxLocationReplay: Failed to parse time from: " + text);
+                }
+            } else if (event == XmlPullParser.END_TAG) {
+                String name = parser.getName();
+                if (fix != null && (name.equals("trkpt") || name.equals("rtept"))) {
+                    fixes.add(fix);
+                    fix = null;
+                }
+                element = null;
+            }
+        }
+
+        // points without time are replayed with 1 s interval
+        long time = fixes.isEmpty() || fixes.get(0).getTime() == 0 ? System.currentTimeMillis() : fixes.get(0).getTime();
+        for (Location location : fixes) {
+            if (location.getTime() == 0) {
+                location.setTime(time);
+            }
+            time = location.getTime() + 1000;
+        }
+        return fixes;
+    }
+
+    // ISO 8601 in UTC, with optional fraction of seconds
+    private static long parseTime(SimpleDateFormat timeFormat, String text) throws ParseException {
+        long time = timeFormat.parse(text.substring(0, Math.min(19, text.length()))).getTime();
+        if (text.length() > 20 && text.charAt(19) == '.') {
+            int end = 20;
+            while (end < text.length() && Character.isDigit(text.charAt(end))) {
+                end++;
+            }
+            time += Math.round(Double.parseDouble("0" + text.substring(19, end)) * 1000);
+        }
+        return time;
+    }
+
+    private static void calculateSpeeds(List<Location> fixes) {
+        for (int i = 1; i < fixes.size(); i++) {
+            Location previous = fixes.get(i - 1);
+            Location fix = fixes.get(i);
+            long dt = fix.getTime() - previous.getTime();
+            if (dt > 0) {
+                fix.setSpeed(fix.distanceTo(previous) * 1000.0f / dt);
+            }
+        }
+    }
+
+}
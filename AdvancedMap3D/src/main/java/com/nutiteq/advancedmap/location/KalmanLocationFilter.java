@@ -0,0 +1,131 @@
+package com.nutiteq.advancedmap.location;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.location.Location;
+
+/**
+ *
+ * Fuses location fixes from all providers into one smoothed location. Simple Kalman filter with
+ * position as state and same variance for both axes: accurate GPS fixes move the estimate fast,
+ * coarse network fixes only a little. Uncertainty grows with time, depending on speed, so after a pause
+ * new fixes are trusted more.
+ *
+ * Time between fixes is taken from timestamps given by caller: receive times from monotonic clock for
+ * live fixes, as fix times of different providers come from different clocks (GPS time vs system time),
+ * or fix times for replayed tracks, so they give same results. Fix times are compared only within
+ * the same provider, to drop fixes which are delivered late.
+ *
+ * @author jaak
+ *
+ */
+public class KalmanLocationFilter {
+    public static final String PROVIDER = "fused";
+
+    private static final float MIN_ACCURACY = 1.0f;
+    private static final float MIN_PROCESS_NOISE = 1.0f;
+    private static final double METERS_PER_DEGREE = 111320.0;
+    // speed estimate smoothing factor
+    private static final float SPEED_SMOOTHING = 0.3f;
+
+    private double latitude;
+    private double longitude;
+    private double altitude;
+    private double variance = -1;
+    private long time;
+    private float speed;
+    private final Map<String, Long> providerFixTimes = new HashMap<String, Long>();
+
+    /**
+     * Add fix to filter, fix time is used as timestamp. For replayed tracks with single clock.
+     *
+     * @param fix location from any provider
+     * @return fused location, or null if fix is older than previous fix of the same provider
+     */
+    public Location update(Location fix) {
+        return update(fix, fix.getTime());
+    }
+
+    /**
+     * Add fix to filter.
+     *
+     * @param fix location from any provider
+     * @param timestamp time in ms when fix was received, from monotonic clock. Fused location gets this time.
+     * @return fused location, or null if fix is older than previous fix of the same provider
+     */
+    public Location update(Location fix, long timestamp) {
+        float accuracy = Math.max(MIN_ACCURACY, fix.hasAccuracy() ? fix.getAccuracy() : 100.0f);
+        Long lastFixTime = providerFixTimes.get(fix.getProvider());
+        if (lastFixTime != null && fix.getTime() < lastFixTime) {
+            return null;
+        }
+        providerFixTimes.put(fix.getProvider(), fix.getTime());
+
+        if (variance < 0) {
+            latitude = fix.getLatitude();
+            longitude = fix.getLongitude();
+            altitude = fix.getAltitude();
+            variance = accuracy * accuracy;
+            time = timestamp;
+            speed = fix.hasSpeed() ? fix.getSpeed() : 0;
+            return getLocation();
+        }
+
+        // predict: position uncertainty grows with movement since last estimate
+        double dt = Math.max(0, timestamp - time) / 1000.0;
+        float processNoise = Math.max(MIN_PROCESS_NOISE, speed);
+        variance += dt * processNoise * processNoise;
+
+        // correct
+        double oldLatitude = latitude;
+        double oldLongitude = longitude;
+        double gain = variance / (variance + accuracy * accuracy);
+        latitude += gain * (fix.getLatitude() - latitude);
+        longitude += gain * (fix.getLongitude() - longitude);
+        if (fix.hasAltitude()) {
+            altitude += gain * (fix.getAltitude() - altitude);
+        }
+        variance = (1 - gain) * variance;
+
+        // speed from provider if known, otherwise from filtered movement
+        float measuredSpeed;
+        if (fix.hasSpeed()) {
+            measuredSpeed = fix.getSpeed();
+        } else if (dt > 0) {
+            double dy = (latitude - oldLatitude) * METERS_PER_DEGREE;
+            double dx = (longitude - oldLongitude) * METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+            measuredSpeed = (float) (Math.sqrt(dx * dx + dy * dy) / dt);
+        } else {
+            measuredSpeed = speed;
+        }
+        speed += SPEED_SMOOTHING * (measuredSpeed - speed);
+        time = Math.max(time, timestamp);
+        return getLocation();
+    }
+
+    /**
+     * Estimated speed in m/s.
+     */
+    public float getSpeed() {
+        return speed;
+    }
+
+    public void reset() {
+        variance = -1;
+        speed = 0;
+        providerFixTimes.clear();
+    }
+
+    private Location getLocation() {
+        Location location = new Location(PROVIDER);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        location.setAltitude(altitude);
+        location.setAccuracy((float) Math.sqrt(variance));
+        location.setSpeed(speed);
+        location.setTime(time);
+        return location;
+    }
+
+}
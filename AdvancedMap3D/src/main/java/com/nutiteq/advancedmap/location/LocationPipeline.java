@@ -0,0 +1,362 @@
+package com.nutiteq.advancedmap.location;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.BatteryManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Location source for map apps: fixes of all providers are fused with KalmanLocationFilter,
+ * and delivered to consumers with their own rate limits.
+ *
+ * Provider update rate adapts to speed and battery: stationary user is sampled rarely, fast moving
+ * user often, and with low battery GPS is used less. Battery state comes from battery broadcasts,
+ * not from each fix. Providers are registered again only when rate level or battery state changes.
+ *
+ * Each consumer is throttled (minimum interval and distance between deliveries) and debounced
+ * (delivered when there have been no new fixes for given time), e.g. map focus can follow every
+ * second, while expensive drive time region is recalculated only after user has moved far enough.
+ * Latest location is always delivered eventually: location closer than minimum distance is held
+ * and delivered if there are no newer fixes during settle time.
+ *
+ * Fixes can also be given directly to onLocationChanged(), e.g. from GpxLocationReplay. All limits use
+ * times of fused locations: receive times for provider fixes, as providers have different clocks, and
+ * fix times for replayed fixes, scaled with setTimeScale() for faster replay. Delayed deliveries are posted to
+ * Scheduler, which can run in virtual time (see GpxLocationReplay.replayAll()), so results of a replay
+ * are repeatable.
+ *
+ * @author jaak
+ *
+ */
+public class LocationPipeline implements LocationListener {
+    private static final int LOW_BATTERY_PERCENT = 20;
+    private static final float LOW_BATTERY_INTERVAL_FACTOR = 3.0f;
+    // GPS interval of stationary user with low battery, network is used for faster updates
+    private static final long LOW_BATTERY_GPS_INTERVAL = 60000;
+    // minimum time before location closer than minimum distance is delivered
+    private static final long MIN_SETTLE_TIME = 5000;
+    // speed must drop below this share of lower level limit before rate is decreased
+    private static final float LEVEL_HYSTERESIS = 0.7f;
+
+    // rate levels: speed limit in m/s, update interval in ms, minimum distance in m
+    private static final float[] LEVEL_MAX_SPEED = { 0.5f, 3.0f, 15.0f, Float.MAX_VALUE };
+    private static final long[] LEVEL_INTERVAL = { 15000, 5000, 2000, 1000 };
+    private static final float[] LEVEL_DISTANCE = { 10, 5, 0, 0 };
+
+    /**
+     * Receiver of fused locations.
+     */
+    public interface LocationConsumer {
+        void onLocation(Location location);
+    }
+
+    /**
+     * Runs delayed deliveries, in main thread by default.
+     */
+    public interface Scheduler {
+        void postDelayed(Runnable task, long delay);
+
+        void removeCallbacks(Runnable task);
+    }
+
+    private static class HandlerScheduler implements Scheduler {
+        private final Handler handler;
+
+        HandlerScheduler(Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delay) {
+            handler.postDelayed(task, delay);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            handler.removeCallbacks(task);
+        }
+    }
+
+    private class Subscription implements Runnable {
+        final LocationConsumer consumer;
+        final long minInterval;
+        final float minDistance;
+        final long debounce;
+        Location pending;
+        long pendingSince;
+        // pending location which is too close, delivered if it is still latest after settle time
+        Location held;
+        Location delivered;
+        int deliveryCount;
+
+        Subscription(LocationConsumer consumer, long minInterval, float minDistance, long debounce) {
+            this.consumer = consumer;
+            this.minInterval = minInterval;
+            this.minDistance = minDistance;
+            this.debounce = debounce;
+        }
+
+        void offer(Location location) {
+            if (pending == null) {
+                pendingSince = location.getTime();
+            }
+            pending = location;
+            scheduler.removeCallbacks(this);
+            long due = location.getTime() + debounce;
+            if (delivered != null) {
+                due = Math.max(due, delivered.getTime() + minInterval);
+            }
+            // continuous movement must not postpone delivery forever
+            due = Math.min(due, Math.max(pendingSince + debounce + minInterval, location.getTime()));
+            long delay = (long) ((due - location.getTime()) / timeScale);
+            if (delay <= 0) {
+                run();
+            } else {
+                scheduler.postDelayed(this, delay);
+            }
+        }
+
+        @Override
+        public void run() {
+            Location location = pending;
+            if (location == null || !running) {
+                return;
+            }
+            if (delivered != null && location != held && location.distanceTo(delivered) < minDistance) {
+                // newer fix replaces held one, otherwise deliver it after settle time
+                held = location;
+                scheduler.postDelayed(this, (long) (Math.max(minInterval + debounce, MIN_SETTLE_TIME) / timeScale));
+                return;
+            }
+            pending = null;
+            held = null;
+            delivered = location;
+            deliveryCount++;
+            consumer.onLocation(location);
+        }
+    }
+
+    private final Context context;
+    private final Scheduler scheduler;
+    private final KalmanLocationFilter filter = new KalmanLocationFilter();
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+    private boolean running;
+    private boolean useProviders;
+    private int level = -1;
+    private boolean lowBattery;
+    private boolean batteryReceiverRegistered;
+    private float timeScale = 1.0f;
+    private int fixCount;
+    // wall clock time minus elapsed realtime at start, receive times are monotonic but comparable to fix times
+    private long clockOffset;
+
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            boolean newLowBattery = isBatteryLow(intent);
+            if (newLowBattery != lowBattery && running && level >= 0) {
+                lowBattery = newLowBattery;
+                requestUpdates();
+            }
+        }
+    };
+
+    /**
+     * @param context context for location and battery services
+     */
+    public LocationPipeline(Context context) {
+        this(context, new HandlerScheduler(new Handler(context.getMainLooper())));
+    }
+
+    /**
+     * @param context context for location and battery services
+     * @param scheduler runs delayed deliveries, consumers are called from it
+     */
+    public LocationPipeline(Context context, Scheduler scheduler) {
+        this.context = context;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Add consumer, must be called from main thread.
+     *
+     * @param consumer receiver of locations, called in main thread
+     * @param minInterval minimum time between deliveries in ms
+     * @param minDistance minimum distance between delivered locations in m
+     * @param debounce time in ms without new fixes before location is delivered, 0 for immediate
+     */
+    public void addConsumer(LocationConsumer consumer, long minInterval, float minDistance, long debounce) {
+        subscriptions.add(new Subscription(consumer, minInterval, minDistance, debounce));
+    }
+
+    public void removeConsumer(LocationConsumer consumer) {
+        for (int i = subscriptions.size() - 1; i >= 0; i--) {
+            if (subscriptions.get(i).consumer == consumer) {
+                scheduler.removeCallbacks(subscriptions.get(i));
+                subscriptions.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Start receiving locations.
+     *
+     * @param useProviders true to register to location providers, false if fixes are given
+     *        to onLocationChanged() by application, e.g. in replay
+     */
+    public void start(boolean useProviders) {
+        running = true;
+        this.useProviders = useProviders;
+        filter.reset();
+        level = -1;
+        clockOffset = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        if (useProviders) {
+            // sticky broadcast gives current state at once
+            lowBattery = isBatteryLow(context.registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
+            batteryReceiverRegistered = true;
+            updateRate(0);
+        }
+    }
+
+    public void stop() {
+        running = false;
+        if (useProviders) {
+            getLocationManager().removeUpdates(this);
+        }
+        if (batteryReceiverRegistered) {
+            context.unregisterReceiver(batteryReceiver);
+            batteryReceiverRegistered = false;
+        }
+        for (Subscription subscription : subscriptions) {
+            scheduler.removeCallbacks(subscription);
+            subscription.pending = null;
+            subscription.held = null;
+        }
+    }
+
+    /**
+     * Speed up all time limits for replay.
+     *
+     * @param timeScale replay speed, 1 for real time
+     */
+    public void setTimeScale(float timeScale) {
+        this.timeScale = timeScale;
+    }
+
+    public int getFixCount() {
+        return fixCount;
+    }
+
+    /**
+     * Number of locations delivered to consumer.
+     */
+    public int getDeliveryCount(LocationConsumer consumer) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.consumer == consumer) {
+                return subscription.deliveryCount;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void onLocationChanged(Location fix) {
+        if (!running) {
+            return;
+        }
+        fixCount++;
+        Location location = useProviders ? filter.update(fix, SystemClock.elapsedRealtime() + clockOffset) : filter.update(fix);
+        if (location == null) {
+            return;
+        }
+        if (useProviders) {
+            updateRate(filter.getSpeed());
+        }
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(location);
+        }
+    }
+
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {
+        Log.debug("LocationPipeline: " + provider + " status " + status);
+    }
+
+    @Override
+    public void onProviderEnabled(String provider) {
+        // register with new provider too
+        if (running && useProviders) {
+            level = -1;
+            updateRate(filter.getSpeed());
+        }
+    }
+
+    @Override
+    public void onProviderDisabled(String provider) {
+        Log.debug("LocationPipeline: " + provider + " disabled");
+    }
+
+    private void updateRate(float speed) {
+        int newLevel = 0;
+        while (speed > LEVEL_MAX_SPEED[newLevel]) {
+            newLevel++;
+        }
+        if (level >= 0 && newLevel < level && speed > LEVEL_MAX_SPEED[newLevel] * LEVEL_HYSTERESIS) {
+            newLevel = level;
+        }
+        if (newLevel == level) {
+            return;
+        }
+        level = newLevel;
+        requestUpdates();
+    }
+
+    private void requestUpdates() {
+        long interval = LEVEL_INTERVAL[level];
+        if (lowBattery) {
+            interval = (long) (interval * LOW_BATTERY_INTERVAL_FACTOR);
+        }
+        LocationManager locationManager = getLocationManager();
+        locationManager.removeUpdates(this);
+        for (String provider : locationManager.getProviders(true)) {
+            // stationary user with low battery gets GPS rarely, so that movement is still detected
+            long providerInterval = interval;
+            if (lowBattery && level == 0 && LocationManager.GPS_PROVIDER.equals(provider)) {
+                providerInterval = Math.max(interval, LOW_BATTERY_GPS_INTERVAL);
+            }
+            locationManager.requestLocationUpdates(provider, providerInterval, LEVEL_DISTANCE[level], this);
+        }
+        Log.debug("LocationPipeline: update interval " + interval + " ms, distance " + LEVEL_DISTANCE[level] + " m, low battery " + lowBattery);
+    }
+
+    private static boolean isBatteryLow(Intent battery) {
+        if (battery == null) {
+            return false;
+        }
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        if (status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL) {
+            return false;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level >= 0 && scale > 0 && level * 100 / scale < LOW_BATTERY_PERCENT;
+    }
+
+    private LocationManager getLocationManager() {
+        return (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+    }
+
+}
@@ -0,0 +1,340 @@
+package com.nutiteq.advancedmap.location;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.annotation.TargetApi;
+import android.hardware.GeomagneticField;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.location.Location;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Compass heading for map rotation, with low CPU and render load.
+ *
+ * Sensor events are handled in own thread: rotation vector sensor is low-pass filtered, or if
+ * it is missing, accelerometer and magnetometer heading is combined with gyroscope in complementary
+ * filter. Main thread is woken only when filtered heading differs from shown heading more than
+ * MIN_DELTA degrees, then heading is interpolated towards it with display rate until reached,
+ * so listener gets smooth rotation with no frames for sensor noise.
+ *
+ * Sensor events, frames and CPU usage are logged once per minute by a timer in main thread.
+ *
+ * Rotation vector sensor is available from Android 2.3 (API 9), older devices use accelerometer and magnetometer.
+ *
+ * @author jaak
+ *
+ */
+public class OrientationPipeline implements SensorEventListener {
+    private static final long FRAME_INTERVAL = 16;
+    private static final float MIN_DELTA = 1.0f;
+    private static final float SENSOR_TIME_CONSTANT = 0.15f;
+    private static final float DISPLAY_TIME_CONSTANT = 0.1f;
+    private static final float GYRO_WEIGHT = 0.98f;
+    private static final float GRAVITY_SMOOTHING = 0.2f;
+    private static final long STATS_INTERVAL = 60000;
+
+    /**
+     * Receiver of smoothed heading, called in main thread.
+     */
+    public interface OnHeadingChangedListener {
+        void onHeadingChanged(float heading);
+    }
+
+    private final SensorManager sensorManager;
+    private final OnHeadingChangedListener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread sensorThread;
+
+    // sensor thread
+    private final float[] rotationMatrix = new float[9];
+    private final float[] orientation = new float[3];
+    private final float[] gravity = new float[3];
+    private final float[] geomagnetic = new float[3];
+    private boolean hasGravity;
+    private boolean useGyroscope;
+    // previous event time of each sensor type, in ns
+    private long lastRotationVectorTime;
+    private long lastGyroscopeTime;
+    private long lastMagneticFieldTime;
+    private float filteredHeading = Float.NaN;
+
+    // shared
+    private final AtomicInteger sensorEventCount = new AtomicInteger();
+    private volatile float declination;
+    private volatile float targetHeading = Float.NaN;
+    // guarded by this, frames are posted only while running
+    private boolean running;
+    private boolean animating;
+
+    // main thread
+    private float shownHeading = Float.NaN;
+    private long lastFrameTime;
+    private int frameCount;
+    private long statsStartTime;
+    private long statsStartCpuTime;
+
+    private final Runnable frame = new Runnable() {
+        @Override
+        public void run() {
+            drawFrame();
+        }
+    };
+
+    private final Runnable stats = new Runnable() {
+        @Override
+        public void run() {
+            logStats();
+            mainHandler.postDelayed(this, STATS_INTERVAL);
+        }
+    };
+
+    /**
+     * @param sensorManager sensor service
+     * @param listener receiver of heading
+     */
+    public OrientationPipeline(SensorManager sensorManager, OnHeadingChangedListener listener) {
+        this.sensorManager = sensorManager;
+        this.listener = listener;
+    }
+
+    /**
+     * Register sensors, call from main thread.
+     *
+     * @return false if device has no usable sensors
+     */
+    public boolean start() {
+        if (sensorThread != null) {
+            return true;
+        }
+        sensorThread = new HandlerThread("OrientationPipeline");
+        sensorThread.start();
+        Handler sensorHandler = new Handler(sensorThread.getLooper());
+        synchronized (this) {
+            running = true;
+        }
+        lastRotationVectorTime = 0;
+        lastGyroscopeTime = 0;
+        lastMagneticFieldTime = 0;
+        statsStartTime = SystemClock.uptimeMillis();
+        statsStartCpuTime = Process.getElapsedCpuTime();
+        sensorEventCount.set(0);
+        frameCount = 0;
+        mainHandler.postDelayed(stats, STATS_INTERVAL);
+
+        // rotation vector sensor is fused from gyroscope and magnetometer already
+        Sensor rotationVector = Build.VERSION.SDK_INT >= 9 ? getRotationVectorSensor() : null;
+        if (rotationVector != null) {
+            sensorManager.registerListener(this, rotationVector, SensorManager.SENSOR_DELAY_GAME, sensorHandler);
+            Log.debug("OrientationPipeline: using rotation vector sensor");
+            return true;
+        }
+        Sensor accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        Sensor magnetometer = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+        if (accelerometer == null || magnetometer == null) {
+            Log.error("OrientationPipeline: no compass sensors");
+            stop();
+            return false;
+        }
+        sensorManager.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_GAME, sensorHandler);
+        sensorManager.registerListener(this, magnetometer, SensorManager.SENSOR_DELAY_GAME, sensorHandler);
+        Sensor gyroscope = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        useGyroscope = gyroscope != null;
+        if (useGyroscope) {
+            sensorManager.registerListener(this, gyroscope, SensorManager.SENSOR_DELAY_GAME, sensorHandler);
+        }
+        Log.debug("OrientationPipeline: using accelerometer and magnetometer, gyroscope " + useGyroscope);
+        return true;
+    }
+
+    public void stop() {
+        if (sensorThread == null) {
+            return;
+        }
+        // sensor thread may be handling an event, it does not post frames after this
+        synchronized (this) {
+            running = false;
+            animating = false;
+        }
+        sensorManager.unregisterListener(this);
+        sensorThread.quit();
+        sensorThread = null;
+        mainHandler.removeCallbacks(frame);
+        mainHandler.removeCallbacks(stats);
+    }
+
+    /**
+     * Update magnetic declination, so heading is relative to true north.
+     */
+    public void setLocation(Location location) {
+        GeomagneticField field = new GeomagneticField((float) location.getLatitude(), (float) location.getLongitude(),
+                (float) location.getAltitude(), location.getTime());
+        declination = field.getDeclination();
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        sensorEventCount.incrementAndGet();
+
+        float dt;
+        switch (event.sensor.getType()) {
+        case Sensor.TYPE_ROTATION_VECTOR:
+            // registered only from API 9
+            onRotationVectorChanged(event);
+            break;
+        case Sensor.TYPE_ACCELEROMETER:
+            for (int i = 0; i < 3; i++) {
+                gravity[i] = hasGravity ? gravity[i] + GRAVITY_SMOOTHING * (event.values[i] - gravity[i]) : event.values[i];
+            }
+            hasGravity = true;
+            return;
+        case Sensor.TYPE_GYROSCOPE:
+            dt = getInterval(lastGyroscopeTime, event.timestamp);
+            lastGyroscopeTime = event.timestamp;
+            if (!Float.isNaN(filteredHeading) && dt > 0) {
+                // rotation around device z axis, counter-clockwise is positive
+                filteredHeading = normalize(filteredHeading - (float) Math.toDegrees(event.values[2] * dt));
+            }
+            return;
+        case Sensor.TYPE_MAGNETIC_FIELD:
+            dt = getInterval(lastMagneticFieldTime, event.timestamp);
+            lastMagneticFieldTime = event.timestamp;
+            System.arraycopy(event.values, 0, geomagnetic, 0, 3);
+            if (!hasGravity || !SensorManager.getRotationMatrix(rotationMatrix, null, gravity, geomagnetic)) {
+                return;
+            }
+            if (useGyroscope && !Float.isNaN(filteredHeading)) {
+                // gyroscope gives fast response, compass corrects its drift
+                filteredHeading = normalize(filteredHeading + (1 - GYRO_WEIGHT) * angleDiff(getAzimuth(), filteredHeading));
+            } else {
+                lowPass(getAzimuth(), dt);
+            }
+            break;
+        default:
+            return;
+        }
+
+        targetHeading = normalize(filteredHeading + declination);
+        synchronized (this) {
+            if (!running || animating) {
+                return;
+            }
+            if (Float.isNaN(shownHeading) || Math.abs(angleDiff(targetHeading, shownHeading)) >= MIN_DELTA) {
+                animating = true;
+                mainHandler.post(frame);
+            }
+        }
+    }
+
+    @TargetApi(9)
+    private Sensor getRotationVectorSensor() {
+        return sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+    }
+
+    @TargetApi(9)
+    private void onRotationVectorChanged(SensorEvent event) {
+        float dt = getInterval(lastRotationVectorTime, event.timestamp);
+        lastRotationVectorTime = event.timestamp;
+        SensorManager.getRotationMatrixFromVector(rotationMatrix, event.values);
+        lowPass(getAzimuth(), dt);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        if (sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD && accuracy == SensorManager.SENSOR_STATUS_UNRELIABLE) {
+            Log.warning("OrientationPipeline: magnetic interference!");
+        }
+    }
+
+    private void drawFrame() {
+        long time = SystemClock.uptimeMillis();
+        float target = targetHeading;
+        float heading;
+        boolean done;
+        if (Float.isNaN(shownHeading) || Float.isNaN(target)) {
+            heading = target;
+            done = true;
+        } else {
+            // exponential approach, independent of frame rate
+            float dt = Math.min(0.1f, (time - lastFrameTime) / 1000.0f);
+            float diff = angleDiff(target, shownHeading);
+            heading = normalize(shownHeading + diff * (1 - (float) Math.exp(-dt / DISPLAY_TIME_CONSTANT)));
+            done = Math.abs(angleDiff(target, heading)) < MIN_DELTA / 2;
+            if (done) {
+                heading = target;
+            }
+        }
+        lastFrameTime = time;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            shownHeading = heading;
+            animating = !done;
+        }
+        if (!Float.isNaN(heading)) {
+            frameCount++;
+            listener.onHeadingChanged(heading);
+        }
+        if (!done) {
+            mainHandler.postDelayed(frame, FRAME_INTERVAL);
+        }
+    }
+
+    private void logStats() {
+        long time = SystemClock.uptimeMillis();
+        long cpuTime = Process.getElapsedCpuTime();
+        float minutes = (time - statsStartTime) / 60000.0f;
+        Log.debug("OrientationPipeline: per minute " + Math.round(sensorEventCount.getAndSet(0) / minutes) + " sensor events, "
+                + Math.round(frameCount / minutes) + " frames, CPU " + Math.round((cpuTime - statsStartCpuTime) * 100.0f / (time - statsStartTime)) + "%");
+        frameCount = 0;
+        statsStartTime = time;
+        statsStartCpuTime = cpuTime;
+    }
+
+    // seconds since previous event of the same sensor, 0 for first event
+    private static float getInterval(long lastTime, long time) {
+        return lastTime != 0 ? (time - lastTime) / 1e9f : 0;
+    }
+
+    private float getAzimuth() {
+        SensorManager.getOrientation(rotationMatrix, orientation);
+        return normalize((float) Math.toDegrees(orientation[0]));
+    }
+
+    private void lowPass(float heading, float dt) {
+        if (Float.isNaN(filteredHeading) || dt <= 0) {
+            filteredHeading = heading;
+            return;
+        }
+        float alpha = dt / (SENSOR_TIME_CONSTANT + dt);
+        filteredHeading = normalize(filteredHeading + alpha * angleDiff(heading, filteredHeading));
+    }
+
+    // shortest signed difference a - b, in -180..180
+    private static float angleDiff(float a, float b) {
+        float diff = (a - b) % 360;
+        if (diff > 180) {
+            diff -= 360;
+        } else if (diff < -180) {
+            diff += 360;
+        }
+        return diff;
+    }
+
+    private static float normalize(float angle) {
+        angle %= 360;
+        return angle < 0 ? angle + 360 : angle;
+    }
+
+}
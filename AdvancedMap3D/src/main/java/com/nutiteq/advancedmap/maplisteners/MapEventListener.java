@@ -2,7 +2,12 @@ package com.nutiteq.advancedmap.maplisteners;
 
 import javax.microedition.khronos.opengles.GL10;
 
+import android.widget.Toast;
+
 import com.nutiteq.advancedmap.activity.AdvancedMapActivity;
+import com.nutiteq.advancedmap.geocode.ReverseGeocoder;
+import com.nutiteq.advancedmap.mapquest.MapQuestSearchQuery;
+import com.nutiteq.components.MapPos;
 import com.nutiteq.geometry.VectorElement;
 import com.nutiteq.log.Log;
 import com.nutiteq.projections.EPSG3857;
@@ -11,13 +16,16 @@ import com.nutiteq.ui.MapListener;
 /**
  * 
  * Simple MapListener which shows and hides progress bar in app status bar, based
- * on status of background tasks.
+ * on status of background tasks. Long click on map shows address of clicked location.
  * 
  * @author jaak
  *
  */
 public class MapEventListener extends MapListener {
 
+	// shared, conversion does not need new instance per click
+	private static final EPSG3857 PROJECTION = new EPSG3857();
+
 	private AdvancedMapActivity activity;
 
 	// activity is often useful to handle click events
@@ -62,9 +70,30 @@ public class MapEventListener extends MapListener {
 			final boolean longClick) {
 		// x and y are in base map projection, we convert them to the familiar
 		// WGS84
-		Log.debug("onMapClicked " + (new EPSG3857()).toWgs84(x, y).x + " "
-				+ (new EPSG3857()).toWgs84(x, y).y + " longClick: " + longClick);
+		MapPos wgs84 = PROJECTION.toWgs84(x, y);
+		Log.debug("onMapClicked " + wgs84.x + " " + wgs84.y + " longClick: " + longClick);
+
+		if (longClick) {
+			ReverseGeocoder geocoder = ReverseGeocoder.getInstance(activity, MapQuestSearchQuery.MAPQUEST_KEY);
+			ReverseGeocoder.Result result = geocoder.resolve(wgs84.x, wgs84.y, new ReverseGeocoder.ResultListener() {
+				@Override
+				public void onResult(double lon, double lat, ReverseGeocoder.Result result) {
+					showAddress(result);
+				}
+			});
+			if (result != null) {
+				showAddress(result);
+			}
+		}
+	}
 
+	private void showAddress(final ReverseGeocoder.Result result) {
+		activity.runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				Toast.makeText(activity, result != null ? result.getTitle() : "Address not found", Toast.LENGTH_SHORT).show();
+			}
+		});
 	}
 
 	@Override
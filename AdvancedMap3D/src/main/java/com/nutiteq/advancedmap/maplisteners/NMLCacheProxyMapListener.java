@@ -0,0 +1,41 @@
+package com.nutiteq.advancedmap.maplisteners;
+
+import com.nutiteq.advancedmap.nml.NMLCacheProxy;
+import com.nutiteq.geometry.VectorElement;
+import com.nutiteq.ui.MapListener;
+
+/**
+ * 
+ * MapListener which tells NMLCacheProxy that map view has changed,
+ * so queued 3D model requests of previous view can be cancelled.
+ * 
+ * @author jaak
+ *
+ */
+public class NMLCacheProxyMapListener extends MapListener {
+
+    private NMLCacheProxy proxy;
+
+    public NMLCacheProxyMapListener(NMLCacheProxy proxy) {
+        this.proxy = proxy;
+    }
+
+    @Override
+    public void onMapMoved() {
+        // this method is also called from non-UI thread
+        proxy.onViewChanged();
+    }
+
+    @Override
+    public void onMapClicked(double x, double y, boolean longClick) {
+    }
+
+    @Override
+    public void onVectorElementClicked(VectorElement vectorElement, double x, double y, boolean longClick) {
+    }
+
+    @Override
+    public void onLabelClicked(VectorElement vectorElement, boolean longClick) {
+    }
+
+}
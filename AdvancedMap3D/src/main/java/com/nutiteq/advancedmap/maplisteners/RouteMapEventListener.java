@@ -2,6 +2,11 @@ package com.nutiteq.advancedmap.maplisteners;
 
 import javax.microedition.khronos.opengles.GL10;
 
+import android.app.Activity;
+import android.content.Context;
+
+import com.nutiteq.advancedmap.geocode.ReverseGeocoder;
+import com.nutiteq.advancedmap.mapquest.MapQuestSearchQuery;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.geometry.VectorElement;
 import com.nutiteq.log.Log;
@@ -19,13 +24,18 @@ import com.nutiteq.ui.MapListener;
  */
 public class RouteMapEventListener extends MapListener {
 
+	// shared, conversion does not need new instance per click
+	private static final EPSG3857 PROJECTION = new EPSG3857();
+
 	private RouteActivity activity;
+	private Context context;
     private MapPos startPos;
     private MapPos stopPos;
 
 	// activity is often useful to handle click events
-	public RouteMapEventListener(RouteActivity activity) {
+	public <T extends Activity & RouteActivity> RouteMapEventListener(T activity) {
 		this.activity = activity;
+		this.context = activity;
 	}
 
 	// Map drawing callbacks for OpenGL manipulations
@@ -64,17 +74,19 @@ public class RouteMapEventListener extends MapListener {
 			final boolean longClick) {
 		// x and y are in base map projection, we convert them to the familiar
 		// WGS84
-		Log.debug("onMapClicked " + (new EPSG3857()).toWgs84(x, y).x + " "
-				+ (new EPSG3857()).toWgs84(x, y).y + " longClick: " + longClick);
+		MapPos wgs84 = PROJECTION.toWgs84(x, y);
+		Log.debug("onMapClicked " + wgs84.x + " " + wgs84.y + " longClick: " + longClick);
 		
 		if(startPos == null){
 		    // set start, or start again
-		    startPos = (new EPSG3857()).toWgs84(x,y);
+		    startPos = wgs84;
 		    activity.setStartMarker(new MapPos(x,y));
+		    logAddress("start", startPos);
 		}else if(stopPos == null){
 		    // set stop and calculate
-		    stopPos = (new EPSG3857()).toWgs84(x,y);
+		    stopPos = wgs84;
 		    activity.setStopMarker(new MapPos(x,y));
+		    logAddress("stop", stopPos);
 	        activity.showRoute(startPos.y, startPos.x, stopPos.y, stopPos.x);
 		 
 	        // restart to force new route next time
@@ -85,6 +97,19 @@ public class RouteMapEventListener extends MapListener {
 		
 		
 
+	}
+
+	private void logAddress(final String point, MapPos wgs84) {
+	    ReverseGeocoder.Result result = ReverseGeocoder.getInstance(context, MapQuestSearchQuery.MAPQUEST_KEY).resolve(wgs84.x, wgs84.y,
+	            new ReverseGeocoder.ResultListener() {
+	        @Override
+	        public void onResult(double lon, double lat, ReverseGeocoder.Result result) {
+	            Log.debug("route " + point + ": " + result);
+	        }
+	    });
+	    if (result != null) {
+	        Log.debug("route " + point + ": " + result);
+	    }
 	}
 
 	@Override
@@ -7,9 +7,9 @@ import javax.microedition.khronos.opengles.GL10;
 import android.app.Activity;
 import android.content.Intent;
 import android.net.Uri;
-import android.webkit.WebView;
 
 import com.nutiteq.MapView;
+import com.nutiteq.advancedmap.label.HtmlLabelRenderer;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.MapTile;
 import com.nutiteq.components.MutableMapPos;
@@ -19,8 +19,6 @@ import com.nutiteq.layers.raster.deprecated.UtfGridLayerInterface;
 import com.nutiteq.log.Log;
 import com.nutiteq.projections.EPSG3857;
 import com.nutiteq.ui.MapListener;
-import com.nutiteq.ui.ViewLabel;
-import com.nutiteq.utils.UiUtils;
 import com.nutiteq.utils.UtfGridHelper;
 
 /**
@@ -29,7 +27,7 @@ import com.nutiteq.utils.UtfGridHelper;
  * The tooltip is technically a Marker which has real marker part (bitmap) hidden, and Label opened, so
  * it looks like just a Label on map.
  * 
- * WebView is created and used inside Label, this enables HTML for labels.
+ * HtmlLabelRenderer draws HTML of the tooltip as Label.
  * 
  * @author jaak
  *
@@ -41,13 +39,15 @@ public class UtfGridLayerEventListener extends MapListener {
     private String template;
     private Marker clickMarker;
     private MapView mapView;
+    private HtmlLabelRenderer labelRenderer;
 
 	// activity is often useful to handle click events
-	public UtfGridLayerEventListener(Activity activity, MapView mapView, UtfGridLayerInterface layer, Marker clickMarker) {
+	public UtfGridLayerEventListener(Activity activity, MapView mapView, UtfGridLayerInterface layer, Marker clickMarker, HtmlLabelRenderer labelRenderer) {
 		this.activity = activity;
 		this.layer = layer;
 		this.clickMarker = clickMarker;
 		this.mapView = mapView;
+		this.labelRenderer = labelRenderer;
 	}
 
 	// Map drawing callbacks for OpenGL manipulations
@@ -138,14 +138,9 @@ public class UtfGridLayerEventListener extends MapListener {
             
             clickMarker.setMapPos(pos);
             mapView.selectVectorElement(clickMarker);
-            WebView webView = ((WebView)((ViewLabel)clickMarker.getLabel()).getView());
             Log.debug("showing html: "+text);
-            webView.loadDataWithBaseURL("file:///android_asset/",UiUtils.HTML_HEAD+text+UiUtils.HTML_FOOT, "text/html", "UTF-8",null);
-            Log.debug("webView.getWidth() = "+webView.getWidth());
-            Log.debug("webView.getHeight() = "+webView.getHeight());
-            Log.debug("webView.getContentHeight() = "+webView.getContentHeight());
-            // try to resize view based on real content, but this does not work properly
-            //webView.layout(0, 0, webView.getWidth(), webView.getContentHeight());
+            // label is sized to content by renderer
+            labelRenderer.showHtml(clickMarker, text);
             clickMarker.userData = toolTips;
             
         }
@@ -2,9 +2,9 @@ package com.nutiteq.advancedmap.maplisteners;
 
 import android.app.Activity;
 import android.os.Handler;
-import android.webkit.WebView;
 
 import com.nutiteq.MapView;
+import com.nutiteq.advancedmap.label.HtmlLabelRenderer;
 import com.nutiteq.components.MapPos;
 import com.nutiteq.components.MapTile;
 import com.nutiteq.components.MutableMapPos;
@@ -14,14 +14,12 @@ import com.nutiteq.geometry.VectorElement;
 import com.nutiteq.log.Log;
 import com.nutiteq.projections.EPSG3857;
 import com.nutiteq.ui.MapListener;
-import com.nutiteq.ui.ViewLabel;
-import com.nutiteq.utils.UiUtils;
 
 /**
  * 
  * Used for click detection on WMS map, where GetFeatureInfo can be requested. Click initiates
- * HTTP request to server to get additional metadata as HTML. Then WebView is embed to a Label and shown
- * on map.
+ * HTTP request to server to get additional metadata as HTML. Then HTML is rendered to a Label
+ * with HtmlLabelRenderer and shown on map.
  * 
  * @author jaak
  *
@@ -31,13 +29,15 @@ public class WMSFeatureClickListener extends MapListener {
     private WMSRasterDataSource dataSource;
     private Marker clickMarker;
     private MapView mapView;
+    private HtmlLabelRenderer labelRenderer;
     private Handler handler = new Handler();
 
     // activity is often useful to handle click events
-    public WMSFeatureClickListener(Activity activity, MapView mapView, WMSRasterDataSource dataSource, Marker clickMarker) {
+    public WMSFeatureClickListener(Activity activity, MapView mapView, WMSRasterDataSource dataSource, Marker clickMarker, HtmlLabelRenderer labelRenderer) {
         this.dataSource = dataSource;
         this.clickMarker = clickMarker;
         this.mapView = mapView;
+        this.labelRenderer = labelRenderer;
     }
 
     // Vector element (touch) handlers
@@ -86,9 +86,8 @@ public class WMSFeatureClickListener extends MapListener {
         if(clickMarker != null){
             clickMarker.setMapPos(pos);
             mapView.selectVectorElement(clickMarker);
-            WebView webView = ((WebView)((ViewLabel)clickMarker.getLabel()).getView());
             Log.debug("showing html: "+text);
-            webView.loadDataWithBaseURL("file:///android_asset/", text, "text/html", "UTF-8", null);
+            labelRenderer.showHtml(clickMarker, text);
         }
     }
 
@@ -16,7 +16,6 @@ import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.provider.SearchRecentSuggestions;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.SimpleAdapter;
@@ -24,6 +23,9 @@ import android.widget.Toast;
 
 import com.nutiteq.advancedmap.R;
 import com.nutiteq.advancedmap.activity.AddressSearchActivity;
+import com.nutiteq.advancedmap.cache.ResourceBitmapCache;
+import com.nutiteq.advancedmap.geocode.OfflineGeocoder;
+import com.nutiteq.advancedmap.geocode.SuggestionIndex;
 import com.nutiteq.components.Color;
 import com.nutiteq.geometry.Marker;
 import com.nutiteq.log.Log;
@@ -34,14 +36,14 @@ import com.nutiteq.services.geocode.SearchQueryResults;
 import com.nutiteq.style.MarkerStyle;
 import com.nutiteq.ui.DefaultLabel;
 import com.nutiteq.ui.Label;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 
 
 public class MapQuestSearchQuery extends ListActivity implements SearchQueryResults  
 {  
     private static final int SEARCH_DIALOG = 1;
 
-    private static final String MAPQUEST_KEY = "Fmjtd%7Cluub2qu82q%2C70%3Do5-961w1w";
+    public static final String MAPQUEST_KEY = "Fmjtd%7Cluub2qu82q%2C70%3Do5-961w1w";
+    private static final int MAX_OFFLINE_RESULTS = 20;
 
     // UI elements
     private ProgressDialog progressDialog;
@@ -110,14 +112,22 @@ public class MapQuestSearchQuery extends ListActivity implements SearchQueryResu
         // The search query is provided as an "extra" string in the query intent
         final String queryString = queryIntent.getStringExtra(SearchManager.QUERY);
         
-        // Record the query string in the recent queries suggestions provider.
-        SearchRecentSuggestions suggestions = new SearchRecentSuggestions(this, 
-                SearchSuggestionProvider.AUTHORITY, SearchSuggestionProvider.MODE);
-        suggestions.saveRecentQuery(queryString, null);
+        // Record the query string in the recent queries for suggestions.
+        SuggestionIndex.getInstance(this).addRecentQuery(queryString);
         
         
         // Do the actual search, write to searchResults field
          showDialog(SEARCH_DIALOG);
+
+         // offline index is used if AddressSearchActivity has loaded it
+         OfflineGeocoder offlineGeocoder = OfflineGeocoder.getLoadedInstance();
+         if (offlineGeocoder != null) {
+             Bundle appData = queryIntent.getBundleExtra(SearchManager.APP_DATA);
+             double lon = appData != null ? appData.getDouble(AddressSearchActivity.APP_DATA_LON, Double.NaN) : Double.NaN;
+             double lat = appData != null ? appData.getDouble(AddressSearchActivity.APP_DATA_LAT, Double.NaN) : Double.NaN;
+             offlineGeocoder.geocode(queryString, lon, lat, MAX_OFFLINE_RESULTS, this);
+             return;
+         }
          
          MapQuestGeocoder geocoder = new MapQuestGeocoder();
          geocoder.geocode(queryString, null, this, MAPQUEST_KEY);
@@ -158,7 +168,7 @@ public class MapQuestSearchQuery extends ListActivity implements SearchQueryResu
         searchResultPlaces = new Marker[locations.length()];
         
         Projection proj = new EPSG3857();
-        Bitmap pointMarker = UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.olmarker);
+        Bitmap pointMarker = ResourceBitmapCache.decodeResource(getResources(), R.drawable.olmarker);
         MarkerStyle markerStyle = MarkerStyle.builder().setBitmap(pointMarker)./*setSize(0.001f).*/setColor(Color.WHITE).build();
         
         for (int i=0;i<locations.length();i++){
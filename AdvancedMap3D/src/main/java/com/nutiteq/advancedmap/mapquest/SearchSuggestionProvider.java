@@ -1,34 +1,104 @@
 package com.nutiteq.advancedmap.mapquest;
 
-import android.content.SearchRecentSuggestionsProvider;
+import java.util.List;
+
+import android.app.SearchManager;
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+import com.nutiteq.advancedmap.geocode.SuggestionIndex;
+import com.nutiteq.log.Log;
 
 /**
- * To create a search suggestions provider using the built-in recent queries mode, 
- * simply extend SearchRecentSuggestionsProvider as shown here, and configure with
- * a unique authority and the mode you with to use.  For more information, see
- * {@link android.content.SearchRecentSuggestionsProvider}.
+ * As-you-type search suggestions: recent queries, local POIs and offline geocoder results,
+ * served from in-memory SuggestionIndex, so no database is used on keystrokes.
+ *
+ * Query to suggestion latency is logged for every query, and as average and maximum
+ * after every STATS_INTERVAL queries.
  */
-public class SearchSuggestionProvider extends SearchRecentSuggestionsProvider {
-    
+public class SearchSuggestionProvider extends ContentProvider {
+
     /**
      * This is the provider authority identifier.  The same string must appear in your
-     * Manifest file, and any time you instantiate a 
-     * {@link android.provider.SearchRecentSuggestions} helper class. 
+     * Manifest file and in xml/searchable.xml.
      */
     final static String AUTHORITY = "com.nutiteq.osm";
-    /**
-     * These flags determine the operating mode of the suggestions provider.  This value should 
-     * not change from run to run, because when it does change, your suggestions database may 
-     * be wiped.
-     */
-    final static int MODE = DATABASE_MODE_QUERIES;
-    
-    /**
-     * The main job of the constructor is to call {@link #setupSuggestions(String, int)} with the
-     * appropriate configuration values.
-     */
-    public SearchSuggestionProvider() {
-        super();
-        setupSuggestions(AUTHORITY, MODE);
+
+    private static final int MAX_SUGGESTIONS = 10;
+    private static final int STATS_INTERVAL = 50;
+
+    private static final String[] COLUMNS = { BaseColumns._ID, SearchManager.SUGGEST_COLUMN_TEXT_1,
+            SearchManager.SUGGEST_COLUMN_TEXT_2, SearchManager.SUGGEST_COLUMN_QUERY };
+
+    private SuggestionIndex index;
+
+    private int queryCount;
+    private long totalTime;
+    private long maxTime;
+
+    @Override
+    public boolean onCreate() {
+        // starts loading the snapshot, so it is ready when user starts typing
+        index = SuggestionIndex.getInstance(getContext());
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        long startTime = System.nanoTime();
+        String query = selectionArgs != null && selectionArgs.length > 0 ? selectionArgs[0] : uri.getLastPathSegment();
+        if (query == null || query.equals(SearchManager.SUGGEST_URI_PATH_QUERY)) {
+            query = "";
+        }
+
+        List<SuggestionIndex.Suggestion> suggestions = index.suggest(query, MAX_SUGGESTIONS);
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, suggestions.size());
+        for (int i = 0; i < suggestions.size(); i++) {
+            SuggestionIndex.Suggestion suggestion = suggestions.get(i);
+            cursor.addRow(new Object[] { i, suggestion.text, suggestion.detail, suggestion.query });
+        }
+
+        long time = (System.nanoTime() - startTime) / 1000;
+        logLatency(query, suggestions.size(), time);
+        return cursor;
+    }
+
+    private synchronized void logLatency(String query, int count, long time) {
+        Log.debug("SearchSuggestionProvider: '" + query + "' " + count + " suggestions in " + time + " us, index loaded " + index.isLoaded());
+        queryCount++;
+        totalTime += time;
+        maxTime = Math.max(maxTime, time);
+        if (queryCount == STATS_INTERVAL) {
+            Log.debug("SearchSuggestionProvider: latency average " + totalTime / queryCount + " us, max " + maxTime + " us");
+            queryCount = 0;
+            totalTime = 0;
+            maxTime = 0;
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return SearchManager.SUGGEST_MIME_TYPE;
+    }
+
+    // suggestions are read-only, recent queries are changed with SuggestionIndex
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
     }
 }
@@ -0,0 +1,1063 @@
+package com.nutiteq.advancedmap.nml;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.opengl.ETC1;
+
+import com.google.protobuf.ByteString;
+import com.nutiteq.log.Log;
+import com.nutiteq.nmlpackage.NMLPackage;
+
+/**
+ *
+ * Converts COLLADA (.dae) models to NML on device, replaces online conversion service.
+ *
+ * DAE is parsed with pull parser in one pass. Polygons are triangulated, each geometry is converted
+ * to NML mesh only once even if it is instanced many times, and each image to one texture even if
+ * used by many materials. Vertex attributes are expanded from COLLADA indices, as NML submeshes
+ * are not indexed, so degenerate triangles are dropped and missing normals are generated.
+ * Textures are scaled to power of two size not larger than max texture size (at most 1024), with mipmaps.
+ * Opaque textures are compressed to ETC1, which takes 1/6 of raw RGB size, as converted models are
+ * kept in memory with all mipmap levels.
+ *
+ * Supported: triangles, polylist and polygons; matrix, translate, rotate and scale node transforms;
+ * diffuse color or texture of effects; unit and up axis.
+ *
+ * @author jaak
+ *
+ */
+public class DaeConverter {
+    private static final String NS_SEPARATOR = "#";
+    // decoded bitmaps and mipmaps take most memory, so images are decoded by at most 2 threads
+    private static final int MAX_PARALLEL_TEXTURE_DECODES = 2;
+    // 1024x1024 RGBA texture with mipmaps takes 5.6 MB
+    private static final int MAX_TEXTURE_SIZE = 1024;
+    // each conversion keeps parsed document and built meshes in memory
+    private static final int MAX_PARALLEL_CONVERSIONS = 2;
+
+    private final int maxTextureSize;
+    private final Semaphore textureDecodes = new Semaphore(MAX_PARALLEL_TEXTURE_DECODES);
+
+    /**
+     * Loads files referenced from DAE, e.g. texture images.
+     */
+    public interface ResourceLoader {
+        InputStream open(String path) throws IOException;
+    }
+
+    /**
+     * @param maxTextureSize maximum texture width and height, e.g. 512 or 1024. Larger values are limited to 1024.
+     */
+    public DaeConverter(int maxTextureSize) {
+        this.maxTextureSize = Math.min(maxTextureSize, MAX_TEXTURE_SIZE);
+    }
+
+    /**
+     * Convert .dae file, textures are loaded relative to file folder.
+     */
+    public NMLPackage.Model convertFile(File daeFile) throws IOException {
+        final File folder = daeFile.getParentFile();
+        InputStream in = new BufferedInputStream(new FileInputStream(daeFile));
+        try {
+            return convert(getModelId(daeFile.getName()), in, new ResourceLoader() {
+                @Override
+                public InputStream open(String path) throws IOException {
+                    File file = new File(path);
+                    if (!file.isAbsolute()) {
+                        file = new File(folder, path);
+                    }
+                    return new BufferedInputStream(new FileInputStream(file));
+                }
+            });
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Convert all .dae files in zip archive, in parallel. Textures are loaded from the same archive.
+     *
+     * @param zipFile archive
+     * @param threads number of models converted in parallel, at most 2. Textures are decoded by at most 2 threads
+     * @return converted models
+     */
+    public List<NMLPackage.Model> convertZip(File zipFile, int threads) throws IOException {
+        final ZipFile zip = new ZipFile(zipFile);
+        try {
+            List<ZipEntry> daeEntries = new ArrayList<ZipEntry>();
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+                ZipEntry entry = e.nextElement();
+                if (!entry.isDirectory() && entry.getName().toLowerCase().endsWith(".dae")) {
+                    daeEntries.add(entry);
+                }
+            }
+            if (daeEntries.isEmpty()) {
+                throw new IOException("DaeConverter: no .dae files in " + zipFile.getName());
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(Math.min(threads, MAX_PARALLEL_CONVERSIONS), daeEntries.size())));
+            try {
+                List<Future<NMLPackage.Model>> futures = new ArrayList<Future<NMLPackage.Model>>();
+                for (final ZipEntry daeEntry : daeEntries) {
+                    futures.add(executor.submit(new Callable<NMLPackage.Model>() {
+                        @Override
+                        public NMLPackage.Model call() throws IOException {
+                            return convertZipEntry(zip, daeEntry);
+                        }
+                    }));
+                }
+                List<NMLPackage.Model> models = new ArrayList<NMLPackage.Model>();
+                for (Future<NMLPackage.Model> future : futures) {
+                    try {
+                        models.add(future.get());
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof IOException) {
+                            throw (IOException) e.getCause();
+                        }
+                        throw new IOException("DaeConverter: " + e.getCause());
+                    } catch (InterruptedException e) {
+                        throw new IOException("DaeConverter: interrupted");
+                    }
+                }
+                return models;
+            } finally {
+                executor.shutdownNow();
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Convert DAE from stream.
+     *
+     * @param modelId id of created model
+     * @param dae DAE document
+     * @param loader loader for textures
+     */
+    public NMLPackage.Model convert(String modelId, InputStream dae, ResourceLoader loader) throws IOException {
+        long time = System.currentTimeMillis();
+        Document document = new Document();
+        try {
+            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+            XmlPullParser parser = factory.newPullParser();
+            parser.setInput(dae, null);
+            document.parse(parser);
+        } catch (XmlPullParserException e) {
+            throw new IOException("DaeConverter: Failed to parse DAE! " + e.getMessage());
+        }
+        NMLPackage.Model model = document.buildModel(modelId, loader);
+        Log.debug("DaeConverter: converted " + modelId + " in " + (System.currentTimeMillis() - time) + " ms, "
+                + model.getMeshesCount() + " meshes, " + model.getTexturesCount() + " textures");
+        return model;
+    }
+
+    private NMLPackage.Model convertZipEntry(final ZipFile zip, ZipEntry daeEntry) throws IOException {
+        String name = daeEntry.getName();
+        final String folder = name.lastIndexOf('/') >= 0 ? name.substring(0, name.lastIndexOf('/') + 1) : "";
+        InputStream in = new BufferedInputStream(zip.getInputStream(daeEntry));
+        try {
+            return convert(getModelId(name), in, new ResourceLoader() {
+                @Override
+                public InputStream open(String path) throws IOException {
+                    ZipEntry entry = zip.getEntry(normalizePath(folder + path));
+                    if (entry == null) {
+                        entry = zip.getEntry(normalizePath(path));
+                    }
+                    if (entry == null) {
+                        throw new IOException("DaeConverter: " + path + " not found");
+                    }
+                    return new BufferedInputStream(zip.getInputStream(entry));
+                }
+            });
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String getModelId(String fileName) {
+        String name = fileName.substring(fileName.lastIndexOf('/') + 1);
+        return name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name;
+    }
+
+    private static String normalizePath(String path) {
+        List<String> parts = new ArrayList<String>();
+        for (String part : path.split("/")) {
+            if (part.equals("..") && !parts.isEmpty()) {
+                parts.remove(parts.size() - 1);
+            } else if (part.length() > 0 && !part.equals(".")) {
+                parts.add(part);
+            }
+        }
+        StringBuilder result = new StringBuilder();
+        for (String part : parts) {
+            if (result.length() > 0) {
+                result.append('/');
+            }
+            result.append(part);
+        }
+        return result.toString();
+    }
+
+    private static class Effect {
+        float[] diffuseColor = new float[] { 1, 1, 1, 1 };
+        String diffuseTexture;
+        boolean doubleSided;
+        final Map<String, String> surfaceImages = new HashMap<String, String>();
+        final Map<String, String> samplerSurfaces = new HashMap<String, String>();
+
+        String getDiffuseImage() {
+            if (diffuseTexture == null) {
+                return null;
+            }
+            // texture refers to sampler, sampler to surface, surface to image. Some exporters refer to image directly.
+            String surface = samplerSurfaces.get(diffuseTexture);
+            String image = surface != null ? surfaceImages.get(surface) : null;
+            return image != null ? image : diffuseTexture;
+        }
+    }
+
+    private static class Source {
+        float[] data;
+        int stride = 1;
+    }
+
+    private static class Input {
+        final String semantic;
+        final String source;
+        final int offset;
+        final int set;
+
+        Input(String semantic, String source, int offset, int set) {
+            this.semantic = semantic;
+            this.source = source;
+            this.offset = offset;
+            this.set = set;
+        }
+    }
+
+    private static class Primitive {
+        final String material;
+        final List<Input> inputs = new ArrayList<Input>();
+        final IntArray vcounts = new IntArray();
+        final IntArray indices = new IntArray();
+        boolean triangles;
+
+        Primitive(String material) {
+            this.material = material;
+        }
+    }
+
+    private static class Geometry {
+        final Map<String, Source> sources = new HashMap<String, Source>();
+        final Map<String, String> vertexInputs = new HashMap<String, String>();
+        final List<Primitive> primitives = new ArrayList<Primitive>();
+    }
+
+    private static class Instance {
+        final String geometryId;
+        final float[] transform;
+        final Map<String, String> materials = new HashMap<String, String>();
+
+        Instance(String geometryId, float[] transform) {
+            this.geometryId = geometryId;
+            this.transform = transform;
+        }
+    }
+
+    /**
+     * Parsed DAE document.
+     */
+    private class Document {
+        float unitScale = 1;
+        boolean yUp;
+        final Map<String, String> images = new HashMap<String, String>();
+        final Map<String, Effect> effects = new HashMap<String, Effect>();
+        final Map<String, String> materials = new HashMap<String, String>();
+        final Map<String, Geometry> geometries = new HashMap<String, Geometry>();
+        final List<Instance> instances = new ArrayList<Instance>();
+
+        void parse(XmlPullParser parser) throws XmlPullParserException, IOException {
+            List<String> path = new ArrayList<String>();
+            List<float[]> transforms = new ArrayList<float[]>();
+            transforms.add(identity());
+
+            String imageId = null;
+            String paramSid = null;
+            String materialId = null;
+            Effect effect = null;
+            Geometry geometry = null;
+            Source source = null;
+            Primitive primitive = null;
+            Instance instance = null;
+
+            for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+                if (event == XmlPullParser.END_TAG) {
+                    String name = parser.getName();
+                    path.remove(path.size() - 1);
+                    if (name.equals("node")) {
+                        transforms.remove(transforms.size() - 1);
+                    } else if (name.equals("instance_geometry") && instance != null) {
+                        instances.add(instance);
+                        instance = null;
+                    } else if (name.equals("effect")) {
+                        effect = null;
+                    } else if (name.equals("geometry")) {
+                        geometry = null;
+                    } else if (name.equals("source") || name.equals("mesh")) {
+                        source = null;
+                    } else if (name.equals("triangles") || name.equals("polylist") || name.equals("polygons")) {
+                        primitive = null;
+                    }
+                    continue;
+                }
+                if (event != XmlPullParser.START_TAG) {
+                    continue;
+                }
+
+                String name = parser.getName();
+                String parent = path.isEmpty() ? "" : path.get(path.size() - 1);
+                float[] transform = transforms.get(transforms.size() - 1);
+
+                // leaf elements with text content, nextText() consumes end tag
+                if (name.equals("up_axis")) {
+                    yUp = parser.nextText().trim().equals("Y_UP");
+                    continue;
+                } else if (name.equals("init_from")) {
+                    String text = parser.nextText().trim();
+                    if (parent.equals("image") && imageId != null) {
+                        images.put(imageId, text);
+                    } else if (parent.equals("surface") && effect != null) {
+                        effect.surfaceImages.put(paramSid, text);
+                    }
+                    continue;
+                } else if (name.equals("source") && parent.equals("sampler2D")) {
+                    String text = parser.nextText().trim();
+                    if (effect != null) {
+                        effect.samplerSurfaces.put(paramSid, text);
+                    }
+                    continue;
+                } else if (name.equals("color") && parent.equals("diffuse")) {
+                    float[] color = parseFloats(parser.nextText());
+                    if (effect != null && color.length >= 3) {
+                        effect.diffuseColor = new float[] { color[0], color[1], color[2], color.length > 3 ? color[3] : 1 };
+                    }
+                    continue;
+                } else if (name.equals("double_sided")) {
+                    String text = parser.nextText().trim();
+                    if (effect != null) {
+                        effect.doubleSided = text.equals("1") || text.equals("true");
+                    }
+                    continue;
+                } else if (name.equals("float_array")) {
+                    float[] data = parseFloats(parser.nextText());
+                    if (source != null) {
+                        source.data = data;
+                    }
+                    continue;
+                } else if (name.equals("vcount")) {
+                    if (primitive != null) {
+                        primitive.vcounts.addAll(parser.nextText());
+                    } else {
+                        parser.nextText();
+                    }
+                    continue;
+                } else if (name.equals("p")) {
+                    if (primitive != null) {
+                        int count = primitive.indices.size();
+                        primitive.indices.addAll(parser.nextText());
+                        if (parent.equals("polygons")) {
+                            primitive.vcounts.add((primitive.indices.size() - count) / getIndexStride(primitive));
+                        }
+                    } else {
+                        parser.nextText();
+                    }
+                    continue;
+                } else if (name.equals("matrix") && parent.equals("node")) {
+                    float[] m = parseFloats(parser.nextText());
+                    if (m.length == 16) {
+                        transforms.set(transforms.size() - 1, multiply(transform, m));
+                    }
+                    continue;
+                } else if (name.equals("translate") && parent.equals("node")) {
+                    float[] t = parseFloats(parser.nextText());
+                    if (t.length == 3) {
+                        transforms.set(transforms.size() - 1, multiply(transform, translation(t[0], t[1], t[2])));
+                    }
+                    continue;
+                } else if (name.equals("rotate") && parent.equals("node")) {
+                    float[] r = parseFloats(parser.nextText());
+                    if (r.length == 4) {
+                        transforms.set(transforms.size() - 1, multiply(transform, rotation(r[0], r[1], r[2], r[3])));
+                    }
+                    continue;
+                } else if (name.equals("scale") && parent.equals("node")) {
+                    float[] s = parseFloats(parser.nextText());
+                    if (s.length == 3) {
+                        transforms.set(transforms.size() - 1, multiply(transform, scale(s[0], s[1], s[2])));
+                    }
+                    continue;
+                }
+
+                path.add(name);
+                if (name.equals("unit")) {
+                    String meter = parser.getAttributeValue(null, "meter");
+                    if (meter != null) {
+                        try {
+                            unitScale = Float.parseFloat(meter);
+                        } catch (NumberFormatException e) {
+                            Log.warning("DaeConverter: invalid unit " + meter + ", using meters");
+                        }
+                    }
+                } else if (name.equals("image")) {
+                    imageId = parser.getAttributeValue(null, "id");
+                } else if (name.equals("effect")) {
+                    effect = new Effect();
+                    effects.put(parser.getAttributeValue(null, "id"), effect);
+                } else if (name.equals("newparam")) {
+                    paramSid = parser.getAttributeValue(null, "sid");
+                } else if (name.equals("texture") && parent.equals("diffuse") && effect != null) {
+                    effect.diffuseTexture = parser.getAttributeValue(null, "texture");
+                } else if (name.equals("material")) {
+                    materialId = parser.getAttributeValue(null, "id");
+                } else if (name.equals("instance_effect") && materialId != null) {
+                    materials.put(materialId, getReference(parser.getAttributeValue(null, "url")));
+                } else if (name.equals("geometry")) {
+                    geometry = new Geometry();
+                    geometries.put(parser.getAttributeValue(null, "id"), geometry);
+                } else if (name.equals("source") && parent.equals("mesh") && geometry != null) {
+                    source = new Source();
+                    geometry.sources.put(parser.getAttributeValue(null, "id"), source);
+                } else if (name.equals("accessor") && source != null) {
+                    String stride = parser.getAttributeValue(null, "stride");
+                    source.stride = stride != null ? Integer.parseInt(stride) : 1;
+                } else if (name.equals("input") && parent.equals("vertices") && geometry != null) {
+                    geometry.vertexInputs.put(parser.getAttributeValue(null, "semantic"), getReference(parser.getAttributeValue(null, "source")));
+                } else if ((name.equals("triangles") || name.equals("polylist") || name.equals("polygons")) && geometry != null) {
+                    primitive = new Primitive(parser.getAttributeValue(null, "material"));
+                    primitive.triangles = name.equals("triangles");
+                    geometry.primitives.add(primitive);
+                } else if (name.equals("input") && primitive != null) {
+                    String offset = parser.getAttributeValue(null, "offset");
+                    String set = parser.getAttributeValue(null, "set");
+                    primitive.inputs.add(new Input(parser.getAttributeValue(null, "semantic"), getReference(parser.getAttributeValue(null, "source")),
+                            offset != null ? Integer.parseInt(offset) : 0, set != null ? Integer.parseInt(set) : 0));
+                } else if (name.equals("node")) {
+                    transforms.add(transform);
+                } else if (name.equals("instance_geometry")) {
+                    instance = new Instance(getReference(parser.getAttributeValue(null, "url")), transform);
+                } else if (name.equals("instance_material") && instance != null) {
+                    instance.materials.put(parser.getAttributeValue(null, "symbol"), getReference(parser.getAttributeValue(null, "target")));
+                } else if (name.equals("instance_node")) {
+                    Log.warning("DaeConverter: instance_node is not supported");
+                }
+            }
+        }
+
+        NMLPackage.Model buildModel(String modelId, ResourceLoader loader) throws IOException {
+            float[] root = scale(unitScale, unitScale, unitScale);
+            if (yUp) {
+                root = multiply(new float[] { 1, 0, 0, 0, 0, 0, -1, 0, 0, 1, 0, 0, 0, 0, 0, 1 }, root);
+            }
+
+            NMLPackage.Model.Builder model = NMLPackage.Model.newBuilder().setId(modelId);
+            Map<String, NMLPackage.Mesh> meshes = new LinkedHashMap<String, NMLPackage.Mesh>();
+            Map<String, NMLPackage.Texture> textures = new LinkedHashMap<String, NMLPackage.Texture>();
+            Set<String> addedTextureIds = new HashSet<String>();
+            float[] bounds = null;
+            int meshFootprint = 0;
+            int textureFootprint = 0;
+
+            for (Instance instance : instances) {
+                Geometry geometry = geometries.get(instance.geometryId);
+                if (geometry == null) {
+                    continue;
+                }
+                NMLPackage.Mesh mesh = meshes.get(instance.geometryId);
+                if (mesh == null) {
+                    mesh = buildMesh(instance.geometryId, geometry);
+                    meshes.put(instance.geometryId, mesh);
+                    model.addMeshes(mesh);
+                    meshFootprint += mesh.getSerializedSize();
+                }
+                if (mesh.getSubmeshesCount() == 0) {
+                    continue;
+                }
+
+                float[] transform = multiply(root, instance.transform);
+                NMLPackage.MeshInstance.Builder meshInstance = NMLPackage.MeshInstance.newBuilder()
+                        .setMeshId(instance.geometryId)
+                        .setTransform(toMatrix4(transform));
+                for (Primitive primitive : geometry.primitives) {
+                    String symbol = primitive.material != null ? primitive.material : "";
+                    String materialId = instance.materials.get(symbol);
+                    Effect effect = materialId != null ? effects.get(materials.get(materialId)) : null;
+                    NMLPackage.Material material = buildMaterial(symbol, effect, textures, loader);
+                    meshInstance.addMaterials(material);
+                    if (material.getDiffuse().hasTextureId()) {
+                        NMLPackage.Texture texture = textures.get(material.getDiffuse().getTextureId());
+                        if (texture != null && addedTextureIds.add(texture.getId())) {
+                            model.addTextures(texture);
+                            textureFootprint += texture.getSerializedSize();
+                        }
+                    }
+                }
+                model.addMeshInstances(meshInstance);
+                bounds = union(bounds, transformBounds(transform, mesh.getBounds()));
+            }
+            if (bounds == null) {
+                throw new IOException("DaeConverter: no geometry in " + modelId);
+            }
+            model.setBounds(toBounds3(bounds));
+            model.setMeshFootprint(meshFootprint);
+            model.setTextureFootprint(textureFootprint);
+            return model.build();
+        }
+
+        private NMLPackage.Material buildMaterial(String id, Effect effect, Map<String, NMLPackage.Texture> textures, ResourceLoader loader) {
+            NMLPackage.Material.Builder material = NMLPackage.Material.newBuilder().setId(id)
+                    .setType(NMLPackage.Material.Type.LAMBERT)
+                    .setCulling(effect != null && effect.doubleSided ? NMLPackage.Material.Culling.NONE : NMLPackage.Material.Culling.BACK);
+            String imageId = effect != null ? effect.getDiffuseImage() : null;
+            String imagePath = imageId != null ? images.get(imageId) : null;
+            if (imagePath != null) {
+                NMLPackage.Texture texture = textures.get(imageId);
+                if (texture == null && !textures.containsKey(imageId)) {
+                    try {
+                        texture = buildTexture(imageId, loader.open(getImagePath(imagePath)));
+                    } catch (IOException e) {
+                        Log.error("DaeConverter: Failed to load texture " + imagePath + "! " + e.getMessage());
+                    }
+                    textures.put(imageId, texture);
+                }
+                if (texture != null) {
+                    material.setDiffuse(NMLPackage.ColorOrTexture.newBuilder().setType(NMLPackage.ColorOrTexture.Type.TEXTURE).setTextureId(imageId));
+                    material.setTranslucent(texture.getFormat() == NMLPackage.Texture.Format.RGBA8);
+                    return material.build();
+                }
+            }
+            float[] color = effect != null ? effect.diffuseColor : new float[] { 1, 1, 1, 1 };
+            material.setDiffuse(NMLPackage.ColorOrTexture.newBuilder().setType(NMLPackage.ColorOrTexture.Type.COLOR)
+                    .setColor(NMLPackage.ColorRGBA.newBuilder().setR(color[0]).setG(color[1]).setB(color[2]).setA(color[3])));
+            material.setTranslucent(color[3] < 1);
+            return material.build();
+        }
+    }
+
+    private NMLPackage.Mesh buildMesh(String id, Geometry geometry) {
+        NMLPackage.Mesh.Builder mesh = NMLPackage.Mesh.newBuilder().setId(id);
+        float[] bounds = null;
+        for (Primitive primitive : geometry.primitives) {
+            NMLPackage.Submesh submesh = buildSubmesh(geometry, primitive);
+            if (submesh == null) {
+                continue;
+            }
+            mesh.addSubmeshes(submesh);
+            bounds = union(bounds, getBounds(submesh.getPositions()));
+        }
+        mesh.setBounds(toBounds3(bounds != null ? bounds : new float[6]));
+        return mesh.build();
+    }
+
+    private NMLPackage.Submesh buildSubmesh(Geometry geometry, Primitive primitive) {
+        Source positions = null;
+        Source normals = null;
+        Source uvs = null;
+        int positionOffset = -1;
+        int normalOffset = -1;
+        int uvOffset = -1;
+        int uvSet = Integer.MAX_VALUE;
+        for (Input input : primitive.inputs) {
+            if (input.semantic.equals("VERTEX")) {
+                positions = geometry.sources.get(geometry.vertexInputs.get("POSITION"));
+                positionOffset = input.offset;
+                if (geometry.vertexInputs.containsKey("NORMAL") && normals == null) {
+                    normals = geometry.sources.get(geometry.vertexInputs.get("NORMAL"));
+                    normalOffset = input.offset;
+                }
+            } else if (input.semantic.equals("NORMAL")) {
+                normals = geometry.sources.get(input.source);
+                normalOffset = input.offset;
+            } else if (input.semantic.equals("TEXCOORD") && input.set < uvSet) {
+                uvs = geometry.sources.get(input.source);
+                uvOffset = input.offset;
+                uvSet = input.set;
+            }
+        }
+        if (positions == null || positions.data == null) {
+            return null;
+        }
+        int stride = getIndexStride(primitive);
+        int[] indices = primitive.indices.toArray();
+
+        FloatArray positionData = new FloatArray();
+        FloatArray normalData = new FloatArray();
+        FloatArray uvData = new FloatArray();
+        int polygonCount = primitive.triangles ? indices.length / stride / 3 : primitive.vcounts.size();
+        int vertexBase = 0;
+        for (int polygon = 0; polygon < polygonCount; polygon++) {
+            int count = primitive.triangles ? 3 : primitive.vcounts.get(polygon);
+            // triangle fan
+            for (int i = 1; i + 1 < count; i++) {
+                int v0 = vertexBase * stride;
+                int v1 = (vertexBase + i) * stride;
+                int v2 = (vertexBase + i + 1) * stride;
+                if (v2 + stride > indices.length) {
+                    break;
+                }
+                int p0 = indices[v0 + positionOffset];
+                int p1 = indices[v1 + positionOffset];
+                int p2 = indices[v2 + positionOffset];
+                if (p0 == p1 || p1 == p2 || p0 == p2) {
+                    continue;
+                }
+                addVertices(positionData, positions, 3, p0, p1, p2);
+                if (normals != null && normals.data != null) {
+                    addVertices(normalData, normals, 3, indices[v0 + normalOffset], indices[v1 + normalOffset], indices[v2 + normalOffset]);
+                } else {
+                    addFaceNormal(normalData, positionData);
+                }
+                if (uvs != null && uvs.data != null) {
+                    addVertices(uvData, uvs, 2, indices[v0 + uvOffset], indices[v1 + uvOffset], indices[v2 + uvOffset]);
+                }
+            }
+            vertexBase += count;
+        }
+        if (positionData.size() == 0) {
+            return null;
+        }
+
+        NMLPackage.Submesh.Builder submesh = NMLPackage.Submesh.newBuilder()
+                .setType(NMLPackage.Submesh.Type.TRIANGLES)
+                .setMaterialId(primitive.material != null ? primitive.material : "")
+                .addVertexCounts(positionData.size() / 3)
+                .setPositions(positionData.toByteString())
+                .setNormals(normalData.toByteString());
+        if (uvData.size() > 0) {
+            submesh.setUvs(uvData.toByteString());
+        }
+        return submesh.build();
+    }
+
+    /**
+     * Create texture from image, scaled to power of two size and max texture size, with mipmaps.
+     * Images are sampled down already when decoding, so large images are never fully decoded.
+     * Images with alpha are stored as RGBA8, others as ETC1.
+     */
+    private NMLPackage.Texture buildTexture(String id, InputStream in) throws IOException {
+        byte[] data;
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            data = out.toByteArray();
+        } finally {
+            in.close();
+        }
+
+        textureDecodes.acquireUninterruptibly();
+        try {
+            return decodeTexture(id, data);
+        } finally {
+            textureDecodes.release();
+        }
+    }
+
+    private NMLPackage.Texture decodeTexture(String id, byte[] data) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("unknown image format");
+        }
+        int width = Math.min(maxTextureSize, getPowerOfTwo(options.outWidth));
+        int height = Math.min(maxTextureSize, getPowerOfTwo(options.outHeight));
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= width && options.outHeight / (options.inSampleSize * 2) >= height) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (bitmap == null) {
+            throw new IOException("image decoding failed");
+        }
+
+        boolean alpha = bitmap.hasAlpha();
+        NMLPackage.Texture.Builder texture = NMLPackage.Texture.newBuilder().setId(id)
+                .setFormat(alpha ? NMLPackage.Texture.Format.RGBA8 : NMLPackage.Texture.Format.ETC1)
+                .setWidth(width).setHeight(height)
+                .setSampler(NMLPackage.Sampler.newBuilder().setFilter(NMLPackage.Sampler.Filter.TRILINEAR)
+                        .setWrapS(NMLPackage.Sampler.WrapMode.REPEAT).setWrapT(NMLPackage.Sampler.WrapMode.REPEAT));
+        Bitmap level = bitmap;
+        while (true) {
+            if (level.getWidth() != width || level.getHeight() != height) {
+                Bitmap scaled = Bitmap.createScaledBitmap(level, width, height, true);
+                if (level != bitmap) {
+                    level.recycle();
+                }
+                level = scaled;
+            }
+            byte[] pixels = getPixelData(level, alpha);
+            texture.addMipmaps(alpha ? ByteString.copyFrom(pixels) : encodeETC1(pixels, width, height));
+            if (width == 1 && height == 1) {
+                break;
+            }
+            width = Math.max(1, width / 2);
+            height = Math.max(1, height / 2);
+        }
+        if (level != bitmap) {
+            level.recycle();
+        }
+        bitmap.recycle();
+        return texture.build();
+    }
+
+    /**
+     * Pixel rows bottom-up, as OpenGL texture origin is bottom left.
+     */
+    private static byte[] getPixelData(Bitmap bitmap, boolean alpha) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int bytesPerPixel = alpha ? 4 : 3;
+        byte[] data = new byte[width * height * bytesPerPixel];
+        int[] row = new int[width];
+        int pos = 0;
+        for (int y = height - 1; y >= 0; y--) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                int color = row[x];
+                data[pos++] = (byte) (color >> 16);
+                data[pos++] = (byte) (color >> 8);
+                data[pos++] = (byte) color;
+                if (alpha) {
+                    data[pos++] = (byte) (color >> 24);
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * ETC1 mip level with PKM header, as the SDK loads ETC1 levels with ETC1Util.createTexture.
+     */
+    static ByteString encodeETC1(byte[] rgb, int width, int height) {
+        ByteBuffer in = ByteBuffer.allocateDirect(rgb.length).order(ByteOrder.nativeOrder());
+        in.put(rgb).position(0);
+        ByteBuffer out = ByteBuffer.allocateDirect(ETC1.ETC_PKM_HEADER_SIZE + ETC1.getEncodedDataSize(width, height))
+                .order(ByteOrder.nativeOrder());
+        ETC1.formatHeader(out, width, height);
+        out.position(ETC1.ETC_PKM_HEADER_SIZE);
+        ETC1.encodeImage(in, width, height, 3, width * 3, out.slice());
+        out.position(0);
+        return ByteString.copyFrom(out);
+    }
+
+    private static int getPowerOfTwo(int size) {
+        int pow2 = 1;
+        while (pow2 * 2 <= size) {
+            pow2 *= 2;
+        }
+        // round to nearest
+        return size - pow2 > pow2 * 2 - size ? pow2 * 2 : pow2;
+    }
+
+    private static int getIndexStride(Primitive primitive) {
+        int maxOffset = 0;
+        for (Input input : primitive.inputs) {
+            maxOffset = Math.max(maxOffset, input.offset);
+        }
+        return maxOffset + 1;
+    }
+
+    private static void addVertices(FloatArray out, Source source, int components, int i0, int i1, int i2) {
+        addVertex(out, source, components, i0);
+        addVertex(out, source, components, i1);
+        addVertex(out, source, components, i2);
+    }
+
+    private static void addVertex(FloatArray out, Source source, int components, int index) {
+        int base = index * source.stride;
+        for (int i = 0; i < components; i++) {
+            out.add(base + i < source.data.length ? source.data[base + i] : 0);
+        }
+    }
+
+    private static void addFaceNormal(FloatArray normals, FloatArray positions) {
+        int base = positions.size() - 9;
+        float ax = positions.get(base + 3) - positions.get(base), ay = positions.get(base + 4) - positions.get(base + 1), az = positions.get(base + 5) - positions.get(base + 2);
+        float bx = positions.get(base + 6) - positions.get(base), by = positions.get(base + 7) - positions.get(base + 1), bz = positions.get(base + 8) - positions.get(base + 2);
+        float nx = ay * bz - az * by, ny = az * bx - ax * bz, nz = ax * by - ay * bx;
+        float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length > 0) {
+            nx /= length;
+            ny /= length;
+            nz /= length;
+        }
+        for (int i = 0; i < 3; i++) {
+            normals.add(nx);
+            normals.add(ny);
+            normals.add(nz);
+        }
+    }
+
+    private static String getReference(String url) {
+        if (url == null) {
+            return null;
+        }
+        return url.startsWith(NS_SEPARATOR) ? url.substring(1) : url;
+    }
+
+    private static String getImagePath(String initFrom) {
+        String path = initFrom;
+        if (path.startsWith("file://")) {
+            path = path.substring("file://".length());
+        }
+        try {
+            path = URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+        } catch (IllegalArgumentException e) {
+            // keep as is
+        } catch (IOException e) {
+            // keep as is
+        }
+        return path.replace('\\', '/');
+    }
+
+    private static float[] parseFloats(String text) {
+        FloatArray values = new FloatArray();
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean space = i == length || Character.isWhitespace(text.charAt(i));
+            if (!space && start < 0) {
+                start = i;
+            } else if (space && start >= 0) {
+                values.add(Float.parseFloat(text.substring(start, i)));
+                start = -1;
+            }
+        }
+        return values.toArray();
+    }
+
+    // 4x4 matrices, row-major as in COLLADA
+
+    private static float[] identity() {
+        return scale(1, 1, 1);
+    }
+
+    private static float[] scale(float x, float y, float z) {
+        return new float[] { x, 0, 0, 0, 0, y, 0, 0, 0, 0, z, 0, 0, 0, 0, 1 };
+    }
+
+    private static float[] translation(float x, float y, float z) {
+        return new float[] { 1, 0, 0, x, 0, 1, 0, y, 0, 0, 1, z, 0, 0, 0, 1 };
+    }
+
+    private static float[] rotation(float x, float y, float z, float angle) {
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        if (length == 0) {
+            return identity();
+        }
+        x /= length;
+        y /= length;
+        z /= length;
+        float c = (float) Math.cos(Math.toRadians(angle));
+        float s = (float) Math.sin(Math.toRadians(angle));
+        float t = 1 - c;
+        return new float[] {
+                t * x * x + c, t * x * y - s * z, t * x * z + s * y, 0,
+                t * x * y + s * z, t * y * y + c, t * y * z - s * x, 0,
+                t * x * z - s * y, t * y * z + s * x, t * z * z + c, 0,
+                0, 0, 0, 1 };
+    }
+
+    private static float[] multiply(float[] a, float[] b) {
+        float[] result = new float[16];
+        for (int row = 0; row < 4; row++) {
+            for (int col = 0; col < 4; col++) {
+                float sum = 0;
+                for (int i = 0; i < 4; i++) {
+                    sum += a[row * 4 + i] * b[i * 4 + col];
+                }
+                result[row * 4 + col] = sum;
+            }
+        }
+        return result;
+    }
+
+    private static NMLPackage.Matrix4 toMatrix4(float[] m) {
+        return NMLPackage.Matrix4.newBuilder()
+                .setM00(m[0]).setM01(m[1]).setM02(m[2]).setM03(m[3])
+                .setM10(m[4]).setM11(m[5]).setM12(m[6]).setM13(m[7])
+                .setM20(m[8]).setM21(m[9]).setM22(m[10]).setM23(m[11])
+                .setM30(m[12]).setM31(m[13]).setM32(m[14]).setM33(m[15]).build();
+    }
+
+    // bounds as minX, minY, minZ, maxX, maxY, maxZ
+
+    private static float[] getBounds(ByteString positions) {
+        FloatBuffer buffer = positions.asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        float[] bounds = null;
+        while (buffer.remaining() >= 3) {
+            float x = buffer.get(), y = buffer.get(), z = buffer.get();
+            bounds = union(bounds, new float[] { x, y, z, x, y, z });
+        }
+        return bounds;
+    }
+
+    private static float[] transformBounds(float[] m, NMLPackage.Bounds3 bounds) {
+        float[] result = null;
+        for (int i = 0; i < 8; i++) {
+            float x = (i & 1) == 0 ? bounds.getMin().getX() : bounds.getMax().getX();
+            float y = (i & 2) == 0 ? bounds.getMin().getY() : bounds.getMax().getY();
+            float z = (i & 4) == 0 ? bounds.getMin().getZ() : bounds.getMax().getZ();
+            float tx = m[0] * x + m[1] * y + m[2] * z + m[3];
+            float ty = m[4] * x + m[5] * y + m[6] * z + m[7];
+            float tz = m[8] * x + m[9] * y + m[10] * z + m[11];
+            result = union(result, new float[] { tx, ty, tz, tx, ty, tz });
+        }
+        return result;
+    }
+
+    private static float[] union(float[] a, float[] b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return new float[] { Math.min(a[0], b[0]), Math.min(a[1], b[1]), Math.min(a[2], b[2]),
+                Math.max(a[3], b[3]), Math.max(a[4], b[4]), Math.max(a[5], b[5]) };
+    }
+
+    private static NMLPackage.Bounds3 toBounds3(float[] b) {
+        return NMLPackage.Bounds3.newBuilder()
+                .setMin(NMLPackage.Vector3.newBuilder().setX(b[0]).setY(b[1]).setZ(b[2]))
+                .setMax(NMLPackage.Vector3.newBuilder().setX(b[3]).setY(b[4]).setZ(b[5])).build();
+    }
+
+    /**
+     * Growable float array.
+     */
+    private static class FloatArray {
+        private float[] data = new float[64];
+        private int size;
+
+        void add(float value) {
+            if (size == data.length) {
+                data = copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        float get(int index) {
+            return data[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        float[] toArray() {
+            return copyOf(data, size);
+        }
+
+        private static float[] copyOf(float[] data, int size) {
+            float[] copy = new float[size];
+            System.arraycopy(data, 0, copy, 0, Math.min(data.length, size));
+            return copy;
+        }
+
+        ByteString toByteString() {
+            ByteBuffer buffer = ByteBuffer.allocate(size * 4).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asFloatBuffer().put(data, 0, size);
+            return ByteString.copyFrom(buffer);
+        }
+    }
+
+    /**
+     * Growable int array, parsed from whitespace separated text.
+     */
+    private static class IntArray {
+        private int[] data = new int[64];
+        private int size;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        void addAll(String text) {
+            int value = 0;
+            boolean inNumber = false;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    value = value * 10 + (c - '0');
+                    inNumber = true;
+                } else if (inNumber) {
+                    add(value);
+                    value = 0;
+                    inNumber = false;
+                }
+            }
+            if (inNumber) {
+                add(value);
+            }
+        }
+
+        int get(int index) {
+            return data[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return copyOf(data, size);
+        }
+
+        private static int[] copyOf(int[] data, int size) {
+            int[] copy = new int[size];
+            System.arraycopy(data, 0, copy, 0, Math.min(data.length, size));
+            return copy;
+        }
+    }
+
+}
@@ -0,0 +1,495 @@
+package com.nutiteq.advancedmap.nml;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Local HTTP proxy between NMLModelOnlineLayer and 3D model server. NMLModelOnlineLayer keeps its
+ * downloader and cache private, so the layer is given proxy URL as base URL (see registerDataset()),
+ * and proxy adds:
+ * 1) shared compressed persistent cache for all datasets (NMLTileCache),
+ * 2) download scheduler: data extent and map tiles first, then LOD trees, meshes and textures,
+ * newest requests first within each kind, as these are for current view,
+ * 3) cancelling of queued requests which got stale when map moved, see onViewChanged().
+ *
+ * Upstream URL can be any server, e.g. NMLStandInServer for testing without network.
+ * Shared instance is reference counted: each getInstance() must be paired with releaseInstance().
+ *
+ * @author jaak
+ *
+ */
+public class NMLCacheProxy {
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 30000;
+    private static final long STALE_AGE = 2000;
+    // share of download slots which stale downloads can keep, others are aborted on view change
+    private static final float MAX_STALE_DOWNLOAD_SHARE = 0.5f;
+    private static final long SHARED_CACHE_SIZE = 200 * 1024 * 1024;
+    private static final float SHARED_CACHE_DATASET_SHARE = 0.5f;
+    private static final int SHARED_MAX_DOWNLOADS = 4;
+
+    private static NMLTileCache sharedCache;
+    private static NMLCacheProxy sharedInstance;
+    private static int sharedInstanceUsers;
+
+    private final NMLTileCache cache;
+    private final int maxDownloads;
+    private final Map<String, String> datasets = new HashMap<String, String>();
+    private final PriorityBlockingQueue<Request> queue = new PriorityBlockingQueue<Request>();
+    private final Set<Request> inFlight = new HashSet<Request>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private ServerSocket serverSocket;
+    private ExecutorService connectionPool;
+    private ExecutorService downloadPool;
+
+    private int downloadCount;
+    private int cancelCount;
+
+    private static class Request implements Comparable<Request> {
+        final String dataset;
+        final String url;
+        final String key;
+        final int priority;
+        final long sequence;
+        final long created = System.currentTimeMillis();
+        volatile long started;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile NMLTileCache.Response response;
+        volatile HttpURLConnection connection;
+        volatile boolean cancelled;
+
+        Request(String dataset, String url, String key, int priority, long sequence) {
+            this.dataset = dataset;
+            this.url = url;
+            this.key = key;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            // newest first
+            return sequence > other.sequence ? -1 : sequence < other.sequence ? 1 : 0;
+        }
+    }
+
+    /**
+     * @param cache shared response cache
+     * @param maxDownloads maximum number of parallel upstream downloads
+     */
+    public NMLCacheProxy(NMLTileCache cache, int maxDownloads) {
+        this.cache = cache;
+        this.maxDownloads = maxDownloads;
+    }
+
+    /**
+     * Get started proxy shared by all activities of the application, call releaseInstance() when
+     * it is not needed any more, e.g. in onDestroy().
+     *
+     * @param cacheDirectory folder for shared cache, used only when cache is created
+     * @throws IOException if socket can not be opened
+     */
+    public static synchronized NMLCacheProxy getInstance(File cacheDirectory) throws IOException {
+        if (sharedInstance == null) {
+            if (sharedCache == null) {
+                sharedCache = new NMLTileCache(cacheDirectory, SHARED_CACHE_SIZE, SHARED_CACHE_DATASET_SHARE);
+            }
+            NMLCacheProxy proxy = new NMLCacheProxy(sharedCache, SHARED_MAX_DOWNLOADS);
+            proxy.start();
+            sharedInstance = proxy;
+        }
+        sharedInstanceUsers++;
+        return sharedInstance;
+    }
+
+    /**
+     * Release proxy from getInstance(), last release stops it. Cache is kept for next getInstance().
+     */
+    public static synchronized void releaseInstance() {
+        if (sharedInstance == null || --sharedInstanceUsers > 0) {
+            return;
+        }
+        sharedInstance.stop();
+        sharedInstance = null;
+        sharedInstanceUsers = 0;
+    }
+
+    /**
+     * Start listening on local port.
+     *
+     * @throws IOException if socket can not be opened
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+        serverSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+        connectionPool = Executors.newCachedThreadPool();
+        downloadPool = Executors.newFixedThreadPool(maxDownloads);
+        // cache folder is indexed in background, requests wait for it
+        connectionPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                cache.load();
+            }
+        });
+        for (int i = 0; i < maxDownloads; i++) {
+            downloadPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runDownloads();
+                }
+            });
+        }
+        final ServerSocket socket = serverSocket;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections(socket);
+            }
+        }, "NMLCacheProxy").start();
+        Log.info("NMLCacheProxy: listening on port " + serverSocket.getLocalPort());
+    }
+
+    public synchronized void stop() {
+        if (serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.error("NMLCacheProxy: Failed to close socket! " + e.getMessage());
+        }
+        serverSocket = null;
+        connectionPool.shutdownNow();
+        downloadPool.shutdownNow();
+        cancelAll();
+        synchronized (inFlight) {
+            for (Request request : inFlight) {
+                abort(request);
+            }
+        }
+    }
+
+    /**
+     * Register dataset, proxy must be started.
+     *
+     * @param name dataset name, used as cache folder name
+     * @param upstreamUrl server URL of dataset, e.g. http://kaart.nutiteq.ee/nml/nmlserver3.php?data=chicago
+     * @return base URL for NMLModelOnlineLayer
+     */
+    public synchronized String registerDataset(String name, String upstreamUrl) {
+        datasets.put(name, upstreamUrl);
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/" + name;
+    }
+
+    /**
+     * Cancel queued model requests which are older than STALE_AGE, call when map view changes.
+     * Layer requests them again if they are still needed. Running downloads are kept, as they are cached
+     * when done, so that on slow links downloads still complete during continuous panning.
+     * Only if stale downloads take more than MAX_STALE_DOWNLOAD_SHARE of download slots,
+     * the most recently started of them are disconnected, to free slots for the current view.
+     */
+    public void onViewChanged() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Request> it = queue.iterator(); it.hasNext();) {
+            Request request = it.next();
+            if (isStale(request, now) && queue.remove(request)) {
+                cancel(request);
+            }
+        }
+        List<Request> staleDownloads = new ArrayList<Request>();
+        synchronized (inFlight) {
+            for (Request request : inFlight) {
+                if (isStale(request, now) && !request.cancelled) {
+                    staleDownloads.add(request);
+                }
+            }
+        }
+        int maxStaleDownloads = (int) (maxDownloads * MAX_STALE_DOWNLOAD_SHARE);
+        if (staleDownloads.size() <= maxStaleDownloads) {
+            return;
+        }
+        // downloads which started first are closest to completion
+        Collections.sort(staleDownloads, new Comparator<Request>() {
+            @Override
+            public int compare(Request request1, Request request2) {
+                return request1.started < request2.started ? -1 : request1.started > request2.started ? 1 : 0;
+            }
+        });
+        for (Request request : staleDownloads.subList(maxStaleDownloads, staleDownloads.size())) {
+            abort(request);
+        }
+    }
+
+    public NMLTileCache getCache() {
+        return cache;
+    }
+
+    public synchronized int getDownloadCount() {
+        return downloadCount;
+    }
+
+    public synchronized int getCancelCount() {
+        return cancelCount;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private void acceptConnections(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try {
+                final Socket connection = socket.accept();
+                connectionPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(connection);
+                    }
+                });
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    Log.error("NMLCacheProxy: Failed to accept connection! " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handleConnection(Socket connection) {
+        try {
+            try {
+                String path = readRequestPath(connection.getInputStream());
+                NMLTileCache.Response response = path != null ? getResponse(path) : null;
+                writeResponse(connection.getOutputStream(), response);
+            } finally {
+                connection.close();
+            }
+        } catch (IOException e) {
+            Log.error("NMLCacheProxy: Failed to handle request! " + e.getMessage());
+        }
+    }
+
+    private NMLTileCache.Response getResponse(String path) {
+        // path is /dataset?query
+        int queryIndex = path.indexOf('?');
+        String dataset = path.substring(1, queryIndex >= 0 ? queryIndex : path.length());
+        String query = queryIndex >= 0 ? path.substring(queryIndex + 1) : "";
+        String upstreamUrl;
+        synchronized (this) {
+            upstreamUrl = datasets.get(dataset);
+        }
+        if (upstreamUrl == null) {
+            Log.error("NMLCacheProxy: Unknown dataset " + dataset);
+            return null;
+        }
+
+        NMLTileCache.Response response = cache.get(dataset, query);
+        if (response != null) {
+            return response;
+        }
+
+        String url = upstreamUrl + (upstreamUrl.indexOf('?') >= 0 ? "&" : "?") + query;
+        Request request = new Request(dataset, url, query, getPriority(getQueryParameter(query, "q")), sequence.incrementAndGet());
+        queue.add(request);
+        try {
+            request.done.await();
+        } catch (InterruptedException e) {
+            queue.remove(request);
+            return null;
+        }
+        return request.response;
+    }
+
+    private void runDownloads() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Request request;
+            try {
+                request = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            request.started = System.currentTimeMillis();
+            synchronized (inFlight) {
+                inFlight.add(request);
+            }
+            try {
+                request.response = download(request);
+                if (request.response != null) {
+                    cache.put(request.dataset, request.key, request.response);
+                }
+                synchronized (this) {
+                    downloadCount++;
+                }
+            } catch (IOException e) {
+                if (request.cancelled) {
+                    synchronized (this) {
+                        cancelCount++;
+                    }
+                } else {
+                    Log.error("NMLCacheProxy: Failed to download " + request.url + "! " + e.getMessage());
+                }
+            } finally {
+                synchronized (inFlight) {
+                    inFlight.remove(request);
+                }
+                request.done.countDown();
+            }
+        }
+    }
+
+    private static NMLTileCache.Response download(Request request) throws IOException {
+        String url = request.url;
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        request.connection = connection;
+        try {
+            if (request.cancelled) {
+                throw new IOException("cancelled");
+            }
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                Log.error("NMLCacheProxy: HTTP " + connection.getResponseCode() + " for " + url);
+                return null;
+            }
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                }
+                return new NMLTileCache.Response(connection.getContentType(), out.toByteArray());
+            } finally {
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void cancelAll() {
+        Request request;
+        while ((request = queue.poll()) != null) {
+            cancel(request);
+        }
+    }
+
+    private void cancel(Request request) {
+        synchronized (this) {
+            cancelCount++;
+        }
+        request.done.countDown();
+    }
+
+    // Disconnect running download, download thread counts it as cancelled.
+    private static void abort(Request request) {
+        request.cancelled = true;
+        HttpURLConnection connection = request.connection;
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    private static boolean isStale(Request request, long now) {
+        return request.priority >= getPriority("ModelLODTree") && now - request.created > STALE_AGE;
+    }
+
+    static String readRequestPath(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return null;
+        }
+        // skip headers
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+        }
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2 || !parts[0].equals("GET")) {
+            return null;
+        }
+        return parts[1];
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return c == -1 && line.length() == 0 ? null : line.toString();
+    }
+
+    static void writeResponse(OutputStream out, NMLTileCache.Response response) throws IOException {
+        StringBuilder header = new StringBuilder();
+        if (response == null) {
+            header.append("HTTP/1.0 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+            out.write(header.toString().getBytes("ISO-8859-1"));
+        } else {
+            header.append("HTTP/1.0 200 OK\r\n");
+            if (response.contentType != null && response.contentType.length() > 0) {
+                header.append("Content-Type: ").append(response.contentType).append("\r\n");
+            }
+            header.append("Content-Length: ").append(response.data.length).append("\r\nConnection: close\r\n\r\n");
+            out.write(header.toString().getBytes("ISO-8859-1"));
+            out.write(response.data);
+        }
+        out.flush();
+    }
+
+    private static String getQueryParameter(String query, String name) {
+        for (String param : query.split("&")) {
+            if (param.startsWith(name + "=")) {
+                return param.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    private static int getPriority(String queryType) {
+        if ("DataExtent".equals(queryType)) {
+            return 0;
+        } else if ("MapTiles".equals(queryType)) {
+            return 1;
+        } else if ("ModelLODTree".equals(queryType)) {
+            return 2;
+        } else if ("Meshes".equals(queryType)) {
+            return 3;
+        }
+        return 4;
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.nutiteq.advancedmap.nml;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Local stand-in for 3D model server, for testing NMLCacheProxy without network: answers
+ * GET requests with registered responses by query string, after given delay. Unknown queries
+ * get 503. Received queries are recorded, so download order and cancelling can be checked.
+ *
+ * @author jaak
+ *
+ */
+public class NMLStandInServer {
+    private final Map<String, NMLTileCache.Response> responses = new HashMap<String, NMLTileCache.Response>();
+    private final List<String> receivedQueries = new ArrayList<String>();
+    private volatile long delay;
+    private ServerSocket serverSocket;
+
+    /**
+     * Register response for query, e.g. "q=MapTiles&mapbounds=...".
+     */
+    public synchronized void putResponse(String query, NMLTileCache.Response response) {
+        responses.put(query, response);
+    }
+
+    /**
+     * @param delay response delay in milliseconds, to simulate slow server
+     */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * @return queries in order of arrival
+     */
+    public synchronized List<String> getReceivedQueries() {
+        return new ArrayList<String>(receivedQueries);
+    }
+
+    /**
+     * Start listening on local port.
+     *
+     * @return server URL, to be given to NMLCacheProxy.registerDataset()
+     * @throws IOException if socket can not be opened
+     */
+    public synchronized String start() throws IOException {
+        if (serverSocket == null) {
+            serverSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+            final ServerSocket socket = serverSocket;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    acceptConnections(socket);
+                }
+            }, "NMLStandInServer").start();
+        }
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/nml";
+    }
+
+    public synchronized void stop() {
+        if (serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.error("NMLStandInServer: Failed to close socket! " + e.getMessage());
+        }
+        serverSocket = null;
+    }
+
+    private void acceptConnections(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try {
+                final Socket connection = socket.accept();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(connection);
+                    }
+                }).start();
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    Log.error("NMLStandInServer: Failed to accept connection! " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handleConnection(Socket connection) {
+        try {
+            try {
+                String path = NMLCacheProxy.readRequestPath(connection.getInputStream());
+                NMLTileCache.Response response = null;
+                if (path != null) {
+                    String query = path.indexOf('?') >= 0 ? path.substring(path.indexOf('?') + 1) : "";
+                    synchronized (this) {
+                        receivedQueries.add(query);
+                        response = responses.get(query);
+                    }
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                }
+                NMLCacheProxy.writeResponse(connection.getOutputStream(), response);
+            } finally {
+                connection.close();
+            }
+        } catch (IOException e) {
+            Log.debug("NMLStandInServer: connection closed, " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,317 @@
+package com.nutiteq.advancedmap.nml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Persistent cache for 3D model server responses, shared by all datasets.
+ * Entries are stored gzip-compressed, one file per entry in a folder per dataset.
+ * Total size is limited, and one dataset can use only given share of it, so switching
+ * between cities does not flush everything. Least recently used entries are evicted first.
+ *
+ * Existing entries are indexed by load(), which lists the cache folder and should be called
+ * from background thread. get() and put() wait until load() has completed.
+ *
+ * @author jaak
+ *
+ */
+public class NMLTileCache {
+    private static final int FORMAT_VERSION = 1;
+
+    private final File directory;
+    private final long maxSize;
+    private final long maxDatasetSize;
+
+    private final LinkedHashMap<File, Entry> entries = new LinkedHashMap<File, Entry>(16, 0.75f, true);
+    private final Map<String, Long> datasetSizes = new HashMap<String, Long>();
+    private long totalSize;
+    private int hitCount;
+    private int missCount;
+    private int evictionCount;
+    private boolean loadStarted;
+    private final CountDownLatch loaded = new CountDownLatch(1);
+
+    private static class Entry {
+        final String dataset;
+        final long size;
+
+        Entry(String dataset, long size) {
+            this.dataset = dataset;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Cached response.
+     */
+    public static class Response {
+        public final String contentType;
+        public final byte[] data;
+
+        public Response(String contentType, byte[] data) {
+            this.contentType = contentType;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Create cache, does not access the folder. Call load() before use.
+     *
+     * @param directory cache folder
+     * @param maxSize maximum total size in bytes (compressed)
+     * @param maxDatasetShare maximum share of one dataset, 0..1
+     */
+    public NMLTileCache(File directory, long maxSize, float maxDatasetShare) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.maxDatasetSize = (long) (maxSize * maxDatasetShare);
+    }
+
+    /**
+     * Index existing entries by file modification (access) time, and evict entries over the limits.
+     * Slow for large caches, call from background thread. Only first call loads, later calls return at once.
+     */
+    public void load() {
+        synchronized (this) {
+            if (loadStarted) {
+                return;
+            }
+            loadStarted = true;
+        }
+        try {
+            directory.mkdirs();
+
+            List<File> files = new ArrayList<File>();
+            File[] datasetDirs = directory.listFiles();
+            if (datasetDirs != null) {
+                for (File datasetDir : datasetDirs) {
+                    File[] entryFiles = datasetDir.listFiles();
+                    if (entryFiles == null) {
+                        continue;
+                    }
+                    for (File file : entryFiles) {
+                        if (file.getName().endsWith(".tmp")) {
+                            // interrupted write
+                            file.delete();
+                        } else {
+                            files.add(file);
+                        }
+                    }
+                }
+            }
+            Collections.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File file1, File file2) {
+                    long diff = file1.lastModified() - file2.lastModified();
+                    return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+                }
+            });
+            synchronized (this) {
+                for (File file : files) {
+                    addEntry(file, new Entry(file.getParentFile().getName(), file.length()));
+                }
+                evict(null);
+            }
+            Log.debug("NMLTileCache: " + entries.size() + " entries, " + totalSize + " bytes");
+        } finally {
+            // waiting get() and put() continue also if indexing failed
+            loaded.countDown();
+        }
+    }
+
+    // false if interrupted before load() completed
+    private boolean awaitLoaded() {
+        try {
+            loaded.await();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Get cached response.
+     *
+     * @return response, or null if not cached
+     */
+    public Response get(String dataset, String key) {
+        if (!awaitLoaded()) {
+            return null;
+        }
+        File file = getFile(dataset, key);
+        synchronized (this) {
+            if (entries.get(file) == null) {
+                missCount++;
+                return null;
+            }
+        }
+        Response response = null;
+        try {
+            DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+            try {
+                if (in.readInt() == FORMAT_VERSION) {
+                    String contentType = in.readUTF();
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    file.setLastModified(System.currentTimeMillis());
+                    response = new Response(contentType, data);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.error("NMLTileCache: Failed to read " + file + "! " + e.getMessage());
+        }
+        // hit is counted only when entry was read, unreadable entries are removed
+        if (response == null) {
+            remove(file);
+        }
+        synchronized (this) {
+            if (response != null) {
+                hitCount++;
+            } else {
+                missCount++;
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Store response, evicting old entries if needed.
+     */
+    public void put(String dataset, String key, Response response) {
+        if (!awaitLoaded()) {
+            return;
+        }
+        File file = getFile(dataset, key);
+        file.getParentFile().mkdirs();
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile))));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(response.contentType != null ? response.contentType : "");
+                out.writeInt(response.data.length);
+                out.write(response.data);
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            Log.error("NMLTileCache: Failed to write " + file + "! " + e.getMessage());
+            tempFile.delete();
+            return;
+        }
+        synchronized (this) {
+            Entry old = entries.remove(file);
+            if (old != null) {
+                changeSize(old.dataset, -old.size);
+            }
+            addEntry(file, new Entry(dataset, file.length()));
+            evict(dataset);
+        }
+    }
+
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    public synchronized long getDatasetSize(String dataset) {
+        Long size = datasetSizes.get(dataset);
+        return size != null ? size : 0;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    private void addEntry(File file, Entry entry) {
+        entries.put(file, entry);
+        changeSize(entry.dataset, entry.size);
+    }
+
+    private synchronized void remove(File file) {
+        Entry entry = entries.remove(file);
+        if (entry != null) {
+            changeSize(entry.dataset, -entry.size);
+        }
+        file.delete();
+    }
+
+    private void changeSize(String dataset, long delta) {
+        totalSize += delta;
+        datasetSizes.put(dataset, getDatasetSize(dataset) + delta);
+    }
+
+    /**
+     * Evict least recently used entries: first of the given dataset over its share, then any over total size.
+     */
+    private void evict(String dataset) {
+        Iterator<Map.Entry<File, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext() && (totalSize > maxSize || (dataset != null && getDatasetSize(dataset) > maxDatasetSize))) {
+            Map.Entry<File, Entry> mapEntry = it.next();
+            Entry entry = mapEntry.getValue();
+            if (totalSize <= maxSize && !entry.dataset.equals(dataset)) {
+                continue;
+            }
+            it.remove();
+            changeSize(entry.dataset, -entry.size);
+            mapEntry.getKey().delete();
+            evictionCount++;
+        }
+    }
+
+    private File getFile(String dataset, String key) {
+        return new File(new File(directory, dataset), hash(key));
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        } catch (IOException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+package com.nutiteq.advancedmap.proj;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+/**
+ *
+ * Bulk coordinate transformation between two Proj.4 projections.
+ *
+ * WGS84 (EPSG:4326) to spherical Mercator (EPSG:3857) and back is done in Java, with
+ * a single loop over all points. Other projections use pooled NativeProj instances,
+ * directly over the buffer memory. Can be used from several threads.
+ *
+ * Coordinates are (x, y, [z, ...]) tuples, geographic coordinates are in degrees.
+ *
+ * @author jaak
+ *
+ */
+public class BulkTransformer {
+    public static final String WGS84_PROJ4 = "+proj=longlat +ellps=WGS84 +datum=WGS84 +no_defs";
+    public static final String EPSG3857_PROJ4 = "+proj=merc +a=6378137 +b=6378137 +lat_ts=0.0 +lon_0=0.0 +x_0=0.0 +y_0=0 +k=1.0 +units=m +nadgrids=@null +wktext +no_defs";
+
+    private static final double EARTH_RADIUS = 6378137.0;
+    private static final double MAX_LATITUDE = 85.0511287798;
+    private static final double DEG_TO_METERS = EARTH_RADIUS * Math.PI / 180;
+    private static final double METERS_TO_DEG = 180 / (Math.PI * EARTH_RADIUS);
+
+    private static final int FAST_PATH_NONE = 0;
+    private static final int FAST_PATH_WGS84_TO_MERCATOR = 1;
+    private static final int FAST_PATH_MERCATOR_TO_WGS84 = 2;
+
+    private final String srcDefinition;
+    private final String dstDefinition;
+    private final ProjPool pool;
+    private final int fastPath;
+    private boolean fastPathEnabled = true;
+
+    public BulkTransformer(String srcDefinition, String dstDefinition) {
+        this(srcDefinition, dstDefinition, ProjPool.getInstance());
+    }
+
+    public BulkTransformer(String srcDefinition, String dstDefinition, ProjPool pool) {
+        this.srcDefinition = srcDefinition;
+        this.dstDefinition = dstDefinition;
+        this.pool = pool;
+        if (isWgs84(srcDefinition) && isWebMercator(dstDefinition)) {
+            fastPath = FAST_PATH_WGS84_TO_MERCATOR;
+        } else if (isWebMercator(srcDefinition) && isWgs84(dstDefinition)) {
+            fastPath = FAST_PATH_MERCATOR_TO_WGS84;
+        } else {
+            fastPath = FAST_PATH_NONE;
+        }
+    }
+
+    /**
+     * Enable or disable Java fast path for EPSG:4326 and EPSG:3857. Enabled by default.
+     */
+    public void setFastPathEnabled(boolean enabled) {
+        this.fastPathEnabled = enabled;
+    }
+
+    public boolean hasFastPath() {
+        return fastPath != FAST_PATH_NONE;
+    }
+
+    /**
+     * Allocate direct buffer suitable for transform(DoubleBuffer, ...).
+     */
+    public static DoubleBuffer allocateBuffer(int numPts, int dimension) {
+        return ByteBuffer.allocateDirect(numPts * dimension * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    /**
+     * Transform coordinates in-place.
+     *
+     * @param coords direct buffer in native byte order, see allocateBuffer()
+     * @param offset offset of the first point in the buffer, in doubles
+     * @param numPts number of points
+     * @param dimension number of doubles per point, at least 2
+     * @throws ProjException if Proj.4 fails to transform coordinates
+     */
+    public void transform(DoubleBuffer coords, int offset, int numPts, int dimension) throws ProjException {
+        if (fastPathEnabled && fastPath == FAST_PATH_WGS84_TO_MERCATOR) {
+            wgs84ToMercator(coords, offset, numPts, dimension);
+            return;
+        }
+        if (fastPathEnabled && fastPath == FAST_PATH_MERCATOR_TO_WGS84) {
+            mercatorToWgs84(coords, offset, numPts, dimension);
+            return;
+        }
+        NativeProj src = pool.acquire(srcDefinition);
+        try {
+            NativeProj dst = pool.acquire(dstDefinition);
+            try {
+                src.transform(dst, coords, offset, numPts, dimension);
+            } finally {
+                pool.release(dst);
+            }
+        } finally {
+            pool.release(src);
+        }
+    }
+
+    /**
+     * Transform coordinates in-place. For native transformations the array is copied,
+     * prefer transform(DoubleBuffer, ...) for large point counts.
+     *
+     * @throws ProjException if Proj.4 fails to transform coordinates
+     */
+    public void transform(double[] coords, int offset, int numPts, int dimension) throws ProjException {
+        if (fastPathEnabled && fastPath == FAST_PATH_WGS84_TO_MERCATOR) {
+            wgs84ToMercator(coords, offset, numPts, dimension);
+            return;
+        }
+        if (fastPathEnabled && fastPath == FAST_PATH_MERCATOR_TO_WGS84) {
+            mercatorToWgs84(coords, offset, numPts, dimension);
+            return;
+        }
+        NativeProj src = pool.acquire(srcDefinition);
+        try {
+            NativeProj dst = pool.acquire(dstDefinition);
+            try {
+                src.transform(dst, coords, offset, numPts, dimension);
+            } finally {
+                pool.release(dst);
+            }
+        } finally {
+            pool.release(src);
+        }
+    }
+
+    public static void wgs84ToMercator(double[] coords, int offset, int numPts, int dimension) {
+        int end = offset + numPts * dimension;
+        for (int i = offset; i < end; i += dimension) {
+            double lat = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, coords[i + 1]));
+            coords[i] = coords[i] * DEG_TO_METERS;
+            coords[i + 1] = EARTH_RADIUS * Math.log(Math.tan(Math.PI / 4 + lat * (Math.PI / 360)));
+        }
+    }
+
+    public static void mercatorToWgs84(double[] coords, int offset, int numPts, int dimension) {
+        int end = offset + numPts * dimension;
+        for (int i = offset; i < end; i += dimension) {
+            coords[i] = coords[i] * METERS_TO_DEG;
+            coords[i + 1] = (2 * Math.atan(Math.exp(coords[i + 1] / EARTH_RADIUS)) - Math.PI / 2) * (180 / Math.PI);
+        }
+    }
+
+    public static void wgs84ToMercator(DoubleBuffer coords, int offset, int numPts, int dimension) {
+        int end = offset + numPts * dimension;
+        for (int i = offset; i < end; i += dimension) {
+            double lat = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, coords.get(i + 1)));
+            coords.put(i, coords.get(i) * DEG_TO_METERS);
+            coords.put(i + 1, EARTH_RADIUS * Math.log(Math.tan(Math.PI / 4 + lat * (Math.PI / 360))));
+        }
+    }
+
+    public static void mercatorToWgs84(DoubleBuffer coords, int offset, int numPts, int dimension) {
+        int end = offset + numPts * dimension;
+        for (int i = offset; i < end; i += dimension) {
+            coords.put(i, coords.get(i) * METERS_TO_DEG);
+            coords.put(i + 1, (2 * Math.atan(Math.exp(coords.get(i + 1) / EARTH_RADIUS)) - Math.PI / 2) * (180 / Math.PI));
+        }
+    }
+
+    static boolean isWgs84(String definition) {
+        String def = " " + definition.toLowerCase() + " ";
+        boolean geographic = def.contains("+proj=longlat") || def.contains("+proj=latlong");
+        boolean wgs84 = def.contains("+datum=wgs84") || def.contains("+ellps=wgs84");
+        return geographic && wgs84 && !def.contains("+towgs84") && !def.contains("+pm=");
+    }
+
+    static boolean isWebMercator(String definition) {
+        String def = " " + definition.toLowerCase() + " ";
+        return def.contains("+proj=merc") && def.contains("+a=6378137 ") && def.contains("+b=6378137 ")
+                && hasDefaultValue(def, "+lon_0=", 0) && hasDefaultValue(def, "+lat_ts=", 0)
+                && hasDefaultValue(def, "+x_0=", 0) && hasDefaultValue(def, "+y_0=", 0) && hasDefaultValue(def, "+k=", 1);
+    }
+
+    private static boolean hasDefaultValue(String def, String param, double defaultValue) {
+        int index = def.indexOf(param);
+        if (index < 0) {
+            return true;
+        }
+        int start = index + param.length();
+        int end = def.indexOf(' ', start);
+        try {
+            return Double.parseDouble(def.substring(start, end)) == defaultValue;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.nutiteq.advancedmap.proj;
+
+import java.io.Closeable;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Proj.4 projection with its own projection context (native library proj, projbulk.c).
+ * Coordinates in direct DoubleBuffers are transformed in-place without copying.
+ *
+ * Instances are not thread-safe, use ProjPool to share them between threads.
+ * Geographic coordinates are in degrees.
+ *
+ * Native memory is released by close(), ProjPool closes instances which it does not keep.
+ * Finalizer only catches leaked instances, as it may run late or never.
+ * Transforms hold read locks of both projections and close() the write lock, so a handle is never
+ * freed during a transform, and transform after close() throws IllegalStateException.
+ *
+ * @author jaak
+ *
+ */
+public class NativeProj implements Closeable {
+
+    private static boolean libraryLoaded;
+
+    // force to load proj library
+    static {
+        try {
+            System.loadLibrary("proj");
+            libraryLoaded = true;
+        } catch (Throwable t) {
+            Log.error("NativeProj: Unable to load proj: " + t);
+        }
+    }
+
+    private final String definition;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long handle;
+
+    /**
+     * Default constructor.
+     *
+     * @param definition Proj.4 definition string
+     * @throws IllegalArgumentException if projection can not be created from the definition
+     */
+    public NativeProj(String definition) {
+        this.definition = definition;
+        handle = nativeInit(definition);
+        if (handle == 0) {
+            throw new IllegalArgumentException("NativeProj: Failed to create projection " + definition + "!");
+        }
+    }
+
+    /**
+     * @return true if native proj library is loaded
+     */
+    public static boolean isAvailable() {
+        return libraryLoaded;
+    }
+
+    public String getDefinition() {
+        return definition;
+    }
+
+    public boolean isClosed() {
+        lock.readLock().lock();
+        try {
+            return handle == 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Transform coordinates in-place, without copying. If transformation fails, coordinates are left unchanged.
+     *
+     * @param target target projection
+     * @param coords direct buffer in native byte order with (x, y, [z, ...]) tuples
+     * @param offset offset of the first point in the buffer, in doubles
+     * @param numPts number of points
+     * @param dimension number of doubles per point, at least 2
+     * @throws ProjException if Proj.4 fails to transform coordinates
+     * @throws IllegalStateException if either projection is closed
+     */
+    public void transform(NativeProj target, DoubleBuffer coords, int offset, int numPts, int dimension) throws ProjException {
+        if (!coords.isDirect()) {
+            throw new IllegalArgumentException("NativeProj: Buffer must be direct!");
+        }
+        // native code reads buffer memory as C doubles
+        if (coords.order() != ByteOrder.nativeOrder()) {
+            throw new IllegalArgumentException("NativeProj: Buffer must be in native byte order!");
+        }
+        int err;
+        lockOpen(target);
+        try {
+            err = nativeTransformDirect(handle, target.handle, coords, offset, numPts, dimension);
+        } finally {
+            unlock(target);
+        }
+        if (err != 0) {
+            throw new ProjException(nativeErrorString(err));
+        }
+    }
+
+    /**
+     * Transform coordinates of Java array in-place. Array is copied to native heap and back.
+     * If transformation fails, coordinates are left unchanged.
+     *
+     * @param target target projection
+     * @param coords array with (x, y, [z, ...]) tuples
+     * @param offset offset of the first point in the array
+     * @param numPts number of points
+     * @param dimension number of doubles per point, at least 2
+     * @throws ProjException if Proj.4 fails to transform coordinates
+     * @throws IllegalStateException if either projection is closed
+     */
+    public void transform(NativeProj target, double[] coords, int offset, int numPts, int dimension) throws ProjException {
+        int err;
+        lockOpen(target);
+        try {
+            err = nativeTransformArray(handle, target.handle, coords, offset, numPts, dimension);
+        } finally {
+            unlock(target);
+        }
+        if (err != 0) {
+            throw new ProjException(nativeErrorString(err));
+        }
+    }
+
+    /**
+     * Release native projection. Instance can not be used afterwards.
+     */
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (handle != 0) {
+                nativeFree(handle);
+                handle = 0;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Read lock both projections, so that close() waits until transform is done.
+    private void lockOpen(NativeProj target) {
+        lock.readLock().lock();
+        target.lock.readLock().lock();
+        if (handle == 0 || target.handle == 0) {
+            unlock(target);
+            throw new IllegalStateException("NativeProj: Projection is closed!");
+        }
+    }
+
+    private void unlock(NativeProj target) {
+        target.lock.readLock().unlock();
+        lock.readLock().unlock();
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            if (!isClosed()) {
+                Log.warning("NativeProj: " + definition + " was not closed");
+                close();
+            }
+        } finally {
+            super.finalize();
+        }
+    }
+
+    private static native long nativeInit(String definition);
+    private static native void nativeFree(long handle);
+    private static native int nativeTransformDirect(long src, long dst, DoubleBuffer coords, int offset, int numPts, int dimension);
+    private static native int nativeTransformArray(long src, long dst, double[] coords, int offset, int numPts, int dimension);
+    private static native String nativeErrorString(int err);
+
+}
@@ -0,0 +1,17 @@
+package com.nutiteq.advancedmap.proj;
+
+/**
+ *
+ * Error reported by Proj.4 during coordinate transformation.
+ *
+ * @author jaak
+ *
+ */
+public class ProjException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public ProjException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.nutiteq.advancedmap.proj;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ *
+ * Thread-safe pool of NativeProj instances, keyed by Proj.4 definition.
+ * Proj.4 contexts can not be shared between threads, so each thread borrows its own instance
+ * and returns it when done. Creating a projection parses the definition (and possibly grid files),
+ * pooling avoids that on each transformation. Instances which are not kept idle are closed on release,
+ * and idle instances on clear(), so native memory does not depend on finalizers.
+ *
+ * @author jaak
+ *
+ */
+public class ProjPool {
+    private static final int DEFAULT_MAX_IDLE = 4;
+    private static ProjPool instance;
+
+    private final Map<String, LinkedList<NativeProj>> idleProjs = new HashMap<String, LinkedList<NativeProj>>();
+    private final int maxIdle;
+    private int createdCount;
+
+    /**
+     * @param maxIdle maximum number of idle instances kept per definition
+     */
+    public ProjPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    public static synchronized ProjPool getInstance() {
+        if (instance == null) {
+            instance = new ProjPool(DEFAULT_MAX_IDLE);
+        }
+        return instance;
+    }
+
+    /**
+     * Borrow projection for given definition, must be returned with release().
+     *
+     * @throws IllegalArgumentException if projection can not be created from the definition
+     */
+    public NativeProj acquire(String definition) {
+        synchronized (this) {
+            LinkedList<NativeProj> idle = idleProjs.get(definition);
+            if (idle != null && !idle.isEmpty()) {
+                return idle.removeFirst();
+            }
+            createdCount++;
+        }
+        return new NativeProj(definition);
+    }
+
+    /**
+     * Return borrowed projection. It is kept for reuse or closed.
+     */
+    public void release(NativeProj proj) {
+        if (proj.isClosed()) {
+            return;
+        }
+        synchronized (this) {
+            LinkedList<NativeProj> idle = idleProjs.get(proj.getDefinition());
+            if (idle == null) {
+                idle = new LinkedList<NativeProj>();
+                idleProjs.put(proj.getDefinition(), idle);
+            }
+            if (idle.size() < maxIdle) {
+                idle.addFirst(proj);
+                return;
+            }
+        }
+        proj.close();
+    }
+
+    /**
+     * @return number of native projections created by the pool
+     */
+    public synchronized int getCreatedCount() {
+        return createdCount;
+    }
+
+    /**
+     * Close all idle projections. Borrowed ones are closed when released, if pool is full.
+     */
+    public synchronized void clear() {
+        for (LinkedList<NativeProj> idle : idleProjs.values()) {
+            for (NativeProj proj : idle) {
+                proj.close();
+            }
+        }
+        idleProjs.clear();
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.nutiteq.advancedmap.proj;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.nutiteq.components.Envelope;
+
+/**
+ *
+ * LRU cache of reprojected tile corners and warping grids. Raster layers in foreign CRS
+ * request the same tiles repeatedly when panning back and forth, so grid for a tile
+ * is transformed only once.
+ *
+ * Grid of size n has (n + 1) x (n + 1) points, row by row from (minX, minY),
+ * as (x, y) pairs in target CRS.
+ *
+ * @author jaak
+ *
+ */
+public class ReprojectedGridCache {
+    private final TransformPipeline pipeline;
+    private final Map<String, double[]> grids;
+    private int hitCount;
+    private int missCount;
+
+    /**
+     * @param pipeline transformation from tile CRS to target CRS
+     * @param maxEntries maximum number of cached grids
+     */
+    public ReprojectedGridCache(TransformPipeline pipeline, final int maxEntries) {
+        this.pipeline = pipeline;
+        this.grids = new LinkedHashMap<String, double[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public TransformPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Get reprojected tile corners: (minX, minY), (maxX, minY), (minX, maxY), (maxX, maxY).
+     *
+     * @throws ProjException if corners can not be transformed
+     */
+    public double[] getCorners(Envelope tile) throws ProjException {
+        return getGrid(tile, 1);
+    }
+
+    /**
+     * Get reprojected grid for the tile. Returned array must not be modified.
+     *
+     * @param tile tile envelope in source CRS
+     * @param gridSize number of grid cells per tile side
+     * @throws ProjException if grid can not be transformed
+     */
+    public double[] getGrid(Envelope tile, int gridSize) throws ProjException {
+        String key = tile.minX + "," + tile.minY + "," + tile.maxX + "," + tile.maxY + "/" + gridSize;
+        synchronized (this) {
+            double[] grid = grids.get(key);
+            if (grid != null) {
+                hitCount++;
+                return grid;
+            }
+            missCount++;
+        }
+
+        double[] grid = new double[(gridSize + 1) * (gridSize + 1) * 2];
+        int n = 0;
+        for (int j = 0; j <= gridSize; j++) {
+            double y = tile.minY + tile.getHeight() * j / gridSize;
+            for (int i = 0; i <= gridSize; i++) {
+                grid[n++] = tile.minX + tile.getWidth() * i / gridSize;
+                grid[n++] = y;
+            }
+        }
+        pipeline.transform(grid, 0, grid.length / 2, 2);
+
+        synchronized (this) {
+            grids.put(key, grid);
+        }
+        return grid;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized void clear() {
+        grids.clear();
+    }
+
+}
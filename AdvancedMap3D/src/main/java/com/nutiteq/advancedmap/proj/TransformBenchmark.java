@@ -0,0 +1,101 @@
+package com.nutiteq.advancedmap.proj;
+
+import java.nio.DoubleBuffer;
+import java.util.Random;
+
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Compares EPSG:4326 to EPSG:3857 transformation paths:
+ * 1) Proj.4 over Java array (copied in and out of native heap),
+ * 2) Proj.4 over direct buffer (no copy),
+ * 3) Java fast path over direct buffer.
+ *
+ * Run from background thread, e.g. new TransformBenchmark().run(TransformBenchmark.DEFAULT_POINT_COUNT),
+ * AdvancedMapActivity has a menu item for it. Results are written to log and returned as text.
+ * Proj.4 paths are skipped if native proj library is not available.
+ *
+ * @author jaak
+ *
+ */
+public class TransformBenchmark {
+    public static final int DEFAULT_POINT_COUNT = 10000000;
+    private static final int CHUNK_SIZE = 100000;
+    private static final int DIMENSION = 2;
+
+    private final double[] source = new double[CHUNK_SIZE * DIMENSION];
+
+    public TransformBenchmark() {
+        Random random = new Random(0);
+        for (int i = 0; i < CHUNK_SIZE; i++) {
+            source[i * DIMENSION] = random.nextDouble() * 360 - 180;
+            source[i * DIMENSION + 1] = random.nextDouble() * 170 - 85;
+        }
+    }
+
+    /**
+     * @param numPoints number of points to transform with each path
+     * @return results, one line per path
+     */
+    public String run(int numPoints) {
+        StringBuilder result = new StringBuilder();
+        try {
+            BulkTransformer nativeTransformer = new BulkTransformer(BulkTransformer.WGS84_PROJ4, BulkTransformer.EPSG3857_PROJ4);
+            nativeTransformer.setFastPathEnabled(false);
+            BulkTransformer fastTransformer = new BulkTransformer(BulkTransformer.WGS84_PROJ4, BulkTransformer.EPSG3857_PROJ4);
+
+            // warm up pool and JIT
+            if (NativeProj.isAvailable()) {
+                runArray(nativeTransformer, CHUNK_SIZE);
+                runBuffer(nativeTransformer, CHUNK_SIZE);
+            }
+            runBuffer(fastTransformer, CHUNK_SIZE);
+
+            if (NativeProj.isAvailable()) {
+                appendResult(result, "proj4 array", numPoints, runArray(nativeTransformer, numPoints));
+                appendResult(result, "proj4 direct buffer", numPoints, runBuffer(nativeTransformer, numPoints));
+            }
+            appendResult(result, "java fast path", numPoints, runBuffer(fastTransformer, numPoints));
+        } catch (ProjException e) {
+            Log.error("TransformBenchmark: Failed to transform! " + e.getMessage());
+            result.append("error: ").append(e.getMessage()).append('\n');
+        }
+        return result.toString();
+    }
+
+    private long runArray(BulkTransformer transformer, int numPoints) throws ProjException {
+        double[] coords = new double[source.length];
+        long time = 0;
+        for (int done = 0; done < numPoints; done += CHUNK_SIZE) {
+            int count = Math.min(CHUNK_SIZE, numPoints - done);
+            System.arraycopy(source, 0, coords, 0, count * DIMENSION);
+            long start = System.nanoTime();
+            transformer.transform(coords, 0, count, DIMENSION);
+            time += System.nanoTime() - start;
+        }
+        return time;
+    }
+
+    private long runBuffer(BulkTransformer transformer, int numPoints) throws ProjException {
+        DoubleBuffer coords = BulkTransformer.allocateBuffer(CHUNK_SIZE, DIMENSION);
+        long time = 0;
+        for (int done = 0; done < numPoints; done += CHUNK_SIZE) {
+            int count = Math.min(CHUNK_SIZE, numPoints - done);
+            coords.clear();
+            coords.put(source, 0, count * DIMENSION);
+            long start = System.nanoTime();
+            transformer.transform(coords, 0, count, DIMENSION);
+            time += System.nanoTime() - start;
+        }
+        return time;
+    }
+
+    private static void appendResult(StringBuilder result, String name, int numPoints, long nanos) {
+        String line = name + ": " + numPoints + " points in " + (nanos / 1000000) + " ms, "
+                + (nanos / Math.max(1, numPoints)) + " ns/point";
+        Log.info("TransformBenchmark " + line);
+        result.append(line).append('\n');
+    }
+
+}
@@ -0,0 +1,209 @@
+package com.nutiteq.advancedmap.proj;
+
+import java.nio.DoubleBuffer;
+
+import org.osgeo.proj4j.CRSFactory;
+import org.osgeo.proj4j.CoordinateReferenceSystem;
+import org.osgeo.proj4j.CoordinateTransform;
+import org.osgeo.proj4j.CoordinateTransformFactory;
+import org.osgeo.proj4j.Proj4jException;
+import org.osgeo.proj4j.ProjCoordinate;
+
+import com.nutiteq.components.Envelope;
+import com.nutiteq.components.MapPos;
+
+/**
+ *
+ * Compiled coordinate transformation from one CRS to another, created by TransformRegistry.
+ * Source and target are composed once: points go directly from source to target CRS,
+ * without creating intermediate WGS84 MapPos objects. Can be used from several threads.
+ *
+ * Coordinates are (x, y, [z, ...]) tuples, geographic coordinates are in degrees.
+ *
+ * @author jaak
+ *
+ */
+public abstract class TransformPipeline {
+    private final String srcDefinition;
+    private final String dstDefinition;
+
+    protected TransformPipeline(String srcDefinition, String dstDefinition) {
+        this.srcDefinition = srcDefinition;
+        this.dstDefinition = dstDefinition;
+    }
+
+    public String getSrcDefinition() {
+        return srcDefinition;
+    }
+
+    public String getDstDefinition() {
+        return dstDefinition;
+    }
+
+    /**
+     * @return implementation used for transformation: identity, java, proj4 or proj4j
+     */
+    public abstract String getType();
+
+    /**
+     * Transform coordinates in-place.
+     *
+     * @throws ProjException if coordinates can not be transformed
+     */
+    public abstract void transform(double[] coords, int offset, int numPts, int dimension) throws ProjException;
+
+    /**
+     * Transform coordinates of direct buffer in-place.
+     *
+     * @throws ProjException if coordinates can not be transformed
+     */
+    public void transform(DoubleBuffer coords, int offset, int numPts, int dimension) throws ProjException {
+        double[] array = new double[numPts * dimension];
+        coords.position(offset);
+        coords.get(array);
+        transform(array, 0, numPts, dimension);
+        coords.position(offset);
+        coords.put(array);
+    }
+
+    /**
+     * Transform single point.
+     *
+     * @throws ProjException if point can not be transformed
+     */
+    public MapPos transform(double x, double y) throws ProjException {
+        double[] coords = new double[] { x, y };
+        transform(coords, 0, 1, 2);
+        return new MapPos(coords[0], coords[1]);
+    }
+
+    /**
+     * Transform envelope, using points along envelope edges.
+     *
+     * @param envelope source envelope
+     * @param segments number of segments per edge, 1 transforms only corners
+     * @return bounding box of transformed points
+     * @throws ProjException if points can not be transformed
+     */
+    public Envelope transformEnvelope(Envelope envelope, int segments) throws ProjException {
+        double[] coords = new double[segments * 4 * 2];
+        int n = 0;
+        for (int i = 0; i < segments; i++) {
+            double tx = envelope.minX + envelope.getWidth() * i / segments;
+            double ty = envelope.minY + envelope.getHeight() * i / segments;
+            coords[n++] = tx;
+            coords[n++] = envelope.minY;
+            coords[n++] = envelope.maxX;
+            coords[n++] = ty;
+            coords[n++] = envelope.maxX - (tx - envelope.minX);
+            coords[n++] = envelope.maxY;
+            coords[n++] = envelope.minX;
+            coords[n++] = envelope.maxY - (ty - envelope.minY);
+        }
+        transform(coords, 0, coords.length / 2, 2);
+
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < coords.length; i += 2) {
+            minX = Math.min(minX, coords[i]);
+            maxX = Math.max(maxX, coords[i]);
+            minY = Math.min(minY, coords[i + 1]);
+            maxY = Math.max(maxY, coords[i + 1]);
+        }
+        return new Envelope(minX, maxX, minY, maxY);
+    }
+
+    /**
+     * Pipeline for equal source and target definitions.
+     */
+    static class Identity extends TransformPipeline {
+        Identity(String srcDefinition, String dstDefinition) {
+            super(srcDefinition, dstDefinition);
+        }
+
+        @Override
+        public String getType() {
+            return "identity";
+        }
+
+        @Override
+        public void transform(double[] coords, int offset, int numPts, int dimension) {
+        }
+
+        @Override
+        public void transform(DoubleBuffer coords, int offset, int numPts, int dimension) {
+        }
+    }
+
+    /**
+     * Pipeline using BulkTransformer: Java fast path or pooled native Proj.4.
+     */
+    static class Bulk extends TransformPipeline {
+        private final BulkTransformer transformer;
+
+        Bulk(String srcDefinition, String dstDefinition) {
+            super(srcDefinition, dstDefinition);
+            transformer = new BulkTransformer(srcDefinition, dstDefinition);
+        }
+
+        @Override
+        public String getType() {
+            return transformer.hasFastPath() ? "java" : "proj4";
+        }
+
+        @Override
+        public void transform(double[] coords, int offset, int numPts, int dimension) throws ProjException {
+            transformer.transform(coords, offset, numPts, dimension);
+        }
+
+        @Override
+        public void transform(DoubleBuffer coords, int offset, int numPts, int dimension) throws ProjException {
+            if (coords.isDirect()) {
+                transformer.transform(coords, offset, numPts, dimension);
+            } else {
+                super.transform(coords, offset, numPts, dimension);
+            }
+        }
+    }
+
+    /**
+     * Pure Java pipeline using proj4j, when native library is not available.
+     */
+    static class Proj4j extends TransformPipeline {
+        private final CoordinateTransform transform;
+
+        Proj4j(String srcDefinition, String dstDefinition) {
+            super(srcDefinition, dstDefinition);
+            CRSFactory crsFactory = new CRSFactory();
+            CoordinateReferenceSystem srcCrs = crsFactory.createFromParameters("src", srcDefinition);
+            CoordinateReferenceSystem dstCrs = crsFactory.createFromParameters("dst", dstDefinition);
+            transform = new CoordinateTransformFactory().createTransform(srcCrs, dstCrs);
+        }
+
+        @Override
+        public String getType() {
+            return "proj4j";
+        }
+
+        @Override
+        public void transform(double[] coords, int offset, int numPts, int dimension) throws ProjException {
+            ProjCoordinate src = new ProjCoordinate();
+            ProjCoordinate dst = new ProjCoordinate();
+            int end = offset + numPts * dimension;
+            try {
+                // proj4j transforms keep internal state, so calls must be serialized
+                synchronized (transform) {
+                    for (int i = offset; i < end; i += dimension) {
+                        src.setValue(coords[i], coords[i + 1]);
+                        transform.transform(src, dst);
+                        coords[i] = dst.x;
+                        coords[i + 1] = dst.y;
+                    }
+                }
+            } catch (Proj4jException e) {
+                throw new ProjException(e.getMessage());
+            }
+        }
+    }
+
+}
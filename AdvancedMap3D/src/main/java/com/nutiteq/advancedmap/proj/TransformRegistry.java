@@ -0,0 +1,135 @@
+package com.nutiteq.advancedmap.proj;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.EPSG3301;
+import com.nutiteq.projections.EPSG3857;
+import com.nutiteq.projections.EPSG4326;
+import com.nutiteq.projections.Projection;
+
+/**
+ *
+ * Registry of compiled transformation pipelines between CRS pairs. Pipeline for a pair is
+ * created once and then reused by all layers and data sources:
+ * Java fast path for EPSG:4326/EPSG:3857, native Proj.4 if available, proj4j otherwise.
+ *
+ * SDK projections do not expose their Proj.4 definitions, so known ones are registered here
+ * and custom ones can be added with registerDefinition().
+ *
+ * @author jaak
+ *
+ */
+public class TransformRegistry {
+    public static final String EPSG3301_PROJ4 = "+proj=lcc +lat_1=59.33333333333334 +lat_2=58 +lat_0=57.51755393055556 +lon_0=24 +x_0=500000 +y_0=6375000 +ellps=GRS80 +towgs84=0,0,0,0,0,0,0 +units=m +no_defs";
+
+    private static TransformRegistry instance;
+
+    private final Map<String, TransformPipeline> pipelines = new HashMap<String, TransformPipeline>();
+    private final Map<String, String> definitions = new HashMap<String, String>();
+    private int hitCount;
+    private int missCount;
+
+    public TransformRegistry() {
+        registerDefinition(EPSG3857.class, BulkTransformer.EPSG3857_PROJ4);
+        registerDefinition(EPSG4326.class, BulkTransformer.WGS84_PROJ4);
+        registerDefinition(EPSG3301.class, EPSG3301_PROJ4);
+    }
+
+    public static synchronized TransformRegistry getInstance() {
+        if (instance == null) {
+            instance = new TransformRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * Register Proj.4 definition for projection class.
+     */
+    public synchronized void registerDefinition(Class<? extends Projection> projectionClass, String definition) {
+        definitions.put(projectionClass.getName(), definition);
+    }
+
+    /**
+     * @return Proj.4 definition of the projection, or null if it is not registered
+     */
+    public synchronized String getDefinition(Projection projection) {
+        return definitions.get(projection.getClass().getName());
+    }
+
+    /**
+     * Get pipeline between two projections.
+     *
+     * @throws ProjException if projection definition is not registered, or pipeline can not be created
+     */
+    public TransformPipeline getPipeline(Projection src, Projection dst) throws ProjException {
+        String srcDefinition = getDefinition(src);
+        String dstDefinition = getDefinition(dst);
+        if (srcDefinition == null || dstDefinition == null) {
+            throw new ProjException("TransformRegistry: No definition registered for " + (srcDefinition == null ? src.name() : dst.name()));
+        }
+        return getPipeline(srcDefinition, dstDefinition);
+    }
+
+    /**
+     * Get pipeline between two Proj.4 definitions, create it if needed.
+     *
+     * @throws ProjException if pipeline can not be created
+     */
+    public synchronized TransformPipeline getPipeline(String srcDefinition, String dstDefinition) throws ProjException {
+        String key = srcDefinition + "|" + dstDefinition;
+        TransformPipeline pipeline = pipelines.get(key);
+        if (pipeline != null) {
+            hitCount++;
+            return pipeline;
+        }
+        missCount++;
+        pipeline = createPipeline(srcDefinition, dstDefinition);
+        Log.debug("TransformRegistry: created " + pipeline.getType() + " pipeline " + key);
+        pipelines.put(key, pipeline);
+        return pipeline;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized void clear() {
+        pipelines.clear();
+    }
+
+    private static TransformPipeline createPipeline(String srcDefinition, String dstDefinition) throws ProjException {
+        if (srcDefinition.trim().equals(dstDefinition.trim())) {
+            return new TransformPipeline.Identity(srcDefinition, dstDefinition);
+        }
+        if (new BulkTransformer(srcDefinition, dstDefinition).hasFastPath()) {
+            return new TransformPipeline.Bulk(srcDefinition, dstDefinition);
+        }
+
+        if (NativeProj.isAvailable()) {
+            try {
+                // check that both definitions are valid for native Proj.4
+                ProjPool pool = ProjPool.getInstance();
+                pool.release(pool.acquire(srcDefinition));
+                pool.release(pool.acquire(dstDefinition));
+                return new TransformPipeline.Bulk(srcDefinition, dstDefinition);
+            } catch (IllegalArgumentException e) {
+                Log.warning("TransformRegistry: native Proj.4 failed: " + e.getMessage());
+            } catch (UnsatisfiedLinkError e) {
+                Log.warning("TransformRegistry: native Proj.4 bulk functions missing: " + e.getMessage());
+            }
+        }
+
+        try {
+            return new TransformPipeline.Proj4j(srcDefinition, dstDefinition);
+        } catch (RuntimeException e) {
+            throw new ProjException("TransformRegistry: Failed to create pipeline " + srcDefinition + " -> " + dstDefinition + ": " + e.getMessage());
+        }
+    }
+
+}
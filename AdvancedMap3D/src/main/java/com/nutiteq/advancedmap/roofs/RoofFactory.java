@@ -0,0 +1,149 @@
+package com.nutiteq.advancedmap.roofs;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.nutiteq.components.MapPos;
+import com.nutiteq.geometry.Polygon3D;
+import com.nutiteq.log.Log;
+import com.nutiteq.projections.Projection;
+import com.nutiteq.roofs.FlatRoof;
+import com.nutiteq.roofs.GabledRoof;
+import com.nutiteq.roofs.HalfHippedRoof;
+import com.nutiteq.roofs.HippedRoof;
+import com.nutiteq.roofs.Polygon3DRoof;
+import com.nutiteq.roofs.PyramidalRoof;
+import com.nutiteq.roofs.Roof;
+import com.vividsolutions.jts.algorithm.MinimumDiameter;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ *
+ * Creates roof for building from its OSM tags (roof:shape, roof:height, roof:levels, roof:orientation).
+ * Buildings of OSMPolygon3DDataSource have tags as user data, so their roofs can be replaced
+ * with applyRoof(): data source knows only gabled, hipped and flat shapes, and uses one shared
+ * roof instance for all untagged buildings, which is not safe for parallel extrusion.
+ *
+ * Rectangle-based roofs of the SDK are used for nearly rectangular footprints, other hipped
+ * roofs get SkeletonRoof.
+ *
+ * @author jaak
+ *
+ */
+public class RoofFactory {
+    private static final float LEVELS_TO_HEIGHT = 5.0f;
+    private static final float MAX_ROOF_HEIGHT = 9.0f;
+    private static final double MIN_RECTANGULARITY = 0.9;
+    private static final int MAX_SKELETON_EDGES = 48;
+
+    private final Projection projection;
+    private final GeometryFactory geoFac = new GeometryFactory();
+
+    /**
+     * @param projection projection of building coordinates
+     */
+    public RoofFactory(Projection projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * Replace roof of building created by OSMPolygon3DDataSource, using its tags.
+     *
+     * @return true if building got new roof
+     */
+    @SuppressWarnings("unchecked")
+    public boolean applyRoof(Polygon3D building) {
+        if (!(building instanceof Polygon3DRoof) || !(building.userData instanceof Map)) {
+            return false;
+        }
+        Roof roof = createRoof(building.getVertexList(), building.getHeight(), (Map<String, String>) building.userData);
+        ((Polygon3DRoof) building).setRoof(roof);
+        return true;
+    }
+
+    /**
+     * Create roof for one building.
+     *
+     * @param vertices building outline
+     * @param height building height in meters
+     * @param tags OSM tags of building
+     * @return new roof instance, roofs must not be shared between buildings
+     */
+    public Roof createRoof(List<MapPos> vertices, float height, Map<String, String> tags) {
+        String shape = tags.get("roof:shape");
+        float roofHeight = getRoofHeight(height, tags);
+        if (shape == null || roofHeight <= 0) {
+            return new FlatRoof();
+        }
+        boolean alongLongSide = !"across".equals(tags.get("roof:orientation"));
+        shape = shape.trim().toLowerCase(Locale.US);
+
+        if (shape.equals("gabled") || shape.equals("saltbox") || shape.equals("gambrel")) {
+            return new GabledRoof(roofHeight, alongLongSide);
+        } else if (shape.equals("half-hipped") || shape.equals("half_hipped")) {
+            return new HalfHippedRoof(roofHeight, alongLongSide);
+        } else if (shape.equals("pyramidal") || shape.equals("pyramidial") || shape.equals("dome") || shape.equals("onion")) {
+            return new PyramidalRoof(roofHeight, alongLongSide);
+        } else if (shape.equals("hipped") || shape.equals("mansard") || shape.equals("skeleton")) {
+            Polygon footprint = toInternalPolygon(vertices);
+            if (footprint != null && (shape.equals("skeleton") || !isRectangular(footprint))
+                    && SkeletonRoof.getEdgeCount(footprint) <= MAX_SKELETON_EDGES) {
+                return new SkeletonRoof(roofHeight, footprint);
+            }
+            return new HippedRoof(roofHeight, alongLongSide);
+        } else if (!shape.equals("flat")) {
+            Log.debug("RoofFactory: unknown roof shape " + shape);
+        }
+        return new FlatRoof();
+    }
+
+    /**
+     * Roof height as calculated by OSMPolygon3DDataSource.
+     */
+    private static float getRoofHeight(float height, Map<String, String> tags) {
+        String roofHeight = tags.get("roof:height");
+        if (roofHeight != null) {
+            try {
+                return Float.parseFloat(roofHeight.replace("m", "").trim());
+            } catch (NumberFormatException e) {
+                Log.error("RoofFactory: Failed to parse roof height from: " + roofHeight);
+            }
+        }
+        String roofLevels = tags.get("roof:levels");
+        if (roofLevels != null) {
+            try {
+                return Integer.parseInt(roofLevels.trim()) * LEVELS_TO_HEIGHT;
+            } catch (NumberFormatException e) {
+                Log.error("RoofFactory: Failed to parse roof levels from: " + roofLevels);
+            }
+        }
+        return Math.min(height / 3, MAX_ROOF_HEIGHT);
+    }
+
+    private Polygon toInternalPolygon(List<MapPos> vertices) {
+        int count = vertices.size();
+        if (count > 1 && vertices.get(0).equals(vertices.get(count - 1))) {
+            // outline is already closed
+            count--;
+        }
+        if (count < 3) {
+            return null;
+        }
+        Coordinate[] ring = new Coordinate[count + 1];
+        for (int i = 0; i < count; i++) {
+            MapPos mapPos = projection.toInternal(vertices.get(i).x, vertices.get(i).y);
+            ring[i] = new Coordinate(mapPos.x, mapPos.y);
+        }
+        ring[count] = ring[0];
+        return geoFac.createPolygon(geoFac.createLinearRing(ring), null);
+    }
+
+    private static boolean isRectangular(Polygon footprint) {
+        double rectangleArea = new MinimumDiameter(footprint).getMinimumRectangle().getArea();
+        return rectangleArea > 0 && footprint.getArea() / rectangleArea >= MIN_RECTANGULARITY;
+    }
+
+}
@@ -0,0 +1,394 @@
+package com.nutiteq.advancedmap.roofs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.nutiteq.components.MapPos;
+import com.nutiteq.components.Point3D;
+import com.nutiteq.geometry.Polygon3D;
+import com.nutiteq.geometry.Polygon3D.Polygon3DInternalState;
+import com.nutiteq.log.Log;
+import com.nutiteq.style.Style;
+import com.nutiteq.style.StyleSet;
+
+/**
+ *
+ * Persistent cache of extruded building meshes (walls and roof), keyed by footprint hash.
+ * Roof generation is expensive, with cache it is done once per building, not every time
+ * its tile is loaded again.
+ *
+ * Meshes are appended to one pack file, which is smaller and faster than file per building:
+ * record is key, length, origin, vertices as floats and colors as RGBA bytes.
+ * Index is rebuilt by scanning the file on open. When file grows over size limit, it is compacted:
+ * least recently used meshes are dropped, so that half of the limit is used. Records are rewritten
+ * in use order, so order is kept between sessions.
+ *
+ * Meshes are read with positional reads without holding the cache lock, so readers do not wait
+ * for each other or for appends, only for compaction.
+ *
+ * @author jaak
+ *
+ */
+public class RoofMeshCache {
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8 + 4;
+
+    private final File file;
+    private final long maxSize;
+    // key to record position and size, in access order, guarded by itself
+    private final LinkedHashMap<Long, long[]> index = new LinkedHashMap<Long, long[]>(16, 0.75f, true);
+    // read lock for reads and appends, write lock for compaction and close
+    private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
+    private RandomAccessFile data;
+    // end of last record, guarded by this
+    private long length;
+    private boolean closed;
+    private int hitCount;
+    private int missCount;
+
+    /**
+     * Open cache, creating file if needed.
+     *
+     * @param file pack file
+     * @param maxSize maximum file size in bytes
+     * @throws IOException if file can not be opened
+     */
+    public RoofMeshCache(File file, long maxSize) throws IOException {
+        this.file = file;
+        this.maxSize = maxSize;
+        file.getParentFile().mkdirs();
+        data = new RandomAccessFile(file, "rw");
+        try {
+            readIndex();
+        } catch (IOException e) {
+            Log.error("RoofMeshCache: Failed to read index of " + file + "! " + e.getMessage());
+            clear();
+        }
+        length = data.length();
+        Log.debug("RoofMeshCache: " + index.size() + " meshes, " + length + " bytes");
+    }
+
+    /**
+     * Calculate cache key from everything that affects building mesh: outline, holes,
+     * height, tags (roof shape, colors), style and render projection.
+     */
+    public static long getKey(Polygon3D building, String renderProjectionName) {
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, building.getClass().getName());
+        hash = hash(hash, renderProjectionName);
+        hash = hash(hash, getStyleKey(building.getStyleSet()));
+        hash = hash(hash, Float.floatToIntBits(building.getHeight()));
+        hash = hash(hash, building.getVertexList());
+        List<List<MapPos>> holes = building.getHolePolygonList();
+        if (holes != null) {
+            for (List<MapPos> hole : holes) {
+                hash = hash(hash, hole);
+            }
+        }
+        if (building.userData instanceof Map) {
+            // sorted, so key does not depend on map order
+            for (Map.Entry<?, ?> entry : new TreeMap<Object, Object>((Map<?, ?>) building.userData).entrySet()) {
+                hash = hash(hash, String.valueOf(entry.getKey()));
+                hash = hash(hash, String.valueOf(entry.getValue()));
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Calculate key of style set from zooms and colors of its styles, stable between sessions.
+     */
+    public static long getStyleKey(StyleSet<?> styleSet) {
+        long hash = 0xcbf29ce484222325L;
+        if (styleSet != null) {
+            for (StyleSet.ZoomStyle<?> zoomStyle : styleSet.getZoomStyles()) {
+                hash = hash(hash, zoomStyle.zoom);
+                Object style = zoomStyle.style;
+                hash = hash(hash, style instanceof Style ? ((Style) style).color.colorInt : 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Get cached mesh.
+     *
+     * @return mesh, or null if not cached
+     */
+    public Polygon3DInternalState get(long key) {
+        fileLock.readLock().lock();
+        try {
+            long[] position;
+            synchronized (index) {
+                position = closed ? null : index.get(key);
+                if (position == null) {
+                    missCount++;
+                    return null;
+                }
+            }
+            try {
+                ByteBuffer record = ByteBuffer.allocate((int) position[1]);
+                read(record, position[0]);
+                Polygon3DInternalState state = decode(record);
+                synchronized (index) {
+                    hitCount++;
+                }
+                return state;
+            } catch (IOException e) {
+                Log.error("RoofMeshCache: Failed to read mesh! " + e.getMessage());
+                synchronized (index) {
+                    index.remove(key);
+                    missCount++;
+                }
+                return null;
+            }
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Store mesh. If cache is full, least recently used meshes are removed first.
+     */
+    public synchronized void put(long key, Polygon3DInternalState state) {
+        synchronized (index) {
+            if (closed || index.containsKey(key)) {
+                return;
+            }
+        }
+        ByteBuffer record = encode(key, state);
+        if (length + record.capacity() > maxSize) {
+            fileLock.writeLock().lock();
+            try {
+                compact((maxSize - record.capacity()) / 2);
+            } catch (IOException e) {
+                Log.error("RoofMeshCache: Failed to compact " + file + "! " + e.getMessage());
+                try {
+                    clear();
+                } catch (IOException e2) {
+                    Log.error("RoofMeshCache: Failed to clear " + file + "! " + e2.getMessage());
+                    closed = true;
+                }
+            } finally {
+                fileLock.writeLock().unlock();
+            }
+        }
+        fileLock.readLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            long position = length;
+            record.rewind();
+            while (record.hasRemaining()) {
+                data.getChannel().write(record, position + record.position());
+            }
+            length += record.capacity();
+            synchronized (index) {
+                index.put(key, new long[] { position + HEADER_SIZE, record.capacity() - HEADER_SIZE });
+            }
+        } catch (IOException e) {
+            Log.error("RoofMeshCache: Failed to write mesh! " + e.getMessage());
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    public int getHitCount() {
+        synchronized (index) {
+            return hitCount;
+        }
+    }
+
+    public int getMissCount() {
+        synchronized (index) {
+            return missCount;
+        }
+    }
+
+    public int size() {
+        synchronized (index) {
+            return index.size();
+        }
+    }
+
+    public void close() {
+        fileLock.writeLock().lock();
+        try {
+            synchronized (index) {
+                closed = true;
+                index.clear();
+            }
+            data.close();
+        } catch (IOException e) {
+            Log.error("RoofMeshCache: Failed to close " + file + "! " + e.getMessage());
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    private void readIndex() throws IOException {
+        if (data.length() < 4) {
+            clear();
+            return;
+        }
+        data.seek(0);
+        if (data.readInt() != FORMAT_VERSION) {
+            clear();
+            return;
+        }
+        long position = 4;
+        long length = data.length();
+        while (position + HEADER_SIZE <= length) {
+            data.seek(position);
+            long key = data.readLong();
+            int size = data.readInt();
+            if (size < 0 || position + HEADER_SIZE + size > length) {
+                break;
+            }
+            index.put(key, new long[] { position + HEADER_SIZE, size });
+            position += HEADER_SIZE + size;
+        }
+        if (position < length) {
+            // interrupted write
+            data.setLength(position);
+        }
+    }
+
+    private void clear() throws IOException {
+        synchronized (index) {
+            index.clear();
+        }
+        data.setLength(0);
+        data.seek(0);
+        data.writeInt(FORMAT_VERSION);
+        length = data.length();
+    }
+
+    /**
+     * Rewrite pack file with most recently used records which fit to given size.
+     * Called with write lock held.
+     */
+    private void compact(long keepSize) throws IOException {
+        List<Map.Entry<Long, long[]>> entries;
+        synchronized (index) {
+            entries = new ArrayList<Map.Entry<Long, long[]>>(index.entrySet());
+        }
+        // find least recently used record to keep
+        int first = entries.size();
+        long size = 4;
+        while (first > 0) {
+            long recordSize = HEADER_SIZE + entries.get(first - 1).getValue()[1];
+            if (size + recordSize > keepSize) {
+                break;
+            }
+            size += recordSize;
+            first--;
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile temp = new RandomAccessFile(tempFile, "rw");
+        Map<Long, long[]> kept = new LinkedHashMap<Long, long[]>();
+        try {
+            temp.setLength(0);
+            temp.writeInt(FORMAT_VERSION);
+            long position = 4;
+            for (Map.Entry<Long, long[]> entry : entries.subList(first, entries.size())) {
+                long[] record = entry.getValue();
+                ByteBuffer buffer = ByteBuffer.allocate((int) (HEADER_SIZE + record[1]));
+                read(buffer, record[0] - HEADER_SIZE);
+                temp.write(buffer.array());
+                kept.put(entry.getKey(), new long[] { position + HEADER_SIZE, record[1] });
+                position += buffer.capacity();
+            }
+        } finally {
+            temp.close();
+        }
+
+        data.close();
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            data = new RandomAccessFile(file, "rw");
+            throw new IOException("can not rename " + tempFile);
+        }
+        data = new RandomAccessFile(file, "rw");
+        length = data.length();
+        synchronized (index) {
+            index.clear();
+            index.putAll(kept);
+        }
+        Log.debug("RoofMeshCache: compacted to " + kept.size() + " meshes, " + length + " bytes");
+    }
+
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (data.getChannel().read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static ByteBuffer encode(long key, Polygon3DInternalState state) {
+        int vertexCount = state.vertices.length / 3;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 3 * 8 + 4 + state.vertices.length * 4 + vertexCount * 4);
+        buffer.putLong(key);
+        buffer.putInt(buffer.capacity() - HEADER_SIZE);
+        buffer.putDouble(state.origin.x).putDouble(state.origin.y).putDouble(state.origin.z);
+        buffer.putInt(state.vertices.length);
+        buffer.asFloatBuffer().put(state.vertices);
+        buffer.position(buffer.position() + state.vertices.length * 4);
+        for (int i = 0; i < vertexCount * 4; i++) {
+            float color = i < state.colors.length ? state.colors[i] : 1;
+            buffer.put((byte) Math.round(Math.max(0, Math.min(1, color)) * 255));
+        }
+        return buffer;
+    }
+
+    private static Polygon3DInternalState decode(ByteBuffer buffer) {
+        Point3D origin = new Point3D(buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+        float[] vertices = new float[buffer.getInt()];
+        buffer.asFloatBuffer().get(vertices);
+        buffer.position(buffer.position() + vertices.length * 4);
+        float[] colors = new float[vertices.length / 3 * 4];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = (buffer.get() & 0xff) / 255.0f;
+        }
+        return new Polygon3DInternalState(origin, vertices, colors);
+    }
+
+    private static long hash(long hash, List<MapPos> ring) {
+        for (MapPos mapPos : ring) {
+            hash = hash(hash, Double.doubleToLongBits(mapPos.x));
+            hash = hash(hash, Double.doubleToLongBits(mapPos.y));
+        }
+        return hash(hash, -1);
+    }
+
+    private static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = hash(hash, value.charAt(i));
+        }
+        return hash(hash, -1);
+    }
+
+    // FNV-1a
+    private static long hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+}
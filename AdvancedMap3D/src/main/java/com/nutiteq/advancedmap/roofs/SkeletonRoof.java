@@ -0,0 +1,443 @@
+package com.nutiteq.advancedmap.roofs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.nutiteq.log.Log;
+import com.nutiteq.roofs.Roof;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ *
+ * Hipped roof for footprints of any shape, based on straight skeleton: every outline edge gets
+ * one roof face with same slope, faces meet in ridges, hips and valleys. Roofs of the SDK are
+ * calculated for minimum bounding rectangle only, so these look wrong on L-shaped,
+ * many-sided or rotated buildings.
+ *
+ * Skeleton is calculated for exterior ring of the footprint by shrinking it: edges move inwards
+ * with same speed, and the wavefront changes on edge events (edge shrinks to point) and split
+ * events (reflex vertex hits other edge, wavefront splits in two). Area swept by each edge is
+ * its roof face, height is slope times sweep time. Holes are not part of the skeleton,
+ * Polygon3DRoof clips faces to footprint.
+ *
+ * Calculation is O(n^3) for n outline edges, so the mesh should be generated once and cached,
+ * see RoofMeshCache.
+ *
+ * @author jaak
+ *
+ */
+public class SkeletonRoof extends Roof {
+    private static final double EPSILON = 1e-9;
+
+    private final Geometry footprint;
+
+    // local origin of calculation, for precision with large internal coordinates
+    private double originX;
+    private double originY;
+    private double eps;
+    // inward unit normals and line offsets of outline edges: distance(p) = nx * x + ny * y - offset
+    private double[] normalX;
+    private double[] normalY;
+    private double[] offset;
+    // outline edge of each face in polygons
+    private int[] faceEdges;
+    private double slope;
+
+    // wavefront vertex between offset lines of outline edges in and out, moving with velocity (vx, vy)
+    private static class Vertex {
+        final double x;
+        final double y;
+        final double t;
+        final int in;
+        final int out;
+        double vx;
+        double vy;
+        Vertex prev;
+        Vertex next;
+        // time until which area swept by edge to next vertex is added to faces
+        double emitTime;
+        boolean removed;
+
+        Vertex(double x, double y, double t, int in, int out) {
+            this.x = x;
+            this.y = y;
+            this.t = t;
+            this.in = in;
+            this.out = out;
+            this.emitTime = t;
+        }
+
+        double x(double time) {
+            return x + vx * (time - t);
+        }
+
+        double y(double time) {
+            return y + vy * (time - t);
+        }
+    }
+
+    /**
+     * @param roofHeight height of highest ridge
+     * @param footprint building outline in internal coordinates, same as used by Polygon3DRoof
+     */
+    public SkeletonRoof(float roofHeight, Geometry footprint) {
+        super(roofHeight, true);
+        this.footprint = footprint;
+    }
+
+    /**
+     * Number of outline edges, faces of roof.
+     */
+    public static int getEdgeCount(Geometry footprint) {
+        return getRing(footprint).length - 1;
+    }
+
+    @Override
+    public void calculateRoof(Geometry rectangle) {
+        // given bounding rectangle is not used, roof follows the footprint
+        polygons = new Polygon[0];
+        faceEdges = new int[0];
+        normalX = null;
+        slope = 0;
+
+        List<Coordinate> ring = getOutline();
+        int n = ring.size();
+        if (n < 3) {
+            return;
+        }
+        normalX = new double[n];
+        normalY = new double[n];
+        offset = new double[n];
+        for (int i = 0; i < n; i++) {
+            Coordinate p0 = ring.get(i);
+            Coordinate p1 = ring.get((i + 1) % n);
+            double dx = p1.x - p0.x;
+            double dy = p1.y - p0.y;
+            double len = Math.sqrt(dx * dx + dy * dy);
+            normalX[i] = -dy / len;
+            normalY[i] = dx / len;
+            offset[i] = normalX[i] * p0.x + normalY[i] * p0.y;
+        }
+
+        List<Vertex> vertices = new ArrayList<Vertex>();
+        for (int i = 0; i < n; i++) {
+            Coordinate p = ring.get(i);
+            vertices.add(createVertex(p.x, p.y, 0, (i + n - 1) % n, i));
+        }
+        for (int i = 0; i < n; i++) {
+            link(vertices.get(i), vertices.get((i + 1) % n));
+        }
+
+        List<Polygon> faces = new ArrayList<Polygon>();
+        List<Integer> edges = new ArrayList<Integer>();
+        double time = 0;
+        int maxEvents = 4 * n * n;
+        for (int events = 0; events < maxEvents; events++) {
+            removeCollapsed(vertices, time, faces, edges);
+            if (vertices.isEmpty()) {
+                break;
+            }
+            // earliest event: edge of vertex u collapses, or reflex vertex r hits edge of vertex u
+            double eventTime = Double.MAX_VALUE;
+            Vertex eventEdge = null;
+            Vertex eventReflex = null;
+            for (Vertex u : vertices) {
+                double t = getEdgeEventTime(u, time);
+                if (t < eventTime) {
+                    eventTime = t;
+                    eventEdge = u;
+                    eventReflex = null;
+                }
+                if (isReflex(u)) {
+                    for (Vertex a = u.next; a != u.prev; a = a.next) {
+                        t = getSplitEventTime(u, a, time);
+                        if (t < eventTime) {
+                            eventTime = t;
+                            eventEdge = a;
+                            eventReflex = u;
+                        }
+                    }
+                }
+            }
+            if (eventEdge == null) {
+                break;
+            }
+            time = eventTime;
+            if (eventReflex == null) {
+                handleEdgeEvent(eventEdge, time, vertices, faces, edges);
+            } else {
+                handleSplitEvent(eventReflex, eventEdge, time, vertices, faces, edges);
+            }
+        }
+        removeCollapsed(vertices, time, faces, edges);
+        if (!vertices.isEmpty() || time <= EPSILON) {
+            Log.debug("SkeletonRoof: Failed to calculate skeleton of " + n + " edges, using flat roof");
+            normalX = null;
+            return;
+        }
+
+        polygons = faces.toArray(new Polygon[faces.size()]);
+        faceEdges = new int[edges.size()];
+        for (int i = 0; i < faceEdges.length; i++) {
+            faceEdges[i] = edges.get(i);
+        }
+        slope = roofHeight / time;
+    }
+
+    @Override
+    public double calculateRoofPointHeight(double x, double y) {
+        if (normalX == null || polygons.length == 0) {
+            return 0;
+        }
+        // height from plane of the face nearest to point, points on face borders give same height from both faces
+        Point point = geoFac.createPoint(new Coordinate(x, y));
+        int edge = faceEdges[0];
+        double minDistance = Double.MAX_VALUE;
+        for (int i = 0; i < polygons.length && minDistance > 0; i++) {
+            double distance = polygons[i].distance(point);
+            if (distance < minDistance) {
+                minDistance = distance;
+                edge = faceEdges[i];
+            }
+        }
+        double lx = x - originX;
+        double ly = y - originY;
+        return slope * Math.max(0, normalX[edge] * lx + normalY[edge] * ly - offset[edge]);
+    }
+
+    // Exterior ring in local coordinates, counter-clockwise, without repeated and collinear points.
+    private List<Coordinate> getOutline() {
+        Coordinate[] coords = getRing(footprint);
+        List<Coordinate> ring = new ArrayList<Coordinate>();
+        if (coords.length < 4) {
+            return ring;
+        }
+        originX = coords[0].x;
+        originY = coords[0].y;
+        double size = 0;
+        for (int i = 0; i < coords.length - 1; i++) {
+            size = Math.max(size, Math.max(Math.abs(coords[i].x - originX), Math.abs(coords[i].y - originY)));
+        }
+        eps = Math.max(size, 1) * EPSILON;
+
+        for (int i = 0; i < coords.length - 1; i++) {
+            Coordinate c = new Coordinate(coords[i].x - originX, coords[i].y - originY);
+            if (ring.isEmpty() || c.distance(ring.get(ring.size() - 1)) > eps) {
+                ring.add(c);
+            }
+        }
+        if (ring.size() > 1 && ring.get(0).distance(ring.get(ring.size() - 1)) <= eps) {
+            ring.remove(ring.size() - 1);
+        }
+        for (int i = 0; i < ring.size() && ring.size() >= 3;) {
+            Coordinate p0 = ring.get((i + ring.size() - 1) % ring.size());
+            Coordinate p1 = ring.get(i);
+            Coordinate p2 = ring.get((i + 1) % ring.size());
+            double cross = (p1.x - p0.x) * (p2.y - p1.y) - (p1.y - p0.y) * (p2.x - p1.x);
+            if (Math.abs(cross) <= eps * (p0.distance(p1) + p1.distance(p2))) {
+                ring.remove(i);
+            } else {
+                i++;
+            }
+        }
+        double area = 0;
+        for (int i = 0; i < ring.size(); i++) {
+            Coordinate p0 = ring.get(i);
+            Coordinate p1 = ring.get((i + 1) % ring.size());
+            area += p0.x * p1.y - p1.x * p0.y;
+        }
+        if (area < 0) {
+            Collections.reverse(ring);
+        }
+        return ring;
+    }
+
+    private Vertex createVertex(double x, double y, double t, int in, int out) {
+        Vertex vertex = new Vertex(x, y, t, in, out);
+        // velocity moves vertex with unit speed along both inward normals
+        double det = normalX[in] * normalY[out] - normalY[in] * normalX[out];
+        if (Math.abs(det) > EPSILON) {
+            vertex.vx = (normalY[out] - normalY[in]) / det;
+            vertex.vy = (normalX[in] - normalX[out]) / det;
+        } else {
+            vertex.vx = normalX[in];
+            vertex.vy = normalY[in];
+        }
+        return vertex;
+    }
+
+    private boolean isReflex(Vertex vertex) {
+        // edge directions are normals rotated clockwise
+        double cross = normalY[vertex.in] * -normalX[vertex.out] - -normalX[vertex.in] * normalY[vertex.out];
+        return cross < -EPSILON;
+    }
+
+    private double getEdgeEventTime(Vertex u, double time) {
+        Vertex w = u.next;
+        double dx = normalY[u.out];
+        double dy = -normalX[u.out];
+        double length = dx * (w.x(time) - u.x(time)) + dy * (w.y(time) - u.y(time));
+        double rate = dx * (w.vx - u.vx) + dy * (w.vy - u.vy);
+        if (length <= eps) {
+            return time;
+        }
+        if (rate >= -EPSILON) {
+            return Double.MAX_VALUE;
+        }
+        return time + length / -rate;
+    }
+
+    private double getSplitEventTime(Vertex r, Vertex a, double time) {
+        int e = a.out;
+        double gap = normalX[e] * r.x(time) + normalY[e] * r.y(time) - offset[e] - time;
+        double speed = 1 - (normalX[e] * r.vx + normalY[e] * r.vy);
+        if (gap < -eps || speed <= EPSILON) {
+            return Double.MAX_VALUE;
+        }
+        double t = time + Math.max(0, gap) / speed;
+        // hit point must be on the edge at that time
+        double dx = normalY[e];
+        double dy = -normalX[e];
+        double s = dx * r.x(t) + dy * r.y(t);
+        double s0 = dx * a.x(t) + dy * a.y(t);
+        double s1 = dx * a.next.x(t) + dy * a.next.y(t);
+        if (s < s0 - eps || s > s1 + eps) {
+            return Double.MAX_VALUE;
+        }
+        return t;
+    }
+
+    private void handleEdgeEvent(Vertex u, double time, List<Vertex> vertices, List<Polygon> faces, List<Integer> edges) {
+        Vertex w = u.next;
+        emit(u.prev, time, faces, edges);
+        emit(u, time, faces, edges);
+        emit(w, time, faces, edges);
+        Vertex m = createVertex((u.x(time) + w.x(time)) / 2, (u.y(time) + w.y(time)) / 2, time, u.in, w.out);
+        Vertex prev = u.prev;
+        Vertex next = w.next;
+        remove(u, vertices);
+        remove(w, vertices);
+        if (prev == w) {
+            // edge was the last one
+            return;
+        }
+        link(prev, m);
+        link(m, next);
+        vertices.add(m);
+    }
+
+    private void handleSplitEvent(Vertex r, Vertex a, double time, List<Vertex> vertices, List<Polygon> faces, List<Integer> edges) {
+        emit(r.prev, time, faces, edges);
+        emit(r, time, faces, edges);
+        emit(a, time, faces, edges);
+        double x = r.x(time);
+        double y = r.y(time);
+        Vertex r1 = createVertex(x, y, time, r.in, a.out);
+        Vertex r2 = createVertex(x, y, time, a.out, r.out);
+        Vertex prev = r.prev;
+        Vertex next = r.next;
+        Vertex b = a.next;
+        remove(r, vertices);
+        link(prev, r1);
+        link(r1, b);
+        link(a, r2);
+        link(r2, next);
+        vertices.add(r1);
+        vertices.add(r2);
+    }
+
+    // Add area swept by edge from vertex u to next vertex since last emit, as face of the edge.
+    private void emit(Vertex u, double time, List<Polygon> faces, List<Integer> edges) {
+        Vertex w = u.next;
+        double t0 = u.emitTime;
+        u.emitTime = time;
+        double[] xs = { u.x(t0), w.x(t0), w.x(time), u.x(time) };
+        double[] ys = { u.y(t0), w.y(t0), w.y(time), u.y(time) };
+        List<Coordinate> coords = new ArrayList<Coordinate>();
+        for (int i = 0; i < xs.length; i++) {
+            Coordinate c = new Coordinate(xs[i] + originX, ys[i] + originY);
+            if (coords.isEmpty() || c.distance(coords.get(coords.size() - 1)) > eps) {
+                coords.add(c);
+            }
+        }
+        if (coords.size() > 1 && coords.get(0).distance(coords.get(coords.size() - 1)) <= eps) {
+            coords.remove(coords.size() - 1);
+        }
+        if (coords.size() < 3) {
+            return;
+        }
+        coords.add(coords.get(0));
+        Polygon polygon = geoFac.createPolygon(geoFac.createLinearRing(coords.toArray(new Coordinate[coords.size()])), null);
+        if (polygon.getArea() > eps * eps) {
+            faces.add(polygon);
+            edges.add(u.out);
+        }
+    }
+
+    // Remove wavefront parts which have no area left, e.g. less than 3 vertices or collinear vertices.
+    private void removeCollapsed(List<Vertex> vertices, double time, List<Polygon> faces, List<Integer> edges) {
+        for (int i = 0; i < vertices.size(); i++) {
+            Vertex first = vertices.get(i);
+            double area = 0;
+            double perimeter = 0;
+            Vertex vertex = first;
+            do {
+                Vertex next = vertex.next;
+                double x0 = vertex.x(time);
+                double y0 = vertex.y(time);
+                double x1 = next.x(time);
+                double y1 = next.y(time);
+                area += x0 * y1 - x1 * y0;
+                perimeter += Math.sqrt((x1 - x0) * (x1 - x0) + (y1 - y0) * (y1 - y0));
+                vertex = next;
+            } while (vertex != first);
+            if (first.next.next == first || Math.abs(area) / 2 <= eps * perimeter) {
+                do {
+                    emit(vertex, time, faces, edges);
+                    vertex = vertex.next;
+                } while (vertex != first);
+                do {
+                    Vertex next = vertex.next;
+                    remove(vertex, vertices);
+                    vertex = next;
+                } while (!vertex.removed);
+                i = -1;
+            }
+        }
+    }
+
+    private static void remove(Vertex vertex, List<Vertex> vertices) {
+        if (!vertex.removed) {
+            vertex.removed = true;
+            vertices.remove(vertex);
+        }
+    }
+
+    private static void link(Vertex vertex, Vertex next) {
+        vertex.next = next;
+        next.prev = vertex;
+    }
+
+    private static Coordinate[] getRing(Geometry footprint) {
+        if (footprint instanceof Polygon) {
+            return ((Polygon) footprint).getExteriorRing().getCoordinates();
+        }
+        // multipolygons etc: use outline of the largest part
+        Geometry largest = null;
+        for (int i = 0; i < footprint.getNumGeometries(); i++) {
+            Geometry part = footprint.getGeometryN(i);
+            if (largest == null || part.getArea() > largest.getArea()) {
+                largest = part;
+            }
+        }
+        if (largest instanceof Polygon) {
+            return ((Polygon) largest).getExteriorRing().getCoordinates();
+        }
+        return new Coordinate[0];
+    }
+
+}
@@ -0,0 +1,391 @@
+package com.nutiteq.advancedmap.startup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.app.Activity;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import com.nutiteq.advancedmap.cache.ResourceBitmapCache;
+import com.nutiteq.components.Options;
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Startup profiler for map activities. Records time of named phases in onCreate(), runs
+ * blocking work (bitmap decoding, file opening) in background executor, and runs deferred
+ * tasks, e.g. adding layers from files, one by one on UI thread after first frame is shown.
+ *
+ * When all tasks are done, timings are reported as one JSON line, logged with "STARTUP " prefix
+ * and appended to startup_profile.jsonl in application files directory, e.g.
+ * {"activity":"MBTilesMapActivity","first_frame_ms":420,"complete_ms":610,"phases":{..},
+ * "background":{..},"deferred":{..}}. Times are from launcher click if LauncherList gave
+ * EXTRA_LAUNCH_TIME, otherwise from begin(). Launch time is used only for first start of
+ * activity, not when it is recreated.
+ *
+ * First frame and complete times are compared to median of previous BASELINE_RUNS reports of
+ * same activity, slower times are logged as warning and listed in "regression" of report.
+ * Report file keeps at most MAX_REPORT_LINES lines, older half is dropped when it is full.
+ *
+ * All methods must be called on UI thread.
+ *
+ * @author jaak
+ *
+ */
+public class StartupProfiler {
+    public static final String EXTRA_LAUNCH_TIME = "startupLaunchTime";
+
+    private static final String REPORT_FILE = "startup_profile.jsonl";
+    private static final String REPORT_PREFIX = "STARTUP ";
+    private static final String[] COMPARED_TIMES = { "first_frame_ms", "complete_ms" };
+    private static final int BASELINE_RUNS = 5;
+    private static final int MAX_REPORT_LINES = 500;
+    private static final float REGRESSION_FACTOR = 1.2f;
+    private static final long REGRESSION_MIN_MS = 50;
+
+    // thread ends when idle, so nothing is left running after startup
+    private static final ExecutorService executor = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    private final Activity activity;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final long startTime;
+    private long markTime;
+    private long firstFrameTime = -1;
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+    private final Map<String, Long> backgroundTimes = new LinkedHashMap<String, Long>();
+    private final Map<String, Long> deferredTimes = new LinkedHashMap<String, Long>();
+    private final List<String> deferredNames = new ArrayList<String>();
+    private final List<Runnable> deferredTasks = new ArrayList<Runnable>();
+    private boolean deferredRunning;
+    private int taskCount;
+    private int doneTaskCount;
+    private boolean reported;
+
+    /**
+     * Result of background task, called on UI thread.
+     */
+    public interface ResultListener<T> {
+        void onResult(T result);
+    }
+
+    private StartupProfiler(Activity activity, Bundle savedInstanceState) {
+        this.activity = activity;
+        long now = SystemClock.elapsedRealtime();
+        long launchTime = now;
+        if (activity.getIntent() != null) {
+            if (savedInstanceState == null) {
+                launchTime = activity.getIntent().getLongExtra(EXTRA_LAUNCH_TIME, now);
+            }
+            // recreated activity gets same intent
+            activity.getIntent().removeExtra(EXTRA_LAUNCH_TIME);
+        }
+        this.startTime = launchTime;
+        this.markTime = now;
+    }
+
+    /**
+     * Start profiling, call first in onCreate().
+     *
+     * @param savedInstanceState state given to onCreate(), launch time is not used if it is not null
+     */
+    public static StartupProfiler begin(Activity activity, Bundle savedInstanceState) {
+        final StartupProfiler profiler = new StartupProfiler(activity, savedInstanceState);
+        // decor view must not be created before requestWindowFeature(), and this runs before first traversal
+        profiler.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                profiler.waitForFirstFrame();
+            }
+        });
+        return profiler;
+    }
+
+    /**
+     * End of phase which started at previous mark or begin().
+     */
+    public void mark(String phase) {
+        long now = SystemClock.elapsedRealtime();
+        phases.put(phase, now - markTime);
+        markTime = now;
+    }
+
+    /**
+     * Run task in background executor, result is given to listener on UI thread.
+     */
+    public <T> void runInBackground(final String name, final Callable<T> task, final ResultListener<T> listener) {
+        taskCount++;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long taskStartTime = SystemClock.elapsedRealtime();
+                T result = null;
+                try {
+                    result = task.call();
+                } catch (Exception e) {
+                    Log.error("StartupProfiler: Failed to run " + name + "! " + e.getMessage());
+                }
+                final long time = SystemClock.elapsedRealtime() - taskStartTime;
+                final T taskResult = result;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (taskResult != null && !activity.isFinishing()) {
+                            listener.onResult(taskResult);
+                        }
+                        backgroundTimes.put(name, time);
+                        doneTaskCount++;
+                        checkComplete();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Decode bitmap resource in background, e.g. sky and background plane bitmaps of map.
+     */
+    public void decodeInBackground(String name, final Resources resources, final int resourceId, ResultListener<Bitmap> listener) {
+        runInBackground(name, new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return ResourceBitmapCache.decodeResource(resources, resourceId);
+            }
+        }, listener);
+    }
+
+    /**
+     * Decode sky bitmap in background and set it to map options.
+     */
+    public void decodeSkyBitmap(final Options options, Resources resources, int resourceId) {
+        decodeInBackground("skyBitmap", resources, resourceId, new ResultListener<Bitmap>() {
+            @Override
+            public void onResult(Bitmap bitmap) {
+                options.setSkyBitmap(bitmap);
+            }
+        });
+    }
+
+    /**
+     * Decode background plane bitmap in background and set it to map options.
+     */
+    public void decodeBackgroundPlaneBitmap(final Options options, Resources resources, int resourceId) {
+        decodeInBackground("backgroundBitmap", resources, resourceId, new ResultListener<Bitmap>() {
+            @Override
+            public void onResult(Bitmap bitmap) {
+                options.setBackgroundPlaneBitmap(bitmap);
+            }
+        });
+    }
+
+    /**
+     * Run task on UI thread after first frame is shown, e.g. to add layers which open files.
+     */
+    public void runAfterFirstFrame(String name, Runnable task) {
+        taskCount++;
+        deferredNames.add(name);
+        deferredTasks.add(task);
+        if (firstFrameTime >= 0 && !deferredRunning) {
+            runNextDeferredTask();
+        }
+    }
+
+    private void waitForFirstFrame() {
+        final View decorView = activity.getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                // runs after the frame has been drawn
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        firstFrameTime = SystemClock.elapsedRealtime() - startTime;
+                        Log.debug("StartupProfiler: first frame of " + activity.getClass().getSimpleName() + " in " + firstFrameTime + " ms");
+                        if (!deferredTasks.isEmpty()) {
+                            runNextDeferredTask();
+                        }
+                        checkComplete();
+                    }
+                });
+                return true;
+            }
+        });
+    }
+
+    // one task per message, so UI can handle input between tasks
+    private void runNextDeferredTask() {
+        deferredRunning = true;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                String name = deferredNames.remove(0);
+                Runnable task = deferredTasks.remove(0);
+                long taskStartTime = SystemClock.elapsedRealtime();
+                if (!activity.isFinishing()) {
+                    task.run();
+                }
+                deferredTimes.put(name, SystemClock.elapsedRealtime() - taskStartTime);
+                doneTaskCount++;
+                if (deferredTasks.isEmpty()) {
+                    deferredRunning = false;
+                } else {
+                    runNextDeferredTask();
+                }
+                checkComplete();
+            }
+        });
+    }
+
+    private void checkComplete() {
+        if (firstFrameTime < 0 || doneTaskCount < taskCount || reported) {
+            return;
+        }
+        reported = true;
+        report(SystemClock.elapsedRealtime() - startTime);
+    }
+
+    private void report(long completeTime) {
+        final JSONObject json = new JSONObject();
+        try {
+            json.put("activity", activity.getClass().getSimpleName());
+            json.put("first_frame_ms", firstFrameTime);
+            json.put("complete_ms", completeTime);
+            json.put("phases", new JSONObject(phases));
+            json.put("background", new JSONObject(backgroundTimes));
+            json.put("deferred", new JSONObject(deferredTimes));
+            json.put("bitmap_cache", ResourceBitmapCache.getStats());
+        } catch (JSONException e) {
+            Log.error("StartupProfiler: Failed to create report! " + e.getMessage());
+            return;
+        }
+
+        // previous reports are read from file, not on UI thread
+        final File reportFile = new File(activity.getFilesDir(), REPORT_FILE);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<String> lines = readLines(reportFile);
+                try {
+                    compareToBaseline(json, getReports(lines, json.getString("activity")));
+                } catch (JSONException e) {
+                    Log.error("StartupProfiler: Failed to compare report! " + e.getMessage());
+                }
+                String line = json.toString();
+                Log.info(REPORT_PREFIX + line);
+                try {
+                    // full file is rewritten with newer half of lines, otherwise line is appended
+                    boolean full = lines.size() >= MAX_REPORT_LINES;
+                    FileWriter writer = new FileWriter(reportFile, !full);
+                    try {
+                        if (full) {
+                            for (String previous : lines.subList(lines.size() - MAX_REPORT_LINES / 2, lines.size())) {
+                                writer.write(previous + "\n");
+                            }
+                        }
+                        writer.write(line + "\n");
+                    } finally {
+                        writer.close();
+                    }
+                } catch (IOException e) {
+                    Log.error("StartupProfiler: Failed to write report! " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    // adds "regression" with times which are clearly slower than median of previous runs
+    private static void compareToBaseline(JSONObject json, List<JSONObject> previous) throws JSONException {
+        if (previous.isEmpty()) {
+            return;
+        }
+        JSONObject regression = new JSONObject();
+        for (String name : COMPARED_TIMES) {
+            List<Long> times = new ArrayList<Long>();
+            for (JSONObject report : previous) {
+                if (report.has(name)) {
+                    times.add(report.getLong(name));
+                }
+            }
+            if (times.isEmpty()) {
+                continue;
+            }
+            Collections.sort(times);
+            long median = times.get(times.size() / 2);
+            long time = json.getLong(name);
+            if (time > median * REGRESSION_FACTOR && time - median > REGRESSION_MIN_MS) {
+                regression.put(name, median);
+                Log.warning("StartupProfiler: " + json.getString("activity") + " " + name + " " + time + ", median of "
+                        + times.size() + " previous runs " + median);
+            }
+        }
+        if (regression.length() > 0) {
+            json.put("regression", regression);
+        }
+    }
+
+    // last BASELINE_RUNS reports of activity
+    private static List<JSONObject> getReports(List<String> lines, String activityName) {
+        LinkedList<JSONObject> reports = new LinkedList<JSONObject>();
+        for (String line : lines) {
+            try {
+                JSONObject report = new JSONObject(line);
+                if (activityName.equals(report.optString("activity"))) {
+                    reports.add(report);
+                    if (reports.size() > BASELINE_RUNS) {
+                        reports.removeFirst();
+                    }
+                }
+            } catch (JSONException e) {
+                // partly written line
+            }
+        }
+        return reports;
+    }
+
+    private static List<String> readLines(File reportFile) {
+        List<String> lines = new ArrayList<String>();
+        if (!reportFile.exists()) {
+            return lines;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(reportFile));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.error("StartupProfiler: Failed to read reports! " + e.getMessage());
+        }
+        return lines;
+    }
+
+}
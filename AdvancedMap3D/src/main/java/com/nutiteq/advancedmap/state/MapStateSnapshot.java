@@ -0,0 +1,303 @@
+package com.nutiteq.advancedmap.state;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Bundle;
+
+import com.nutiteq.MapView;
+import com.nutiteq.components.MapPos;
+import com.nutiteq.log.Log;
+
+/**
+ *
+ * Compact versioned snapshot of map state, saved to instance state Bundle so that it survives
+ * process death, not only configuration changes like Components from
+ * onRetainNonConfigurationInstance(). Snapshot has camera, descriptors of layers opened from files
+ * (type, path, table and cached metadata, so file does not have to be queried again) and
+ * activity specific values, e.g. route end points.
+ *
+ * Binary format is: magic, version, then sections of tag, length and payload. Unknown sections
+ * are skipped, snapshots of other versions are ignored. Sections are encoded when changed and
+ * cached, so saving state again only writes changed parts. Restore gives descriptors only, heavy
+ * resources are re-opened by the activity, e.g. after first frame.
+ *
+ * @author jaak
+ *
+ */
+public class MapStateSnapshot {
+    public static final int VERSION = 1;
+
+    public static final String TYPE_MBTILES = "mbtiles";
+    public static final String TYPE_OGR = "ogr";
+    public static final String TYPE_SPATIALITE = "spatialite";
+
+    private static final String BUNDLE_KEY = "mapStateSnapshot";
+    private static final int MAGIC = 0x4e4d5353;
+
+    private static final int SECTION_CAMERA = 0;
+    private static final int SECTION_LAYERS = 1;
+    private static final int SECTION_VALUES = 2;
+    private static final int SECTION_COUNT = 3;
+
+    private boolean hasCamera;
+    private double focusX;
+    private double focusY;
+    private float zoom;
+    private float rotation;
+    private float tilt;
+    private final List<Layer> layers = new ArrayList<Layer>();
+    private final Map<String, String> values = new LinkedHashMap<String, String>();
+
+    // encoded sections, null if section has changed since last encoding
+    private final byte[][] sections = new byte[SECTION_COUNT][];
+
+    /**
+     * Descriptor of layer data source opened from file.
+     */
+    public static class Layer {
+        public final String type;
+        public final String path;
+        // table or layer name in file, null if not used
+        public final String table;
+        // cached metadata of data source
+        public final Map<String, String> properties;
+
+        public Layer(String type, String path, String table, Map<String, String> properties) {
+            this.type = type;
+            this.path = path;
+            this.table = table;
+            this.properties = properties != null ? properties : new LinkedHashMap<String, String>();
+        }
+
+        public String getProperty(String key) {
+            return properties.get(key);
+        }
+    }
+
+    /**
+     * Snapshot from Bundle given to onCreate().
+     *
+     * @return snapshot, or null if there is no saved state or it is not readable
+     */
+    public static MapStateSnapshot restore(Bundle savedInstanceState) {
+        if (savedInstanceState == null) {
+            return null;
+        }
+        byte[] data = savedInstanceState.getByteArray(BUNDLE_KEY);
+        if (data == null) {
+            return null;
+        }
+        try {
+            return fromByteArray(data);
+        } catch (IOException e) {
+            Log.error("MapStateSnapshot: Failed to read snapshot! " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Save snapshot with current camera of MapView, call from onSaveInstanceState().
+     */
+    public void save(MapView mapView, Bundle outState) {
+        setCamera(mapView);
+        try {
+            outState.putByteArray(BUNDLE_KEY, toByteArray());
+        } catch (IOException e) {
+            Log.error("MapStateSnapshot: Failed to write snapshot! " + e.getMessage());
+        }
+    }
+
+    public void setCamera(MapView mapView) {
+        MapPos focusPoint = mapView.getFocusPoint();
+        if (hasCamera && focusPoint.x == focusX && focusPoint.y == focusY && mapView.getZoom() == zoom
+                && mapView.getMapRotation() == rotation && mapView.getTilt() == tilt) {
+            return;
+        }
+        hasCamera = true;
+        focusX = focusPoint.x;
+        focusY = focusPoint.y;
+        zoom = mapView.getZoom();
+        rotation = mapView.getMapRotation();
+        tilt = mapView.getTilt();
+        sections[SECTION_CAMERA] = null;
+    }
+
+    /**
+     * Set saved camera to MapView.
+     *
+     * @return false if snapshot has no camera
+     */
+    public boolean applyCamera(MapView mapView) {
+        if (!hasCamera) {
+            return false;
+        }
+        mapView.setFocusPoint(focusX, focusY);
+        mapView.setZoom(zoom);
+        mapView.setMapRotation(rotation);
+        mapView.setTilt(tilt);
+        return true;
+    }
+
+    public void addLayer(Layer layer) {
+        layers.add(layer);
+        sections[SECTION_LAYERS] = null;
+    }
+
+    public List<Layer> getLayers() {
+        return Collections.unmodifiableList(layers);
+    }
+
+    /**
+     * Saved layer of given type and file.
+     *
+     * @return layer descriptor, or null if layer was not saved
+     */
+    public Layer findLayer(String type, String path) {
+        for (Layer layer : layers) {
+            if (layer.type.equals(type) && layer.path.equals(path)) {
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Set activity specific value, null removes it.
+     */
+    public void putValue(String key, String value) {
+        if (value == null) {
+            if (values.remove(key) == null) {
+                return;
+            }
+        } else if (value.equals(values.put(key, value))) {
+            return;
+        }
+        sections[SECTION_VALUES] = null;
+    }
+
+    public String getValue(String key) {
+        return values.get(key);
+    }
+
+    public byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        for (int i = 0; i < SECTION_COUNT; i++) {
+            if (sections[i] == null) {
+                sections[i] = encodeSection(i);
+            }
+            out.writeByte(i);
+            out.writeInt(sections[i].length);
+            out.write(sections[i]);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    public static MapStateSnapshot fromByteArray(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a map state snapshot");
+        }
+        int version = in.readShort();
+        if (version != VERSION) {
+            Log.debug("MapStateSnapshot: ignoring snapshot version " + version);
+            return null;
+        }
+        MapStateSnapshot snapshot = new MapStateSnapshot();
+        while (in.available() > 0) {
+            int tag = in.readUnsignedByte();
+            byte[] section = new byte[in.readInt()];
+            in.readFully(section);
+            if (tag < SECTION_COUNT) {
+                snapshot.decodeSection(tag, new DataInputStream(new ByteArrayInputStream(section)));
+                snapshot.sections[tag] = section;
+            }
+        }
+        return snapshot;
+    }
+
+    private byte[] encodeSection(int tag) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        switch (tag) {
+        case SECTION_CAMERA:
+            out.writeBoolean(hasCamera);
+            out.writeDouble(focusX);
+            out.writeDouble(focusY);
+            out.writeFloat(zoom);
+            out.writeFloat(rotation);
+            out.writeFloat(tilt);
+            break;
+        case SECTION_LAYERS:
+            out.writeShort(layers.size());
+            for (Layer layer : layers) {
+                out.writeUTF(layer.type);
+                out.writeUTF(layer.path);
+                out.writeUTF(layer.table != null ? layer.table : "");
+                writeMap(out, layer.properties);
+            }
+            break;
+        case SECTION_VALUES:
+            writeMap(out, values);
+            break;
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private void decodeSection(int tag, DataInputStream in) throws IOException {
+        switch (tag) {
+        case SECTION_CAMERA:
+            hasCamera = in.readBoolean();
+            focusX = in.readDouble();
+            focusY = in.readDouble();
+            zoom = in.readFloat();
+            rotation = in.readFloat();
+            tilt = in.readFloat();
+            break;
+        case SECTION_LAYERS:
+            int layerCount = in.readUnsignedShort();
+            for (int i = 0; i < layerCount; i++) {
+                String type = in.readUTF();
+                String path = in.readUTF();
+                String table = in.readUTF();
+                layers.add(new Layer(type, path, table.length() > 0 ? table : null, readMap(in)));
+            }
+            break;
+        case SECTION_VALUES:
+            values.putAll(readMap(in));
+            break;
+        }
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeShort(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readMap(DataInputStream in) throws IOException {
+        int size = in.readUnsignedShort();
+        Map<String, String> map = new LinkedHashMap<String, String>(size * 2);
+        for (int i = 0; i < size; i++) {
+            String key = in.readUTF();
+            map.put(key, in.readUTF());
+        }
+        return map;
+    }
+
+}
@@ -0,0 +1,381 @@
+package com.nutiteq.filepicker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.gdal;
+import org.gdal.gdalconst.gdalconstConstants;
+import org.mapsforge.map.reader.MapDatabase;
+import org.mapsforge.map.reader.header.MapFileInfo;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.nutiteq.log.Log;
+
+/**
+ * Persistent index of files seen by FilePicker: directory flag, size and modification time of
+ * each file, short metadata of map files (MBTiles bounds and zooms, Mapsforge header, GDAL
+ * raster extent), and last known listing of each directory with each display filter. So
+ * a directory can be shown at once from the index while it is scanned again, and map file
+ * metadata is read only when the file has changed.
+ *
+ * Index is kept in memory and saved to application files directory in background, only if it has
+ * changed. Listings of MAX_LISTINGS recently shown directories are kept, and only entries of files
+ * in these listings are saved.
+ */
+public class FileIndex {
+	private static final String INDEX_FILE = "filepicker_index.bin";
+	private static final int VERSION = 1;
+	private static final int MAX_LISTINGS = 100;
+
+	private static final String[] MBTILES_EXTENSIONS = { ".mbtiles", ".db", ".sqlite" };
+	private static final String[] GDAL_EXTENSIONS = { ".tif", ".tiff", ".img", ".jp2", ".vrt", ".ecw", ".sid" };
+
+	private static FileIndex instance;
+	// one writer at a time, thread ends when idle
+	private static final ExecutorService saveExecutor = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>());
+
+	private final File indexFile;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	// directory path and filter key to child paths, access ordered for LRU
+	private final Map<String, List<String>> listings = new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+			return size() > MAX_LISTINGS;
+		}
+	};
+	private boolean changed;
+	private boolean savePending;
+
+	/**
+	 * Indexed file.
+	 */
+	public static class Entry {
+		public final File file;
+		public final boolean directory;
+		public final long length;
+		public final long lastModified;
+		// short description of map file, null if not known
+		public final String info;
+
+		Entry(File file, boolean directory, long length, long lastModified, String info) {
+			this.file = file;
+			this.directory = directory;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.info = info;
+		}
+	}
+
+	private FileIndex(File indexFile) {
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * Shared index, loaded from disk on first call.
+	 */
+	public static synchronized FileIndex getInstance(Context context) {
+		if (instance == null) {
+			instance = new FileIndex(new File(context.getFilesDir(), INDEX_FILE));
+			try {
+				instance.load();
+			} catch (IOException e) {
+				Log.error("FileIndex: Failed to load index! " + e.getMessage());
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Last known listing of directory, without touching the file system.
+	 *
+	 * @param filterKey
+	 *            key of display filter and its settings used for listing
+	 * @return entries, or null if directory has not been listed with this filter
+	 */
+	public synchronized List<Entry> getListing(File directory, String filterKey) {
+		List<String> paths = this.listings.get(directory.getAbsolutePath() + "|" + filterKey);
+		if (paths == null) {
+			return null;
+		}
+		List<Entry> listing = new ArrayList<Entry>(paths.size());
+		for (String path : paths) {
+			Entry entry = this.entries.get(path);
+			if (entry != null) {
+				listing.add(entry);
+			}
+		}
+		return listing;
+	}
+
+	public synchronized void putListing(File directory, String filterKey, List<Entry> listing) {
+		List<String> paths = new ArrayList<String>(listing.size());
+		for (Entry entry : listing) {
+			paths.add(entry.file.getAbsolutePath());
+		}
+		this.listings.put(directory.getAbsolutePath() + "|" + filterKey, paths);
+		this.changed = true;
+	}
+
+	/**
+	 * Indexed entry of file, map file metadata is read if file is new or has changed. Does
+	 * file system access, so call in background.
+	 */
+	public Entry update(File file) {
+		boolean directory = file.isDirectory();
+		long length = directory ? 0 : file.length();
+		long lastModified = file.lastModified();
+		String path = file.getAbsolutePath();
+		synchronized (this) {
+			Entry entry = this.entries.get(path);
+			if (entry != null && entry.directory == directory && entry.length == length
+					&& entry.lastModified == lastModified) {
+				return entry;
+			}
+		}
+		String info = directory ? null : readInfo(file);
+		Entry entry = new Entry(file, directory, length, lastModified, info);
+		synchronized (this) {
+			this.entries.put(path, entry);
+			this.changed = true;
+		}
+		return entry;
+	}
+
+	/**
+	 * Write index to disk in background, if it has changed.
+	 */
+	public synchronized void saveInBackground() {
+		if (!this.changed || this.savePending) {
+			return;
+		}
+		this.savePending = true;
+		saveExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				save();
+			}
+		});
+	}
+
+	/**
+	 * Write index to disk if it has changed. Entries of files which are not in any kept listing
+	 * are removed first.
+	 */
+	public synchronized void save() {
+		this.savePending = false;
+		if (!this.changed) {
+			return;
+		}
+		prune();
+		File tempFile = new File(this.indexFile.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			try {
+				out.writeInt(VERSION);
+				out.writeInt(this.entries.size());
+				for (Entry entry : this.entries.values()) {
+					out.writeUTF(entry.file.getAbsolutePath());
+					out.writeBoolean(entry.directory);
+					out.writeLong(entry.length);
+					out.writeLong(entry.lastModified);
+					out.writeUTF(entry.info != null ? entry.info : "");
+				}
+				out.writeInt(this.listings.size());
+				for (Map.Entry<String, List<String>> listing : this.listings.entrySet()) {
+					out.writeUTF(listing.getKey());
+					out.writeInt(listing.getValue().size());
+					for (String path : listing.getValue()) {
+						out.writeUTF(path);
+					}
+				}
+			} finally {
+				out.close();
+			}
+			if (!tempFile.renameTo(this.indexFile)) {
+				throw new IOException("rename failed");
+			}
+			this.changed = false;
+		} catch (IOException e) {
+			Log.error("FileIndex: Failed to save index! " + e.getMessage());
+		}
+	}
+
+	// removes entries of deleted files and of directories which have dropped out of listings
+	private void prune() {
+		Set<String> paths = new HashSet<String>();
+		for (List<String> listing : this.listings.values()) {
+			paths.addAll(listing);
+		}
+		Iterator<String> it = this.entries.keySet().iterator();
+		while (it.hasNext()) {
+			if (!paths.contains(it.next())) {
+				it.remove();
+			}
+		}
+	}
+
+	private void load() throws IOException {
+		if (!this.indexFile.exists()) {
+			return;
+		}
+		long startTime = System.currentTimeMillis();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.indexFile)));
+		try {
+			if (in.readInt() != VERSION) {
+				return;
+			}
+			int entryCount = in.readInt();
+			for (int i = 0; i < entryCount; i++) {
+				String path = in.readUTF();
+				boolean directory = in.readBoolean();
+				long length = in.readLong();
+				long lastModified = in.readLong();
+				String info = in.readUTF();
+				this.entries.put(path, new Entry(new File(path), directory, length, lastModified,
+						info.length() > 0 ? info : null));
+			}
+			int listingCount = in.readInt();
+			for (int i = 0; i < listingCount; i++) {
+				String key = in.readUTF();
+				int pathCount = in.readInt();
+				List<String> paths = new ArrayList<String>(pathCount);
+				for (int j = 0; j < pathCount; j++) {
+					paths.add(in.readUTF());
+				}
+				this.listings.put(key, paths);
+			}
+		} finally {
+			in.close();
+		}
+		Log.debug("FileIndex: loaded " + this.entries.size() + " entries in "
+				+ (System.currentTimeMillis() - startTime) + " ms");
+	}
+
+	/**
+	 * Short description of map file, e.g. bounds and zoom levels.
+	 *
+	 * @return description, or null if file is not a known map file
+	 */
+	static String readInfo(File file) {
+		String name = file.getName().toLowerCase(Locale.US);
+		if (name.endsWith(".map")) {
+			return readMapsforgeInfo(file);
+		}
+		for (String extension : MBTILES_EXTENSIONS) {
+			if (name.endsWith(extension)) {
+				return readMBTilesInfo(file);
+			}
+		}
+		for (String extension : GDAL_EXTENSIONS) {
+			if (name.endsWith(extension)) {
+				return readGdalInfo(file);
+			}
+		}
+		return null;
+	}
+
+	private static String readMBTilesInfo(File file) {
+		SQLiteDatabase db = null;
+		try {
+			db = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY
+					| SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+			Cursor cursor = db.rawQuery("SELECT name, value FROM metadata WHERE name IN ('bounds', 'minzoom', 'maxzoom')", null);
+			Map<String, String> metadata = new HashMap<String, String>();
+			try {
+				while (cursor.moveToNext()) {
+					metadata.put(cursor.getString(0), cursor.getString(1));
+				}
+			} finally {
+				cursor.close();
+			}
+			if (metadata.isEmpty()) {
+				return null;
+			}
+			StringBuilder info = new StringBuilder();
+			if (metadata.containsKey("bounds")) {
+				info.append(metadata.get("bounds"));
+			}
+			if (metadata.containsKey("minzoom") && metadata.containsKey("maxzoom")) {
+				info.append(info.length() > 0 ? " " : "").append("z").append(metadata.get("minzoom")).append("-")
+						.append(metadata.get("maxzoom"));
+			}
+			return info.toString();
+		} catch (SQLiteException e) {
+			// not a MBTiles database
+			return null;
+		} finally {
+			if (db != null) {
+				db.close();
+			}
+		}
+	}
+
+	private static String readMapsforgeInfo(File file) {
+		MapDatabase mapDatabase = new MapDatabase();
+		if (!mapDatabase.openFile(file).isSuccess()) {
+			return null;
+		}
+		try {
+			MapFileInfo mapFileInfo = mapDatabase.getMapFileInfo();
+			return formatBounds(mapFileInfo.boundingBox.minLongitude, mapFileInfo.boundingBox.minLatitude,
+					mapFileInfo.boundingBox.maxLongitude, mapFileInfo.boundingBox.maxLatitude)
+					+ (mapFileInfo.startZoomLevel != null ? " z" + mapFileInfo.startZoomLevel : "");
+		} finally {
+			mapDatabase.closeFile();
+		}
+	}
+
+	private static String readGdalInfo(File file) {
+		try {
+			gdal.AllRegister();
+			Dataset dataset = gdal.Open(file.getAbsolutePath(), gdalconstConstants.GA_ReadOnly);
+			if (dataset == null) {
+				return null;
+			}
+			try {
+				// extent in raster projection, from geotransform of north-up raster
+				double[] transform = dataset.GetGeoTransform();
+				double x1 = transform[0] + dataset.GetRasterXSize() * transform[1];
+				double y1 = transform[3] + dataset.GetRasterYSize() * transform[5];
+				return formatBounds(transform[0], Math.min(y1, transform[3]), x1, Math.max(y1, transform[3]))
+						+ " " + dataset.GetRasterXSize() + "x" + dataset.GetRasterYSize();
+			} finally {
+				dataset.delete();
+			}
+		} catch (UnsatisfiedLinkError e) {
+			Log.error("FileIndex: GDAL is not available! " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static String formatBounds(double minX, double minY, double maxX, double maxY) {
+		return String.format(Locale.US, "%.2f,%.2f,%.2f,%.2f", minX, minY, maxX, maxY);
+	}
+}
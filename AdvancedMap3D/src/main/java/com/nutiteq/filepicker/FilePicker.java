@@ -16,8 +16,10 @@ package com.nutiteq.filepicker;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -25,6 +27,7 @@ import android.app.Dialog;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.view.View;
@@ -33,6 +36,7 @@ import android.widget.AdapterView;
 import android.widget.GridView;
 
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.log.Log;
 
 /**
  * A FilePicker displays the contents of directories. The user can navigate within the file
@@ -46,13 +50,21 @@ import com.nutiteq.advancedmap.R;
  * Another <code>FileFilter</code> can be applied via {@link #setFileSelectFilter(FileFilter)}
  * to check if a selected file is valid before its path is returned. By default all files are
  * considered as valid and can be selected by the user.
+ * <p>
+ * Directories are scanned in background and shown while scanning, as filters and map file
+ * metadata need file system access for each file. Last listing and metadata of map files are
+ * kept in {@link FileIndex}, so known directories are shown at once.
  */
 public class FilePicker extends Activity implements AdapterView.OnItemClickListener {
 	private static final String DEFAULT_DIRECTORY = "/";
 	private static final int DIALOG_FILE_INVALID = 0;
 	private static final int DIALOG_FILE_SELECT = 1;
-	private static Comparator<File> fileComparator = getDefaultFileComparator();
+	// scanned files are shown in batches
+	private static final long PUBLISH_INTERVAL = 200;
+	private static final Comparator<File> DEFAULT_FILE_COMPARATOR = getDefaultFileComparator();
+	private static Comparator<File> fileComparator = DEFAULT_FILE_COMPARATOR;
 	private static FileFilter fileDisplayFilter;
+	private static String fileDisplayFilterKey = "";
 	private static FileFilter fileSelectFilter;
     private static String msg;
 	private static final String PREFERENCES_FILE = "FilePicker";
@@ -71,12 +83,27 @@ public class FilePicker extends Activity implements AdapterView.OnItemClickListe
 	/**
 	 * Sets the file display filter. This filter is used to determine which files and subfolders
 	 * of directories will be displayed. If set to null, all files and subfolders are shown.
+	 * Listings shown with this filter are not kept in {@link FileIndex}, as filter has no key.
 	 * 
 	 * @param fileDisplayFilter
 	 *            the file display filter (may be null).
 	 */
 	public static void setFileDisplayFilter(FileFilter fileDisplayFilter) {
+		setFileDisplayFilter(fileDisplayFilter, null);
+	}
+
+	/**
+	 * Sets the file display filter with a key for listings kept in {@link FileIndex}.
+	 * 
+	 * @param fileDisplayFilter
+	 *            the file display filter (may be null).
+	 * @param filterKey
+	 *            identifies filter and its settings, filters which accept different files must
+	 *            have different keys. If null, listings are not kept.
+	 */
+	public static void setFileDisplayFilter(FileFilter fileDisplayFilter, String filterKey) {
 		FilePicker.fileDisplayFilter = fileDisplayFilter;
+		FilePicker.fileDisplayFilterKey = fileDisplayFilter == null ? "" : filterKey;
 	}
 
 	/**
@@ -115,16 +142,102 @@ public class FilePicker extends Activity implements AdapterView.OnItemClickListe
 		};
 	}
 
+	/**
+	 * Lists directory in background, publishes sorted entries while scanning.
+	 */
+	private class ScanDirectoryTask extends AsyncTask<Void, List<FileIndex.Entry>, List<FileIndex.Entry>> {
+		private final File directory;
+		private final FileFilter filter;
+		private final String filterKey;
+		private final Comparator<File> comparator;
+
+		ScanDirectoryTask(File directory) {
+			this.directory = directory;
+			this.filter = fileDisplayFilter;
+			this.filterKey = fileDisplayFilterKey;
+			this.comparator = fileComparator;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		protected List<FileIndex.Entry> doInBackground(Void... v) {
+			long startTime = System.currentTimeMillis();
+			long publishTime = startTime + PUBLISH_INTERVAL;
+			List<FileIndex.Entry> entries = new ArrayList<FileIndex.Entry>();
+			File[] children = this.directory.listFiles();
+			if (children == null) {
+				return entries;
+			}
+			for (File child : children) {
+				if (isCancelled()) {
+					return null;
+				}
+				if (this.filter == null || this.filter.accept(child)) {
+					entries.add(FilePicker.this.fileIndex.update(child));
+				}
+				if (System.currentTimeMillis() > publishTime) {
+					publishProgress(sortEntries(new ArrayList<FileIndex.Entry>(entries)));
+					publishTime = System.currentTimeMillis() + PUBLISH_INTERVAL;
+				}
+			}
+			sortEntries(entries);
+			if (this.filterKey != null) {
+				FilePicker.this.fileIndex.putListing(this.directory, this.filterKey, entries);
+			}
+			Log.debug("FilePicker: scanned " + children.length + " files in "
+					+ (System.currentTimeMillis() - startTime) + " ms");
+			return entries;
+		}
+
+		private List<FileIndex.Entry> sortEntries(List<FileIndex.Entry> entries) {
+			if (this.comparator == DEFAULT_FILE_COMPARATOR) {
+				// same order as default comparator, without file system access
+				Collections.sort(entries, new Comparator<FileIndex.Entry>() {
+					@Override
+					public int compare(FileIndex.Entry entry1, FileIndex.Entry entry2) {
+						if (entry1.directory != entry2.directory) {
+							return entry1.directory ? -1 : 1;
+						}
+						return entry1.file.getName().compareToIgnoreCase(entry2.file.getName());
+					}
+				});
+			} else if (this.comparator != null) {
+				Collections.sort(entries, new Comparator<FileIndex.Entry>() {
+					@Override
+					public int compare(FileIndex.Entry entry1, FileIndex.Entry entry2) {
+						return ScanDirectoryTask.this.comparator.compare(entry1.file, entry2.file);
+					}
+				});
+			}
+			return entries;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		protected void onProgressUpdate(List<FileIndex.Entry>... entries) {
+			if (!isCancelled()) {
+				showEntries(entries[0]);
+			}
+		}
+
+		@Override
+		protected void onPostExecute(List<FileIndex.Entry> entries) {
+			showEntries(entries);
+		}
+	}
+
 	private File currentDirectory;
 	private FilePickerIconAdapter filePickerIconAdapter;
-	private File[] files;
-	private File[] filesWithParentFolder;
+	private FileIndex.Entry[] files;
     private String viewerClassName;
+	private FileIndex fileIndex;
+	private ScanDirectoryTask scanTask;
 
 	@Override
 	public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-		File selectedFile = this.files[(int) id];
-		if (selectedFile.isDirectory()) {
+		FileIndex.Entry selectedEntry = this.files[(int) id];
+		File selectedFile = selectedEntry.file;
+		if (selectedEntry.directory) {
 			this.currentDirectory = selectedFile;
 			browseToCurrentDirectory();
 		} else if (fileSelectFilter == null || fileSelectFilter.accept(selectedFile)) {
@@ -141,35 +254,36 @@ public class FilePicker extends Activity implements AdapterView.OnItemClickListe
 	}
 
 	/**
-	 * Browses to the current directory.
+	 * Browses to the current directory: shows last known listing from index at once, and
+	 * scans the directory in background.
 	 */
 	private void browseToCurrentDirectory() {
 		setTitle(this.currentDirectory.getAbsolutePath());
 
-		// read the subfolders and files from the current directory
-		if (fileDisplayFilter == null) {
-			this.files = this.currentDirectory.listFiles();
-		} else {
-			this.files = this.currentDirectory.listFiles(fileDisplayFilter);
+		if (this.scanTask != null) {
+			this.scanTask.cancel(false);
 		}
+		List<FileIndex.Entry> cached = fileDisplayFilterKey != null ? this.fileIndex.getListing(this.currentDirectory,
+				fileDisplayFilterKey) : null;
+		showEntries(cached != null ? cached : new ArrayList<FileIndex.Entry>());
 
-		if (this.files == null) {
-			this.files = new File[0];
-		} else {
-			// order the subfolders and files
-			Arrays.sort(this.files, fileComparator);
-		}
+		this.scanTask = new ScanDirectoryTask(this.currentDirectory);
+		this.scanTask.execute();
+	}
 
+	private void showEntries(List<FileIndex.Entry> entries) {
 		// if a parent directory exists, add it at the first position
-		if (this.currentDirectory.getParentFile() != null) {
-			this.filesWithParentFolder = new File[this.files.length + 1];
-			this.filesWithParentFolder[0] = this.currentDirectory.getParentFile();
-			System.arraycopy(this.files, 0, this.filesWithParentFolder, 1, this.files.length);
-			this.files = this.filesWithParentFolder;
-			this.filePickerIconAdapter.setFiles(this.files, true);
+		File parentFile = this.currentDirectory.getParentFile();
+		if (parentFile != null) {
+			this.files = new FileIndex.Entry[entries.size() + 1];
+			this.files[0] = new FileIndex.Entry(parentFile, true, 0, 0, null);
+			for (int i = 0; i < entries.size(); i++) {
+				this.files[i + 1] = entries.get(i);
+			}
 		} else {
-			this.filePickerIconAdapter.setFiles(this.files, false);
+			this.files = entries.toArray(new FileIndex.Entry[entries.size()]);
 		}
+		this.filePickerIconAdapter.setFiles(this.files, parentFile != null);
 		this.filePickerIconAdapter.notifyDataSetChanged();
 	}
 
@@ -180,6 +294,7 @@ public class FilePicker extends Activity implements AdapterView.OnItemClickListe
 
         Bundle b = getIntent().getExtras();
 	    this.viewerClassName = b.getString("class");
+		this.fileIndex = FileIndex.getInstance(this);
 
 		this.filePickerIconAdapter = new FilePickerIconAdapter(this);
 		GridView gridView = (GridView) findViewById(R.id.filePickerView);
@@ -215,6 +330,13 @@ public class FilePicker extends Activity implements AdapterView.OnItemClickListe
 	@Override
 	protected void onPause() {
 		super.onPause();
+		if (this.scanTask != null) {
+			this.scanTask.cancel(false);
+			this.scanTask = null;
+		}
+		// write index in background, it may be large
+		this.fileIndex.saveInBackground();
+
 		// save the current directory
 		Editor editor = getSharedPreferences(PREFERENCES_FILE, MODE_PRIVATE).edit();
 		editor.clear();
@@ -14,8 +14,6 @@
  */
 package com.nutiteq.filepicker;
 
-import java.io.File;
-
 import android.content.Context;
 import android.view.Gravity;
 import android.view.View;
@@ -30,8 +28,8 @@ import com.nutiteq.advancedmap.R;
  */
 class FilePickerIconAdapter extends BaseAdapter {
 	private final Context context;
-	private File currentFile;
-	private File[] files;
+	private FileIndex.Entry currentEntry;
+	private FileIndex.Entry[] files;
 	private boolean hasParentFolder;
 	private TextView textView;
 
@@ -79,19 +77,28 @@ class FilePickerIconAdapter extends BaseAdapter {
 
 		if (index == 0 && this.hasParentFolder) {
 			// the parent directory of the current folder
+			this.textView.setLines(2);
 			this.textView.setCompoundDrawablesWithIntrinsicBounds(0,
 					R.drawable.file_picker_back, 0, 0);
 			this.textView.setText("..");
 		} else {
-			this.currentFile = this.files[index];
-			if (this.currentFile.isDirectory()) {
+			// directory flag and metadata come from index, no file system access here
+			this.currentEntry = this.files[index];
+			if (this.currentEntry.directory) {
 				this.textView.setCompoundDrawablesWithIntrinsicBounds(0,
 						R.drawable.file_picker_folder, 0, 0);
 			} else {
 				this.textView.setCompoundDrawablesWithIntrinsicBounds(0,
 						R.drawable.file_picker_file, 0, 0);
 			}
-			this.textView.setText(this.currentFile.getName());
+			if (this.currentEntry.info != null) {
+				// metadata preview of map file below name
+				this.textView.setLines(3);
+				this.textView.setText(this.currentEntry.file.getName() + "\n" + this.currentEntry.info);
+			} else {
+				this.textView.setLines(2);
+				this.textView.setText(this.currentEntry.file.getName());
+			}
 		}
 		return this.textView;
 	}
@@ -100,11 +107,11 @@ class FilePickerIconAdapter extends BaseAdapter {
 	 * Sets the data of this adapter.
 	 * 
 	 * @param files
-	 *            the new files for this adapter.
+	 *            the new file entries for this adapter.
 	 * @param newHasParentFolder
 	 *            true if the file array has a parent folder at index 0, false otherwise.
 	 */
-	void setFiles(File[] files, boolean newHasParentFolder) {
+	void setFiles(FileIndex.Entry[] files, boolean newHasParentFolder) {
 		this.files = files.clone();
 		this.hasParentFolder = newHasParentFolder;
 	}
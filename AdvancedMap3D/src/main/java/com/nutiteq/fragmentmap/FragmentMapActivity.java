@@ -5,6 +5,7 @@ import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
 
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.startup.StartupProfiler;
 import com.nutiteq.geometry.Marker;
 import com.nutiteq.log.Log;
 
@@ -24,6 +25,7 @@ public class FragmentMapActivity extends FragmentActivity implements MapFragment
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
+    StartupProfiler.begin(this, savedInstanceState);
 
     setContentView(R.layout.fragment_main);
 
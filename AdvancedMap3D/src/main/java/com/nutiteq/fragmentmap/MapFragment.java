@@ -5,6 +5,7 @@ import java.util.List;
 
 import com.nutiteq.MapView;
 import com.nutiteq.advancedmap.R;
+import com.nutiteq.advancedmap.cache.ResourceBitmapCache;
 import com.nutiteq.components.Color;
 import com.nutiteq.components.Components;
 import com.nutiteq.components.MapPos;
@@ -18,7 +19,6 @@ import com.nutiteq.rasterdatasources.RasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
 import com.nutiteq.style.MarkerStyle;
 import com.nutiteq.ui.MapListener;
-import com.nutiteq.utils.UnscaledBitmapLoader;
 import com.nutiteq.vectorlayers.MarkerLayer;
 
 import android.os.Bundle;
@@ -127,10 +127,10 @@ public class MapFragment extends Fragment {
 
     // Styles for markers
     normalMarkerStyle = MarkerStyle.builder().setSize(0.5f).setBitmap(
-        UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.olmarker)
+        ResourceBitmapCache.decodeResource(getResources(), R.drawable.olmarker)
       ).build();
     selectedMarkerStyle = MarkerStyle.builder().setSize(0.65f).setColor(Color.RED).setBitmap(
-        UnscaledBitmapLoader.decodeResource(getResources(), R.drawable.olmarker)
+        ResourceBitmapCache.decodeResource(getResources(), R.drawable.olmarker)
       ).build();
 
     // Add event listener
@@ -149,13 +149,13 @@ public class MapFragment extends Fragment {
     mapView.getOptions().setSkyDrawMode(Options.DRAW_BITMAP);
     mapView.getOptions().setSkyOffset(4.86f);
     mapView.getOptions().setSkyBitmap(
-        UnscaledBitmapLoader.decodeResource(getResources(),
+        ResourceBitmapCache.decodeResource(getResources(),
             R.drawable.sky_small));
 
     // Map background, visible if no map tiles loaded - optional, default - white
     mapView.getOptions().setBackgroundPlaneDrawMode(Options.DRAW_BITMAP);
     mapView.getOptions().setBackgroundPlaneBitmap(
-        UnscaledBitmapLoader.decodeResource(getResources(),
+        ResourceBitmapCache.decodeResource(getResources(),
             R.drawable.background_plane));
     mapView.getOptions().setClearColor(Color.WHITE);
 
@@ -0,0 +1,55 @@
+package com.nutiteq.advancedmap.datasources;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.nutiteq.advancedmap.proj.ProjException;
+import com.nutiteq.advancedmap.proj.TransformRegistry;
+import com.nutiteq.components.Envelope;
+import com.nutiteq.utils.GeoUtils;
+
+/**
+ *
+ * Transform pipelines to map projection and javaproj fallback must give the same EPSG:3857 position.
+ *
+ * @author jaak
+ *
+ */
+public class MapProjectionTest {
+    private static final double EARTH_RADIUS = 6378137;
+    private static final double TOLERANCE = 1;
+
+    // EPSG:3301 false origin is at lat_0, lon_0 of the projection
+    private static final double ORIGIN_X = 500000;
+    private static final double ORIGIN_Y = 6375000;
+    private static final double ORIGIN_LON = 24;
+    private static final double ORIGIN_LAT = 57.51755393055556;
+
+    @Test
+    public void pipelineAndFallbackAgree() throws ProjException {
+        Envelope origin = new Envelope(ORIGIN_X, ORIGIN_X, ORIGIN_Y, ORIGIN_Y);
+        Envelope pipeline = TransformRegistry.getInstance()
+                .getPipeline(TransformRegistry.EPSG3301_PROJ4, SpatialiteQueryPlanner.getMapProj4()).transformEnvelope(origin, 1);
+        Envelope fallback = GeoUtils.transformBboxJavaProj(origin, TransformRegistry.EPSG3301_PROJ4, SpatialiteQueryPlanner.SDK_PROJ4TEXT);
+
+        double x = Math.toRadians(ORIGIN_LON) * EARTH_RADIUS;
+        double y = Math.log(Math.tan(Math.PI / 4 + Math.toRadians(ORIGIN_LAT) / 2)) * EARTH_RADIUS;
+        assertEquals(x, pipeline.minX, TOLERANCE);
+        assertEquals(y, pipeline.minY, TOLERANCE);
+        assertEquals(x, fallback.minX, TOLERANCE);
+        assertEquals(y, fallback.minY, TOLERANCE);
+    }
+
+    @Test
+    public void pipelineRoundTrips() throws ProjException {
+        Envelope origin = new Envelope(ORIGIN_X, ORIGIN_X, ORIGIN_Y, ORIGIN_Y);
+        Envelope map = TransformRegistry.getInstance()
+                .getPipeline(TransformRegistry.EPSG3301_PROJ4, SpatialiteQueryPlanner.getMapProj4()).transformEnvelope(origin, 1);
+        Envelope data = TransformRegistry.getInstance()
+                .getPipeline(SpatialiteQueryPlanner.getMapProj4(), TransformRegistry.EPSG3301_PROJ4).transformEnvelope(map, 1);
+        assertEquals(ORIGIN_X, data.minX, TOLERANCE);
+        assertEquals(ORIGIN_Y, data.minY, TOLERANCE);
+    }
+
+}
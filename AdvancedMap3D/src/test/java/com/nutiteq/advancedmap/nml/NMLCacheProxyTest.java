@@ -0,0 +1,207 @@
+package com.nutiteq.advancedmap.nml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * Runs NMLCacheProxy against NMLStandInServer on local ports, no network is needed.
+ *
+ * @author jaak
+ *
+ */
+public class NMLCacheProxyTest {
+    private static final String MAP_TILES_QUERY = "q=MapTiles&mapbounds=1,2,3,4";
+    private static final String MAP_TILES_QUERY_2 = "q=MapTiles&mapbounds=5,6,7,8";
+    private static final byte[] MAP_TILES_DATA = "map tiles".getBytes();
+    // meshes are model requests, which get stale
+    private static final String MESHES_QUERY_1 = "q=Meshes&ids=1";
+    private static final String MESHES_QUERY_2 = "q=Meshes&ids=2";
+    private static final byte[] MESHES_DATA = "meshes".getBytes();
+
+    private File cacheDir;
+    private NMLStandInServer server;
+    private NMLCacheProxy proxy;
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = File.createTempFile("nmlcache", "");
+        cacheDir.delete();
+
+        server = new NMLStandInServer();
+        server.putResponse(MAP_TILES_QUERY, new NMLTileCache.Response("application/octet-stream", MAP_TILES_DATA));
+        server.putResponse(MESHES_QUERY_1, new NMLTileCache.Response("application/octet-stream", MESHES_DATA));
+        server.putResponse(MESHES_QUERY_2, new NMLTileCache.Response("application/octet-stream", MESHES_DATA));
+        String serverUrl = server.start();
+
+        proxy = new NMLCacheProxy(new NMLTileCache(cacheDir, 1024 * 1024, 0.5f), 2);
+        proxy.start();
+        baseUrl = proxy.registerDataset("test", serverUrl);
+    }
+
+    @After
+    public void tearDown() {
+        proxy.stop();
+        server.stop();
+        deleteRecursively(cacheDir);
+    }
+
+    @Test
+    public void servesUpstreamResponse() throws IOException {
+        assertArrayEquals(MAP_TILES_DATA, get(baseUrl + "?" + MAP_TILES_QUERY));
+        assertEquals(Arrays.asList(MAP_TILES_QUERY), server.getReceivedQueries());
+        assertEquals(1, proxy.getDownloadCount());
+    }
+
+    @Test
+    public void servesSecondRequestFromCache() throws IOException {
+        get(baseUrl + "?" + MAP_TILES_QUERY);
+        assertArrayEquals(MAP_TILES_DATA, get(baseUrl + "?" + MAP_TILES_QUERY));
+        assertEquals(1, server.getReceivedQueries().size());
+        assertEquals(1, proxy.getCache().getHitCount());
+    }
+
+    @Test
+    public void unknownQueryIsNotCached() throws IOException {
+        assertNull(get(baseUrl + "?q=Meshes&ids=3"));
+        assertNull(get(baseUrl + "?q=Meshes&ids=3"));
+        assertEquals(2, server.getReceivedQueries().size());
+    }
+
+    @Test
+    public void cacheIsLoadedFromFolder() throws IOException {
+        get(baseUrl + "?" + MAP_TILES_QUERY);
+
+        NMLTileCache cache = new NMLTileCache(cacheDir, 1024 * 1024, 0.5f);
+        cache.load();
+        NMLTileCache.Response response = cache.get("test", MAP_TILES_QUERY);
+        assertNotNull(response);
+        assertArrayEquals(MAP_TILES_DATA, response.data);
+        assertEquals(proxy.getCache().getTotalSize(), cache.getTotalSize());
+    }
+
+    @Test
+    public void viewChangeKeepsRunningDownload() throws Exception {
+        server.setDelay(4000);
+        byte[][] results = new byte[1][];
+        Thread thread = getInBackground(baseUrl + "?" + MESHES_QUERY_1, results, 0);
+        // let the download become stale, one of two slots may be kept by stale downloads
+        Thread.sleep(2500);
+        proxy.onViewChanged();
+        thread.join(10000);
+
+        assertArrayEquals(MESHES_DATA, results[0]);
+        assertEquals(0, proxy.getCancelCount());
+    }
+
+    @Test
+    public void viewChangeAbortsStaleDownloadsOverHalfOfSlots() throws Exception {
+        server.setDelay(4000);
+        byte[][] results = new byte[2][];
+        Thread thread1 = getInBackground(baseUrl + "?" + MESHES_QUERY_1, results, 0);
+        Thread.sleep(200);
+        Thread thread2 = getInBackground(baseUrl + "?" + MESHES_QUERY_2, results, 1);
+        Thread.sleep(2500);
+        proxy.onViewChanged();
+        thread1.join(10000);
+        thread2.join(10000);
+
+        // download which started first is kept
+        assertArrayEquals(MESHES_DATA, results[0]);
+        assertNull(results[1]);
+        assertEquals(1, proxy.getCancelCount());
+        assertEquals(1, proxy.getDownloadCount());
+    }
+
+    @Test
+    public void viewChangeCancelsStaleQueuedRequests() throws Exception {
+        server.setDelay(4000);
+        server.putResponse(MAP_TILES_QUERY_2, new NMLTileCache.Response("application/octet-stream", MAP_TILES_DATA));
+        byte[][] results = new byte[3][];
+        // map tiles are never stale, they keep both download slots busy
+        Thread thread1 = getInBackground(baseUrl + "?" + MAP_TILES_QUERY, results, 0);
+        Thread thread2 = getInBackground(baseUrl + "?" + MAP_TILES_QUERY_2, results, 1);
+        Thread.sleep(200);
+        Thread thread3 = getInBackground(baseUrl + "?" + MESHES_QUERY_1, results, 2);
+        Thread.sleep(2500);
+        assertEquals(1, proxy.getQueueSize());
+        proxy.onViewChanged();
+        thread3.join(1000);
+        assertFalse(thread3.isAlive());
+        assertEquals(0, proxy.getQueueSize());
+        thread1.join(10000);
+        thread2.join(10000);
+
+        assertArrayEquals(MAP_TILES_DATA, results[0]);
+        assertArrayEquals(MAP_TILES_DATA, results[1]);
+        assertNull(results[2]);
+        assertEquals(1, proxy.getCancelCount());
+        assertFalse(server.getReceivedQueries().contains(MESHES_QUERY_1));
+    }
+
+    private static Thread getInBackground(final String url, final byte[][] results, final int index) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    results[index] = get(url);
+                } catch (IOException e) {
+                    results[index] = null;
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    // response body, or null if proxy did not answer with 200
+    private static byte[] get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                }
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -1,8 +1,5 @@
 package com.nutiteq.hellomap;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -21,6 +18,7 @@ import com.nutiteq.geometry.Marker;
 import com.nutiteq.log.Log;
 import com.nutiteq.projections.EPSG3857;
 import com.nutiteq.projections.Projection;
+import com.nutiteq.renderprojections.RenderProjection;
 import com.nutiteq.rasterdatasources.HTTPRasterDataSource;
 import com.nutiteq.rasterdatasources.RasterDataSource;
 import com.nutiteq.rasterlayers.RasterLayer;
@@ -28,7 +26,6 @@ import com.nutiteq.style.MarkerStyle;
 import com.nutiteq.ui.DefaultLabel;
 import com.nutiteq.ui.Label;
 import com.nutiteq.utils.UnscaledBitmapLoader;
-import com.nutiteq.vectorlayers.GeometryLayer;
 import com.nutiteq.vectorlayers.MarkerLayer;
 
 /**
@@ -41,8 +38,6 @@ public class HelloMap3DActivity extends Activity {
 
     private MapView mapView;
     private LocationListener locationListener;
-    private GeometryLayer locationLayer; 
-    private Timer locationTimer;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -62,6 +57,10 @@ public class HelloMap3DActivity extends Activity {
         if (retainObject != null) {
             // just restore configuration and update listener, skip other initializations
             mapView.setComponents(retainObject);
+            // recreate listener, old one refers to previous activity. Keep last location of circle
+            MyMapEventListener oldListener = (MyMapEventListener) mapView.getOptions().getMapListener();
+            MyMapEventListener mapListener = new MyMapEventListener(this, mapView, oldListener.getLocationCircle());
+            mapView.getOptions().setMapListener(mapListener);
             return;
         } else {
             // 2. create and set MapView components - mandatory
@@ -163,32 +162,12 @@ public class HelloMap3DActivity extends Activity {
         // 4. Start the map - mandatory.
         mapView.startMapping();
         
-        // Create layer for location circle
-        locationLayer = new GeometryLayer(mapView.getLayers().getBaseProjection());
-        mapView.getComponents().layers.addLayer(locationLayer);
-
-        // add GPS My Location functionality 
-        final MyLocationCircle locationCircle = new MyLocationCircle(locationLayer);
-        initGps(locationCircle);
-        
-        // Run animation
-        locationTimer = new Timer();
-        locationTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                locationCircle.update(mapView.getZoom());
-            }
-        }, 0, 50);
+        // add GPS My Location functionality, circle is drawn by map listener
+        initGps(((MyMapEventListener) mapView.getOptions().getMapListener()).getLocationCircle());
     }
 
     @Override
     protected void onStop() {
-        // Stop animation
-        locationTimer.cancel();
-        
-        // Remove created layer
-        mapView.getComponents().layers.removeLayer(locationLayer);
-
         // remove GPS support, otherwise we will leak memory
         deinitGps();
 
@@ -205,12 +184,15 @@ public class HelloMap3DActivity extends Activity {
     
     protected void initGps(final MyLocationCircle locationCircle) {
         final Projection proj = mapView.getLayers().getBaseLayer().getProjection();
+        final RenderProjection renderProj = mapView.getLayers().getBaseLayer().getRenderProjection();
         
         locationListener = new LocationListener() {
             @Override
             public void onLocationChanged(Location location) {
-                 locationCircle.setLocation(proj, location);
+                 locationCircle.setLocation(proj, renderProj, location);
                  locationCircle.setVisible(true);
+                 // map is rendered on demand, start pulse animation
+                 mapView.requestRender();
                      
                  // recenter automatically to GPS point
                  // TODO in real app it can be annoying this way, add extra control that it is done only once
@@ -1,73 +1,211 @@
 package com.nutiteq.hellomap;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import javax.microedition.khronos.opengles.GL10;
 
 import android.location.Location;
 
-import com.nutiteq.components.Color;
+import com.nutiteq.MapView;
 import com.nutiteq.components.MapPos;
-import com.nutiteq.geometry.Line;
+import com.nutiteq.components.Point3D;
+import com.nutiteq.log.Log;
 import com.nutiteq.projections.Projection;
-import com.nutiteq.style.LineStyle;
+import com.nutiteq.renderprojections.RenderProjection;
 import com.nutiteq.utils.Const;
-import com.nutiteq.vectorlayers.GeometryLayer;
 
+/**
+ *
+ * Pulsing location circle, drawn with OpenGL from map listener onDrawFrameBefore3D().
+ *
+ * Size and transparency depend on time, not on number of frames, so animation speed does not depend
+ * on frame rate. Map is rendered on demand: next frame is requested with limited rate only while circle
+ * is pulsing and on screen. Circle pulses for a while after location has changed, then it is drawn
+ * with fixed size and map is redrawn only when it changes. Number of frames is logged every minute.
+ *
+ * Circle keeps last location, so it can be given to recreated listener after configuration change.
+ * Location is set in main thread and drawn in GL thread, so its state is published as one immutable object.
+ * Same as MyLocationCircle of AdvancedMap3D, HelloMap3D does not depend on it.
+ *
+ * @author jaak
+ *
+ */
 public class MyLocationCircle {
-    private static final int NR_OF_CIRCLE_VERTS = 18;
-
-    private final GeometryLayer layer;
-    private Line circle = null;
-    private List<MapPos> circleVerts = new ArrayList<MapPos>(NR_OF_CIRCLE_VERTS);
-    private MapPos circlePos = new MapPos(0, 0);
-    private float circleScale = 0;
-    private float circleRadius = 1;
-    private float projectionScale = 0;
-    private boolean visible = false;
-    
-    MyLocationCircle(GeometryLayer layer) {
-        this.layer = layer;
+    private static final int NR_OF_CIRCLE_VERTS = 24;
+    // one pulse from center to max radius
+    private static final long PULSE_PERIOD = 2000;
+    // pulsing stops when location has not changed for this time
+    private static final long ACTIVE_TIME = 10000;
+    // location change in meters which restarts pulsing
+    private static final float MIN_MOVE = 1.0f;
+    // max frame rate of animation, map itself can be redrawn faster during panning
+    private static final long MIN_FRAME_INTERVAL = 50;
+    private static final long STATS_INTERVAL = 60000;
+
+    private final FloatBuffer circleVertBuf;
+    private volatile CircleState state;
+    private Location lastLocation;
+    private volatile long activeUntil = 0;
+    private volatile boolean visible = false;
+
+    private volatile MapView mapView;
+    private boolean framePending = false;
+    private int frameCount = 0;
+    private int requestedFrameCount = 0;
+    private long statsStartTime = System.currentTimeMillis();
+
+    private static class CircleState {
+        final Point3D pos;
+        final MapPos mapPos;
+        final float radius;
+        final float[] localFrameMatrix;
+
+        CircleState(Point3D pos, MapPos mapPos, float radius, float[] localFrameMatrix) {
+            this.pos = pos;
+            this.mapPos = mapPos;
+            this.radius = radius;
+            this.localFrameMatrix = localFrameMatrix;
+        }
     }
-    
-    public void update(float zoom) {
-        // circle max radius 
-        // make sure that it is at least minimum radius, otherwise is too small in general zoom
-        float zoomPow2 = (float) Math.pow(2, zoom);
-        float circleScaleMax = Math.max(
-            circleRadius / 7500000f, // based on GPS accuracy. This constant depends on latitude
-            1.0f / zoomPow2 * 0.2f) * projectionScale; // minimum, fixed value
-        float circleScaleStep = circleScaleMax / 50.0f;
 
-        circleScale += circleScaleStep;
-        if (circleScale > circleScaleMax) {
-            circleScale = 0.0f;
+    private final Runnable renderRequest = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (MyLocationCircle.this) {
+                framePending = false;
+                requestedFrameCount++;
+            }
+            mapView.requestRender();
         }
+    };
 
-        // Build closed circle
-        circleVerts.clear();
-        for (float tsj = 0; tsj <= 360; tsj += 360 / NR_OF_CIRCLE_VERTS) {
-            MapPos mapPos = new MapPos(circleScale * Math.cos(tsj * Const.DEG_TO_RAD) + circlePos.x, circleScale * Math.sin(tsj * Const.DEG_TO_RAD) + circlePos.y);
-            circleVerts.add(mapPos);
+    public MyLocationCircle() {
+        // Create circle vertex array once, it is reused for all frames
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect((NR_OF_CIRCLE_VERTS + 2) * 3 * Float.SIZE / 8);
+        byteBuffer.order(ByteOrder.nativeOrder());
+        circleVertBuf = byteBuffer.asFloatBuffer();
+        circleVertBuf.put(0).put(0).put(0);
+        for (int i = 0; i <= NR_OF_CIRCLE_VERTS; i++) {
+            double angle = i * 360.0 / NR_OF_CIRCLE_VERTS * Const.DEG_TO_RAD;
+            circleVertBuf.put((float) Math.cos(angle)).put((float) Math.sin(angle)).put(0);
         }
+        circleVertBuf.position(0);
+    }
 
-        // Create/update line
-        if (circle == null) {
-            LineStyle style = LineStyle.builder().setWidth(0.1f).setColor(Color.argb(192, 255, 255, 0)).build();
-            circle = new Line(circleVerts, null, style, null);
-            layer.add(circle);
-        } else {
-            circle.setVertexList(circleVerts);
+    /**
+     * Set map view where circle is drawn, call again when activity and map view are recreated.
+     */
+    public void setMapView(MapView mapView) {
+        this.mapView = mapView;
+    }
+
+    /**
+     * Draw circle if it is on screen, and request next frame if it is pulsing. Call from
+     * onDrawFrameBefore3D() of map listener.
+     *
+     * @param gl OpenGL context
+     * @param zoomPow2 Zoom level in power of 2, to calculate easily fixed size on map
+     */
+    public void onDrawFrame(GL10 gl, float zoomPow2) {
+        long time = System.currentTimeMillis();
+        updateStats(time);
+        // same state for whole frame, even if location changes meanwhile
+        CircleState state = this.state;
+        if (state != null && isOnScreen(state) && draw(gl, state, zoomPow2, time)) {
+            // Constant redrawing of idle map drains battery
+            scheduleFrame();
         }
-        circle.setVisible(visible);
     }
 
     public void setVisible(boolean visible) {
         this.visible = visible;
     }
 
-    public void setLocation(Projection proj, Location location) {
-        circlePos = proj.fromWgs84(location.getLongitude(), location.getLatitude());
-        projectionScale = (float) proj.getBounds().getWidth();
-        circleRadius = location.getAccuracy();
+    public void setLocation(Projection proj, RenderProjection renderProj, Location location) {
+        // pulse again only if location or accuracy has changed
+        if (lastLocation == null || lastLocation.distanceTo(location) >= MIN_MOVE || lastLocation.getAccuracy() != location.getAccuracy()) {
+            activeUntil = System.currentTimeMillis() + ACTIVE_TIME;
+        }
+        lastLocation = location;
+
+        MapPos mapPos = proj.fromWgs84(location.getLongitude(), location.getLatitude());
+        Point3D pos = renderProj.project(proj.toInternal(mapPos.x, mapPos.y));
+        double[] localFrameMatrix = renderProj.getLocalFrameMatrix(pos);
+        float[] matrix = new float[16];
+        for (int i = 0; i < 16; i++) {
+            matrix[i] = (float) localFrameMatrix[i];
+        }
+        state = new CircleState(pos, mapPos, location.getAccuracy(), matrix);
+    }
+
+    /**
+     * Location in base projection, null if not known yet.
+     */
+    public MapPos getMapPos() {
+        CircleState state = this.state;
+        return state != null ? state.mapPos : null;
+    }
+
+    private boolean draw(GL10 gl, CircleState state, float zoomPow2, long time) {
+        if (!visible) {
+            return false;
+        }
+
+        // circle max radius
+        // make sure that it is at least minimum radius, otherwise is too small in general zoom
+        float circleScaleMax = Math.max(
+                Const.UNIT_SIZE * state.radius / 7500000f, // based on GPS accuracy. This constant depends on latitude
+                Const.UNIT_SIZE / zoomPow2 * 0.2f); // minimum, fixed value
+
+        // circle grows from 0 to circleScaleMax during pulse, and fades out
+        // idle circle is drawn with fixed size
+        boolean animating = time < activeUntil;
+        float phase = animating ? (time % PULSE_PERIOD) / (float) PULSE_PERIOD : 0.5f;
+        float circleScale = circleScaleMax * phase;
+
+        gl.glBindTexture(GL10.GL_TEXTURE_2D, 0);
+
+        // Colour is yellow (R=1,G=1,B=0)
+        gl.glColor4f(1, 1, 0, 1.0f - phase);
+        gl.glVertexPointer(3, GL10.GL_FLOAT, 0, circleVertBuf);
+
+        gl.glPushMatrix();
+        gl.glTranslatef((float) state.pos.x, (float) state.pos.y, (float) state.pos.z);
+        gl.glMultMatrixf(state.localFrameMatrix, 0);
+        gl.glScalef(circleScale, circleScale, 1);
+        gl.glDrawArrays(GL10.GL_TRIANGLE_FAN, 0, NR_OF_CIRCLE_VERTS + 2);
+        gl.glPopMatrix();
+
+        return animating;
+    }
+
+    private boolean isOnScreen(CircleState state) {
+        MapPos mapPos = state.mapPos;
+        // margin for circle radius
+        int width = mapView.getWidth();
+        int height = mapView.getHeight();
+        MapPos screenPos = mapView.worldToScreen(mapPos.x, mapPos.y, 0);
+        return screenPos.x >= -width / 2 && screenPos.x <= width * 3 / 2 && screenPos.y >= -height / 2 && screenPos.y <= height * 3 / 2;
+    }
+
+    private synchronized void scheduleFrame() {
+        if (!framePending) {
+            framePending = true;
+            mapView.postDelayed(renderRequest, MIN_FRAME_INTERVAL);
+        }
+    }
+
+    private synchronized void updateStats(long time) {
+        frameCount++;
+        if (time - statsStartTime >= STATS_INTERVAL) {
+            float minutes = (time - statsStartTime) / 60000.0f;
+            Log.debug("MyLocationCircle: " + Math.round(frameCount / minutes) + " frames per minute, "
+                    + Math.round(requestedFrameCount / minutes) + " requested by animation");
+            frameCount = 0;
+            requestedFrameCount = 0;
+            statsStartTime = time;
+        }
     }
-}
\ No newline at end of file
+}
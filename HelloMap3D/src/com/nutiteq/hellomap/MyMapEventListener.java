@@ -1,5 +1,7 @@
 package com.nutiteq.hellomap;
 
+import javax.microedition.khronos.opengles.GL10;
+
 import android.app.Activity;
 import android.widget.Toast;
 
@@ -10,12 +12,31 @@ import com.nutiteq.ui.DefaultLabel;
 import com.nutiteq.ui.MapListener;
 
 public class MyMapEventListener extends MapListener {
-
     private Activity activity;
+    private MapView mapView;
+    private final MyLocationCircle locationCircle;
 
     // activity is often useful to handle click events 
     public MyMapEventListener(Activity activity, MapView mapView) {
+        this(activity, mapView, new MyLocationCircle());
+    }
+
+    // keeps location circle of previous listener, e.g. after device rotation
+    public MyMapEventListener(Activity activity, MapView mapView, MyLocationCircle locationCircle) {
         this.activity = activity;
+        this.mapView = mapView;
+        this.locationCircle = locationCircle;
+        locationCircle.setMapView(mapView);
+    }
+
+    public MyLocationCircle getLocationCircle() {
+        return locationCircle;
+    }
+
+    // Draw location circle, next frame is requested only while it is pulsing and visible on screen
+    @Override
+    public void onDrawFrameBefore3D(GL10 gl, float zoomPow2) {
+        locationCircle.onDrawFrame(gl, zoomPow2);
     }
     
     // Vector element (touch) handlers